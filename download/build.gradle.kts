@@ -18,6 +18,8 @@ dependencies {
 //    implementation(libs.androidx.sqlite.ktx)
 //    implementation(libs.gson)
 //    implementation(libs.sqlcipher)
+    // Only needed by apps that use OkHttpDataSource, which must add okhttp themselves.
+    compileOnly(libs.okhttp3)
     testImplementation(libs.junit)
 //    androidTestImplementation(libs.androidx.test.ext)
 //    androidTestImplementation(libs.androidx.test.espresso)
@@ -0,0 +1,143 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.StreamingDigest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The digests of the fixed size chunks of a file, so that a download can verify each chunk as it's
+ * written and re-fetch only the chunks that arrived corrupt.
+ *
+ * <p>The text form, as served from a sidecar URL and returned by {@link #encode()}, is a header line
+ * with the algorithm and the chunk size in bytes, followed by the hex digest of each chunk in order.
+ * Blank lines and lines starting with {@code #} are ignored:
+ *
+ * <pre>
+ * SHA-256 4194304
+ * 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08
+ * 60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752
+ * </pre>
+ *
+ * <p>The last chunk may be shorter than the chunk size. Data beyond the last listed chunk isn't
+ * verified.
+ */
+public final class ChunkManifest {
+
+  /** The default chunk size, in bytes. */
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  /** The digest algorithm, one of those supported by {@link StreamingDigest}. */
+  public final String algorithm;
+  /** The size of each chunk but the last, in bytes. */
+  public final long chunkSize;
+
+  private final List<String> chunkDigests;
+
+  /**
+   * Creates an instance.
+   *
+   * @param algorithm The digest algorithm, one of those supported by {@link StreamingDigest}.
+   * @param chunkSize The size of each chunk but the last, in bytes.
+   * @param chunkDigests The hex digest of each chunk, in order.
+   */
+  public ChunkManifest(String algorithm, long chunkSize, List<String> chunkDigests) {
+    Assertions.checkArgument(StreamingDigest.isSupported(algorithm));
+    Assertions.checkArgument(chunkSize > 0);
+    this.algorithm = algorithm;
+    this.chunkSize = chunkSize;
+    ArrayList<String> normalizedDigests = new ArrayList<>(chunkDigests.size());
+    for (int i = 0; i < chunkDigests.size(); i++) {
+      normalizedDigests.add(chunkDigests.get(i).trim().toLowerCase(Locale.US));
+    }
+    this.chunkDigests = Collections.unmodifiableList(normalizedDigests);
+  }
+
+  /**
+   * Parses the text form of a manifest.
+   *
+   * @param manifest The text form.
+   * @return The parsed manifest.
+   * @throws IOException If the manifest is malformed.
+   */
+  public static ChunkManifest parse(String manifest) throws IOException {
+    @Nullable String algorithm = null;
+    long chunkSize = 0;
+    ArrayList<String> chunkDigests = new ArrayList<>();
+    for (String line : manifest.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      if (algorithm == null) {
+        String[] header = line.split("\\s+");
+        if (header.length != 2 || !StreamingDigest.isSupported(header[0])) {
+          throw new IOException("Malformed chunk manifest header: " + line);
+        }
+        algorithm = header[0];
+        try {
+          chunkSize = Long.parseLong(header[1]);
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed chunk manifest header: " + line, e);
+        }
+        if (chunkSize <= 0) {
+          throw new IOException("Invalid chunk size: " + chunkSize);
+        }
+      } else {
+        chunkDigests.add(line);
+      }
+    }
+    if (algorithm == null) {
+      throw new IOException("Empty chunk manifest");
+    }
+    return new ChunkManifest(algorithm, chunkSize, chunkDigests);
+  }
+
+  /** Returns the text form of the manifest, which {@link #parse(String)} reads back. */
+  public String encode() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(algorithm).append(' ').append(chunkSize);
+    for (int i = 0; i < chunkDigests.size(); i++) {
+      builder.append('\n').append(chunkDigests.get(i));
+    }
+    return builder.toString();
+  }
+
+  /** Returns the number of chunks listed. */
+  public int getChunkCount() {
+    return chunkDigests.size();
+  }
+
+  /** Returns the lower case hex digest of the chunk at {@code index}. */
+  public String getChunkDigest(int index) {
+    return chunkDigests.get(index);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ChunkManifest)) {
+      return false;
+    }
+    ChunkManifest that = (ChunkManifest) o;
+    return chunkSize == that.chunkSize
+        && algorithm.equals(that.algorithm)
+        && chunkDigests.equals(that.chunkDigests);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = algorithm.hashCode();
+    result = 31 * result + (int) (chunkSize ^ (chunkSize >>> 32));
+    result = 31 * result + chunkDigests.hashCode();
+    return result;
+  }
+}
@@ -0,0 +1,186 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.ConditionVariable;
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.Util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link Downloader} for a download whose content is already being downloaded by another task.
+ * Instead of transferring the content again it follows the {@link Transfer} of that task, reporting
+ * its progress as the progress of this download, and links or copies the file once the transfer
+ * completes.
+ *
+ * <p>Only used when the {@link DownloaderFactory} {@link DownloaderFactory#writesPlainFiles() writes
+ * plain files}, since the output of other destinations, such as an extracted directory, can't be
+ * linked or copied as a file.
+ *
+ * <p>A linked file shares its content with the file of the followed download, which is fine as
+ * long as downloaded files aren't written to in place.
+ *
+ * <p>If the followed transfer doesn't complete, this downloader keeps waiting until it's canceled.
+ * The {@link DownloadManager} then queues the download again, so that it can start a transfer of
+ * its own.
+ */
+/* package */ final class CoalescedDownloader implements Downloader {
+
+  /**
+   * The transfer of a download task, which downloads of the same content can follow. Updated by the
+   * thread of the task.
+   */
+  public static final class Transfer {
+
+    public final DownloadRequest request;
+    public final DownloadProgress progress;
+    public volatile long contentLength;
+
+    private final ConditionVariable finished;
+    private volatile boolean succeeded;
+
+    public Transfer(Download download) {
+      request = download.request;
+      progress = download.progress;
+      contentLength = download.contentLength;
+      finished = new ConditionVariable();
+    }
+
+    /** Called by the task when its transfer has stopped, with whether the file is complete. */
+    public void onFinished(boolean succeeded) {
+      this.succeeded = succeeded;
+      finished.open();
+    }
+
+    /** Returns whether the transfer has completed the file. */
+    public boolean hasSucceeded() {
+      return succeeded;
+    }
+
+    /**
+     * Returns whether a download can follow this transfer instead of downloading itself. The
+     * request must be for the same content and, if both downloads have seen a response already, the
+     * responses must have the same validators.
+     */
+    public boolean canBeFollowedBy(Download download) {
+      DownloadRequest other = download.request;
+      return !finished.isOpen()
+          && request.uri.equals(other.uri)
+          && request.type == other.type
+          && Arrays.equals(request.data, other.data)
+          && Util.areEqual(request.digestAlgorithm, other.digestAlgorithm)
+          && Util.areEqual(request.expectedDigest, other.expectedDigest)
+          && request.path != null
+          && other.path != null
+          && !request.path.equals(other.path)
+          && isCompatible(progress.etag, download.getEtag())
+          && isCompatible(progress.lastModified, download.getLastModified());
+    }
+
+    private static boolean isCompatible(@Nullable String validator, @Nullable String otherValidator) {
+      return validator == null || otherValidator == null || validator.equals(otherValidator);
+    }
+  }
+
+  private static final String TAG = "CoalescedDownloader";
+  private static final int PROGRESS_POLL_INTERVAL_MS = 500;
+  private static final long COPY_CHUNK_SIZE_BYTES = 1024 * 1024;
+
+  private final Download download;
+  private final Transfer transfer;
+
+  private volatile boolean isCanceled;
+
+  public CoalescedDownloader(Download download, Transfer transfer) {
+    this.download = download;
+    this.transfer = transfer;
+  }
+
+  @Override
+  public void download(@Nullable ProgressListener progressListener)
+      throws IOException, InterruptedException {
+    Log.i(TAG, download.request.id + " follows the transfer of " + transfer.request.id);
+    long bytesReported = 0;
+    while (true) {
+      boolean finished = transfer.finished.block(PROGRESS_POLL_INTERVAL_MS);
+      if (isCanceled) {
+        throw new InterruptedException();
+      }
+      if (finished && transfer.succeeded) {
+        break;
+      }
+      long bytesDownloaded = transfer.progress.bytesDownloaded;
+      if (progressListener != null && bytesDownloaded != bytesReported) {
+        progressListener.onProgress(
+            transfer.contentLength,
+            bytesDownloaded,
+            transfer.progress.percentDownloaded,
+            Math.max(0, bytesDownloaded - bytesReported));
+        bytesReported = bytesDownloaded;
+      }
+    }
+    File source = new File(Assertions.checkNotNull(transfer.request.path));
+    File target = FileDataDestination.getTempFile(Assertions.checkNotNull(download.request.path));
+    if (!ContentStore.link(source, target)) {
+      copy(source, target);
+    }
+    long length = target.length();
+    if (progressListener != null) {
+      progressListener.onProgress(
+          length, length, /* percentDownloaded= */ 100f, Math.max(0, length - bytesReported));
+    }
+  }
+
+  @Override
+  public void cancel() {
+    isCanceled = true;
+  }
+
+  @Override
+  public void remove() {
+    // The download manager deletes the files.
+  }
+
+  @Override
+  public void success() throws IOException {
+    String path = Assertions.checkNotNull(download.request.path);
+    File tempFile = FileDataDestination.getTempFile(path);
+    if (!tempFile.renameTo(new File(path))) {
+      throw new IOException("failed to rename " + tempFile + " to " + path);
+    }
+  }
+
+  private void copy(File source, File target) throws IOException {
+    try (RandomAccessFile input = new RandomAccessFile(source, "r");
+        RandomAccessFile output = new RandomAccessFile(target, "rw")) {
+      output.setLength(0);
+      FileChannel inputChannel = input.getChannel();
+      FileChannel outputChannel = output.getChannel();
+      long length = inputChannel.size();
+      long position = 0;
+      while (position < length) {
+        if (isCanceled) {
+          throw new InterruptedIOException();
+        }
+        long bytesTransferred =
+            inputChannel.transferTo(
+                position, Math.min(COPY_CHUNK_SIZE_BYTES, length - position), outputChannel);
+        if (bytesTransferred == 0) {
+          throw new EOFException();
+        }
+        position += bytesTransferred;
+      }
+      outputChannel.force(/* metaData= */ false);
+    }
+    Log.i(TAG, "copied " + source + " to " + target);
+  }
+}
@@ -0,0 +1,137 @@
+package jm.droid.lib.download.offline;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.StreamingDigest;
+import jm.droid.lib.download.util.Util;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A content-addressed store of completed downloads, keyed by the {@link
+ * DownloadRequest#expectedDigest} of the request that downloaded them.
+ *
+ * <p>Entries are hard links to the downloaded files, so the store uses no extra space and an entry
+ * outlives the removal of the download that added it. A new request whose expected digest is in the
+ * store is satisfied by linking the entry to its path instead of downloading it again. Links need
+ * the store directory to be on the same file system as the downloads, for example a subdirectory of
+ * {@link android.content.Context#getExternalFilesDir(String)}. Files that can't be linked aren't
+ * added, and entries that can't be linked to a path are copied.
+ *
+ * <p>A file linked to an entry shares its content, so an entry is changed if one of its files is
+ * written to. Entries are therefore verified against their digest before they are used.
+ *
+ * <p>Thread safe.
+ */
+public final class ContentStore {
+
+  private static final String TAG = "ContentStore";
+  private static final Pattern HEX_DIGEST = Pattern.compile("[0-9a-f]+");
+
+  private final File directory;
+
+  /**
+   * Creates an instance.
+   *
+   * @param directory The directory holding the entries. Created when the first entry is added.
+   */
+  public ContentStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the entry for content with the given digest, or null if there isn't one.
+   *
+   * @param algorithm The digest algorithm, one supported by {@link StreamingDigest}.
+   * @param digest The hex encoded digest.
+   */
+  @Nullable
+  public synchronized File get(String algorithm, String digest) {
+    @Nullable File file = getFile(algorithm, digest);
+    return file != null && file.isFile() ? file : null;
+  }
+
+  /**
+   * Adds a file to the store, unless there's already an entry for its digest.
+   *
+   * @param algorithm The digest algorithm, one supported by {@link StreamingDigest}.
+   * @param digest The hex encoded digest of {@code file}.
+   * @param file The file.
+   * @return Whether the store has an entry for {@code digest} afterwards.
+   */
+  public synchronized boolean add(String algorithm, String digest, File file) {
+    @Nullable File entry = getFile(algorithm, digest);
+    if (entry == null) {
+      return false;
+    }
+    if (entry.isFile()) {
+      return true;
+    }
+    @Nullable File parent = entry.getParentFile();
+    if (parent == null || (!parent.isDirectory() && !parent.mkdirs())) {
+      Log.w(TAG, "failed to create " + parent);
+      return false;
+    }
+    if (!link(file, entry)) {
+      Log.w(TAG, "failed to add " + file + " as " + digest);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Removes the entry for content with the given digest, if any. Files linked to it are kept.
+   *
+   * @param algorithm The digest algorithm.
+   * @param digest The hex encoded digest.
+   */
+  public synchronized void remove(String algorithm, String digest) {
+    @Nullable File entry = getFile(algorithm, digest);
+    if (entry != null && entry.exists() && !entry.delete()) {
+      Log.w(TAG, "failed to remove " + entry);
+    }
+  }
+
+  /**
+   * Creates a hard link to {@code source} at {@code target}, replacing any file there.
+   *
+   * @return Whether the link was created. It can't be created across file systems or before API 21.
+   */
+  public static boolean link(File source, File target) {
+    if (Util.SDK_INT < 21) {
+      return false;
+    }
+    if (target.exists() && !target.delete()) {
+      return false;
+    }
+    try {
+      linkV21(source, target);
+      return true;
+    } catch (ErrnoException e) {
+      Log.w(TAG, "failed to link " + source + " to " + target, e);
+      return false;
+    }
+  }
+
+  @RequiresApi(21)
+  private static void linkV21(File source, File target) throws ErrnoException {
+    Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+  }
+
+  @Nullable
+  private File getFile(String algorithm, String digest) {
+    String name = digest.toLowerCase(Locale.US);
+    if (!StreamingDigest.isSupported(algorithm) || !HEX_DIGEST.matcher(name).matches()) {
+      return null;
+    }
+    String directoryName = algorithm.toLowerCase(Locale.US).replace("-", "");
+    return new File(new File(directory, directoryName), name);
+  }
+}
@@ -35,6 +35,7 @@ import jm.droid.lib.download.database.VersionTable;
 import jm.droid.lib.download.offline.Download.FailureReason;
 import jm.droid.lib.download.offline.Download.State;
 import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Log;
 import jm.droid.lib.download.util.Util;
 
 import java.io.IOException;
@@ -44,9 +45,11 @@ import java.util.List;
 /** A {@link DownloadIndex} that uses SQLite to persist {@link Download Downloads}. */
 public final class DefaultDownloadIndex implements WritableDownloadIndex {
 
+  private static final String TAG = "DefaultDownloadIndex";
+
   private static final String TABLE_PREFIX = DatabaseProvider.TABLE_PREFIX + "Downloads";
 
-  @VisibleForTesting /* package */ static final int TABLE_VERSION = 1;
+  @VisibleForTesting /* package */ static final int TABLE_VERSION = 10;
 
   private static final String COLUMN_ID = "id";
   private static final String COLUMN_DISPLAY_NAME = "display_name";
@@ -63,6 +66,22 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
   private static final String COLUMN_PERCENT_DOWNLOADED = "percent_downloaded";
   private static final String COLUMN_BYTES_DOWNLOADED = "bytes_downloaded";
   private static final String COLUMN_TYPE = "type";
+  private static final String COLUMN_RANGE_SUPPORT = "range_support";
+  private static final String COLUMN_ETAG = "etag";
+  private static final String COLUMN_LAST_MODIFIED = "last_modified";
+  private static final String COLUMN_MIRROR_URIS = "mirror_uris";
+  private static final String COLUMN_CONTENT_ENCODING = "content_encoding";
+  private static final String COLUMN_DECODE_CHECKPOINT_POSITION = "decode_checkpoint_position";
+  private static final String COLUMN_DECODE_CHECKPOINT_BYTES_DECODED =
+      "decode_checkpoint_bytes_decoded";
+  private static final String COLUMN_DIGEST_ALGORITHM = "digest_algorithm";
+  private static final String COLUMN_EXPECTED_DIGEST = "expected_digest";
+  private static final String COLUMN_DIGEST_STATE = "digest_state";
+  private static final String COLUMN_CHUNK_MANIFEST = "chunk_manifest";
+  private static final String COLUMN_CHUNK_MANIFEST_URI = "chunk_manifest_uri";
+  private static final String COLUMN_LAST_ACCESS_TIME_MS = "last_access_time_ms";
+  private static final String COLUMN_BASE_PATH = "base_path";
+  private static final String COLUMN_DELTA_MANIFEST_URI = "delta_manifest_uri";
 
   private static final int COLUMN_INDEX_ID = 0;
   private static final int COLUMN_INDEX_DISPLAY_NAME = 1;
@@ -79,12 +98,35 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
   private static final int COLUMN_INDEX_PERCENT_DOWNLOADED = 12;
   private static final int COLUMN_INDEX_BYTES_DOWNLOADED = 13;
   private static final int COLUMN_INDEX_TYPE = 14;
+  private static final int COLUMN_INDEX_RANGE_SUPPORT = 15;
+  private static final int COLUMN_INDEX_ETAG = 16;
+  private static final int COLUMN_INDEX_LAST_MODIFIED = 17;
+  private static final int COLUMN_INDEX_MIRROR_URIS = 18;
+  private static final int COLUMN_INDEX_CONTENT_ENCODING = 19;
+  private static final int COLUMN_INDEX_DECODE_CHECKPOINT_POSITION = 20;
+  private static final int COLUMN_INDEX_DECODE_CHECKPOINT_BYTES_DECODED = 21;
+  private static final int COLUMN_INDEX_DIGEST_ALGORITHM = 22;
+  private static final int COLUMN_INDEX_EXPECTED_DIGEST = 23;
+  private static final int COLUMN_INDEX_DIGEST_STATE = 24;
+  private static final int COLUMN_INDEX_CHUNK_MANIFEST = 25;
+  private static final int COLUMN_INDEX_CHUNK_MANIFEST_URI = 26;
+  private static final int COLUMN_INDEX_LAST_ACCESS_TIME_MS = 27;
+  private static final int COLUMN_INDEX_BASE_PATH = 28;
+  private static final int COLUMN_INDEX_DELTA_MANIFEST_URI = 29;
 
   private static final String WHERE_ID_EQUALS = COLUMN_ID + " = ?";
   private static final String WHERE_TYPE_EQUALS = COLUMN_TYPE + " = ?";
   private static final String WHERE_PATH_EQUALS = COLUMN_PATH + " = ?";
   private static final String WHERE_STATE_IS_DOWNLOADING =
       COLUMN_STATE + " = " + Download.STATE_DOWNLOADING;
+  private static final String WHERE_AFTER_START_TIME_AND_ID =
+      "("
+          + COLUMN_START_TIME_MS
+          + " > ? OR ("
+          + COLUMN_START_TIME_MS
+          + " = ? AND "
+          + COLUMN_ID
+          + " > ?))";
   private static final String WHERE_STATE_IS_TERMINAL =
       getStateQuery(Download.STATE_COMPLETED, Download.STATE_FAILED);
 
@@ -104,7 +146,22 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
         COLUMN_FAILURE_REASON,
         COLUMN_PERCENT_DOWNLOADED,
         COLUMN_BYTES_DOWNLOADED,
-        COLUMN_TYPE
+        COLUMN_TYPE,
+        COLUMN_RANGE_SUPPORT,
+        COLUMN_ETAG,
+        COLUMN_LAST_MODIFIED,
+        COLUMN_MIRROR_URIS,
+        COLUMN_CONTENT_ENCODING,
+        COLUMN_DECODE_CHECKPOINT_POSITION,
+        COLUMN_DECODE_CHECKPOINT_BYTES_DECODED,
+        COLUMN_DIGEST_ALGORITHM,
+        COLUMN_EXPECTED_DIGEST,
+        COLUMN_DIGEST_STATE,
+        COLUMN_CHUNK_MANIFEST,
+        COLUMN_CHUNK_MANIFEST_URI,
+        COLUMN_LAST_ACCESS_TIME_MS,
+        COLUMN_BASE_PATH,
+        COLUMN_DELTA_MANIFEST_URI
       };
 
   private static final String TABLE_SCHEMA =
@@ -138,7 +195,39 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
           + COLUMN_BYTES_DOWNLOADED
           + " INTEGER NOT NULL,"
           + COLUMN_TYPE
-          + " INTEGER NOT NULL)";
+          + " INTEGER NOT NULL,"
+          + COLUMN_RANGE_SUPPORT
+          + " INTEGER NOT NULL DEFAULT "
+          + Download.RANGE_SUPPORT_UNKNOWN
+          + ","
+          + COLUMN_ETAG
+          + " TEXT,"
+          + COLUMN_LAST_MODIFIED
+          + " TEXT,"
+          + COLUMN_MIRROR_URIS
+          + " TEXT,"
+          + COLUMN_CONTENT_ENCODING
+          + " TEXT,"
+          + COLUMN_DECODE_CHECKPOINT_POSITION
+          + " INTEGER NOT NULL DEFAULT 0,"
+          + COLUMN_DECODE_CHECKPOINT_BYTES_DECODED
+          + " INTEGER NOT NULL DEFAULT 0,"
+          + COLUMN_DIGEST_ALGORITHM
+          + " TEXT,"
+          + COLUMN_EXPECTED_DIGEST
+          + " TEXT,"
+          + COLUMN_DIGEST_STATE
+          + " BLOB,"
+          + COLUMN_CHUNK_MANIFEST
+          + " TEXT,"
+          + COLUMN_CHUNK_MANIFEST_URI
+          + " TEXT,"
+          + COLUMN_LAST_ACCESS_TIME_MS
+          + " INTEGER NOT NULL DEFAULT 0,"
+          + COLUMN_BASE_PATH
+          + " TEXT,"
+          + COLUMN_DELTA_MANIFEST_URI
+          + " TEXT)";
 
   private static final String TRUE = "1";
 
@@ -218,6 +307,22 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     return new DownloadCursorImpl(cursor);
   }
 
+  @Override
+  public DownloadCursor getDownloads(
+      long afterStartTimeMs, @Nullable String afterId, int limit, @State int... states)
+      throws DatabaseIOException {
+    ensureInitialized();
+    String selection = getStateQuery(states);
+    @Nullable String[] selectionArgs = null;
+    if (afterId != null) {
+      selection += " AND " + WHERE_AFTER_START_TIME_AND_ID;
+      String startTime = Long.toString(afterStartTimeMs);
+      selectionArgs = new String[] {startTime, startTime, afterId};
+    }
+    Cursor cursor = getCursor(selection, selectionArgs, Integer.toString(limit));
+    return new DownloadCursorImpl(cursor);
+  }
+
   @Override
   public void putDownload(Download download) throws DatabaseIOException {
     ensureInitialized();
@@ -239,6 +344,38 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     }
   }
 
+  @Override
+  public void removeDownloads(List<String> ids) throws DatabaseIOException {
+    ensureInitialized();
+    try {
+      SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
+      writableDatabase.beginTransactionNonExclusive();
+      try {
+        for (int i = 0; i < ids.size(); i++) {
+          writableDatabase.delete(tableName, WHERE_ID_EQUALS, new String[] {ids.get(i)});
+        }
+        writableDatabase.setTransactionSuccessful();
+      } finally {
+        writableDatabase.endTransaction();
+      }
+    } catch (SQLiteException e) {
+      throw new DatabaseIOException(e);
+    }
+  }
+
+  @Override
+  public void setLastAccessTime(String id, long lastAccessTimeMs) throws DatabaseIOException {
+    ensureInitialized();
+    try {
+      ContentValues values = new ContentValues();
+      values.put(COLUMN_LAST_ACCESS_TIME_MS, lastAccessTimeMs);
+      SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
+      writableDatabase.update(tableName, values, WHERE_ID_EQUALS, new String[] {id});
+    } catch (SQLException e) {
+      throw new DatabaseIOException(e);
+    }
+  }
+
   @Override
   public void setDownloadingStatesToQueued() throws DatabaseIOException {
     ensureInitialized();
@@ -312,11 +449,13 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
           try {
             VersionTable.setVersion(
                 writableDatabase, VersionTable.FEATURE_OFFLINE, name, TABLE_VERSION);
-            List<Download> upgradedDownloads = new ArrayList<>();
-            writableDatabase.execSQL("DROP TABLE IF EXISTS " + tableName);
-            writableDatabase.execSQL("CREATE TABLE " + tableName + " " + TABLE_SCHEMA);
-            for (Download download : upgradedDownloads) {
-              putDownloadInternal(download, writableDatabase);
+            if (version != VersionTable.VERSION_UNSET && version < TABLE_VERSION) {
+              // Keep existing downloads, so that they can still be resumed after the upgrade.
+              upgradeTable(writableDatabase, version);
+            } else {
+              writableDatabase.execSQL("DROP TABLE IF EXISTS " + tableName);
+              writableDatabase.execSQL("CREATE TABLE " + tableName + " " + TABLE_SCHEMA);
+              createStartTimeIndex(writableDatabase);
             }
             writableDatabase.setTransactionSuccessful();
           } finally {
@@ -330,6 +469,66 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     }
   }
 
+  /** Adds the columns introduced after {@code version} to an existing table. */
+  private void upgradeTable(SQLiteDatabase writableDatabase, int version) {
+    if (version < 2) {
+      addColumn(
+          writableDatabase,
+          COLUMN_RANGE_SUPPORT,
+          "INTEGER NOT NULL DEFAULT " + Download.RANGE_SUPPORT_UNKNOWN);
+    }
+    if (version < 3) {
+      addColumn(writableDatabase, COLUMN_ETAG, "TEXT");
+      addColumn(writableDatabase, COLUMN_LAST_MODIFIED, "TEXT");
+    }
+    if (version < 4) {
+      addColumn(writableDatabase, COLUMN_MIRROR_URIS, "TEXT");
+    }
+    if (version < 5) {
+      addColumn(writableDatabase, COLUMN_CONTENT_ENCODING, "TEXT");
+      addColumn(writableDatabase, COLUMN_DECODE_CHECKPOINT_POSITION, "INTEGER NOT NULL DEFAULT 0");
+      addColumn(
+          writableDatabase, COLUMN_DECODE_CHECKPOINT_BYTES_DECODED, "INTEGER NOT NULL DEFAULT 0");
+    }
+    if (version < 6) {
+      addColumn(writableDatabase, COLUMN_DIGEST_ALGORITHM, "TEXT");
+      addColumn(writableDatabase, COLUMN_EXPECTED_DIGEST, "TEXT");
+      addColumn(writableDatabase, COLUMN_DIGEST_STATE, "BLOB");
+    }
+    if (version < 7) {
+      addColumn(writableDatabase, COLUMN_CHUNK_MANIFEST, "TEXT");
+      addColumn(writableDatabase, COLUMN_CHUNK_MANIFEST_URI, "TEXT");
+    }
+    if (version < 8) {
+      addColumn(writableDatabase, COLUMN_LAST_ACCESS_TIME_MS, "INTEGER NOT NULL DEFAULT 0");
+    }
+    if (version < 9) {
+      addColumn(writableDatabase, COLUMN_BASE_PATH, "TEXT");
+      addColumn(writableDatabase, COLUMN_DELTA_MANIFEST_URI, "TEXT");
+    }
+    if (version < 10) {
+      createStartTimeIndex(writableDatabase);
+    }
+  }
+
+  /** Indexes the order of the downloads, so that a page of them is read without a full scan. */
+  private void createStartTimeIndex(SQLiteDatabase writableDatabase) {
+    writableDatabase.execSQL(
+        "CREATE INDEX IF NOT EXISTS "
+            + tableName
+            + "_start_time ON "
+            + tableName
+            + " ("
+            + COLUMN_START_TIME_MS
+            + ", "
+            + COLUMN_ID
+            + ")");
+  }
+
+  private void addColumn(SQLiteDatabase writableDatabase, String column, String definition) {
+    writableDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + column + " " + definition);
+  }
+
   private void putDownloadInternal(Download download, SQLiteDatabase database) {
     ContentValues values = new ContentValues();
     values.put(COLUMN_ID, download.request.id);
@@ -347,13 +546,40 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     values.put(COLUMN_PERCENT_DOWNLOADED, download.getPercentDownloaded());
     values.put(COLUMN_BYTES_DOWNLOADED, download.getBytesDownloaded());
     values.put(COLUMN_TYPE, download.request.type);
+    values.put(COLUMN_RANGE_SUPPORT, download.getRangeSupport());
+    values.put(COLUMN_ETAG, download.getEtag());
+    values.put(COLUMN_LAST_MODIFIED, download.getLastModified());
+    values.put(COLUMN_MIRROR_URIS, encodeMirrorUris(download.request.mirrorUris));
+    // Read the decode state once, since the download thread may replace it meanwhile.
+    DownloadProgress.DecodeState decodeState = download.progress.decodeState;
+    values.put(COLUMN_CONTENT_ENCODING, decodeState.contentEncoding);
+    values.put(COLUMN_DECODE_CHECKPOINT_POSITION, decodeState.checkpointPosition);
+    values.put(COLUMN_DECODE_CHECKPOINT_BYTES_DECODED, decodeState.checkpointBytesDecoded);
+    values.put(COLUMN_DIGEST_ALGORITHM, download.request.digestAlgorithm);
+    values.put(COLUMN_EXPECTED_DIGEST, download.request.expectedDigest);
+    values.put(COLUMN_DIGEST_STATE, download.getDigestState());
+    @Nullable ChunkManifest chunkManifest = download.request.chunkManifest;
+    values.put(COLUMN_CHUNK_MANIFEST, chunkManifest != null ? chunkManifest.encode() : null);
+    @Nullable Uri chunkManifestUri = download.request.chunkManifestUri;
+    values.put(COLUMN_CHUNK_MANIFEST_URI, chunkManifestUri != null ? chunkManifestUri.toString() : null);
+    values.put(COLUMN_LAST_ACCESS_TIME_MS, download.progress.lastAccessTimeMs);
+    values.put(COLUMN_BASE_PATH, download.request.basePath);
+    @Nullable Uri deltaManifestUri = download.request.deltaManifestUri;
+    values.put(COLUMN_DELTA_MANIFEST_URI, deltaManifestUri != null ? deltaManifestUri.toString() : null);
     database.replaceOrThrow(tableName, /* nullColumnHack= */ null, values);
   }
 
   private Cursor getCursor(String selection, @Nullable String[] selectionArgs)
       throws DatabaseIOException {
+    return getCursor(selection, selectionArgs, /* limit= */ null);
+  }
+
+  private Cursor getCursor(
+      String selection, @Nullable String[] selectionArgs, @Nullable String limit)
+      throws DatabaseIOException {
     try {
-      String sortOrder = COLUMN_START_TIME_MS + " ASC";
+      // Ordered by ID as well, so that pages of downloads with the same start time don't overlap.
+      String sortOrder = COLUMN_START_TIME_MS + " ASC, " + COLUMN_ID + " ASC";
       return databaseProvider
           .getReadableDatabase()
           .query(
@@ -363,7 +589,8 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
               selectionArgs,
               /* groupBy= */ null,
               /* having= */ null,
-              sortOrder);
+              sortOrder,
+              limit);
     } catch (SQLiteException e) {
       throw new DatabaseIOException(e);
     }
@@ -388,6 +615,18 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     return stringBuilder.toString();
   }
 
+  @VisibleForTesting
+  /* package */ static String encodeMirrorUris(List<Uri> mirrorUris) {
+    StringBuilder stringBuilder = new StringBuilder();
+    for (int i = 0; i < mirrorUris.size(); i++) {
+      if (i > 0) {
+        stringBuilder.append('\n');
+      }
+      stringBuilder.append(mirrorUris.get(i).toString());
+    }
+    return stringBuilder.toString();
+  }
+
   private static String getStateQuery(@State int... states) {
     if (states.length == 0) {
       return TRUE;
@@ -413,10 +652,31 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
             .setStreamKeys(decodeStreamKeys(cursor.getString(COLUMN_INDEX_STREAM_KEYS)))
             .setPath(cursor.getString(COLUMN_INDEX_PATH))
             .setData(cursor.getBlob(COLUMN_INDEX_DATA))
+            .setMirrorUris(decodeMirrorUris(cursor.getString(COLUMN_INDEX_MIRROR_URIS)))
+            .setExpectedDigest(
+                cursor.getString(COLUMN_INDEX_DIGEST_ALGORITHM),
+                cursor.getString(COLUMN_INDEX_EXPECTED_DIGEST))
+            .setChunkManifest(decodeChunkManifest(cursor.getString(COLUMN_INDEX_CHUNK_MANIFEST)))
+            .setChunkManifestUri(decodeUri(cursor.getString(COLUMN_INDEX_CHUNK_MANIFEST_URI)))
+            .setBasePath(cursor.getString(COLUMN_INDEX_BASE_PATH))
+            .setDeltaManifestUri(decodeUri(cursor.getString(COLUMN_INDEX_DELTA_MANIFEST_URI)))
             .build();
     DownloadProgress downloadProgress = new DownloadProgress();
     downloadProgress.bytesDownloaded = cursor.getLong(COLUMN_INDEX_BYTES_DOWNLOADED);
     downloadProgress.percentDownloaded = cursor.getInt(COLUMN_INDEX_PERCENT_DOWNLOADED);
+    downloadProgress.rangeSupport = cursor.getInt(COLUMN_INDEX_RANGE_SUPPORT);
+    downloadProgress.etag = cursor.getString(COLUMN_INDEX_ETAG);
+    downloadProgress.lastModified = cursor.getString(COLUMN_INDEX_LAST_MODIFIED);
+    long checkpointBytesDecoded = cursor.getLong(COLUMN_INDEX_DECODE_CHECKPOINT_BYTES_DECODED);
+    // Decoding resumes from the checkpoint, so that's all that is known to be on disk.
+    downloadProgress.decodeState =
+        new DownloadProgress.DecodeState(
+            cursor.getString(COLUMN_INDEX_CONTENT_ENCODING),
+            checkpointBytesDecoded,
+            cursor.getLong(COLUMN_INDEX_DECODE_CHECKPOINT_POSITION),
+            checkpointBytesDecoded);
+    downloadProgress.digestState = cursor.getBlob(COLUMN_INDEX_DIGEST_STATE);
+    downloadProgress.lastAccessTimeMs = cursor.getLong(COLUMN_INDEX_LAST_ACCESS_TIME_MS);
     @State int state = cursor.getInt(COLUMN_INDEX_STATE);
     // It's possible the database contains failure reasons for non-failed downloads, which is
     // invalid. Clear them here. See https://github.com/google/ExoPlayer/issues/6785.
@@ -454,6 +714,35 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     return streamKeys;
   }
 
+  private static List<Uri> decodeMirrorUris(@Nullable String encodedMirrorUris) {
+    ArrayList<Uri> mirrorUris = new ArrayList<>();
+    if (TextUtils.isEmpty(encodedMirrorUris)) {
+      return mirrorUris;
+    }
+    for (String mirrorUri : Util.split(encodedMirrorUris, "\n")) {
+      mirrorUris.add(Uri.parse(mirrorUri));
+    }
+    return mirrorUris;
+  }
+
+  @Nullable
+  private static ChunkManifest decodeChunkManifest(@Nullable String encodedChunkManifest) {
+    if (TextUtils.isEmpty(encodedChunkManifest)) {
+      return null;
+    }
+    try {
+      return ChunkManifest.parse(encodedChunkManifest);
+    } catch (IOException e) {
+      Log.w(TAG, "Dropping malformed chunk manifest", e);
+      return null;
+    }
+  }
+
+  @Nullable
+  private static Uri decodeUri(@Nullable String uriString) {
+    return TextUtils.isEmpty(uriString) ? null : Uri.parse(uriString);
+  }
+
   private static final class DownloadCursorImpl implements DownloadCursor {
 
     private final Cursor cursor;
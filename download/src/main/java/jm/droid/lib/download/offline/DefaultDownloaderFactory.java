@@ -15,13 +15,21 @@
  */
 package jm.droid.lib.download.offline;
 
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
 import jm.droid.lib.download.upstream.DataDestination;
 import jm.droid.lib.download.upstream.DataSource;
+import jm.droid.lib.download.upstream.DefaultDataSource;
 import jm.droid.lib.download.upstream.DefaultHttpDataSource;
 import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.upstream.MirrorPolicy;
+import jm.droid.lib.download.upstream.ProgressAggregator;
 import jm.droid.lib.download.util.Assertions;
 import jm.droid.lib.download.util.Log;
 
+import java.io.File;
 import java.util.concurrent.Executor;
 
 /**
@@ -35,6 +43,13 @@ public class DefaultDownloaderFactory implements DownloaderFactory {
     private final DataSource.Factory dataSourceFactory;
     private final DataDestination.Factory dataDestionationFactory;
 
+    private long progressMinIntervalMs;
+    private long progressMinBytes;
+    private MirrorPolicy mirrorPolicy;
+    private boolean acceptContentEncoding;
+    @Nullable
+    private ContentStore contentStore;
+
     /**
      * Creates an instance.
      *
@@ -47,25 +62,135 @@ public class DefaultDownloaderFactory implements DownloaderFactory {
         this(new DefaultHttpDataSource.Factory(), executor, new FileDataDestination.Factory());
     }
 
+    /**
+     * Creates an instance that also copies {@code file} and {@code content} URIs, reading them with
+     * a {@link DefaultDataSource}.
+     *
+     * @param context  A context.
+     * @param executor An {@link Executor} used to download data.
+     */
+    public DefaultDownloaderFactory(Context context, Executor executor) {
+        this(new DefaultDataSource.Factory(context), executor, new FileDataDestination.Factory());
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param dataSourceFactory      A {@link DataSource.Factory} for the data to download, for example
+     *                               {@link DefaultHttpDataSource.Factory}, or {@link
+     *                               jm.droid.lib.download.upstream.OkHttpDataSource.Factory} to share
+     *                               pooled connections between downloads. Wrap it in a {@link
+     *                               DefaultDataSource.Factory} to also copy local files.
+     * @param executor               An {@link Executor} used to download data.
+     * @param dataDestinationFactory A {@link DataDestination.Factory} for where the data is written.
+     */
     public DefaultDownloaderFactory(DataSource.Factory dataSourceFactory, Executor executor, DataDestination.Factory dataDestinationFactory) {
         this.executor = Assertions.checkNotNull(executor);
         this.dataSourceFactory = Assertions.checkNotNull(dataSourceFactory);
         this.dataDestionationFactory = dataDestinationFactory;
+        progressMinIntervalMs = ProgressAggregator.DEFAULT_MIN_INTERVAL_MS;
+        progressMinBytes = ProgressAggregator.DEFAULT_MIN_BYTES;
+        mirrorPolicy = MirrorPolicy.DEFAULT;
+    }
+
+    /**
+     * 设置下载进度回调的频率，超过时间间隔或者累计字节数任一阈值时才会回调一次进度
+     *
+     * @param minIntervalMs The minimum interval between progress updates, in milliseconds.
+     * @param minBytes      The number of bytes after which progress is reported even if {@code
+     *                      minIntervalMs} hasn't elapsed.
+     * @return This factory, for convenience.
+     */
+    public DefaultDownloaderFactory setProgressUpdateThresholds(long minIntervalMs, long minBytes) {
+        this.progressMinIntervalMs = minIntervalMs;
+        this.progressMinBytes = minBytes;
+        return this;
+    }
+
+    /**
+     * 设置镜像地址的使用策略，包括吞吐量下限以及并行读取镜像的最小长度
+     *
+     * @param mirrorPolicy The {@link MirrorPolicy}.
+     * @return This factory, for convenience.
+     */
+    public DefaultDownloaderFactory setMirrorPolicy(MirrorPolicy mirrorPolicy) {
+        this.mirrorPolicy = Assertions.checkNotNull(mirrorPolicy);
+        return this;
+    }
+
+    /**
+     * 设置是否接受gzip压缩传输，适合文本等压缩率高的内容。开启后{@link Download#getBytesDownloaded()}
+     * 和{@link Download#contentLength}按压缩后的字节计算，写入文件的字节数见{@link Download#getBytesDecoded()}。
+     * 压缩传输只能从gzip成员的边界续传，通常意味着中断后从头开始
+     *
+     * @param acceptContentEncoding Whether to accept {@code gzip} encoded transfers.
+     * @return This factory, for convenience.
+     */
+    public DefaultDownloaderFactory setAcceptContentEncoding(boolean acceptContentEncoding) {
+        this.acceptContentEncoding = acceptContentEncoding;
+        return this;
+    }
+
+    /**
+     * 设置内容仓库。带有期望摘要的请求在仓库中有相同内容时直接链接到下载路径，不需要重复下载，
+     * 下载完成的文件也会加入仓库。默认不使用
+     *
+     * @param contentStore The {@link ContentStore}, or null to not share content between downloads.
+     * @return This factory, for convenience.
+     */
+    public DefaultDownloaderFactory setContentStore(@Nullable ContentStore contentStore) {
+        this.contentStore = contentStore;
+        return this;
     }
 
     /**
      * 这里返回Downloader下载器
      * 可以通过{@link DownloadRequest}的请求生成不同的downloader
      * 当然我们也可以在{@link DownloadManager}中使用不同的DownloadFactory
-     * 目前只用{@link ProgressiveDownloader}
-     * 作为实现参考
+     * 请求带有旧版本文件和差量清单，且旧版本文件存在时使用{@link DeltaDownloader}只下载变化的部分，
+     * 其他情况使用{@link ProgressiveDownloader}
      *
      * @param download The download request.
      * @return
      */
     @Override
     public Downloader createDownloader(Download download) {
-        return new ProgressiveDownloader(dataSourceFactory, dataDestionationFactory, executor, download);
+        @Nullable String basePath = download.request.basePath;
+        if (basePath != null && download.request.deltaManifestUri != null && new File(basePath).isFile()) {
+            return new DeltaDownloader(dataSourceFactory, dataDestionationFactory, download);
+        }
+        ProgressiveDownloader downloader = new ProgressiveDownloader(
+            dataSourceFactory,
+            dataDestionationFactory,
+            executor,
+            download,
+            new ProgressAggregator(progressMinIntervalMs, progressMinBytes),
+            mirrorPolicy);
+        downloader.setAcceptContentEncoding(acceptContentEncoding);
+        downloader.setContentStore(contentStore);
+        return downloader;
+    }
+
+    /**
+     * 使用与下载相同的 {@link DataSource.Factory} 预取元数据，这样可以共用连接和重定向缓存
+     */
+    @Override
+    public MetadataFetcher createMetadataFetcher() {
+        return new MetadataFetcher(dataSourceFactory);
+    }
+
+    @Nullable
+    @Override
+    public ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * 只有写入普通文件时才能让相同内容的下载共用一次传输，解压等目标写出的是目录
+     */
+    @Override
+    public boolean writesPlainFiles() {
+        return dataDestionationFactory instanceof FileDataDestination.Factory;
     }
 
 
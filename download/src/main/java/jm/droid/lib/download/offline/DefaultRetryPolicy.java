@@ -0,0 +1,158 @@
+package jm.droid.lib.download.offline;
+
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.HttpDataSource.CleartextNotPermittedException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidContentTypeException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidResponseCodeException;
+import jm.droid.lib.download.upstream.HttpHeaders;
+import jm.droid.lib.download.upstream.HttpUtil;
+import jm.droid.lib.download.util.Assertions;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Default {@link RetryPolicy}.
+ *
+ * <p>Errors are classified before a delay is chosen:
+ *
+ * <ul>
+ *   <li>HTTP 4xx responses (other than 408 and 429), invalid content types, disallowed cleartext
+ *       traffic and missing local files are fatal and are not retried.
+ *   <li>Timeouts, DNS failures, HTTP 5xx responses and other network errors are retried using
+ *       exponential backoff with full jitter, so that clients that failed together don't retry in
+ *       lockstep.
+ *   <li>If the server sent a {@link HttpHeaders#RETRY_AFTER Retry-After} header, it's honored (up
+ *       to {@link #maxRetryAfterMs}) instead of the computed backoff.
+ * </ul>
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+  /** The default base delay of the exponential backoff, in milliseconds. */
+  public static final long DEFAULT_BASE_DELAY_MS = 1000;
+  /** The default maximum delay of the exponential backoff, in milliseconds. */
+  public static final long DEFAULT_MAX_DELAY_MS = 30_000;
+  /** The default maximum delay that will be honored from a Retry-After header, in milliseconds. */
+  public static final long DEFAULT_MAX_RETRY_AFTER_MS = 5 * 60_000;
+
+  /** The error could not be classified, and is treated as a transient network error. */
+  protected static final int ERROR_CLASS_NETWORK = 0;
+  /** The connection or a read timed out. */
+  protected static final int ERROR_CLASS_TIMEOUT = 1;
+  /** The host name could not be resolved. */
+  protected static final int ERROR_CLASS_DNS = 2;
+  /** The server responded with an error that may go away (5xx, 408 or 429). */
+  protected static final int ERROR_CLASS_SERVER = 3;
+  /** Retrying cannot succeed. */
+  protected static final int ERROR_CLASS_FATAL = 4;
+
+  private static final int HTTP_STATUS_REQUEST_TIMEOUT = 408;
+  private static final int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
+  // Backoff exponents are capped so that the shift below can't overflow.
+  private static final int MAX_BACKOFF_EXPONENT = 20;
+
+  protected final long baseDelayMs;
+  protected final long maxDelayMs;
+  protected final long maxRetryAfterMs;
+  private final Random random;
+
+  /** Creates an instance with the default delays. */
+  public DefaultRetryPolicy() {
+    this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_RETRY_AFTER_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param baseDelayMs The upper bound of the first retry delay, in milliseconds. The bound doubles
+   *     with each consecutive error.
+   * @param maxDelayMs The maximum upper bound of the backoff, in milliseconds.
+   * @param maxRetryAfterMs The maximum delay that will be honored from a Retry-After header, in
+   *     milliseconds.
+   */
+  public DefaultRetryPolicy(long baseDelayMs, long maxDelayMs, long maxRetryAfterMs) {
+    this(baseDelayMs, maxDelayMs, maxRetryAfterMs, new Random());
+  }
+
+  /* package */ DefaultRetryPolicy(
+      long baseDelayMs, long maxDelayMs, long maxRetryAfterMs, Random random) {
+    Assertions.checkArgument(baseDelayMs > 0 && maxDelayMs >= baseDelayMs);
+    Assertions.checkArgument(maxRetryAfterMs >= 0);
+    this.baseDelayMs = baseDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.maxRetryAfterMs = maxRetryAfterMs;
+    this.random = random;
+  }
+
+  @Override
+  public long getRetryDelayMsFor(IOException error, int errorCount) {
+    if (classifyError(error) == ERROR_CLASS_FATAL) {
+      return C.TIME_UNSET;
+    }
+    long retryAfterMs = getRetryAfterMs(error);
+    if (retryAfterMs != C.TIME_UNSET) {
+      return min(retryAfterMs, maxRetryAfterMs);
+    }
+    // Full jitter: pick uniformly in [0, min(maxDelay, baseDelay * 2^(errorCount - 1))].
+    int exponent = min(Math.max(errorCount - 1, 0), MAX_BACKOFF_EXPONENT);
+    long ceilingMs = min(maxDelayMs, baseDelayMs << exponent);
+    return (long) (random.nextDouble() * (ceilingMs + 1));
+  }
+
+  /**
+   * Classifies an error. One of {@link #ERROR_CLASS_NETWORK}, {@link #ERROR_CLASS_TIMEOUT}, {@link
+   * #ERROR_CLASS_DNS}, {@link #ERROR_CLASS_SERVER} or {@link #ERROR_CLASS_FATAL}.
+   */
+  protected int classifyError(IOException error) {
+    @Nullable Throwable cause = error;
+    while (cause != null) {
+      if (cause instanceof InvalidResponseCodeException) {
+        int responseCode = ((InvalidResponseCodeException) cause).responseCode;
+        if (responseCode >= 500
+            || responseCode == HTTP_STATUS_REQUEST_TIMEOUT
+            || responseCode == HTTP_STATUS_TOO_MANY_REQUESTS) {
+          return ERROR_CLASS_SERVER;
+        }
+        // 416 is resolved by the data source when the content is already complete, so here it
+        // means our resume position is beyond the content, which retrying won't fix either.
+        return ERROR_CLASS_FATAL;
+      } else if (cause instanceof InvalidContentTypeException
+          || cause instanceof CleartextNotPermittedException
+          || cause instanceof FileNotFoundException) {
+        return ERROR_CLASS_FATAL;
+      } else if (cause instanceof SocketTimeoutException) {
+        return ERROR_CLASS_TIMEOUT;
+      } else if (cause instanceof UnknownHostException) {
+        return ERROR_CLASS_DNS;
+      }
+      cause = cause.getCause();
+    }
+    return ERROR_CLASS_NETWORK;
+  }
+
+  /**
+   * Returns the delay requested by the server through a {@link HttpHeaders#RETRY_AFTER
+   * Retry-After} header, or {@link C#TIME_UNSET} if there isn't one.
+   */
+  protected long getRetryAfterMs(IOException error) {
+    @Nullable Throwable cause = error;
+    while (cause != null) {
+      if (cause instanceof InvalidResponseCodeException) {
+        @Nullable
+        String retryAfter =
+            HttpUtil.getHeaderValue(
+                ((InvalidResponseCodeException) cause).headerFields, HttpHeaders.RETRY_AFTER);
+        return HttpUtil.getRetryAfterMs(retryAfter, System.currentTimeMillis());
+      }
+      cause = cause.getCause();
+    }
+    return C.TIME_UNSET;
+  }
+}
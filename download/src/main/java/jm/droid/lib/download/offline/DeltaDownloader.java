@@ -0,0 +1,422 @@
+package jm.droid.lib.download.offline;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.ChunkMismatchException;
+import jm.droid.lib.download.upstream.DataDestination;
+import jm.droid.lib.download.upstream.DataSource;
+import jm.droid.lib.download.upstream.DataSourceUtil;
+import jm.droid.lib.download.upstream.DataSpec;
+import jm.droid.lib.download.upstream.DigestMismatchException;
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.RollingChecksum;
+import jm.droid.lib.download.util.StreamingDigest;
+import jm.droid.lib.download.util.Util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A {@link Downloader} that updates a previous version of the content, {@link
+ * DownloadRequest#basePath}, to the version at {@link DownloadRequest#uri}.
+ *
+ * <p>The {@link DeltaManifest} at {@link DownloadRequest#deltaManifestUri} lists the blocks of the
+ * new version. Its rolling checksums are rolled over the previous version to find the blocks it
+ * already has, at any offset. The new version is then written block by block through a {@link
+ * DataDestination}, copying the blocks that were found and fetching runs of the others with range
+ * requests. Fetched blocks are verified against the manifest, and the whole file against {@link
+ * DownloadRequest#expectedDigest} if it's set. The previous version isn't modified.
+ *
+ * <p>{@link Download#getBytesDownloaded()} counts the bytes written, copied or fetched, so that the
+ * progress reaches the length of the new version. A download resumes after the blocks that were
+ * written to the temporary file and still match the manifest.
+ */
+public final class DeltaDownloader implements Downloader {
+
+  private static final String TAG = "DeltaDownloader";
+  private static final int SCAN_BUFFER_SIZE_BYTES = 1024 * 1024;
+  private static final long NOT_FOUND = -1;
+  private static final int CHECKSUM_FILTER_BITS = 20;
+
+  private final Download download;
+  private final DataSource dataSource;
+  private final DataDestination dataDestination;
+  private final DataSpec dataSpec;
+
+  @Nullable private ProgressListener progressListener;
+  @Nullable private StreamingDigest contentDigest;
+  private volatile boolean isCanceled;
+
+  private long bytesWritten;
+  private long bytesFetched;
+
+  /**
+   * Creates an instance.
+   *
+   * @param dataSourceFactory A {@link DataSource.Factory} for the manifest and the blocks to fetch.
+   * @param dataDestinationFactory A {@link DataDestination.Factory} for where the new version is
+   *     written.
+   * @param download The download, with {@link DownloadRequest#basePath} and {@link
+   *     DownloadRequest#deltaManifestUri} set.
+   */
+  public DeltaDownloader(
+      DataSource.Factory dataSourceFactory,
+      DataDestination.Factory dataDestinationFactory,
+      Download download) {
+    Assertions.checkArgument(
+        download.request.basePath != null && download.request.deltaManifestUri != null);
+    this.download = download;
+    dataSource = dataSourceFactory.createDataSource();
+    dataDestination = dataDestinationFactory.createDataDestination();
+    dataSpec =
+        new DataSpec.Builder()
+            .setUri(download.request.uri)
+            .setPath(download.request.path)
+            .build();
+  }
+
+  @Override
+  public void download(@Nullable ProgressListener progressListener)
+      throws IOException, InterruptedException {
+    this.progressListener = progressListener;
+    try {
+      DeltaManifest manifest = loadManifest();
+      int firstBlock = verifyWrittenBlocks(manifest);
+      long[] blockSources = findBlocks(manifest, firstBlock);
+      bytesWritten = manifest.getBlockPosition(firstBlock);
+      onProgress(manifest, /* newBytesFetched= */ 0);
+      dataDestination.open(dataSpec.buildUpon().setPosition(bytesWritten).build());
+      try {
+        writeBlocks(manifest, blockSources, firstBlock);
+      } finally {
+        dataDestination.close();
+      }
+      verifyDigest();
+      Log.i(
+          TAG,
+          "updated "
+              + download.request.basePath
+              + " with "
+              + bytesFetched
+              + " of "
+              + manifest.length
+              + " bytes fetched");
+    } catch (IOException e) {
+      if (isCanceled) {
+        throw new InterruptedException();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void cancel() {
+    isCanceled = true;
+  }
+
+  @Override
+  public void remove() {
+    // The download manager deletes the files.
+  }
+
+  @Override
+  public void success() throws IOException {
+    dataDestination.done();
+  }
+
+  private DeltaManifest loadManifest() throws IOException {
+    Uri manifestUri = Assertions.checkNotNull(download.request.deltaManifestUri);
+    try {
+      dataSource.open(new DataSpec.Builder().setUri(manifestUri).build());
+      DeltaManifest manifest =
+          DeltaManifest.parse(Util.fromUtf8Bytes(DataSourceUtil.readToEnd(dataSource)));
+      Log.i(TAG, "loaded " + manifest.getBlockCount() + " block checksums from " + manifestUri);
+      return manifest;
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  /**
+   * Verifies the blocks written to the temporary file before the download was interrupted, and
+   * hashes them into a new {@link #contentDigest} if the request has an expected digest.
+   *
+   * @return The index of the first block that has to be written.
+   */
+  private int verifyWrittenBlocks(DeltaManifest manifest) throws IOException {
+    @Nullable String algorithm = download.request.digestAlgorithm;
+    contentDigest = algorithm == null ? null : StreamingDigest.create(algorithm);
+    long bytesDownloaded = download.getBytesDownloaded();
+    if (bytesDownloaded <= 0 || !(dataDestination instanceof FileDataDestination)) {
+      return 0;
+    }
+    File tempFile = FileDataDestination.getTempFile(Assertions.checkNotNull(dataSpec.path));
+    long length = Math.min(bytesDownloaded, tempFile.length());
+    byte[] buffer = new byte[manifest.blockSize];
+    int index = 0;
+    try (RandomAccessFile input = new RandomAccessFile(tempFile, "r")) {
+      while (index < manifest.getBlockCount()
+          && manifest.getBlockPosition(index) + manifest.getBlockLength(index) <= length) {
+        throwIfCanceled();
+        int blockLength = manifest.getBlockLength(index);
+        input.readFully(buffer, 0, blockLength);
+        if (!hashBlock(manifest, buffer, 0, blockLength).equals(manifest.getBlockDigest(index))) {
+          break;
+        }
+        if (contentDigest != null) {
+          contentDigest.update(buffer, 0, blockLength);
+        }
+        index++;
+      }
+    } catch (FileNotFoundException | EOFException e) {
+      Log.w(TAG, "temp file changed while verifying it", e);
+      index = 0;
+      contentDigest = algorithm == null ? null : StreamingDigest.create(algorithm);
+    }
+    Log.i(TAG, "resume after " + index + " verified blocks");
+    return index;
+  }
+
+  /**
+   * Rolls the checksum over the previous version to find the blocks from {@code firstBlock} on.
+   *
+   * @return The position in the previous version of each block, or {@link #NOT_FOUND}.
+   */
+  private long[] findBlocks(DeltaManifest manifest, int firstBlock) throws IOException {
+    int blockCount = manifest.getBlockCount();
+    long[] blockSources = new long[blockCount];
+    Arrays.fill(blockSources, NOT_FOUND);
+    int blockSize = manifest.blockSize;
+    // A shorter last block can't be matched with the rolling checksum, so it's always fetched.
+    HashMap<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+    // Most offsets match no block, filter them before boxing the checksum for the map lookup.
+    BitSet checksumFilter = new BitSet(1 << CHECKSUM_FILTER_BITS);
+    for (int i = firstBlock; i < blockCount; i++) {
+      if (manifest.getBlockLength(i) == blockSize) {
+        checksumFilter.set(filterIndex(manifest.getBlockChecksum(i)));
+        @Nullable List<Integer> blocks = blocksByChecksum.get(manifest.getBlockChecksum(i));
+        if (blocks == null) {
+          blocks = new ArrayList<>(1);
+          blocksByChecksum.put(manifest.getBlockChecksum(i), blocks);
+        }
+        blocks.add(i);
+      }
+    }
+    File baseFile = new File(Assertions.checkNotNull(download.request.basePath));
+    if (blocksByChecksum.isEmpty() || !baseFile.isFile()) {
+      return blockSources;
+    }
+    RollingChecksum checksum = new RollingChecksum(blockSize);
+    byte[] buffer = new byte[Math.max(2 * blockSize, SCAN_BUFFER_SIZE_BYTES)];
+    // buffer[start, end) holds the data of the previous version from bufferPosition + start on.
+    long bufferPosition = 0;
+    int start = 0;
+    int end = 0;
+    boolean endOfInput = false;
+    boolean isRolling = false;
+    int blocksFound = 0;
+    try (RandomAccessFile input = new RandomAccessFile(baseFile, "r")) {
+      while (true) {
+        if (end - start <= blockSize && !endOfInput) {
+          throwIfCanceled();
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          bufferPosition += start;
+          end -= start;
+          start = 0;
+          int bytesRead;
+          while (end < buffer.length
+              && (bytesRead = input.read(buffer, end, buffer.length - end)) != -1) {
+            end += bytesRead;
+          }
+          endOfInput = end < buffer.length;
+        }
+        if (end - start < blockSize) {
+          break;
+        }
+        int value = isRolling ? checksum.getValue() : checksum.reset(buffer, start);
+        @Nullable
+        List<Integer> candidates =
+            checksumFilter.get(filterIndex(value)) ? blocksByChecksum.get(value) : null;
+        if (candidates != null
+            && matchBlock(
+                manifest, candidates, buffer, start, blockSources, bufferPosition + start)) {
+          blocksFound++;
+          start += blockSize;
+          isRolling = false;
+          continue;
+        }
+        if (end - start == blockSize) {
+          break;
+        }
+        checksum.roll(buffer[start], buffer[start + blockSize]);
+        start++;
+        isRolling = true;
+      }
+    }
+    Log.i(
+        TAG, "found " + blocksFound + " of " + (blockCount - firstBlock) + " blocks in " + baseFile);
+    return blockSources;
+  }
+
+  /**
+   * Sets the source of the candidates whose digest matches the block at {@code offset} in {@code
+   * buffer} and that haven't been found yet. Blocks with the same content are all set at once.
+   *
+   * @return Whether a candidate was found.
+   */
+  private static boolean matchBlock(
+      DeltaManifest manifest,
+      List<Integer> candidates,
+      byte[] buffer,
+      int offset,
+      long[] blockSources,
+      long sourcePosition) {
+    @Nullable String digest = null;
+    boolean found = false;
+    for (int i = 0; i < candidates.size(); i++) {
+      int index = candidates.get(i);
+      if (blockSources[index] != NOT_FOUND) {
+        continue;
+      }
+      if (digest == null) {
+        digest = hashBlock(manifest, buffer, offset, manifest.blockSize);
+      }
+      if (digest.equals(manifest.getBlockDigest(index))) {
+        blockSources[index] = sourcePosition;
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  private void writeBlocks(DeltaManifest manifest, long[] blockSources, int firstBlock)
+      throws IOException {
+    byte[] buffer = new byte[manifest.blockSize];
+    File baseFile = new File(Assertions.checkNotNull(download.request.basePath));
+    @Nullable
+    RandomAccessFile base = baseFile.isFile() ? new RandomAccessFile(baseFile, "r") : null;
+    try {
+      int index = firstBlock;
+      while (index < manifest.getBlockCount()) {
+        throwIfCanceled();
+        if (blockSources[index] != NOT_FOUND) {
+          int blockLength = manifest.getBlockLength(index);
+          RandomAccessFile input = Assertions.checkNotNull(base);
+          input.seek(blockSources[index]);
+          input.readFully(buffer, 0, blockLength);
+          writeBlock(manifest, buffer, blockLength, /* fetched= */ false);
+          index++;
+        } else {
+          int endIndex = index + 1;
+          while (endIndex < manifest.getBlockCount() && blockSources[endIndex] == NOT_FOUND) {
+            endIndex++;
+          }
+          fetchBlocks(manifest, index, endIndex, buffer);
+          index = endIndex;
+        }
+      }
+    } finally {
+      if (base != null) {
+        base.close();
+      }
+    }
+  }
+
+  /** Fetches the blocks from {@code startIndex} to {@code endIndex} with one range request. */
+  private void fetchBlocks(DeltaManifest manifest, int startIndex, int endIndex, byte[] buffer)
+      throws IOException {
+    long position = manifest.getBlockPosition(startIndex);
+    long length =
+        manifest.getBlockPosition(endIndex - 1) + manifest.getBlockLength(endIndex - 1) - position;
+    try {
+      dataSource.open(dataSpec.buildUpon().setPosition(position).setLength(length).build());
+      for (int index = startIndex; index < endIndex; index++) {
+        int blockLength = manifest.getBlockLength(index);
+        int bytesRead = 0;
+        while (bytesRead < blockLength) {
+          throwIfCanceled();
+          int result = dataSource.read(buffer, bytesRead, blockLength - bytesRead);
+          if (result == C.RESULT_END_OF_INPUT) {
+            throw new EOFException();
+          }
+          bytesRead += result;
+        }
+        String digest = hashBlock(manifest, buffer, 0, blockLength);
+        if (!digest.equals(manifest.getBlockDigest(index))) {
+          throw new ChunkMismatchException(
+              index, manifest.getBlockPosition(index), manifest.getBlockDigest(index), digest);
+        }
+        writeBlock(manifest, buffer, blockLength, /* fetched= */ true);
+      }
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private void writeBlock(DeltaManifest manifest, byte[] buffer, int length, boolean fetched)
+      throws IOException {
+    dataDestination.write(buffer, 0, length);
+    if (contentDigest != null) {
+      contentDigest.update(buffer, 0, length);
+    }
+    bytesWritten += length;
+    if (fetched) {
+      bytesFetched += length;
+    }
+    onProgress(manifest, fetched ? length : 0);
+  }
+
+  private void verifyDigest() throws IOException {
+    @Nullable StreamingDigest contentDigest = this.contentDigest;
+    @Nullable String expectedDigest = download.request.expectedDigest;
+    if (contentDigest == null || expectedDigest == null || contentDigest.matches(expectedDigest)) {
+      return;
+    }
+    //摘要不一致时删除临时文件，重试时重新生成
+    File tempFile = FileDataDestination.getTempFile(Assertions.checkNotNull(dataSpec.path));
+    if (tempFile.exists() && !tempFile.delete()) {
+      Log.w(TAG, "failed to delete " + tempFile);
+    }
+    throw new DigestMismatchException(
+        contentDigest.getAlgorithm(), expectedDigest, contentDigest.digestHex());
+  }
+
+  private void onProgress(DeltaManifest manifest, long newBytesFetched) {
+    if (progressListener == null) {
+      return;
+    }
+    float percentDownloaded =
+        manifest.length == 0 ? C.PERCENTAGE_UNSET : (bytesWritten * 100f) / manifest.length;
+    progressListener.onProgress(manifest.length, bytesWritten, percentDownloaded, newBytesFetched);
+  }
+
+  private void throwIfCanceled() throws IOException {
+    if (isCanceled) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static int filterIndex(int checksum) {
+    return (checksum * 0x9E3779B9) >>> (32 - CHECKSUM_FILTER_BITS);
+  }
+
+  private static String hashBlock(DeltaManifest manifest, byte[] buffer, int offset, int length) {
+    StreamingDigest digest = StreamingDigest.create(manifest.algorithm);
+    digest.update(buffer, offset, length);
+    return digest.digestHex();
+  }
+}
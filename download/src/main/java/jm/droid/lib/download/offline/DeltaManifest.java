@@ -0,0 +1,238 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.RollingChecksum;
+import jm.droid.lib.download.util.StreamingDigest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The checksums of the fixed size blocks of a file, so that a download can find the blocks it
+ * already has in a previous version of the file and fetch only the rest, in the manner of zsync.
+ *
+ * <p>Each block has a {@link RollingChecksum}, which is rolled over the previous version to find
+ * candidate blocks at any offset, and a strong digest that confirms a candidate.
+ *
+ * <p>The text form, as served from {@link DownloadRequest#deltaManifestUri} and returned by {@link
+ * #encode()}, is a header line with the digest algorithm, the block size and the length of the
+ * file in bytes, followed by the rolling checksum and the digest of each block in order, as hex.
+ * Blank lines and lines starting with {@code #} are ignored:
+ *
+ * <pre>
+ * SHA-1 65536 131072
+ * 3c1d8a2f 0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33
+ * 1b7e0c44 62cdb7020ff920e5aa642c3d4066950dd1f01f4d
+ * </pre>
+ *
+ * <p>The last block may be shorter than the block size.
+ */
+public final class DeltaManifest {
+
+  /** The default block size, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /** The digest algorithm, one of those supported by {@link StreamingDigest}. */
+  public final String algorithm;
+  /** The size of each block but the last, in bytes. */
+  public final int blockSize;
+  /** The length of the file, in bytes. */
+  public final long length;
+
+  private final int[] checksums;
+  private final List<String> digests;
+
+  /**
+   * Creates an instance.
+   *
+   * @param algorithm The digest algorithm, one of those supported by {@link StreamingDigest}.
+   * @param blockSize The size of each block but the last, in bytes.
+   * @param length The length of the file, in bytes.
+   * @param checksums The {@link RollingChecksum} of each block, in order.
+   * @param digests The hex digest of each block, in order.
+   */
+  public DeltaManifest(
+      String algorithm, int blockSize, long length, int[] checksums, List<String> digests) {
+    Assertions.checkArgument(StreamingDigest.isSupported(algorithm));
+    Assertions.checkArgument(blockSize > 0 && length >= 0);
+    long blockCount = (length + blockSize - 1) / blockSize;
+    Assertions.checkArgument(checksums.length == blockCount && digests.size() == blockCount);
+    this.algorithm = algorithm;
+    this.blockSize = blockSize;
+    this.length = length;
+    this.checksums = Arrays.copyOf(checksums, checksums.length);
+    ArrayList<String> normalizedDigests = new ArrayList<>(digests.size());
+    for (int i = 0; i < digests.size(); i++) {
+      normalizedDigests.add(digests.get(i).trim().toLowerCase(Locale.US));
+    }
+    this.digests = Collections.unmodifiableList(normalizedDigests);
+  }
+
+  /**
+   * Creates the manifest of a file, for example to publish it next to the file.
+   *
+   * @param input The content of the file. Not closed.
+   * @param algorithm The digest algorithm, one of those supported by {@link StreamingDigest}.
+   * @param blockSize The block size, in bytes.
+   * @return The manifest.
+   * @throws IOException If an error occurs reading {@code input}.
+   */
+  public static DeltaManifest create(InputStream input, String algorithm, int blockSize)
+      throws IOException {
+    byte[] block = new byte[blockSize];
+    long length = 0;
+    ArrayList<Integer> checksums = new ArrayList<>();
+    ArrayList<String> digests = new ArrayList<>();
+    while (true) {
+      int blockLength = 0;
+      int bytesRead;
+      while (blockLength < blockSize
+          && (bytesRead = input.read(block, blockLength, blockSize - blockLength)) != -1) {
+        blockLength += bytesRead;
+      }
+      if (blockLength == 0) {
+        break;
+      }
+      checksums.add(RollingChecksum.compute(block, 0, blockLength));
+      StreamingDigest digest = StreamingDigest.create(algorithm);
+      digest.update(block, 0, blockLength);
+      digests.add(digest.digestHex());
+      length += blockLength;
+      if (blockLength < blockSize) {
+        break;
+      }
+    }
+    int[] checksumArray = new int[checksums.size()];
+    for (int i = 0; i < checksumArray.length; i++) {
+      checksumArray[i] = checksums.get(i);
+    }
+    return new DeltaManifest(algorithm, blockSize, length, checksumArray, digests);
+  }
+
+  /**
+   * Parses the text form of a manifest.
+   *
+   * @param manifest The text form.
+   * @return The parsed manifest.
+   * @throws IOException If the manifest is malformed.
+   */
+  public static DeltaManifest parse(String manifest) throws IOException {
+    @Nullable String algorithm = null;
+    int blockSize = 0;
+    long length = 0;
+    ArrayList<Integer> checksums = new ArrayList<>();
+    ArrayList<String> digests = new ArrayList<>();
+    for (String line : manifest.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\s+");
+      try {
+        if (algorithm == null) {
+          if (fields.length != 3 || !StreamingDigest.isSupported(fields[0])) {
+            throw new IOException("Malformed delta manifest header: " + line);
+          }
+          algorithm = fields[0];
+          blockSize = Integer.parseInt(fields[1]);
+          length = Long.parseLong(fields[2]);
+          if (blockSize <= 0 || length < 0) {
+            throw new IOException("Malformed delta manifest header: " + line);
+          }
+        } else {
+          if (fields.length != 2) {
+            throw new IOException("Malformed delta manifest block: " + line);
+          }
+          checksums.add((int) Long.parseLong(fields[0], 16));
+          digests.add(fields[1]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed delta manifest line: " + line, e);
+      }
+    }
+    if (algorithm == null) {
+      throw new IOException("Empty delta manifest");
+    }
+    if (checksums.size() != (length + blockSize - 1) / blockSize) {
+      throw new IOException(
+          "Delta manifest has " + checksums.size() + " blocks for a length of " + length);
+    }
+    int[] checksumArray = new int[checksums.size()];
+    for (int i = 0; i < checksumArray.length; i++) {
+      checksumArray[i] = checksums.get(i);
+    }
+    return new DeltaManifest(algorithm, blockSize, length, checksumArray, digests);
+  }
+
+  /** Returns the text form of the manifest, which {@link #parse(String)} reads back. */
+  public String encode() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(algorithm).append(' ').append(blockSize).append(' ').append(length);
+    for (int i = 0; i < checksums.length; i++) {
+      builder
+          .append('\n')
+          .append(String.format(Locale.US, "%08x", checksums[i]))
+          .append(' ')
+          .append(digests.get(i));
+    }
+    return builder.toString();
+  }
+
+  /** Returns the number of blocks. */
+  public int getBlockCount() {
+    return checksums.length;
+  }
+
+  /** Returns the position of the block at {@code index} in the file. */
+  public long getBlockPosition(int index) {
+    return (long) index * blockSize;
+  }
+
+  /** Returns the length of the block at {@code index}, which is shorter for the last block. */
+  public int getBlockLength(int index) {
+    return (int) Math.min(blockSize, length - getBlockPosition(index));
+  }
+
+  /** Returns the {@link RollingChecksum} of the block at {@code index}. */
+  public int getBlockChecksum(int index) {
+    return checksums[index];
+  }
+
+  /** Returns the lower case hex digest of the block at {@code index}. */
+  public String getBlockDigest(int index) {
+    return digests.get(index);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DeltaManifest)) {
+      return false;
+    }
+    DeltaManifest that = (DeltaManifest) o;
+    return blockSize == that.blockSize
+        && length == that.length
+        && algorithm.equals(that.algorithm)
+        && Arrays.equals(checksums, that.checksums)
+        && digests.equals(that.digests);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = algorithm.hashCode();
+    result = 31 * result + blockSize;
+    result = 31 * result + (int) (length ^ (length >>> 32));
+    result = 31 * result + Arrays.hashCode(checksums);
+    result = 31 * result + digests.hashCode();
+    return result;
+  }
+}
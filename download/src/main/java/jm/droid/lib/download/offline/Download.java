@@ -25,6 +25,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
 
 import jm.droid.lib.download.C;
 import jm.droid.lib.download.util.Assertions;
@@ -48,6 +49,16 @@ public final class Download implements Parcelable {
         progress = new DownloadProgress();
         progress.bytesDownloaded = in.readLong();
         progress.percentDownloaded = in.readFloat();
+        progress.speed = in.readFloat();
+        progress.etaMs = in.readLong();
+        progress.rangeSupport = in.readInt();
+        progress.etag = in.readString();
+        progress.lastModified = in.readString();
+        progress.decodeState =
+            new DownloadProgress.DecodeState(
+                in.readString(), in.readLong(), in.readLong(), in.readLong());
+        progress.digestState = in.createByteArray();
+        progress.lastAccessTimeMs = in.readLong();
     }
 
     public static final Creator<Download> CREATOR = new Creator<Download>() {
@@ -78,6 +89,18 @@ public final class Download implements Parcelable {
         dest.writeInt(failureReason);
         dest.writeLong(progress.bytesDownloaded);
         dest.writeFloat(progress.percentDownloaded);
+        dest.writeFloat(progress.speed);
+        dest.writeLong(progress.etaMs);
+        dest.writeInt(progress.rangeSupport);
+        dest.writeString(progress.etag);
+        dest.writeString(progress.lastModified);
+        DownloadProgress.DecodeState decodeState = progress.decodeState;
+        dest.writeString(decodeState.contentEncoding);
+        dest.writeLong(decodeState.bytesDecoded);
+        dest.writeLong(decodeState.checkpointPosition);
+        dest.writeLong(decodeState.checkpointBytesDecoded);
+        dest.writeByteArray(progress.digestState);
+        dest.writeLong(progress.lastAccessTimeMs);
     }
 
     /**
@@ -139,6 +162,26 @@ public final class Download implements Parcelable {
   /** The download is failed because of unknown reason. */
   public static final int FAILURE_REASON_UNKNOWN = 1;
 
+  /**
+   * Whether the server supports resuming with range requests. One of {@link
+   * #RANGE_SUPPORT_UNKNOWN}, {@link #RANGE_SUPPORT_YES} or {@link #RANGE_SUPPORT_NO}.
+   */
+  // @Target list includes both 'default' targets and TYPE_USE, to ensure backwards compatibility
+  // with Kotlin usages from before TYPE_USE was added.
+  @Documented
+  @Retention(RetentionPolicy.SOURCE)
+  @Target({FIELD, METHOD, PARAMETER, LOCAL_VARIABLE, TYPE_USE})
+  @IntDef({RANGE_SUPPORT_UNKNOWN, RANGE_SUPPORT_YES, RANGE_SUPPORT_NO})
+  public @interface RangeSupport {}
+  /** It isn't known yet whether the server supports range requests. */
+  public static final int RANGE_SUPPORT_UNKNOWN = 0;
+  /** The server answered a range request with partial content. */
+  public static final int RANGE_SUPPORT_YES = 1;
+  /**
+   * The server ignores range requests, so the download restarts from the beginning when resumed.
+   */
+  public static final int RANGE_SUPPORT_NO = 2;
+
   /** The download isn't stopped. */
   public static final int STOP_REASON_NONE = 0;
   public static final int STOP_REASON_UNKNOWN = 1;
@@ -239,6 +282,133 @@ public final class Download implements Parcelable {
   public float getDownloadSpeed() {
       return progress.speed;
   }
+
+  /**
+   * Returns the estimated time until the download completes, in milliseconds, or {@link
+   * C#TIME_UNSET} if unknown.
+   */
+  public long getEtaMs() {
+    return progress.etaMs;
+  }
+
+  /** Returns whether the server supports resuming the download with range requests. */
+  public @RangeSupport int getRangeSupport() {
+    return progress.rangeSupport;
+  }
+
+  /** Sets whether the server supports resuming the download with range requests. */
+  /* package */ void setRangeSupport(@RangeSupport int rangeSupport) {
+    progress.rangeSupport = rangeSupport;
+  }
+
+  /** Returns the {@code ETag} of the content being downloaded, or null if unknown. */
+  @Nullable
+  public String getEtag() {
+    return progress.etag;
+  }
+
+  /** Returns the {@code Last-Modified} date of the content being downloaded, or null if unknown. */
+  @Nullable
+  public String getLastModified() {
+    return progress.lastModified;
+  }
+
+  /**
+   * Sets the validators of the content being downloaded, which are sent as {@code If-Range} when
+   * the download is resumed.
+   */
+  /* package */ void setValidators(@Nullable String etag, @Nullable String lastModified) {
+    progress.etag = etag;
+    progress.lastModified = lastModified;
+  }
+
+  /**
+   * Returns the content coding of the transfer, for example {@code gzip}, or null if the content is
+   * transferred as is. If set, {@link #getBytesDownloaded()} and {@link #contentLength} count
+   * encoded bytes, and {@link #getBytesDecoded()} counts the bytes written to the file.
+   */
+  @Nullable
+  public String getContentEncoding() {
+    return progress.decodeState.contentEncoding;
+  }
+
+  /** Returns the number of bytes that have been written to the file. */
+  public long getBytesDecoded() {
+    DownloadProgress.DecodeState decodeState = progress.decodeState;
+    return decodeState.contentEncoding == null ? progress.bytesDownloaded : decodeState.bytesDecoded;
+  }
+
+  /**
+   * Returns the number of encoded bytes up to the last point from which decoding can resume, if
+   * {@link #getContentEncoding()} is set.
+   */
+  public long getDecodeCheckpointPosition() {
+    return progress.decodeState.checkpointPosition;
+  }
+
+  /** Returns the number of decoded bytes at {@link #getDecodeCheckpointPosition()}. */
+  public long getDecodeCheckpointBytesDecoded() {
+    return progress.decodeState.checkpointBytesDecoded;
+  }
+
+  /**
+   * Sets the content coding of the transfer, which restarts decoding from the start of the content.
+   */
+  /* package */ void setContentEncoding(@Nullable String contentEncoding) {
+    progress.decodeState =
+        new DownloadProgress.DecodeState(
+            contentEncoding,
+            /* bytesDecoded= */ 0,
+            /* checkpointPosition= */ 0,
+            /* checkpointBytesDecoded= */ 0);
+  }
+
+  /**
+   * Sets the decoding progress of a content-coded transfer.
+   *
+   * @param bytesDecoded The number of decoded bytes written to the file.
+   * @param checkpointPosition The number of encoded bytes up to the last point from which decoding
+   *     can resume.
+   * @param checkpointBytesDecoded The number of decoded bytes at {@code checkpointPosition}.
+   */
+  /* package */ void setDecodeProgress(
+      long bytesDecoded, long checkpointPosition, long checkpointBytesDecoded) {
+    // Only the download thread writes the decode state, so the coding can't change meanwhile.
+    progress.decodeState =
+        new DownloadProgress.DecodeState(
+            progress.decodeState.contentEncoding,
+            bytesDecoded,
+            checkpointPosition,
+            checkpointBytesDecoded);
+  }
+
+  /**
+   * Returns the saved state of the digest of the file, see {@link
+   * jm.droid.lib.download.util.StreamingDigest#saveState()}, or null if nothing has been hashed.
+   */
+  @Nullable
+  public byte[] getDigestState() {
+    return progress.digestState;
+  }
+
+  /** Sets the saved state of the digest of the file, or null to hash it from the start. */
+  /* package */ void setDigestState(@Nullable byte[] digestState) {
+    progress.digestState = digestState;
+  }
+
+  /**
+   * Returns the time at which the downloaded file was last accessed, in milliseconds since the
+   * epoch. If it hasn't been marked as accessed this is {@link #updateTimeMs}, which for a
+   * completed download is when it completed.
+   */
+  public long getLastAccessTimeMs() {
+    return Math.max(progress.lastAccessTimeMs, updateTimeMs);
+  }
+
+  /** Sets the time at which the downloaded file was last accessed. */
+  public void setLastAccessTimeMs(long lastAccessTimeMs) {
+    progress.lastAccessTimeMs = lastAccessTimeMs;
+  }
   @Override
   public String toString() {
     return "Download{" +
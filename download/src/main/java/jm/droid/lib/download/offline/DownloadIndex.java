@@ -48,5 +48,24 @@ public interface DownloadIndex {
    */
   DownloadCursor getDownloads(@Download.State int... states) throws IOException;
 
+  /**
+   * Returns a {@link DownloadCursor} to a page of the {@link Download}s with the given {@code
+   * states}, ordered by start time and then by ID. The page starts after the download with the
+   * given start time and ID, so that the downloads can be loaded page by page.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param afterStartTimeMs The start time of the last download of the previous page. Ignored if
+   *     {@code afterId} is null.
+   * @param afterId The ID of the last download of the previous page, or null for the first page.
+   * @param limit The maximum number of downloads in the page.
+   * @param states Returns only the {@link Download}s with this states. If empty, returns all.
+   * @return A cursor to the page of {@link Download}s.
+   * @throws IOException If an error occurs reading the state.
+   */
+  DownloadCursor getDownloads(
+      long afterStartTimeMs, @Nullable String afterId, int limit, @Download.State int... states)
+      throws IOException;
+
   boolean checkPathExist(String path) throws IOException;
 }
@@ -25,7 +25,6 @@ import static jm.droid.lib.download.offline.Download.STATE_REMOVING;
 import static jm.droid.lib.download.offline.Download.STATE_RESTARTING;
 import static jm.droid.lib.download.offline.Download.STATE_STOPPED;
 import static jm.droid.lib.download.offline.Download.STOP_REASON_NONE;
-import static java.lang.Math.min;
 
 import android.content.Context;
 import android.net.Uri;
@@ -33,6 +32,8 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.IntRange;
@@ -42,18 +43,25 @@ import jm.droid.lib.download.C;
 import jm.droid.lib.download.database.DatabaseProvider;
 import jm.droid.lib.download.scheduler.Requirements;
 import jm.droid.lib.download.scheduler.RequirementsWatcher;
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.upstream.WriteFrontier;
 import jm.droid.lib.download.util.Assertions;
 import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.RateEstimator;
 import jm.droid.lib.download.util.Util;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -75,7 +83,8 @@ public final class DownloadManager {
   public interface Listener {
 
     /**
-     * Called when all downloads have been restored.
+     * Called when the downloads that run first have been restored. The others are restored in the
+     * background, and are added to {@link #getCurrentDownloads()} before the manager becomes idle.
      *
      * @param downloadManager The reporting instance.
      */
@@ -158,6 +167,7 @@ public final class DownloadManager {
   private static final int MSG_PROCESSED = 1;
   private static final int MSG_DOWNLOAD_UPDATE = 2;
   private static final int MSG_UPDATE_PROGRESS = 3;
+  private static final int MSG_DOWNLOADS_LOADED = 4;
 
   // Messages posted to the background handler.
   private static final int MSG_INITIALIZE = 0;
@@ -174,6 +184,15 @@ public final class DownloadManager {
   private static final int MSG_UPDATE_PROGRESS_DB = 11;
   private static final int MSG_UPDATE_PROGRESS_UI = 12;
   private static final int MSG_RELEASE = 13;
+  private static final int MSG_SET_RETRY_POLICY = 14;
+  private static final int MSG_DOWNLOAD_RESPONDED = 15;
+  private static final int MSG_SYNC_TASKS = 16;
+  private static final int MSG_METADATA_FETCHED = 17;
+  private static final int MSG_SET_STORAGE_QUOTA = 18;
+  private static final int MSG_MARK_DOWNLOAD_ACCESSED = 19;
+  private static final int MSG_COMPLETED_FILES_MISSING = 20;
+  private static final int MSG_LOAD_DOWNLOADS = 21;
+  private static final int MSG_SET_READ_PRIORITY = 22;
 
   private static final String TAG = "DownloadManager";
 
@@ -183,6 +202,8 @@ public final class DownloadManager {
   private final InternalHandler internalHandler;
   private final RequirementsWatcher.Listener requirementsListener;
   private final CopyOnWriteArraySet<Listener> listeners;
+  // The write frontiers of the downloads that are running or read, shared with the internal thread.
+  private final HashMap<String, WriteFrontier> writeFrontiers;
 
   private int pendingMessages;
   private int activeTaskCount;
@@ -190,6 +211,8 @@ public final class DownloadManager {
   private boolean downloadsPaused;
   private int maxParallelDownloads;
   private int minRetryCount;
+  private RetryPolicy retryPolicy;
+  private long storageQuotaBytes;
   private int notMetRequirements;
   private boolean waitingForRequirements;
   private List<Download> downloads;
@@ -213,7 +236,7 @@ public final class DownloadManager {
     this(
         context,
         new DefaultDownloadIndex(databaseProvider),
-        new DefaultDownloaderFactory(executor));
+        new DefaultDownloaderFactory(context, executor));
   }
 
   /**
@@ -230,9 +253,12 @@ public final class DownloadManager {
 
     maxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
     minRetryCount = DEFAULT_MIN_RETRY_COUNT;
+    retryPolicy = new DefaultRetryPolicy();
+    storageQuotaBytes = C.LENGTH_UNSET;
     downloadsPaused = true;
     downloads = Collections.emptyList();
     listeners = new CopyOnWriteArraySet<>();
+    writeFrontiers = new HashMap<>();
 
     @SuppressWarnings("nullness:methodref.receiver.bound")
     Handler mainHandler = Util.createHandlerForCurrentOrMainLooper(this::handleMainMessage);
@@ -248,7 +274,9 @@ public final class DownloadManager {
             mainHandler,
             maxParallelDownloads,
             minRetryCount,
-            downloadsPaused);
+            retryPolicy,
+            downloadsPaused,
+            writeFrontiers);
 
     @SuppressWarnings("nullness:methodref.receiver.bound")
     RequirementsWatcher.Listener requirementsListener = this::onRequirementsStateChanged;
@@ -395,6 +423,120 @@ public final class DownloadManager {
         .sendToTarget();
   }
 
+  /** Returns the {@link RetryPolicy} used to decide whether and when failed downloads are retried. */
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Sets the {@link RetryPolicy} used to decide whether and when failed downloads are retried. A
+   * download still fails once it has been retried more than {@link #getMinRetryCount()} times
+   * without any progress being made.
+   *
+   * <p>The default is a {@link DefaultRetryPolicy}.
+   *
+   * @param retryPolicy The {@link RetryPolicy}.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    Assertions.checkNotNull(retryPolicy);
+    if (this.retryPolicy == retryPolicy) {
+      return;
+    }
+    this.retryPolicy = retryPolicy;
+    pendingMessages++;
+    internalHandler.obtainMessage(MSG_SET_RETRY_POLICY, retryPolicy).sendToTarget();
+  }
+
+  /**
+   * Returns the maximum number of bytes the files of completed downloads may take, or {@link
+   * C#LENGTH_UNSET} if there's no quota.
+   */
+  public long getStorageQuota() {
+    return storageQuotaBytes;
+  }
+
+  /**
+   * Sets the maximum number of bytes the files of completed downloads may take. Before a download
+   * starts, and whenever one completes, the least recently accessed completed downloads are
+   * evicted until the completed downloads, plus the remaining length of the starting download, fit
+   * in the quota. Evicted downloads have their files deleted and are reported to {@link
+   * Listener#onDownloadRemoved}.
+   *
+   * <p>Use {@link #markDownloadAccessed(String)} to mark completed downloads as recently used.
+   *
+   * @param storageQuotaBytes The quota in bytes, or {@link C#LENGTH_UNSET} for no quota.
+   */
+  public void setStorageQuota(long storageQuotaBytes) {
+    Assertions.checkArgument(storageQuotaBytes == C.LENGTH_UNSET || storageQuotaBytes >= 0);
+    if (this.storageQuotaBytes == storageQuotaBytes) {
+      return;
+    }
+    this.storageQuotaBytes = storageQuotaBytes;
+    pendingMessages++;
+    internalHandler
+        .obtainMessage(
+            MSG_SET_STORAGE_QUOTA, (int) (storageQuotaBytes >> 32), (int) storageQuotaBytes)
+        .sendToTarget();
+  }
+
+  /**
+   * Marks the file of a completed download as accessed now, so that it's evicted after the
+   * downloads that were accessed less recently. See {@link #setStorageQuota(long)}.
+   *
+   * @param id The id of the download.
+   */
+  public void markDownloadAccessed(String id) {
+    pendingMessages++;
+    internalHandler.obtainMessage(MSG_MARK_DOWNLOAD_ACCESSED, id).sendToTarget();
+  }
+
+  /**
+   * Opens a {@link DownloadReader} of the file of a download, which may still be in progress. Reads
+   * block until the data they need has been durably written, so that playback or rendering can
+   * start from the head of the file while the rest is downloaded. Once a read has blocked ahead of
+   * what has been written, and until the reader is closed, the download starts before the other
+   * queued downloads, and takes the slot of a running download that isn't read if there's no free
+   * one.
+   *
+   * <p>Unlike the other methods, this method may be called on any thread. It reads the download
+   * index, so it shouldn't normally be called on the main thread.
+   *
+   * @param id The id of the download.
+   * @return The reader, which must be closed.
+   * @throws FileNotFoundException If there's no download with the given id, or it's being removed.
+   * @throws IOException If the download failed, or an error occurs reading the download index.
+   */
+  public DownloadReader openReader(String id) throws IOException {
+    WriteFrontier writeFrontier;
+    Download download;
+    // The internal thread updates the index before it ends or fails a frontier in the map, so a
+    // frontier created here is never left behind by a download that just stopped.
+    synchronized (writeFrontiers) {
+      @Nullable Download indexedDownload = downloadIndex.getDownload(id);
+      if (indexedDownload == null
+          || indexedDownload.state == STATE_REMOVING
+          || indexedDownload.request.path == null) {
+        throw new FileNotFoundException("No download to read: " + id);
+      }
+      download = indexedDownload;
+      if (download.state == STATE_FAILED) {
+        throw new IOException("Download failed: " + id);
+      }
+      writeFrontier =
+          download.state == STATE_COMPLETED
+              ? WriteFrontier.createEnded()
+              : getWriteFrontier(writeFrontiers, download);
+    }
+    return new DownloadReader(
+        id,
+        Assertions.checkNotNull(download.request.path),
+        writeFrontier,
+        (downloadId, prioritized) ->
+            internalHandler
+                .obtainMessage(MSG_SET_READ_PRIORITY, prioritized ? 1 : 0, 0, downloadId)
+                .sendToTarget());
+  }
+
   /** Returns the used {@link DownloadIndex}. */
   public DownloadIndex getDownloadIndex() {
     return downloadIndex;
@@ -404,11 +546,49 @@ public final class DownloadManager {
    * Returns current downloads. Downloads that are in terminal states (i.e. completed or failed) are
    * not included. To query all downloads including those in terminal states, use {@link
    * #getDownloadIndex()} instead.
+   *
+   * <p>Until the manager first becomes idle after initialization, downloads that are still being
+   * restored from the index may be missing.
    */
   public List<Download> getCurrentDownloads() {
     return downloads;
   }
 
+  /**
+   * Returns the combined speed of the downloads that are currently in progress, in bytes per second.
+   */
+  public float getDownloadSpeed() {
+    float downloadSpeed = 0;
+    for (int i = 0; i < downloads.size(); i++) {
+      Download download = downloads.get(i);
+      if (download.state == STATE_DOWNLOADING) {
+        downloadSpeed += download.progress.speed;
+      }
+    }
+    return downloadSpeed;
+  }
+
+  /**
+   * Returns the estimated time until all queued and running downloads complete at the current
+   * {@link #getDownloadSpeed() download speed}, in milliseconds, or {@link C#TIME_UNSET} if the
+   * length of one of them isn't known yet or nothing is being downloaded.
+   */
+  public long getQueueEtaMs() {
+    long remainingBytes = 0;
+    for (int i = 0; i < downloads.size(); i++) {
+      Download download = downloads.get(i);
+      if (download.state != STATE_QUEUED && download.state != STATE_DOWNLOADING) {
+        continue;
+      }
+      if (download.contentLength == C.LENGTH_UNSET) {
+        return C.TIME_UNSET;
+      }
+      remainingBytes += Math.max(0, download.contentLength - download.getBytesDownloaded());
+    }
+    float downloadSpeed = getDownloadSpeed();
+    return downloadSpeed > 0 ? (long) (remainingBytes * 1000d / downloadSpeed) : C.TIME_UNSET;
+  }
+
   /** Returns whether downloads are currently paused. */
   public boolean getDownloadsPaused() {
     return downloadsPaused;
@@ -592,9 +772,13 @@ public final class DownloadManager {
         int activeTaskCount = message.arg2;
         onMessageProcessed(processedMessageCount, activeTaskCount);
         break;
+      case MSG_DOWNLOADS_LOADED:
+        List<Download> loadedDownloads = (List<Download>) message.obj;
+        onDownloadsLoaded(loadedDownloads);
+        break;
       case MSG_UPDATE_PROGRESS:
         Task task = (Task) message.obj;
-        notifyDownloadRequestProgressUpdate(task.request, task.downloadProgress.percentDownloaded, task.downloadSpeed);
+        notifyDownloadRequestProgressUpdate(task.request, task.downloadProgress.percentDownloaded, task.downloadProgress.speed);
         break;
       default:
         throw new IllegalStateException();
@@ -614,6 +798,13 @@ public final class DownloadManager {
     }
   }
 
+  private void onDownloadsLoaded(List<Download> downloads) {
+    this.downloads = Collections.unmodifiableList(downloads);
+    if (updateWaitingForRequirements()) {
+      notifyWaitingForRequirementsChanged();
+    }
+  }
+
   private void onDownloadUpdate(DownloadUpdate update) {
     downloads = Collections.unmodifiableList(update.downloads);
     Download updatedDownload = update.download;
@@ -642,6 +833,40 @@ public final class DownloadManager {
     }
   }
 
+  /**
+   * Returns the write frontier of {@code download} in {@code writeFrontiers}, which is created at
+   * the resume position of the download if there isn't one. Must be called holding the lock of
+   * {@code writeFrontiers}.
+   */
+  private static WriteFrontier getWriteFrontier(
+      HashMap<String, WriteFrontier> writeFrontiers, Download download) {
+    @Nullable WriteFrontier writeFrontier = writeFrontiers.get(download.request.id);
+    if (writeFrontier == null) {
+      writeFrontier = new WriteFrontier(getDurablePosition(download));
+      writeFrontiers.put(download.request.id, writeFrontier);
+    }
+    return writeFrontier;
+  }
+
+  /**
+   * Returns the end of the data that a download that isn't running has written to its temporary
+   * file, given by its resume position. The temporary file was synced when the download stopped,
+   * but is checked in case the process died before.
+   */
+  private static long getDurablePosition(Download download) {
+    @Nullable String path = download.request.path;
+    if (path == null || download.request.deltaManifestUri != null) {
+      // Delta downloads don't write their file in order.
+      return 0;
+    }
+    long position =
+        download.getContentEncoding() != null
+            ? download.getDecodeCheckpointBytesDecoded()
+            : download.getBytesDownloaded();
+    File tempFile = FileDataDestination.getTempFile(path);
+    return tempFile.isFile() ? Math.min(position, tempFile.length()) : 0;
+  }
+
   /* package */ static Download mergeRequest(
       Download download, DownloadRequest request, int stopReason, long nowMs) {
     @Download.State int state = download.state;
@@ -671,6 +896,8 @@ public final class DownloadManager {
   private static final class InternalHandler extends Handler {
 
     private static final int UPDATE_PROGRESS_INTERVAL_MS = 5000;
+    private static final int MAX_PARALLEL_METADATA_FETCHES = 2;
+    private static final int LOAD_DOWNLOADS_PAGE_SIZE = 100;
     private static final String DOT = ".";
 
     public boolean released;
@@ -682,13 +909,36 @@ public final class DownloadManager {
     private final Handler mainHandler;
     private final ArrayList<Download> downloads;
     private final HashMap<String, Task> activeTasks;
+    private final HostCircuitBreaker hostCircuitBreaker;
+    private final OriginRangeSupport originRangeSupport;
+    private final HashMap<String, RetryState> retryStates;
+    @Nullable private final MetadataFetcher metadataFetcher;
+    private final HashSet<String> metadataFetchIds;
+    @Nullable private final ContentStore contentStore;
+    private final boolean canFollowTransfers;
+    private final StorageJanitor storageJanitor;
+    private final DownloadStorageManager storageManager;
+    private final HashMap<String, WriteFrontier> writeFrontiers;
+    // The number of open readers that have prioritized each download by reading ahead of it.
+    private final HashMap<String, Integer> readPriorityCounts;
+    @Nullable private ExecutorService metadataFetchExecutor;
 
     private @Requirements.RequirementFlags int notMetRequirements;
     private boolean downloadsPaused;
     private int maxParallelDownloads;
     private int minRetryCount;
+    private RetryPolicy retryPolicy;
     private int activeDownloadTaskCount;
+    private int activeFollowerTaskCount;
     private boolean hasActiveRemoveTask;
+    private int activeMetadataFetchCount;
+    // The downloads are loaded from the index page by page after initialization.
+    private boolean allDownloadsLoaded;
+    private long lastLoadedStartTimeMs;
+    @Nullable private String lastLoadedId;
+    // A stop reason set for all downloads before they were all loaded.
+    private boolean hasUnloadedStopReason;
+    private int unloadedStopReason;
 
     public InternalHandler(
         HandlerThread thread,
@@ -698,7 +948,9 @@ public final class DownloadManager {
         Handler mainHandler,
         int maxParallelDownloads,
         int minRetryCount,
-        boolean downloadsPaused) {
+        RetryPolicy retryPolicy,
+        boolean downloadsPaused,
+        HashMap<String, WriteFrontier> writeFrontiers) {
       super(thread.getLooper());
       this.thread = thread;
       this.context = context;
@@ -707,18 +959,37 @@ public final class DownloadManager {
       this.mainHandler = mainHandler;
       this.maxParallelDownloads = maxParallelDownloads;
       this.minRetryCount = minRetryCount;
+      this.retryPolicy = retryPolicy;
       this.downloadsPaused = downloadsPaused;
       downloads = new ArrayList<>();
       activeTasks = new HashMap<>();
+      hostCircuitBreaker = new HostCircuitBreaker();
+      originRangeSupport = new OriginRangeSupport();
+      retryStates = new HashMap<>();
+      metadataFetcher = downloaderFactory.createMetadataFetcher();
+      metadataFetchIds = new HashSet<>();
+      contentStore = downloaderFactory.getContentStore();
+      canFollowTransfers = downloaderFactory.writesPlainFiles();
+      storageJanitor = new StorageJanitor(context.getFilesDir());
+      storageManager = new DownloadStorageManager(downloadIndex, storageJanitor);
+      this.writeFrontiers = writeFrontiers;
+      readPriorityCounts = new HashMap<>();
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void handleMessage(Message message) {
       boolean processedExternalMessage = true;
       switch (message.what) {
         case MSG_INITIALIZE:
           int notMetRequirements = message.arg1;
           initialize(notMetRequirements);
+          // Processed once the remaining downloads are loaded, so the manager isn't idle before.
+          processedExternalMessage = allDownloadsLoaded;
+          break;
+        case MSG_LOAD_DOWNLOADS:
+          loadDownloads();
+          processedExternalMessage = allDownloadsLoaded;
           break;
         case MSG_SET_DOWNLOADS_PAUSED:
           boolean downloadsPaused = message.arg1 != 0;
@@ -741,6 +1012,15 @@ public final class DownloadManager {
           int minRetryCount = message.arg1;
           setMinRetryCount(minRetryCount);
           break;
+        case MSG_SET_RETRY_POLICY:
+          setRetryPolicy((RetryPolicy) message.obj);
+          break;
+        case MSG_SET_STORAGE_QUOTA:
+          setStorageQuota(Util.toLong(message.arg1, message.arg2));
+          break;
+        case MSG_MARK_DOWNLOAD_ACCESSED:
+          markDownloadAccessed((String) message.obj);
+          break;
         case MSG_ADD_DOWNLOAD:
           DownloadRequest request = (DownloadRequest) message.obj;
           stopReason = message.arg1;
@@ -758,6 +1038,25 @@ public final class DownloadManager {
           onTaskStopped(task);
           processedExternalMessage = false; // This message is posted internally.
           break;
+        case MSG_DOWNLOAD_RESPONDED:
+          task = (Task) message.obj;
+          onDownloadResponded(task);
+          return; // No need to post back to mainHandler.
+        case MSG_SYNC_TASKS:
+          syncTasks();
+          processedExternalMessage = false; // This message is posted internally.
+          break;
+        case MSG_SET_READ_PRIORITY:
+          setReadPriority((String) message.obj, message.arg1 != 0);
+          processedExternalMessage = false; // Posted by readers, which aren't counted.
+          break;
+        case MSG_COMPLETED_FILES_MISSING:
+          onCompletedFilesMissing((List<String>) message.obj);
+          processedExternalMessage = false; // This message is posted internally.
+          break;
+        case MSG_METADATA_FETCHED:
+          onMetadataFetched((MetadataFetchResult) message.obj);
+          return; // No need to post back to mainHandler.
         case MSG_CONTENT_LENGTH_CHANGED:
           task = (Task) message.obj;
           onContentLengthChanged(task, Util.toLong(message.arg1, message.arg2));
@@ -781,18 +1080,28 @@ public final class DownloadManager {
 
     private void initialize(int notMetRequirements) {
       this.notMetRequirements = notMetRequirements;
+      // Only the downloads that run first are loaded here, so that the time to start them doesn't
+      // depend on the length of the queue. The others are loaded by loadDownloads.
       DownloadCursor cursor = null;
       try {
-        downloadIndex.setDownloadingStatesToQueued();
         cursor =
             downloadIndex.getDownloads(
-                STATE_QUEUED, STATE_STOPPED, STATE_DOWNLOADING, STATE_REMOVING, STATE_RESTARTING);
+                /* afterStartTimeMs= */ 0,
+                /* afterId= */ null,
+                /* limit= */ Math.max(maxParallelDownloads, 1),
+                STATE_QUEUED,
+                STATE_DOWNLOADING,
+                STATE_RESTARTING);
         while (cursor.moveToNext()) {
-          downloads.add(cursor.getDownload());
+          Download download = cursor.getDownload();
+          putOriginRangeSupport(download.request.uri, download.getRangeSupport());
+          downloads.add(getDownloadForLoad(download));
         }
+        sendEmptyMessage(MSG_LOAD_DOWNLOADS);
       } catch (IOException e) {
         Log.e(TAG, "Failed to load index.", e);
         downloads.clear();
+        allDownloadsLoaded = true;
       } finally {
         Util.closeQuietly(cursor);
       }
@@ -801,6 +1110,71 @@ public final class DownloadManager {
       ArrayList<Download> downloadsForMessage = new ArrayList<>(downloads);
       mainHandler.obtainMessage(MSG_INITIALIZED, downloadsForMessage).sendToTarget();
       syncTasks();
+      // Checked in the background, so that it doesn't delay the downloads.
+      storageJanitor.reconcile(
+          downloadIndex, ids -> obtainMessage(MSG_COMPLETED_FILES_MISSING, ids).sendToTarget());
+    }
+
+    /** Loads the next page of downloads that aren't in a terminal state from the index. */
+    private void loadDownloads() {
+      if (allDownloadsLoaded) {
+        return;
+      }
+      ArrayList<Download> page = new ArrayList<>();
+      try (DownloadCursor cursor =
+          downloadIndex.getDownloads(
+              lastLoadedStartTimeMs,
+              lastLoadedId,
+              LOAD_DOWNLOADS_PAGE_SIZE,
+              STATE_QUEUED,
+              STATE_STOPPED,
+              STATE_DOWNLOADING,
+              STATE_REMOVING,
+              STATE_RESTARTING)) {
+        while (cursor.moveToNext()) {
+          Download download = cursor.getDownload();
+          putOriginRangeSupport(download.request.uri, download.getRangeSupport());
+          page.add(download);
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to load index.", e);
+      }
+      if (!page.isEmpty()) {
+        Download lastDownload = page.get(page.size() - 1);
+        lastLoadedStartTimeMs = lastDownload.startTimeMs;
+        lastLoadedId = lastDownload.request.id;
+      }
+      // Downloads that have been loaded already, by an earlier page or because they were changed.
+      HashSet<String> loadedIds = new HashSet<>();
+      for (int i = 0; i < downloads.size(); i++) {
+        loadedIds.add(downloads.get(i).request.id);
+      }
+      ArrayList<Download> newDownloads = new ArrayList<>();
+      for (int i = 0; i < page.size(); i++) {
+        Download download = page.get(i);
+        if (!loadedIds.contains(download.request.id)) {
+          newDownloads.add(getDownloadForLoad(download));
+        }
+      }
+      downloads.addAll(newDownloads);
+      Collections.sort(downloads, InternalHandler::compareStartTimes);
+      if (hasUnloadedStopReason) {
+        for (int i = 0; i < newDownloads.size(); i++) {
+          setStopReason(newDownloads.get(i), unloadedStopReason);
+        }
+      }
+      if (page.size() < LOAD_DOWNLOADS_PAGE_SIZE) {
+        allDownloadsLoaded = true;
+        hasUnloadedStopReason = false;
+      } else {
+        sendEmptyMessage(MSG_LOAD_DOWNLOADS);
+      }
+      if (!newDownloads.isEmpty()) {
+        mainHandler
+            .obtainMessage(MSG_DOWNLOADS_LOADED, new ArrayList<>(downloads))
+            .sendToTarget();
+        syncTasks();
+      }
     }
 
     private void setDownloadsPaused(boolean downloadsPaused) {
@@ -818,6 +1192,10 @@ public final class DownloadManager {
         for (int i = 0; i < downloads.size(); i++) {
           setStopReason(downloads.get(i), stopReason);
         }
+        if (!allDownloadsLoaded) {
+          hasUnloadedStopReason = true;
+          unloadedStopReason = stopReason;
+        }
         try {
           // Set the stop reason for downloads in terminal states as well.
           downloadIndex.setStopReason(stopReason);
@@ -825,8 +1203,13 @@ public final class DownloadManager {
           Log.e(TAG, "Failed to set manual stop reason", e);
         }
       } else {
-        @Nullable Download download = getDownload(id, /* loadFromIndex= */ false);
-        if (download != null) {
+        @Nullable Download download = getDownload(id, /* loadFromIndex= */ !allDownloadsLoaded);
+        if (download != null && download.state != STATE_COMPLETED && download.state != STATE_FAILED) {
+          if (getDownloadIndex(id) == C.INDEX_UNSET) {
+            // Not loaded yet. Added now, so that loading it doesn't apply an earlier stop reason.
+            downloads.add(download);
+            Collections.sort(downloads, InternalHandler::compareStartTimes);
+          }
           setStopReason(download, stopReason);
         } else {
           try {
@@ -863,6 +1246,17 @@ public final class DownloadManager {
       }
     }
 
+    private void setReadPriority(String id, boolean prioritized) {
+      @Nullable Integer count = readPriorityCounts.get(id);
+      int newCount = (count == null ? 0 : count) + (prioritized ? 1 : -1);
+      if (newCount > 0) {
+        readPriorityCounts.put(id, newCount);
+      } else {
+        readPriorityCounts.remove(id);
+      }
+      syncTasks();
+    }
+
     private void setMaxParallelDownloads(int maxParallelDownloads) {
       this.maxParallelDownloads = maxParallelDownloads;
       syncTasks();
@@ -872,6 +1266,54 @@ public final class DownloadManager {
       this.minRetryCount = minRetryCount;
     }
 
+    private void setRetryPolicy(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+    }
+
+    private void setStorageQuota(long storageQuotaBytes) {
+      storageManager.setQuotaBytes(storageQuotaBytes);
+      evictCompletedDownloads(/* bytesToAdmit= */ 0, /* retainedId= */ null);
+    }
+
+    private void markDownloadAccessed(String id) {
+      try {
+        downloadIndex.setLastAccessTime(id, System.currentTimeMillis());
+        storageManager.onDownloadAccessed(id);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to update index.", e);
+      }
+    }
+
+    /**
+     * Evicts the least recently accessed completed downloads so that {@code bytesToAdmit} more bytes
+     * fit in the storage quota, and reports them as removed.
+     */
+    private void evictCompletedDownloads(long bytesToAdmit, @Nullable String retainedId) {
+      List<Download> evictedDownloads;
+      try {
+        evictedDownloads =
+            storageManager.evict(
+                bytesToAdmit,
+                retainedId == null
+                    ? Collections.emptySet()
+                    : Collections.singleton(retainedId));
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to evict downloads.", e);
+        return;
+      }
+      for (int i = 0; i < evictedDownloads.size(); i++) {
+        Download download = evictedDownloads.get(i);
+        retryStates.remove(download.request.id);
+        DownloadUpdate update =
+            new DownloadUpdate(
+                download,
+                /* isRemove= */ true,
+                new ArrayList<>(downloads),
+                /* finalException= */ null);
+        mainHandler.obtainMessage(MSG_DOWNLOAD_UPDATE, update).sendToTarget();
+      }
+    }
+
   /**
    * 实际在将 {@Link DownloadRequest} request 加到任务列表前需要对任务进行预处理，
    * 1 检查保存路径是不是已经存在，如果存在，则需要进行文件名修改
@@ -884,10 +1326,15 @@ public final class DownloadManager {
       @Nullable Download download = getDownload(req.id, /* loadFromIndex= */ true);
       if (download != null && (download.state == STATE_DOWNLOADING || download.state == STATE_COMPLETED)) return;
       long nowMs = System.currentTimeMillis();
+      retryStates.remove(req.id);
+      metadataFetchIds.remove(req.id);
       if (download != null) {
-        putDownload(mergeRequest(download, req, stopReason, nowMs));
+        download = mergeRequest(download, req, stopReason, nowMs);
+        claimPath(download.request.path);
+        putDownload(download);
       } else {
         DownloadRequest request = checkDownloadRequest(req, context);
+        claimPath(request.path);
         putDownload(
             new Download(
                 request,
@@ -901,6 +1348,16 @@ public final class DownloadManager {
       syncTasks();
     }
 
+    /**
+     * Keeps the files of a removed download to {@code path} that haven't been deleted yet from being
+     * deleted after a download is added to it again.
+     */
+    private void claimPath(@Nullable String path) {
+      if (path != null) {
+        storageJanitor.claimPath(path);
+      }
+    }
+
     private DownloadRequest checkDownloadRequest(DownloadRequest request, Context context) {
       if (request.path != null && !checkDownloadPathExist(request.path)) {
         return request;
@@ -962,20 +1419,35 @@ public final class DownloadManager {
         Log.e(TAG, "Failed to remove nonexistent download: " + id);
         return;
       }
+      retryStates.remove(id);
       putDownloadWithState(download, STATE_REMOVING, STOP_REASON_NONE);
-      if (delete != 0) deleteFile(download.request.path);
+      if (delete != 0 && download.request.path != null) {
+        storageJanitor.deleteFiles(Collections.singletonList(download.request.path));
+      }
       syncTasks();
     }
 
     private void removeAllDownloads(int delete) {
       List<Download> terminalDownloads = new ArrayList<>();
-      try (DownloadCursor cursor = downloadIndex.getDownloads(STATE_COMPLETED, STATE_FAILED)) {
+      // Downloads that haven't been loaded yet are removed with the terminal ones.
+      HashSet<String> loadedIds = new HashSet<>();
+      for (int i = 0; i < downloads.size(); i++) {
+        loadedIds.add(downloads.get(i).request.id);
+      }
+      @Download.State
+      int[] states =
+          allDownloadsLoaded ? new int[] {STATE_COMPLETED, STATE_FAILED} : new int[0];
+      try (DownloadCursor cursor = downloadIndex.getDownloads(states)) {
         while (cursor.moveToNext()) {
-          terminalDownloads.add(cursor.getDownload());
+          Download download = cursor.getDownload();
+          if (!loadedIds.contains(download.request.id)) {
+            terminalDownloads.add(download);
+          }
         }
       } catch (IOException e) {
         Log.e(TAG, "Failed to load downloads.");
       }
+      retryStates.clear();
       for (int i = 0; i < downloads.size(); i++) {
         downloads.set(i, copyDownloadWithState(downloads.get(i), STATE_REMOVING, STOP_REASON_NONE));
       }
@@ -986,6 +1458,7 @@ public final class DownloadManager {
       Collections.sort(downloads, InternalHandler::compareStartTimes);
       try {
         downloadIndex.setStatesToRemoving();
+        storageManager.invalidate();
       } catch (IOException e) {
         Log.e(TAG, "Failed to update index.", e);
       }
@@ -997,28 +1470,68 @@ public final class DownloadManager {
         mainHandler.obtainMessage(MSG_DOWNLOAD_UPDATE, update).sendToTarget();
       }
       if (delete != 0) {
+        List<String> paths = new ArrayList<>();
         for (int i = 0; i < downloads.size(); i++) {
-          deleteFile(downloads.get(i).request.path);
+          @Nullable String path = downloads.get(i).request.path;
+          if (path != null) {
+            paths.add(path);
+          }
         }
+        storageJanitor.deleteFiles(paths);
       }
       syncTasks();
     }
 
-    private void deleteFile(String path) {
-      try {
-        Log.i(TAG,"delete:"+path);
-        File f = new File(path);
-        if (f.exists()) f.delete();
-        File fTmp = new File(path+".tmp");
-        if (fTmp.exists()) fTmp.delete();
-      } catch (Exception ex) {
-        Log.w(TAG," delete file exception");
+    /**
+     * Marks completed downloads whose file turned out to be missing at startup as failed, unless
+     * they have been added again since.
+     */
+    private void onCompletedFilesMissing(List<String> ids) {
+      for (int i = 0; i < ids.size(); i++) {
+        String id = ids.get(i);
+        @Nullable Download download = getDownload(id, /* loadFromIndex= */ true);
+        if (download == null || download.state != STATE_COMPLETED) {
+          continue;
+        }
+        download =
+            new Download(
+                download.request,
+                STATE_FAILED,
+                download.startTimeMs,
+                /* updateTimeMs= */ System.currentTimeMillis(),
+                download.contentLength,
+                download.stopReason,
+                FAILURE_REASON_UNKNOWN,
+                download.progress);
+        try {
+          downloadIndex.putDownload(download);
+          storageManager.onDownloadChanged(download);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to update index.", e);
+        }
+        DownloadUpdate update =
+            new DownloadUpdate(
+                download,
+                /* isRemove= */ false,
+                new ArrayList<>(downloads),
+                new FileNotFoundException(download.request.path));
+        mainHandler.obtainMessage(MSG_DOWNLOAD_UPDATE, update).sendToTarget();
       }
     }
     private void release() {
       for (Task task : activeTasks.values()) {
         task.cancel(/* released= */ true);
       }
+      if (metadataFetchExecutor != null) {
+        metadataFetchExecutor.shutdownNow();
+      }
+      storageJanitor.release();
+      synchronized (writeFrontiers) {
+        for (WriteFrontier writeFrontier : writeFrontiers.values()) {
+          writeFrontier.fail(new IOException("Download manager released"));
+        }
+        writeFrontiers.clear();
+      }
       try {
         downloadIndex.setDownloadingStatesToQueued();
       } catch (IOException e) {
@@ -1036,33 +1549,140 @@ public final class DownloadManager {
 
     private void syncTasks() {
       int accumulatingDownloadTaskCount = 0;
+      // Downloads that are read ahead of what they have written are synced first, so that they take
+      // the slots of the others.
+      for (int pass = 0; pass < 2; pass++) {
+        boolean isReadPriorityPass = pass == 0;
+        if (isReadPriorityPass && readPriorityCounts.isEmpty()) {
+          continue;
+        }
+        for (int i = 0; i < downloads.size(); i++) {
+          Download download = downloads.get(i);
+          if (readPriorityCounts.containsKey(download.request.id) != isReadPriorityPass) {
+            continue;
+          }
+          @Nullable Task activeTask = activeTasks.get(download.request.id);
+          switch (download.state) {
+            case STATE_STOPPED:
+              syncStoppedDownload(activeTask);
+              break;
+            case STATE_QUEUED:
+              activeTask =
+                  syncQueuedDownload(activeTask, download, accumulatingDownloadTaskCount);
+              break;
+            case STATE_DOWNLOADING:
+              Assertions.checkNotNull(activeTask);
+              syncDownloadingDownload(activeTask, download, accumulatingDownloadTaskCount);
+              break;
+            case STATE_REMOVING:
+            case STATE_RESTARTING:
+              syncRemovingDownload(activeTask, download);
+              break;
+            case STATE_COMPLETED:
+            case STATE_FAILED:
+            default:
+              throw new IllegalStateException();
+          }
+          if (activeTask != null && !activeTask.isRemove && !activeTask.isFollower()) {
+            accumulatingDownloadTaskCount++;
+          }
+        }
+      }
+      maybeFetchMetadata();
+      scheduleSyncTasks();
+    }
+
+    /**
+     * Probes queued downloads whose length isn't known yet, so that their size is known while they
+     * wait. At most {@link #MAX_PARALLEL_METADATA_FETCHES} probes run at once, on background priority
+     * threads.
+     */
+    private void maybeFetchMetadata() {
+      @Nullable MetadataFetcher metadataFetcher = this.metadataFetcher;
+      if (metadataFetcher == null || !canDownloadsRun()) {
+        return;
+      }
+      for (int i = 0;
+          i < downloads.size() && activeMetadataFetchCount < MAX_PARALLEL_METADATA_FETCHES;
+          i++) {
+        Download download = downloads.get(i);
+        if (download.state != STATE_QUEUED
+            || download.contentLength != C.LENGTH_UNSET
+            || !metadataFetchIds.add(download.request.id)) {
+          continue;
+        }
+        activeMetadataFetchCount++;
+        DownloadRequest request = download.request;
+        getMetadataFetchExecutor()
+            .execute(
+                () -> {
+                  @Nullable MetadataFetcher.Metadata metadata = null;
+                  try {
+                    metadata = metadataFetcher.fetch(request);
+                  } catch (IOException e) {
+                    Log.w(TAG, "Failed to fetch metadata: " + request.id, e);
+                  }
+                  obtainMessage(MSG_METADATA_FETCHED, new MetadataFetchResult(request.id, metadata))
+                      .sendToTarget();
+                });
+      }
+    }
+
+    private ExecutorService getMetadataFetchExecutor() {
+      if (metadataFetchExecutor == null) {
+        metadataFetchExecutor =
+            Executors.newFixedThreadPool(
+                MAX_PARALLEL_METADATA_FETCHES,
+                runnable ->
+                    new Thread(
+                        () -> {
+                          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                          runnable.run();
+                        },
+                        "download-metadata"));
+      }
+      return metadataFetchExecutor;
+    }
+
+    /**
+     * Schedules {@link #syncTasks()} to run again when a queued download that is currently held back
+     * may become runnable, either because its retry backoff expires or because its host may be
+     * probed again. Nothing is scheduled while downloads can't run, since {@link #syncTasks()} runs
+     * when they can again.
+     */
+    private void scheduleSyncTasks() {
+      removeMessages(MSG_SYNC_TASKS);
+      HashSet<String> queuedHosts = new HashSet<>();
+      HashSet<String> activeHosts = new HashSet<>();
       for (int i = 0; i < downloads.size(); i++) {
         Download download = downloads.get(i);
-        @Nullable Task activeTask = activeTasks.get(download.request.id);
-        switch (download.state) {
-          case STATE_STOPPED:
-            syncStoppedDownload(activeTask);
-            break;
-          case STATE_QUEUED:
-            activeTask = syncQueuedDownload(activeTask, download);
-            break;
-          case STATE_DOWNLOADING:
-            Assertions.checkNotNull(activeTask);
-            syncDownloadingDownload(activeTask, download, accumulatingDownloadTaskCount);
-            break;
-          case STATE_REMOVING:
-          case STATE_RESTARTING:
-            syncRemovingDownload(activeTask, download);
-            break;
-          case STATE_COMPLETED:
-          case STATE_FAILED:
-          default:
-            throw new IllegalStateException();
+        @Nullable String host = download.request.uri.getHost();
+        if (host == null) {
+          continue;
+        }
+        if (download.state == STATE_QUEUED) {
+          queuedHosts.add(host);
+          activeHosts.add(host);
+        } else if (download.state == STATE_DOWNLOADING) {
+          activeHosts.add(host);
         }
-        if (activeTask != null && !activeTask.isRemove) {
-          accumulatingDownloadTaskCount++;
+      }
+      hostCircuitBreaker.retainHosts(activeHosts);
+      if (!canDownloadsRun()) {
+        return;
+      }
+      long nowMs = SystemClock.elapsedRealtime();
+      long nextSyncTimeMs = hostCircuitBreaker.getNextProbeTimeMs(nowMs, queuedHosts);
+      for (RetryState retryState : retryStates.values()) {
+        if (retryState.notBeforeMs > nowMs
+            && (nextSyncTimeMs == C.TIME_UNSET || retryState.notBeforeMs < nextSyncTimeMs)) {
+          nextSyncTimeMs = retryState.notBeforeMs;
         }
       }
+      if (nextSyncTimeMs != C.TIME_UNSET) {
+        long delayMs = Math.max(0, nextSyncTimeMs - nowMs);
+        sendEmptyMessageDelayed(MSG_SYNC_TASKS, delayMs);
+      }
     }
 
     private void syncStoppedDownload(@Nullable Task activeTask) {
@@ -1075,7 +1695,8 @@ public final class DownloadManager {
 
     @Nullable
     @CheckResult
-    private Task syncQueuedDownload(@Nullable Task activeTask, Download download) {
+    private Task syncQueuedDownload(
+        @Nullable Task activeTask, Download download, int accumulatingDownloadTaskCount) {
       if (activeTask != null) {
         // We have a task, which must be a download task. If the download state is queued we need to
         // cancel it and start a new one, since a new request has been merged into the download.
@@ -1084,21 +1705,87 @@ public final class DownloadManager {
         return activeTask;
       }
 
-      if (!canDownloadsRun() || activeDownloadTaskCount >= maxParallelDownloads) {
+      if (!canDownloadsRun()) {
+        return null;
+      }
+
+      // Follow the transfer of a task downloading the same content instead of downloading it
+      // again. Following doesn't take a slot, since nothing is transferred.
+      @Nullable CoalescedDownloader.Transfer followedTransfer = findTransferToFollow(download);
+      if (followedTransfer != null) {
+        download = putDownloadWithState(download, STATE_DOWNLOADING, STOP_REASON_NONE);
+        activeFollowerTaskCount++;
+        return startDownloadTask(
+            download, new CoalescedDownloader(download, followedTransfer), followedTransfer);
+      }
+
+      // A download that is read ahead of what it has written starts if it's among the first
+      // downloads, even if the slots are taken. The downloads after it are stopped to make room.
+      boolean isReadAhead =
+          readPriorityCounts.containsKey(download.request.id)
+              && accumulatingDownloadTaskCount < maxParallelDownloads;
+      if (!isReadAhead && activeDownloadTaskCount - activeFollowerTaskCount >= maxParallelDownloads) {
+        return null;
+      }
+
+      // Leave downloads that are backing off before a retry queued, so that the slot goes to
+      // another download in the meantime.
+      long nowMs = SystemClock.elapsedRealtime();
+      @Nullable RetryState retryState = retryStates.get(download.request.id);
+      if (retryState != null && retryState.notBeforeMs > nowMs) {
         return null;
       }
 
+      // Leave downloads of content that another task is downloading queued, so that the content is
+      // linked from the store once that task completes instead of being downloaded twice.
+      if (isContentBeingDownloaded(download.request)) {
+        return null;
+      }
+
+      // Leave downloads for failing hosts queued, so that the slot goes to a healthy host. This is
+      // the last check, since a download allowed through a half-open circuit is its probe and has
+      // to be started.
+      if (!hostCircuitBreaker.allowRequest(download.request.uri.getHost(), nowMs)) {
+        return null;
+      }
+
+      // Make room for the rest of the download within the storage quota.
+      long bytesToAdmit =
+          download.contentLength == C.LENGTH_UNSET
+              ? 0
+              : download.contentLength - download.getBytesDownloaded();
+      evictCompletedDownloads(bytesToAdmit, /* retainedId= */ null);
+
+      // Until its first response, a download uses what is known about its origin, so that it doesn't
+      // skip the data it already has through a server that ignores range requests.
+      if (download.getRangeSupport() == Download.RANGE_SUPPORT_UNKNOWN) {
+        download.setRangeSupport(
+            originRangeSupport.get(OriginRangeSupport.getOrigin(download.request.uri)));
+      }
+
       // We can start a download task.
       download = putDownloadWithState(download, STATE_DOWNLOADING, STOP_REASON_NONE);
-      Downloader downloader = downloaderFactory.createDownloader(download);
-      activeTask =
+      return startDownloadTask(
+          download, downloaderFactory.createDownloader(download), /* followedTransfer= */ null);
+    }
+
+    private Task startDownloadTask(
+        Download download,
+        Downloader downloader,
+        @Nullable CoalescedDownloader.Transfer followedTransfer) {
+      Task activeTask =
           new Task(
               download,
               downloader,
               download.progress,
               /* isRemove= */ false,
-              minRetryCount,
+              followedTransfer,
               /* internalHandler= */ this);
+      if (followedTransfer == null) {
+        synchronized (writeFrontiers) {
+          downloader.setWriteFrontier(getWriteFrontier(writeFrontiers, download));
+        }
+      }
       activeTasks.put(download.request.id, activeTask);
       if (activeDownloadTaskCount++ == 0) {
         sendEmptyMessageDelayed(MSG_UPDATE_PROGRESS_DB, UPDATE_PROGRESS_INTERVAL_MS);
@@ -1107,10 +1794,65 @@ public final class DownloadManager {
       return activeTask;
     }
 
+    /**
+     * Returns the transfer of an active task that downloads the same content as {@code download},
+     * or null if there isn't one.
+     */
+    @Nullable
+    private CoalescedDownloader.Transfer findTransferToFollow(Download download) {
+      // The file of the followed download is linked or copied, which only works for plain files.
+      if (!canFollowTransfers) {
+        return null;
+      }
+      for (Task task : activeTasks.values()) {
+        @Nullable CoalescedDownloader.Transfer transfer = task.transfer;
+        if (transfer != null && !task.isCanceled && transfer.canBeFollowedBy(download)) {
+          return transfer;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Queues the downloads following {@code transfer} again after it stopped without completing, so
+     * that one of them starts a transfer of its own.
+     */
+    private void requeueFollowers(CoalescedDownloader.Transfer transfer) {
+      for (Task task : new ArrayList<>(activeTasks.values())) {
+        if (task.followedTransfer != transfer || task.isCanceled) {
+          continue;
+        }
+        @Nullable Download download = getDownload(task.request.id, /* loadFromIndex= */ false);
+        if (download != null && download.state == STATE_DOWNLOADING) {
+          putDownloadWithState(download, STATE_QUEUED, STOP_REASON_NONE);
+        }
+        task.cancel(/* released= */ false);
+      }
+    }
+
+    private boolean isContentBeingDownloaded(DownloadRequest request) {
+      @Nullable String expectedDigest = request.expectedDigest;
+      if (contentStore == null || expectedDigest == null) {
+        return false;
+      }
+      for (Task task : activeTasks.values()) {
+        if (!task.isRemove
+            && expectedDigest.equalsIgnoreCase(task.request.expectedDigest)
+            && Util.areEqual(request.digestAlgorithm, task.request.digestAlgorithm)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     private void syncDownloadingDownload(
         Task activeTask, Download download, int accumulatingDownloadTaskCount) {
       Assertions.checkState(!activeTask.isRemove);
-      if (!canDownloadsRun() || accumulatingDownloadTaskCount >= maxParallelDownloads) {
+      // Followers don't take a slot or contact the host, they're requeued with the task they follow.
+      if (!canDownloadsRun()
+          || (!activeTask.isFollower()
+              && (accumulatingDownloadTaskCount >= maxParallelDownloads
+                  || hostCircuitBreaker.isOpen(download.request.uri.getHost())))) {
         putDownloadWithState(download, STATE_QUEUED, STOP_REASON_NONE);
         activeTask.cancel(/* released= */ false);
       }
@@ -1139,7 +1881,7 @@ public final class DownloadManager {
               downloader,
               download.progress,
               /* isRemove= */ true,
-              minRetryCount,
+              /* followedTransfer= */ null,
               /* internalHandler= */ this);
       activeTasks.put(download.request.id, activeTask);
       hasActiveRemoveTask = true;
@@ -1148,6 +1890,46 @@ public final class DownloadManager {
 
     // Task event processing.
 
+    private void onDownloadResponded(Task task) {
+      if (hostCircuitBreaker.onSuccess(task.request.uri.getHost())) {
+        syncTasks();
+      }
+    }
+
+    private void onMetadataFetched(MetadataFetchResult result) {
+      activeMetadataFetchCount--;
+      @Nullable MetadataFetcher.Metadata metadata = result.metadata;
+      @Nullable Download download = getDownload(result.id, /* loadFromIndex= */ false);
+      if (metadata != null && download != null) {
+        putOriginRangeSupport(download.request.uri, metadata.rangeSupport);
+      }
+      // The task's own response takes precedence once the download has started.
+      if (metadata != null
+          && download != null
+          && download.state == STATE_QUEUED
+          && download.contentLength == C.LENGTH_UNSET) {
+        if (download.getRangeSupport() == Download.RANGE_SUPPORT_UNKNOWN) {
+          download.setRangeSupport(metadata.rangeSupport);
+        }
+        // Validators of a partially downloaded file must come from the response it was written
+        // from, otherwise If-Range could splice two versions of the content.
+        if (download.getBytesDownloaded() == 0) {
+          download.setValidators(metadata.etag, metadata.lastModified);
+        }
+        putDownload(
+            new Download(
+                download.request,
+                download.state,
+                download.startTimeMs,
+                /* updateTimeMs= */ System.currentTimeMillis(),
+                metadata.contentLength,
+                download.stopReason,
+                download.failureReason,
+                download.progress));
+      }
+      maybeFetchMetadata();
+    }
+
     private void onContentLengthChanged(Task task, long contentLength) {
       String downloadId = task.request.id;
       Download download =
@@ -1177,8 +1959,21 @@ public final class DownloadManager {
       } else if (--activeDownloadTaskCount == 0) {
         removeMessages(MSG_UPDATE_PROGRESS_DB);
       }
+      if (task.isFollower()) {
+        activeFollowerTaskCount--;
+      }
+      @Nullable CoalescedDownloader.Transfer transfer = task.transfer;
+      if (transfer != null && !transfer.hasSucceeded()) {
+        requeueFollowers(transfer);
+      }
+      if (!isRemove) {
+        putOriginRangeSupport(task.request.uri, task.downloadProgress.rangeSupport);
+      }
 
       if (task.isCanceled) {
+        if (!isRemove) {
+          hostCircuitBreaker.onCanceled(task.request.uri.getHost());
+        }
         syncTasks();
         return;
       }
@@ -1193,7 +1988,24 @@ public final class DownloadManager {
       switch (download.state) {
         case STATE_DOWNLOADING:
           Assertions.checkState(!isRemove);
+          if (finalException instanceof IOException
+              && maybeScheduleRetry(download, (IOException) finalException)) {
+            break;
+          }
+          if (!(finalException instanceof IOException)) {
+            // A probe of the host's circuit that stopped without receiving data has no outcome.
+            hostCircuitBreaker.onCanceled(task.request.uri.getHost());
+          }
+          retryStates.remove(downloadId);
+          metadataFetchIds.remove(downloadId);
           onDownloadTaskStopped(download, finalException);
+          if (finalException == null) {
+            if (download.request.path != null) {
+              storageJanitor.syncDirectory(download.request.path);
+            }
+            // The download may have been longer than the room made for it when it started.
+            evictCompletedDownloads(/* bytesToAdmit= */ 0, /* retainedId= */ downloadId);
+          }
           break;
         case STATE_REMOVING:
         case STATE_RESTARTING:
@@ -1211,6 +2023,43 @@ public final class DownloadManager {
       syncTasks();
     }
 
+    /**
+     * Re-queues a download whose task failed with {@code error}, with a not-before time given by the
+     * {@link RetryPolicy}. Returns whether a retry was scheduled, or false if the download has used up
+     * its retries or the error is fatal.
+     */
+    private boolean maybeScheduleRetry(Download download, IOException error) {
+      String downloadId = download.request.id;
+      long nowMs = SystemClock.elapsedRealtime();
+      String host = download.request.uri.getHost();
+      if (!HostCircuitBreaker.isHostFailure(error)) {
+        // The host isn't to blame, but a probe of its circuit has ended without an outcome.
+        hostCircuitBreaker.onCanceled(host);
+      } else if (hostCircuitBreaker.onFailure(host, nowMs)) {
+        Log.w(TAG, "Too many failures, pausing downloads from " + host);
+      }
+      @Nullable RetryState retryState = retryStates.get(downloadId);
+      if (retryState == null) {
+        retryState = new RetryState();
+        retryStates.put(downloadId, retryState);
+      }
+      long bytesDownloaded = download.getBytesDownloaded();
+      if (bytesDownloaded != retryState.errorPosition) {
+        retryState.errorPosition = bytesDownloaded;
+        retryState.errorCount = 0;
+      }
+      if (++retryState.errorCount > minRetryCount) {
+        return false;
+      }
+      long retryDelayMs = retryPolicy.getRetryDelayMsFor(error, retryState.errorCount);
+      if (retryDelayMs == C.TIME_UNSET) {
+        return false;
+      }
+      retryState.notBeforeMs = nowMs + retryDelayMs;
+      putDownloadWithState(download, STATE_QUEUED, STOP_REASON_NONE);
+      return true;
+    }
+
     private void onDownloadTaskStopped(Download download, @Nullable Exception finalException) {
       download =
           new Download(
@@ -1227,9 +2076,15 @@ public final class DownloadManager {
       // We still need to update the download index and main thread.
       try {
         downloadIndex.putDownload(download);
+        storageManager.onDownloadChanged(download);
       } catch (IOException e) {
         Log.e(TAG, "Failed to update index.", e);
       }
+      releaseWriteFrontier(
+          download.request.id,
+          finalException == null
+              ? null
+              : new IOException("Download failed: " + download.request.id, finalException));
       DownloadUpdate update =
           new DownloadUpdate(
               download, /* isRemove= */ false, new ArrayList<>(downloads), finalException);
@@ -1241,15 +2096,27 @@ public final class DownloadManager {
         @Download.State
         int state = download.stopReason == STOP_REASON_NONE ? STATE_QUEUED : STATE_STOPPED;
         putDownloadWithState(download, state, download.stopReason);
+        synchronized (writeFrontiers) {
+          @Nullable WriteFrontier writeFrontier = writeFrontiers.get(download.request.id);
+          if (writeFrontier != null) {
+            // The data has been removed, and is written again from the start.
+            writeFrontier.reset(/* position= */ 0);
+          }
+        }
         syncTasks();
       } else {
+        metadataFetchIds.remove(download.request.id);
         int removeIndex = getDownloadIndex(download.request.id);
         downloads.remove(removeIndex);
         try {
           downloadIndex.removeDownload(download.request.id);
+          storageManager.onDownloadRemoved(download.request.id);
         } catch (IOException e) {
           Log.e(TAG, "Failed to remove from database");
         }
+        releaseWriteFrontier(
+            download.request.id,
+            new FileNotFoundException("Download removed: " + download.request.id));
         DownloadUpdate update =
             new DownloadUpdate(
                 download,
@@ -1260,6 +2127,25 @@ public final class DownloadManager {
       }
     }
 
+    /**
+     * Ends the write frontier of a download that has stopped in a terminal state or been removed, or
+     * fails it with {@code error}. Readers that are open keep it.
+     */
+    private void releaseWriteFrontier(String id, @Nullable IOException error) {
+      @Nullable WriteFrontier writeFrontier;
+      synchronized (writeFrontiers) {
+        writeFrontier = writeFrontiers.remove(id);
+      }
+      if (writeFrontier == null) {
+        return;
+      }
+      if (error == null) {
+        writeFrontier.end();
+      } else {
+        writeFrontier.fail(error);
+      }
+    }
+
     // Progress updates.
 
     private void updateProgress() {
@@ -1305,6 +2191,7 @@ public final class DownloadManager {
       }
       try {
         downloadIndex.putDownload(download);
+        storageManager.onDownloadChanged(download);
       } catch (IOException e) {
         Log.e(TAG, "Failed to update index.", e);
       }
@@ -1326,7 +2213,8 @@ public final class DownloadManager {
       }
       if (loadFromIndex) {
         try {
-          return downloadIndex.getDownload(id);
+          @Nullable Download download = downloadIndex.getDownload(id);
+          return download != null ? getDownloadForLoad(download) : null;
         } catch (IOException e) {
           Log.e(TAG, "Failed to load download: " + id, e);
         }
@@ -1334,6 +2222,20 @@ public final class DownloadManager {
       return null;
     }
 
+    private void putOriginRangeSupport(Uri uri, @Download.RangeSupport int rangeSupport) {
+      originRangeSupport.put(OriginRangeSupport.getOrigin(uri), rangeSupport);
+    }
+
+    /**
+     * Returns a download that was loaded from the index. Downloads that aren't in the downloads list
+     * have no task, and a download that was downloading when the process died is queued again.
+     */
+    private static Download getDownloadForLoad(Download download) {
+      return download.state == STATE_DOWNLOADING
+          ? copyDownloadWithState(download, STATE_QUEUED, download.stopReason)
+          : download;
+    }
+
     private int getDownloadIndex(String id) {
       for (int i = 0; i < downloads.size(); i++) {
         Download download = downloads.get(i);
@@ -1362,13 +2264,33 @@ public final class DownloadManager {
     }
   }
 
+  /** Retry bookkeeping for a download whose task has failed. */
+  private static final class RetryState {
+
+    /** The number of consecutive failures without progress. */
+    public int errorCount;
+    /** The number of bytes downloaded when the last failure occurred. */
+    public long errorPosition;
+    /** The {@link SystemClock#elapsedRealtime()} before which the download shouldn't be retried. */
+    public long notBeforeMs;
+
+    public RetryState() {
+      errorPosition = C.LENGTH_UNSET;
+    }
+  }
+
   private static class Task extends Thread implements Downloader.ProgressListener {
 
+    private static final int PROGRESS_UPDATE_INTERVAL_MS = 500;
+
     private final DownloadRequest request;
     private final Downloader downloader;
     private final DownloadProgress downloadProgress;
     private final boolean isRemove;
-    private final int minRetryCount;
+    // The transfer of this task that downloads of the same content can follow, if it downloads.
+    @Nullable private final CoalescedDownloader.Transfer transfer;
+    // The transfer of another task that this task follows, if it doesn't download itself.
+    @Nullable private final CoalescedDownloader.Transfer followedTransfer;
 
     @Nullable private volatile InternalHandler internalHandler;
     private volatile boolean isCanceled;
@@ -1377,25 +2299,33 @@ public final class DownloadManager {
     private long contentLength;
     private static final AtomicInteger poolNumber = new AtomicInteger(1);
 
-    private long progressInterval = 0;
-    private long bytesDownloadedInterval = 0;
-    private float downloadSpeed = 0f;
+    private boolean hasResponded;
+    private final RateEstimator rateEstimator;
+    private long lastProgressUpdateTimeMs;
 
     private Task(
         Download download,
         Downloader downloader,
         DownloadProgress downloadProgress,
         boolean isRemove,
-        int minRetryCount,
+        @Nullable CoalescedDownloader.Transfer followedTransfer,
         InternalHandler internalHandler) {
       super("download-manager-"+poolNumber.getAndIncrement());
       this.request = download.request;
       this.downloader = downloader;
       this.downloadProgress = downloadProgress;
       this.isRemove = isRemove;
-      this.minRetryCount = minRetryCount;
+      this.followedTransfer = followedTransfer;
+      transfer =
+          isRemove || followedTransfer != null ? null : new CoalescedDownloader.Transfer(download);
       this.internalHandler = internalHandler;
       contentLength = download.contentLength;
+      rateEstimator = new RateEstimator();
+      lastProgressUpdateTimeMs = C.TIME_UNSET;
+    }
+
+    public boolean isFollower() {
+      return followedTransfer != null;
     }
 
     @SuppressWarnings("nullness:assignment")
@@ -1418,37 +2348,29 @@ public final class DownloadManager {
 
     @Override
     public void run() {
+      boolean succeeded = false;
       try {
         if (isRemove) {
           downloader.remove();
         } else {
-          int errorCount = 0;
-          long errorPosition = C.LENGTH_UNSET;
-          while (!isCanceled) {
-            try {
-                downloader.download(/* progressListener= */ this);
-                downloader.success();
-                break;
-            } catch (IOException e) {
-              if (!isCanceled) {
-                long bytesDownloaded = downloadProgress.bytesDownloaded;
-                if (bytesDownloaded != errorPosition) {
-                  errorPosition = bytesDownloaded;
-                  errorCount = 0;
-                }
-                if (++errorCount > minRetryCount) {
-                  throw e;
-                }
-                Thread.sleep(getRetryDelayMillis(errorCount));
-              }
-            }
-          }
+          // A single attempt. Retries are scheduled by the internal handler, so that a download
+          // waiting out its backoff doesn't hold a download slot.
+          downloader.download(/* progressListener= */ this);
+          downloader.success();
+          succeeded = !isCanceled;
         }
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
       } catch (Exception e) {
         finalException = e;
       }
+      if (transfer != null) {
+        transfer.onFinished(succeeded);
+      }
+      if (!isRemove) {
+        downloadProgress.speed = 0;
+        downloadProgress.etaMs = C.TIME_UNSET;
+      }
       @Nullable Handler internalHandler = this.internalHandler;
       if (internalHandler != null) {
         internalHandler.obtainMessage(MSG_TASK_STOPPED, this).sendToTarget();
@@ -1460,11 +2382,20 @@ public final class DownloadManager {
 
       downloadProgress.bytesDownloaded = bytesDownloaded;
       downloadProgress.percentDownloaded = percentDownloaded;
-      Log.i(TAG,"progress--> content len:"+contentLength+", download bytes len:"+bytesDownloaded+" , percent:"+percentDownloaded);
+      if (Log.getLogLevel() <= Log.LOG_LEVEL_INFO) {
+        Log.i(TAG,"progress--> content len:"+contentLength+", download bytes len:"+bytesDownloaded+" , percent:"+percentDownloaded);
+      }
       @Nullable Handler internalHandler = this.internalHandler;
       if (internalHandler == null) return;
+      if (!hasResponded && bytesNewCached > 0) {
+        hasResponded = true;
+        internalHandler.obtainMessage(MSG_DOWNLOAD_RESPONDED, this).sendToTarget();
+      }
       if (contentLength != this.contentLength) {
         this.contentLength = contentLength;
+        if (transfer != null) {
+          transfer.contentLength = contentLength;
+        }
         internalHandler.obtainMessage(
                   MSG_CONTENT_LENGTH_CHANGED,
                   (int) (contentLength >> 32),
@@ -1472,18 +2403,29 @@ public final class DownloadManager {
                   this)
               .sendToTarget();
       }
-      long nowMs = System.currentTimeMillis();
-      bytesDownloadedInterval += bytesNewCached;
-      if (nowMs - progressInterval > 500) {
-          downloadSpeed = bytesDownloadedInterval*1000f / (nowMs - progressInterval);  //Bps
-          internalHandler.obtainMessage(MSG_UPDATE_PROGRESS_UI, this).sendToTarget();
-          progressInterval = nowMs;
-          bytesDownloadedInterval = 0;
+      long nowMs = SystemClock.elapsedRealtime();
+      if (rateEstimator.addBytes(bytesNewCached, nowMs)) {
+        downloadProgress.speed = rateEstimator.getBytesPerSecond();
+        downloadProgress.etaMs =
+            rateEstimator.getEtaMs(
+                contentLength == C.LENGTH_UNSET ? C.LENGTH_UNSET : contentLength - bytesDownloaded);
+      }
+      if (lastProgressUpdateTimeMs == C.TIME_UNSET
+          || nowMs - lastProgressUpdateTimeMs >= PROGRESS_UPDATE_INTERVAL_MS) {
+        internalHandler.obtainMessage(MSG_UPDATE_PROGRESS_UI, this).sendToTarget();
+        lastProgressUpdateTimeMs = nowMs;
       }
     }
+  }
+
+  private static final class MetadataFetchResult {
+
+    public final String id;
+    @Nullable public final MetadataFetcher.Metadata metadata;
 
-    private static int getRetryDelayMillis(int errorCount) {
-      return min((errorCount - 1) * 1000, 5000);
+    public MetadataFetchResult(String id, @Nullable MetadataFetcher.Metadata metadata) {
+      this.id = id;
+      this.metadata = metadata;
     }
   }
 
@@ -15,6 +15,8 @@
  */
 package jm.droid.lib.download.offline;
 
+import androidx.annotation.Nullable;
+
 import jm.droid.lib.download.C;
 
 /** Mutable {@link Download} progress. */
@@ -26,7 +28,79 @@ public class DownloadProgress {
   /** The percentage that has been downloaded, or {@link C#PERCENTAGE_UNSET} if unknown. */
   public volatile float percentDownloaded;
   /**
-   * 下载速度
+   * 下载速度, in bytes per second. An exponentially weighted moving average, or 0 if the download
+   * isn't in progress.
    */
   public volatile float speed;
+
+  /**
+   * The estimated time until the download completes, in milliseconds, or {@link C#TIME_UNSET} if
+   * unknown.
+   */
+  public volatile long etaMs = C.TIME_UNSET;
+
+  /** Whether the server supports resuming the download with range requests. */
+  public volatile @Download.RangeSupport int rangeSupport;
+
+  /** The {@code ETag} of the content being downloaded, or null if unknown. */
+  @Nullable public volatile String etag;
+
+  /** The {@code Last-Modified} date of the content being downloaded, or null if unknown. */
+  @Nullable public volatile String lastModified;
+
+  /**
+   * The content coding of the transfer and the progress of decoding it. Replaced as a whole, so that
+   * a checkpoint is never read together with the decoded bytes of another one.
+   */
+  public volatile DecodeState decodeState = DecodeState.NONE;
+
+  /**
+   * The saved state of the {@link jm.droid.lib.download.util.StreamingDigest} hashing the file, if
+   * the request has an expected digest, or null if nothing has been hashed yet.
+   */
+  @Nullable public volatile byte[] digestState;
+
+  /**
+   * The time at which the downloaded file was last accessed, in milliseconds since the epoch, or 0
+   * if it hasn't been marked as accessed.
+   */
+  public volatile long lastAccessTimeMs;
+
+  /** The content coding of a transfer and the progress of decoding it. Immutable. */
+  public static final class DecodeState {
+
+    /** The state of a transfer without content coding. */
+    public static final DecodeState NONE =
+        new DecodeState(
+            /* contentEncoding= */ null,
+            /* bytesDecoded= */ 0,
+            /* checkpointPosition= */ 0,
+            /* checkpointBytesDecoded= */ 0);
+
+    /**
+     * The content coding of the transfer, or null if the content is transferred as is. If set,
+     * {@link DownloadProgress#bytesDownloaded} counts encoded bytes.
+     */
+    @Nullable public final String contentEncoding;
+    /** The number of decoded bytes that have been written, if {@link #contentEncoding} is set. */
+    public final long bytesDecoded;
+    /**
+     * The number of encoded bytes up to the last point from which decoding can resume, if {@link
+     * #contentEncoding} is set.
+     */
+    public final long checkpointPosition;
+    /** The number of decoded bytes at {@link #checkpointPosition}. */
+    public final long checkpointBytesDecoded;
+
+    public DecodeState(
+        @Nullable String contentEncoding,
+        long bytesDecoded,
+        long checkpointPosition,
+        long checkpointBytesDecoded) {
+      this.contentEncoding = contentEncoding;
+      this.bytesDecoded = bytesDecoded;
+      this.checkpointPosition = checkpointPosition;
+      this.checkpointBytesDecoded = checkpointBytesDecoded;
+    }
+  }
 }
@@ -0,0 +1,168 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.DataReader;
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.upstream.WriteFrontier;
+import jm.droid.lib.download.util.Assertions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the file of a download, which may still be in progress. Opened by {@link
+ * DownloadManager#openReader(String)}.
+ *
+ * <p>A read blocks until the data it needs has been durably written, as given by the {@link
+ * WriteFrontier} of the download. Once a read has blocked ahead of what has been written, the
+ * download is prioritized over the downloads that aren't read, until the reader is closed.
+ *
+ * <p>If data that has been read is written again, for example because the content changed on the
+ * server, the next read fails and the reader should be opened again.
+ *
+ * <p>Not thread safe, except for {@link #close()}.
+ */
+public final class DownloadReader implements DataReader, Closeable {
+
+  /** Prioritizes the download once it's read ahead of what has been written. */
+  /* package */ interface Prioritizer {
+
+    /** Called with whether the download with the given ID should be prioritized for the reader. */
+    void setPrioritized(String id, boolean prioritized);
+  }
+
+  private final String id;
+  private final File file;
+  private final File tempFile;
+  private final WriteFrontier writeFrontier;
+  private final Prioritizer prioritizer;
+
+  @Nullable private RandomAccessFile input;
+  private long position;
+  // The end of the data that has been read, which fails the reader if it's written again.
+  private long readEndPosition;
+  private int rewindCount;
+  private boolean isPrioritized;
+  private volatile boolean isClosed;
+
+  /* package */ DownloadReader(
+      String id, String path, WriteFrontier writeFrontier, Prioritizer prioritizer) {
+    this.id = id;
+    this.writeFrontier = writeFrontier;
+    this.prioritizer = prioritizer;
+    file = new File(path);
+    tempFile = FileDataDestination.getTempFile(path);
+    rewindCount = writeFrontier.getRewindCount();
+  }
+
+  /** Returns the position of the next read. */
+  public long getPosition() {
+    return position;
+  }
+
+  /** Sets the position of the next read, which may be ahead of what has been written. */
+  public void seek(long position) {
+    Assertions.checkArgument(position >= 0);
+    this.position = position;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (isClosed) {
+      throw new IOException("Reader closed: " + id);
+    }
+    if (length == 0) {
+      return 0;
+    }
+    checkRewind();
+    if (!writeFrontier.isReadable(position)) {
+      setPrioritized(true);
+    }
+    long endPosition;
+    do {
+      endPosition = writeFrontier.await(position);
+      if (isClosed) {
+        throw new IOException("Reader closed: " + id);
+      }
+    } while (endPosition != C.LENGTH_UNSET && endPosition <= position);
+    checkRewind();
+    RandomAccessFile input = getInput(/* ended= */ endPosition == C.LENGTH_UNSET);
+    if (endPosition != C.LENGTH_UNSET) {
+      length = (int) Math.min(length, endPosition - position);
+    }
+    input.seek(position);
+    int bytesRead = input.read(buffer, offset, length);
+    if (bytesRead == -1) {
+      if (endPosition == C.LENGTH_UNSET) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      throw new IOException("File shorter than the written data: " + id);
+    }
+    position += bytesRead;
+    readEndPosition = Math.max(readEndPosition, position);
+    return bytesRead;
+  }
+
+  /** Closes the reader. May be called from any thread, in which case a blocked read fails. */
+  @Override
+  public void close() throws IOException {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    // A blocked read fails, since the reader is closed.
+    writeFrontier.wakeUp();
+    setPrioritized(false);
+    closeInput();
+  }
+
+  /** Fails if data that has been read is written again. */
+  private void checkRewind() throws IOException {
+    int newRewindCount = writeFrontier.getRewindCount();
+    if (newRewindCount == rewindCount) {
+      return;
+    }
+    if (readEndPosition > writeFrontier.getLowestRewindPosition(rewindCount)) {
+      throw new IOException("Data already read has been written again: " + id);
+    }
+    // The temporary file may have been replaced.
+    rewindCount = newRewindCount;
+    closeInput();
+  }
+
+  private RandomAccessFile getInput(boolean ended) throws IOException {
+    if (input != null) {
+      return input;
+    }
+    // The temporary file is renamed when the download completes. An open file keeps being read
+    // after the rename.
+    File firstFile = ended ? file : tempFile;
+    File secondFile = ended ? tempFile : file;
+    try {
+      input = new RandomAccessFile(firstFile, "r");
+    } catch (FileNotFoundException e) {
+      input = new RandomAccessFile(secondFile, "r");
+    }
+    return input;
+  }
+
+  private synchronized void setPrioritized(boolean prioritized) {
+    if (isPrioritized != prioritized) {
+      isPrioritized = prioritized;
+      prioritizer.setPrioritized(id, prioritized);
+    }
+  }
+
+  private synchronized void closeInput() throws IOException {
+    @Nullable RandomAccessFile input = this.input;
+    this.input = null;
+    if (input != null) {
+      input.close();
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 
 import jm.droid.lib.download.util.Assertions;
 import jm.droid.lib.download.util.DigestUtils;
+import jm.droid.lib.download.util.StreamingDigest;
 import jm.droid.lib.download.util.Util;
 
 import java.io.IOException;
@@ -50,6 +51,13 @@ public final class DownloadRequest implements Parcelable {
     @Nullable private List<StreamKey> streamKeys;
     @Nullable private String path;
     @Nullable private byte[] data;
+    @Nullable private List<Uri> mirrorUris;
+    @Nullable private String digestAlgorithm;
+    @Nullable private String expectedDigest;
+    @Nullable private ChunkManifest chunkManifest;
+    @Nullable private Uri chunkManifestUri;
+    @Nullable private String basePath;
+    @Nullable private Uri deltaManifestUri;
 
     /** Creates a new instance with the specified id and uri. */
     /* package */ Builder(String id, Uri uri) {
@@ -85,6 +93,52 @@ public final class DownloadRequest implements Parcelable {
       return this;
     }
 
+    /** Sets the {@link DownloadRequest#mirrorUris}. */
+    public Builder setMirrorUris(@Nullable List<Uri> mirrorUris) {
+      this.mirrorUris = mirrorUris;
+      return this;
+    }
+
+    /**
+     * Sets the {@link DownloadRequest#digestAlgorithm} and {@link DownloadRequest#expectedDigest}.
+     *
+     * @param algorithm One of the algorithms supported by {@link StreamingDigest}, or null.
+     * @param digest The expected digest as hex, or null if {@code algorithm} is null.
+     * @throws IllegalArgumentException If the algorithm isn't supported, or only one of the
+     *     arguments is null.
+     */
+    public Builder setExpectedDigest(@Nullable String algorithm, @Nullable String digest) {
+      Assertions.checkArgument((algorithm == null) == (digest == null));
+      Assertions.checkArgument(algorithm == null || StreamingDigest.isSupported(algorithm));
+      this.digestAlgorithm = algorithm;
+      this.expectedDigest = digest;
+      return this;
+    }
+
+    /** Sets the {@link DownloadRequest#chunkManifest}. */
+    public Builder setChunkManifest(@Nullable ChunkManifest chunkManifest) {
+      this.chunkManifest = chunkManifest;
+      return this;
+    }
+
+    /** Sets the {@link DownloadRequest#chunkManifestUri}. */
+    public Builder setChunkManifestUri(@Nullable Uri chunkManifestUri) {
+      this.chunkManifestUri = chunkManifestUri;
+      return this;
+    }
+
+    /** Sets the {@link DownloadRequest#basePath}. */
+    public Builder setBasePath(@Nullable String basePath) {
+      this.basePath = basePath;
+      return this;
+    }
+
+    /** Sets the {@link DownloadRequest#deltaManifestUri}. */
+    public Builder setDeltaManifestUri(@Nullable Uri deltaManifestUri) {
+      this.deltaManifestUri = deltaManifestUri;
+      return this;
+    }
+
     public Builder setType(int type) {
         this.type = type;
         return this;
@@ -97,7 +151,14 @@ public final class DownloadRequest implements Parcelable {
           displayName,
           streamKeys != null ? streamKeys : new ArrayList<>(),
           path,
-          data);
+          data,
+          mirrorUris != null ? mirrorUris : new ArrayList<>(),
+          digestAlgorithm,
+          expectedDigest,
+          chunkManifest,
+          chunkManifestUri,
+          basePath,
+          deltaManifestUri);
     }
   }
 
@@ -126,6 +187,42 @@ public final class DownloadRequest implements Parcelable {
   @Nullable public final String path;
   /** Application defined data associated with the download. May be empty. */
   public final byte[] data;
+  /**
+   * Mirrors serving the same content as {@link #uri}, in order of preference. A download fails over
+   * to the next mirror when a source fails, and may read part of the content from a mirror while
+   * reading the rest from {@link #uri}. May be empty.
+   */
+  public final List<Uri> mirrorUris;
+  /**
+   * The algorithm of {@link #expectedDigest}, one of those supported by {@link StreamingDigest}, or
+   * null if the download isn't verified.
+   */
+  @Nullable public final String digestAlgorithm;
+  /**
+   * The expected digest of the downloaded file as hex, or null if the download isn't verified. The
+   * file is hashed as it's written and the download only completes if the digest matches.
+   */
+  @Nullable public final String expectedDigest;
+  /**
+   * The digests of the chunks of the file, or null. Each chunk is verified as it's written, and a
+   * corrupt chunk is downloaded again on its own.
+   */
+  @Nullable public final ChunkManifest chunkManifest;
+  /**
+   * A sidecar URI from which the {@link ChunkManifest} is fetched when the download starts, if
+   * {@link #chunkManifest} is null. May be null.
+   */
+  @Nullable public final Uri chunkManifestUri;
+  /**
+   * The path of a local file with a previous version of the content, or null. If {@link
+   * #deltaManifestUri} is set too, the blocks of the content found in this file are copied from it
+   * and only the rest is downloaded.
+   */
+  @Nullable public final String basePath;
+  /**
+   * The URI of the {@link DeltaManifest} of the content, used with {@link #basePath}. May be null.
+   */
+  @Nullable public final Uri deltaManifestUri;
 
   /**
    * @param id See {@link #id}.
@@ -134,6 +231,13 @@ public final class DownloadRequest implements Parcelable {
    * @param streamKeys See {@link #streamKeys}.
    * @param path See {@link #path}.
    * @param data See {@link #data}.
+   * @param mirrorUris See {@link #mirrorUris}.
+   * @param digestAlgorithm See {@link #digestAlgorithm}.
+   * @param expectedDigest See {@link #expectedDigest}.
+   * @param chunkManifest See {@link #chunkManifest}.
+   * @param chunkManifestUri See {@link #chunkManifestUri}.
+   * @param basePath See {@link #basePath}.
+   * @param deltaManifestUri See {@link #deltaManifestUri}.
    */
   private DownloadRequest(
       @NotNull String id,
@@ -142,7 +246,14 @@ public final class DownloadRequest implements Parcelable {
       @Nullable String displayName,
       List<StreamKey> streamKeys,
       @Nullable String path,
-      @Nullable byte[] data) {
+      @Nullable byte[] data,
+      List<Uri> mirrorUris,
+      @Nullable String digestAlgorithm,
+      @Nullable String expectedDigest,
+      @Nullable ChunkManifest chunkManifest,
+      @Nullable Uri chunkManifestUri,
+      @Nullable String basePath,
+      @Nullable Uri deltaManifestUri) {
     this.id = id;
     this.uri = uri;
     this.type = type;
@@ -152,6 +263,13 @@ public final class DownloadRequest implements Parcelable {
     this.streamKeys = Collections.unmodifiableList(mutableKeys);
     this.path = path;
     this.data = data != null ? Arrays.copyOf(data, data.length) : Util.EMPTY_BYTE_ARRAY;
+    this.mirrorUris = Collections.unmodifiableList(new ArrayList<>(mirrorUris));
+    this.digestAlgorithm = digestAlgorithm;
+    this.expectedDigest = expectedDigest;
+    this.chunkManifest = chunkManifest;
+    this.chunkManifestUri = chunkManifestUri;
+    this.basePath = basePath;
+    this.deltaManifestUri = deltaManifestUri;
   }
 
   /* package */ DownloadRequest(Parcel in) {
@@ -167,10 +285,41 @@ public final class DownloadRequest implements Parcelable {
     streamKeys = Collections.unmodifiableList(mutableStreamKeys);
     path = in.readString();
     data = castNonNull(in.createByteArray());
+    int mirrorUriCount = in.readInt();
+    ArrayList<Uri> mutableMirrorUris = new ArrayList<>(mirrorUriCount);
+    for (int i = 0; i < mirrorUriCount; i++) {
+      mutableMirrorUris.add(Uri.parse(castNonNull(in.readString())));
+    }
+    mirrorUris = Collections.unmodifiableList(mutableMirrorUris);
+    digestAlgorithm = in.readString();
+    expectedDigest = in.readString();
+    @Nullable String encodedChunkManifest = in.readString();
+    try {
+      chunkManifest =
+          encodedChunkManifest == null ? null : ChunkManifest.parse(encodedChunkManifest);
+    } catch (IOException e) {
+      // Only ever written by writeToParcel.
+      throw new IllegalStateException(e);
+    }
+    @Nullable String chunkManifestUriString = in.readString();
+    chunkManifestUri = chunkManifestUriString == null ? null : Uri.parse(chunkManifestUriString);
+    basePath = in.readString();
+    @Nullable String deltaManifestUriString = in.readString();
+    deltaManifestUri = deltaManifestUriString == null ? null : Uri.parse(deltaManifestUriString);
   }
 
   public Builder buildUpon() {
-    return new Builder(id, uri).setData(data).setStreamKeys(streamKeys).setPath(path).setDisplayName(displayName);
+    return new Builder(id, uri)
+        .setData(data)
+        .setStreamKeys(streamKeys)
+        .setPath(path)
+        .setDisplayName(displayName)
+        .setMirrorUris(mirrorUris)
+        .setExpectedDigest(digestAlgorithm, expectedDigest)
+        .setChunkManifest(chunkManifest)
+        .setChunkManifestUri(chunkManifestUri)
+        .setBasePath(basePath)
+        .setDeltaManifestUri(deltaManifestUri);
   }
   /**
    * Returns a copy with the specified ID.
@@ -179,7 +328,21 @@ public final class DownloadRequest implements Parcelable {
    * @return The copy with the specified ID.
    */
   public DownloadRequest copyWithId(String id) {
-    return new DownloadRequest(id, uri, type, displayName, streamKeys, path, data);
+    return new DownloadRequest(
+        id,
+        uri,
+        type,
+        displayName,
+        streamKeys,
+        path,
+        data,
+        mirrorUris,
+        digestAlgorithm,
+        expectedDigest,
+        chunkManifest,
+        chunkManifestUri,
+        basePath,
+        deltaManifestUri);
   }
 
   /**
@@ -215,7 +378,14 @@ public final class DownloadRequest implements Parcelable {
         displayName,
         mergedKeys,
         path,
-        newRequest.data);
+        newRequest.data,
+        newRequest.mirrorUris,
+        newRequest.digestAlgorithm,
+        newRequest.expectedDigest,
+        newRequest.chunkManifest,
+        newRequest.chunkManifestUri,
+        newRequest.basePath,
+        newRequest.deltaManifestUri);
   }
 
 
@@ -235,7 +405,14 @@ public final class DownloadRequest implements Parcelable {
         && Util.areEqual(displayName, that.displayName)
         && streamKeys.equals(that.streamKeys)
         && Util.areEqual(path, that.path)
-        && Arrays.equals(data, that.data);
+        && Arrays.equals(data, that.data)
+        && mirrorUris.equals(that.mirrorUris)
+        && Util.areEqual(digestAlgorithm, that.digestAlgorithm)
+        && Util.areEqual(expectedDigest, that.expectedDigest)
+        && Util.areEqual(chunkManifest, that.chunkManifest)
+        && Util.areEqual(chunkManifestUri, that.chunkManifestUri)
+        && Util.areEqual(basePath, that.basePath)
+        && Util.areEqual(deltaManifestUri, that.deltaManifestUri);
   }
 
   @Override
@@ -247,6 +424,13 @@ public final class DownloadRequest implements Parcelable {
     result = 31 * result + streamKeys.hashCode();
     result = 31 * result + (path != null ? path.hashCode() : 0);
     result = 31 * result + Arrays.hashCode(data);
+    result = 31 * result + mirrorUris.hashCode();
+    result = 31 * result + (digestAlgorithm != null ? digestAlgorithm.hashCode() : 0);
+    result = 31 * result + (expectedDigest != null ? expectedDigest.hashCode() : 0);
+    result = 31 * result + (chunkManifest != null ? chunkManifest.hashCode() : 0);
+    result = 31 * result + (chunkManifestUri != null ? chunkManifestUri.hashCode() : 0);
+    result = 31 * result + (basePath != null ? basePath.hashCode() : 0);
+    result = 31 * result + (deltaManifestUri != null ? deltaManifestUri.hashCode() : 0);
     return result;
   }
 
@@ -269,6 +453,16 @@ public final class DownloadRequest implements Parcelable {
     }
     dest.writeString(path);
     dest.writeByteArray(data);
+    dest.writeInt(mirrorUris.size());
+    for (int i = 0; i < mirrorUris.size(); i++) {
+      dest.writeString(mirrorUris.get(i).toString());
+    }
+    dest.writeString(digestAlgorithm);
+    dest.writeString(expectedDigest);
+    dest.writeString(chunkManifest != null ? chunkManifest.encode() : null);
+    dest.writeString(chunkManifestUri != null ? chunkManifestUri.toString() : null);
+    dest.writeString(basePath);
+    dest.writeString(deltaManifestUri != null ? deltaManifestUri.toString() : null);
   }
 
   public static final Creator<DownloadRequest> CREATOR =
@@ -0,0 +1,232 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the files of completed downloads within a byte quota, by evicting the least recently
+ * accessed completed downloads.
+ *
+ * <p>The bytes on disk of a completed download are the bytes written to its file, see {@link
+ * Download#getBytesDecoded()}, and its access time is {@link Download#getLastAccessTimeMs()}.
+ * Evicted downloads have their files deleted and are removed from the {@link
+ * WritableDownloadIndex} in a single transaction.
+ *
+ * <p>Files shared with other downloads or a {@link ContentStore} through hard links are counted for
+ * each download that links them.
+ *
+ * <p>The sizes and access order of the completed downloads are read from the index once, and then
+ * kept in memory. Changes made to the index afterwards have to be reported through {@link
+ * #onDownloadChanged}, {@link #onDownloadRemoved}, {@link #onDownloadAccessed} or {@link
+ * #invalidate}.
+ */
+@WorkerThread
+public final class DownloadStorageManager {
+
+  private static final String TAG = "DownloadStorageManager";
+
+  private final WritableDownloadIndex downloadIndex;
+  @Nullable private final StorageJanitor storageJanitor;
+
+  private long quotaBytes;
+  // The bytes on disk of the completed downloads by ID, least recently accessed first, or null if
+  // they haven't been read from the index yet.
+  @Nullable private LinkedHashMap<String, Long> completedBytes;
+  private long bytesOnDisk;
+
+  /**
+   * Creates an instance without a quota.
+   *
+   * @param downloadIndex The index of the downloads.
+   */
+  public DownloadStorageManager(WritableDownloadIndex downloadIndex) {
+    this(downloadIndex, /* storageJanitor= */ null);
+  }
+
+  /**
+   * Creates an instance without a quota that deletes the files of evicted downloads with {@code
+   * storageJanitor}, or on the calling thread if it's null.
+   */
+  /* package */ DownloadStorageManager(
+      WritableDownloadIndex downloadIndex, @Nullable StorageJanitor storageJanitor) {
+    this.downloadIndex = downloadIndex;
+    this.storageJanitor = storageJanitor;
+    quotaBytes = C.LENGTH_UNSET;
+  }
+
+  /**
+   * Sets the maximum number of bytes the files of completed downloads may take.
+   *
+   * @param quotaBytes The quota in bytes, or {@link C#LENGTH_UNSET} for no quota.
+   */
+  public void setQuotaBytes(long quotaBytes) {
+    this.quotaBytes = quotaBytes;
+  }
+
+  /** Returns the quota in bytes, or {@link C#LENGTH_UNSET} if there's no quota. */
+  public long getQuotaBytes() {
+    return quotaBytes;
+  }
+
+  /**
+   * Returns the number of bytes that the files of completed downloads take.
+   *
+   * @throws IOException If an error occurs reading the index.
+   */
+  public long getBytesOnDisk() throws IOException {
+    loadCompletedBytes();
+    return bytesOnDisk;
+  }
+
+  /** Called after {@code download} was written to the index. */
+  public void onDownloadChanged(Download download) {
+    @Nullable LinkedHashMap<String, Long> completedBytes = this.completedBytes;
+    if (completedBytes == null) {
+      return;
+    }
+    removeCompletedBytes(download.request.id);
+    if (download.state == Download.STATE_COMPLETED) {
+      // The download has just been updated, so it's the most recently accessed.
+      completedBytes.put(download.request.id, download.getBytesDecoded());
+      bytesOnDisk += download.getBytesDecoded();
+    }
+  }
+
+  /** Called after the download with the given ID was removed from the index. */
+  public void onDownloadRemoved(String id) {
+    removeCompletedBytes(id);
+  }
+
+  /** Called after the download with the given ID was marked as accessed now in the index. */
+  public void onDownloadAccessed(String id) {
+    @Nullable LinkedHashMap<String, Long> completedBytes = this.completedBytes;
+    @Nullable Long bytes = completedBytes == null ? null : completedBytes.remove(id);
+    if (bytes != null) {
+      completedBytes.put(id, bytes);
+    }
+  }
+
+  /** Called after downloads were changed in the index in bulk, so that it's read again. */
+  public void invalidate() {
+    completedBytes = null;
+    bytesOnDisk = 0;
+  }
+
+  /**
+   * Evicts the least recently accessed completed downloads until {@code bytesToAdmit} more bytes fit
+   * in the quota, or there's nothing left to evict. Does nothing if there's no quota.
+   *
+   * @param bytesToAdmit The number of bytes about to be written, or 0 to only bring the completed
+   *     downloads within the quota.
+   * @param retainedIds The IDs of completed downloads that mustn't be evicted.
+   * @return The evicted downloads, which have been removed from the index.
+   * @throws IOException If an error occurs reading or updating the index.
+   */
+  public List<Download> evict(long bytesToAdmit, Set<String> retainedIds) throws IOException {
+    if (quotaBytes == C.LENGTH_UNSET) {
+      return Collections.emptyList();
+    }
+    LinkedHashMap<String, Long> completedBytes = loadCompletedBytes();
+    long bytesToFree = bytesOnDisk + Math.max(0, bytesToAdmit) - quotaBytes;
+    if (bytesToFree <= 0) {
+      return Collections.emptyList();
+    }
+    List<Download> evicted = new ArrayList<>();
+    List<String> evictedIds = new ArrayList<>();
+    List<String> removedIds = new ArrayList<>();
+    Iterator<Map.Entry<String, Long>> iterator = completedBytes.entrySet().iterator();
+    while (iterator.hasNext() && bytesToFree > 0) {
+      String id = iterator.next().getKey();
+      if (retainedIds.contains(id)) {
+        continue;
+      }
+      @Nullable Download download = downloadIndex.getDownload(id);
+      if (download != null && download.state == Download.STATE_COMPLETED) {
+        evicted.add(download);
+        evictedIds.add(id);
+        bytesToFree -= download.getBytesDecoded();
+      }
+      removedIds.add(id);
+    }
+    for (int i = 0; i < removedIds.size(); i++) {
+      removeCompletedBytes(removedIds.get(i));
+    }
+    // Remove the rows first, so that a failure leaves orphaned files rather than rows without files.
+    downloadIndex.removeDownloads(evictedIds);
+    deleteFiles(evicted);
+    Log.i(
+        TAG,
+        "evicted "
+            + evicted.size()
+            + " downloads, "
+            + (bytesToFree > 0 ? bytesToFree + " bytes over quota" : "within quota"));
+    return evicted;
+  }
+
+  private LinkedHashMap<String, Long> loadCompletedBytes() throws IOException {
+    @Nullable LinkedHashMap<String, Long> completedBytes = this.completedBytes;
+    if (completedBytes != null) {
+      return completedBytes;
+    }
+    List<Download> downloads = new ArrayList<>();
+    try (DownloadCursor cursor = downloadIndex.getDownloads(Download.STATE_COMPLETED)) {
+      while (cursor.moveToNext()) {
+        downloads.add(cursor.getDownload());
+      }
+    }
+    Collections.sort(
+        downloads,
+        (first, second) -> Long.compare(first.getLastAccessTimeMs(), second.getLastAccessTimeMs()));
+    completedBytes = new LinkedHashMap<>();
+    bytesOnDisk = 0;
+    for (int i = 0; i < downloads.size(); i++) {
+      Download download = downloads.get(i);
+      completedBytes.put(download.request.id, download.getBytesDecoded());
+      bytesOnDisk += download.getBytesDecoded();
+    }
+    this.completedBytes = completedBytes;
+    return completedBytes;
+  }
+
+  private void removeCompletedBytes(String id) {
+    @Nullable LinkedHashMap<String, Long> completedBytes = this.completedBytes;
+    @Nullable Long bytes = completedBytes == null ? null : completedBytes.remove(id);
+    if (bytes != null) {
+      bytesOnDisk -= bytes;
+    }
+  }
+
+  private void deleteFiles(List<Download> downloads) {
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < downloads.size(); i++) {
+      @Nullable String path = downloads.get(i).request.path;
+      if (path != null) {
+        paths.add(path);
+      }
+    }
+    if (storageJanitor != null) {
+      storageJanitor.deleteFiles(paths);
+      return;
+    }
+    for (int i = 0; i < paths.size(); i++) {
+      // The path of an extracted archive is a directory.
+      Util.recursiveDelete(new File(paths.get(i)));
+      Util.recursiveDelete(FileDataDestination.getTempFile(paths.get(i)));
+    }
+  }
+}
@@ -18,6 +18,7 @@ package jm.droid.lib.download.offline;
 import androidx.annotation.Nullable;
 
 import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.WriteFrontier;
 
 import java.io.IOException;
 import java.util.concurrent.CancellationException;
@@ -78,7 +79,19 @@ public interface Downloader {
   void remove();
 
   /**
-   * 下载成功
+   * 下载成功，将下载的内容移动到最终的位置
+   *
+   * @throws IOException If the content can't be moved into place, in which case the download
+   *     isn't complete.
+   */
+  void success() throws IOException;
+
+  /**
+   * Sets the {@link WriteFrontier} to advance while the content is written, so that it can be read
+   * while it's downloaded. Downloaders that don't support it leave it unchanged, and readers wait
+   * for the download to complete.
+   *
+   * @param writeFrontier The {@link WriteFrontier} of the download.
    */
-  void success();
+  default void setWriteFrontier(WriteFrontier writeFrontier) {}
 }
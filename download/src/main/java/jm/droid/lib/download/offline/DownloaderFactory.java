@@ -15,6 +15,8 @@
  */
 package jm.droid.lib.download.offline;
 
+import androidx.annotation.Nullable;
+
 /** Creates {@link Downloader Downloaders} for given {@link DownloadRequest DownloadRequests}. */
 public interface DownloaderFactory {
 
@@ -25,4 +27,38 @@ public interface DownloaderFactory {
    * @return The downloader.
    */
   Downloader createDownloader(Download download);
+
+  /**
+   * Creates a {@link MetadataFetcher} that the {@link DownloadManager} uses to look up the metadata
+   * of queued downloads before they start.
+   *
+   * @return The fetcher, or null if metadata shouldn't be prefetched.
+   */
+  @Nullable
+  default MetadataFetcher createMetadataFetcher() {
+    return null;
+  }
+
+  /**
+   * Returns the {@link ContentStore} that the created downloaders share content through. The
+   * {@link DownloadManager} holds back downloads of content that is already being downloaded, so
+   * that they are linked from the store once it completes.
+   *
+   * @return The store, or null if content isn't shared between downloads.
+   */
+  @Nullable
+  default ContentStore getContentStore() {
+    return null;
+  }
+
+  /**
+   * Returns whether the created downloaders write the downloaded content unchanged to a single file
+   * at {@link DownloadRequest#path}. Only then does the {@link DownloadManager} let downloads of the
+   * same content follow one transfer and link or copy its file, instead of downloading it again.
+   *
+   * @return Whether the output of a download is a plain file.
+   */
+  default boolean writesPlainFiles() {
+    return false;
+  }
 }
@@ -0,0 +1,217 @@
+package jm.droid.lib.download.offline;
+
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.HttpDataSource.CleartextNotPermittedException;
+import jm.droid.lib.download.upstream.HttpDataSource.HttpDataSourceException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidContentTypeException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidResponseCodeException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-host circuit breaker used by the {@link DownloadManager} when scheduling downloads.
+ *
+ * <p>A host's circuit opens after {@link #failureThreshold} consecutive failures. While open, no
+ * new downloads are started for the host. Once {@link #getNextProbeTimeMs(long, Set) the open period} has
+ * elapsed the circuit becomes half-open and exactly one download is allowed through as a probe. If
+ * the probe receives data the circuit closes, otherwise it opens again for twice as long, up to
+ * {@link #maxOpenDurationMs}.
+ *
+ * <p>Must only be accessed from the download manager's internal thread.
+ */
+/* package */ final class HostCircuitBreaker {
+
+  /** The default number of consecutive failures after which a host's circuit opens. */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  /** The default duration for which a circuit stays open the first time, in milliseconds. */
+  public static final long DEFAULT_OPEN_DURATION_MS = 30_000;
+  /** The default maximum duration for which a circuit stays open, in milliseconds. */
+  public static final long DEFAULT_MAX_OPEN_DURATION_MS = 10 * 60_000;
+
+  private static final int STATE_CLOSED = 0;
+  private static final int STATE_OPEN = 1;
+  private static final int STATE_HALF_OPEN = 2;
+
+  private static final int HTTP_STATUS_REQUEST_TIMEOUT = 408;
+  private static final int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
+
+  private final int failureThreshold;
+  private final long openDurationMs;
+  private final long maxOpenDurationMs;
+  private final HashMap<String, HostState> hostStates;
+
+  public HostCircuitBreaker() {
+    this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS, DEFAULT_MAX_OPEN_DURATION_MS);
+  }
+
+  public HostCircuitBreaker(int failureThreshold, long openDurationMs, long maxOpenDurationMs) {
+    this.failureThreshold = failureThreshold;
+    this.openDurationMs = openDurationMs;
+    this.maxOpenDurationMs = maxOpenDurationMs;
+    hostStates = new HashMap<>();
+  }
+
+  /**
+   * Returns whether {@code error} means that the host is unhealthy, in which case it's reported
+   * through {@link #onFailure}. Connection failures, timeouts, DNS failures and HTTP 5xx, 408 and
+   * 429 responses do. Other HTTP responses, such as 404, and local errors, such as a digest mismatch
+   * or a failed write, don't, since the host served them correctly.
+   */
+  public static boolean isHostFailure(IOException error) {
+    @Nullable Throwable cause = error;
+    while (cause != null) {
+      if (cause instanceof InvalidResponseCodeException) {
+        int responseCode = ((InvalidResponseCodeException) cause).responseCode;
+        return responseCode >= 500
+            || responseCode == HTTP_STATUS_REQUEST_TIMEOUT
+            || responseCode == HTTP_STATUS_TOO_MANY_REQUESTS;
+      } else if (cause instanceof InvalidContentTypeException
+          || cause instanceof CleartextNotPermittedException) {
+        return false;
+      } else if (cause instanceof HttpDataSourceException
+          || cause instanceof SocketTimeoutException
+          || cause instanceof UnknownHostException
+          || cause instanceof ConnectException) {
+        return true;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether a download for {@code host} may be started now. If the host's circuit is due
+   * to be probed, the caller is expected to start the download, which becomes the probe.
+   *
+   * @param host The host, or {@code null} if the download isn't addressed by host.
+   * @param nowMs The current {@link android.os.SystemClock#elapsedRealtime()}.
+   */
+  public boolean allowRequest(@Nullable String host, long nowMs) {
+    @Nullable HostState hostState = host == null ? null : hostStates.get(host);
+    if (hostState == null || hostState.state == STATE_CLOSED) {
+      return true;
+    }
+    if (hostState.state == STATE_OPEN && nowMs >= hostState.openUntilMs) {
+      hostState.state = STATE_HALF_OPEN;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the circuit for {@code host} is open, meaning that downloads for it should not
+   * be running.
+   */
+  public boolean isOpen(@Nullable String host) {
+    @Nullable HostState hostState = host == null ? null : hostStates.get(host);
+    return hostState != null && hostState.state == STATE_OPEN;
+  }
+
+  /**
+   * Called when a download for {@code host} received data. Closes the host's circuit.
+   *
+   * @return Whether the circuit was open or half-open, meaning held back downloads may now start.
+   */
+  public boolean onSuccess(@Nullable String host) {
+    @Nullable HostState hostState = host == null ? null : hostStates.remove(host);
+    return hostState != null && hostState.state != STATE_CLOSED;
+  }
+
+  /**
+   * Called when a download attempt for {@code host} failed with an error for which {@link
+   * #isHostFailure} returns true.
+   *
+   * @return Whether the host's circuit was opened as a result.
+   */
+  public boolean onFailure(@Nullable String host, long nowMs) {
+    if (host == null) {
+      return false;
+    }
+    @Nullable HostState hostState = hostStates.get(host);
+    if (hostState == null) {
+      hostState = new HostState();
+      hostStates.put(host, hostState);
+    }
+    switch (hostState.state) {
+      case STATE_HALF_OPEN:
+        // The probe failed, back off for longer.
+        hostState.currentOpenDurationMs = min(hostState.currentOpenDurationMs * 2, maxOpenDurationMs);
+        open(hostState, nowMs);
+        return true;
+      case STATE_OPEN:
+        return false;
+      case STATE_CLOSED:
+      default:
+        if (++hostState.consecutiveFailures < failureThreshold) {
+          return false;
+        }
+        hostState.currentOpenDurationMs = openDurationMs;
+        open(hostState, nowMs);
+        return true;
+    }
+  }
+
+  /**
+   * Called when a download for {@code host} was canceled before its outcome was known, or stopped
+   * for a reason that says nothing about the host. If it was the probe of a half-open circuit,
+   * another download may probe the host instead.
+   */
+  public void onCanceled(@Nullable String host) {
+    @Nullable HostState hostState = host == null ? null : hostStates.get(host);
+    if (hostState != null && hostState.state == STATE_HALF_OPEN) {
+      // The open period has already elapsed, so the next download for the host is the probe.
+      hostState.state = STATE_OPEN;
+    }
+  }
+
+  /**
+   * Forgets the hosts other than {@code hosts}, once nothing is queued or running for them. Their
+   * circuits are closed if downloads for them are added again.
+   */
+  public void retainHosts(Set<String> hosts) {
+    hostStates.keySet().retainAll(hosts);
+  }
+
+  /**
+   * Returns the earliest {@link android.os.SystemClock#elapsedRealtime()} after {@code nowMs} at
+   * which the open circuit of one of {@code hosts} may be probed, or {@link C#TIME_UNSET} if none is
+   * waiting to be probed. Circuits that may be probed already aren't included, since their probe
+   * starts when a download for the host is synced.
+   */
+  public long getNextProbeTimeMs(long nowMs, Set<String> hosts) {
+    long nextProbeTimeMs = C.TIME_UNSET;
+    for (Map.Entry<String, HostState> entry : hostStates.entrySet()) {
+      HostState hostState = entry.getValue();
+      if (hostState.state == STATE_OPEN
+          && hostState.openUntilMs > nowMs
+          && hosts.contains(entry.getKey())
+          && (nextProbeTimeMs == C.TIME_UNSET || hostState.openUntilMs < nextProbeTimeMs)) {
+        nextProbeTimeMs = hostState.openUntilMs;
+      }
+    }
+    return nextProbeTimeMs;
+  }
+
+  private static void open(HostState hostState, long nowMs) {
+    hostState.state = STATE_OPEN;
+    hostState.consecutiveFailures = 0;
+    hostState.openUntilMs = nowMs + hostState.currentOpenDurationMs;
+  }
+
+  private static final class HostState {
+    private int state;
+    private int consecutiveFailures;
+    private long currentOpenDurationMs;
+    private long openUntilMs;
+  }
+}
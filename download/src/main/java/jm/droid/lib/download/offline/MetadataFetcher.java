@@ -0,0 +1,124 @@
+package jm.droid.lib.download.offline;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.DataSource;
+import jm.droid.lib.download.upstream.DataSourceUtil;
+import jm.droid.lib.download.upstream.DataSpec;
+import jm.droid.lib.download.upstream.DefaultDataSource;
+import jm.droid.lib.download.upstream.HttpDataSource;
+import jm.droid.lib.download.upstream.HttpHeaders;
+import jm.droid.lib.download.upstream.HttpUtil;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the metadata of a queued download before its transfer starts, so that its size is known
+ * while it waits and resuming it can be validated.
+ *
+ * <p>The probe is a one byte range request ({@code Range: bytes=0-0}) rather than a {@code HEAD}
+ * request. A server that supports ranges answers it with the full size in {@code Content-Range}, and
+ * the probe walks the same redirect chain and opens the same kind of connection as the transfer
+ * will, so both are warm when it starts.
+ */
+public class MetadataFetcher {
+
+  /** The metadata of a download. */
+  public static final class Metadata {
+
+    /** The length of the content, or {@link C#LENGTH_UNSET} if unknown. */
+    public final long contentLength;
+    /** Whether the server supports range requests. */
+    public final @Download.RangeSupport int rangeSupport;
+    /** The {@code ETag} of the content, or null if unknown. */
+    @Nullable public final String etag;
+    /** The {@code Last-Modified} date of the content, or null if unknown. */
+    @Nullable public final String lastModified;
+
+    public Metadata(
+        long contentLength,
+        @Download.RangeSupport int rangeSupport,
+        @Nullable String etag,
+        @Nullable String lastModified) {
+      this.contentLength = contentLength;
+      this.rangeSupport = rangeSupport;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final DataSource.Factory dataSourceFactory;
+
+  /**
+   * Creates an instance.
+   *
+   * @param dataSourceFactory A {@link DataSource.Factory} for the sources to probe. Should be the
+   *     factory used for the transfers, so that they share its connections and redirect cache.
+   */
+  public MetadataFetcher(DataSource.Factory dataSourceFactory) {
+    this.dataSourceFactory = dataSourceFactory;
+  }
+
+  /**
+   * Fetches the metadata of a download.
+   *
+   * @param request The {@link DownloadRequest} of the download.
+   * @return The metadata, or null if the request can't be probed, for example because it isn't an
+   *     HTTP request or because it has a body that mustn't be sent twice.
+   * @throws IOException If the probe failed.
+   */
+  @Nullable
+  @WorkerThread
+  public Metadata fetch(DownloadRequest request) throws IOException {
+    if (request.data.length > 0) {
+      return null;
+    }
+    DataSource dataSource = dataSourceFactory.createDataSource();
+    if (!(dataSource instanceof HttpDataSource)
+        && !(dataSource instanceof DefaultDataSource && !DefaultDataSource.isLocalUri(request.uri))) {
+      return null;
+    }
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri(request.uri)
+            .setPath(request.path)
+            .setPosition(0)
+            .setLength(1)
+            .build();
+    try {
+      dataSource.open(dataSpec);
+      @Nullable HttpDataSource httpDataSource = DefaultDataSource.getHttpDataSource(dataSource);
+      if (httpDataSource == null) {
+        return null;
+      }
+      Map<String, List<String>> headers = httpDataSource.getResponseHeaders();
+      long contentLength;
+      @Download.RangeSupport int rangeSupport;
+      if (httpDataSource.getResponseCode() == 206) {
+        contentLength =
+            HttpUtil.getDocumentSize(HttpUtil.getHeaderValue(headers, HttpHeaders.CONTENT_RANGE));
+        rangeSupport = Download.RANGE_SUPPORT_YES;
+        // Read the requested byte, so that the connection can be reused.
+        byte[] buffer = new byte[1];
+        while (httpDataSource.read(buffer, 0, 1) != C.RESULT_END_OF_INPUT) {}
+      } else {
+        contentLength =
+            HttpUtil.getContentLength(
+                HttpUtil.getHeaderValue(headers, HttpHeaders.CONTENT_LENGTH),
+                /* contentRangeHeader= */ null);
+        rangeSupport = Download.RANGE_SUPPORT_NO;
+      }
+      return new Metadata(
+          contentLength,
+          rangeSupport,
+          HttpUtil.getHeaderValue(headers, HttpHeaders.ETAG),
+          HttpUtil.getHeaderValue(headers, HttpHeaders.LAST_MODIFIED));
+    } finally {
+      DataSourceUtil.closeQuietly(dataSource);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package jm.droid.lib.download.offline;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.util.Assertions;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-origin {@link Download.RangeSupport} used by the {@link DownloadManager}, so that a new
+ * download from an origin that is known not to support range requests restarts instead of skipping
+ * the data it already has, and doesn't read segments from mirrors, before its own first response.
+ *
+ * <p>The range support of each download is persisted in the download index, and the manager learns
+ * the origins from the downloads it loads from the index, from fetched metadata and from the tasks
+ * that stop. A download's own range support always takes precedence. Origins are evicted least
+ * recently used first once {@link #maxEntries} is reached.
+ *
+ * <p>Must only be accessed from the download manager's internal thread.
+ */
+/* package */ final class OriginRangeSupport {
+
+  /** The default maximum number of origins. */
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+
+  private final int maxEntries;
+  private final LinkedHashMap<String, Integer> rangeSupports;
+
+  public OriginRangeSupport() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public OriginRangeSupport(int maxEntries) {
+    Assertions.checkArgument(maxEntries > 0);
+    this.maxEntries = maxEntries;
+    rangeSupports =
+        new LinkedHashMap<String, Integer>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > OriginRangeSupport.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Returns the origin of {@code uri} in the form {@code scheme://host[:port]}, or null if it
+   * doesn't have one.
+   */
+  @Nullable
+  public static String getOrigin(Uri uri) {
+    @Nullable String scheme = uri.getScheme();
+    @Nullable String authority = uri.getEncodedAuthority();
+    if (scheme == null || authority == null) {
+      return null;
+    }
+    return scheme.toLowerCase(Locale.US) + "://" + authority.toLowerCase(Locale.US);
+  }
+
+  /**
+   * Records the range support of {@code origin}. Does nothing if {@code origin} is null or {@code
+   * rangeSupport} is {@link Download#RANGE_SUPPORT_UNKNOWN}.
+   */
+  public void put(@Nullable String origin, @Download.RangeSupport int rangeSupport) {
+    if (origin == null || rangeSupport == Download.RANGE_SUPPORT_UNKNOWN) {
+      return;
+    }
+    rangeSupports.put(origin, rangeSupport);
+  }
+
+  /**
+   * Returns the range support of {@code origin}, or {@link Download#RANGE_SUPPORT_UNKNOWN} if it
+   * isn't known.
+   */
+  public @Download.RangeSupport int get(@Nullable String origin) {
+    @Nullable Integer rangeSupport = origin == null ? null : rangeSupports.get(origin);
+    return rangeSupport == null ? Download.RANGE_SUPPORT_UNKNOWN : rangeSupport;
+  }
+}
@@ -22,6 +22,9 @@ import androidx.annotation.Nullable;
 import jm.droid.lib.download.C;
 import jm.droid.lib.download.upstream.DataDestination;
 import jm.droid.lib.download.upstream.DataSource;
+import jm.droid.lib.download.upstream.MirrorPolicy;
+import jm.droid.lib.download.upstream.ProgressAggregator;
+import jm.droid.lib.download.upstream.WriteFrontier;
 import jm.droid.lib.download.util.Assertions;
 import jm.droid.lib.download.util.Log;
 import jm.droid.lib.download.util.PriorityTaskManager.PriorityTooLowException;
@@ -59,9 +62,60 @@ public final class ProgressiveDownloader implements Downloader {
                                  DataDestination.Factory dataDestinationFactory,
                                  Executor executor,
                                  Download download) {
+        this(dataSourceFactory, dataDestinationFactory, executor, download, new ProgressAggregator());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param progressAggregator A {@link ProgressAggregator} that decides how often progress is
+     *                           reported while the content is being read.
+     */
+    public ProgressiveDownloader(DataSource.Factory dataSourceFactory,
+                                 DataDestination.Factory dataDestinationFactory,
+                                 Executor executor,
+                                 Download download,
+                                 ProgressAggregator progressAggregator) {
+        this(dataSourceFactory, dataDestinationFactory, executor, download, progressAggregator, MirrorPolicy.DEFAULT);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param mirrorPolicy A {@link MirrorPolicy} that decides how the {@link
+     *                     DownloadRequest#mirrorUris} of the download are used. Parts read from a
+     *                     mirror in parallel are executed by {@code executor}.
+     */
+    public ProgressiveDownloader(DataSource.Factory dataSourceFactory,
+                                 DataDestination.Factory dataDestinationFactory,
+                                 Executor executor,
+                                 Download download,
+                                 ProgressAggregator progressAggregator,
+                                 MirrorPolicy mirrorPolicy) {
         this.executor = Assertions.checkNotNull(executor);
         DataAdhesives.ProgressListener progressListener = this::onProgress;
-        dataAdhesives = new DataAdhesives(progressListener, download, dataSourceFactory.createDataSource(), dataDestinationFactory.createDataDestination());
+        dataAdhesives = new DataAdhesives(progressListener, new DownloadStateWriter(download), download, dataSourceFactory, dataDestinationFactory, executor, progressAggregator, mirrorPolicy);
+    }
+
+    /**
+     * Sets whether the content may be transferred {@code gzip} encoded and decoded while it's
+     * written. See {@link DataAdhesives#setAcceptContentEncoding(boolean)}.
+     */
+    public void setAcceptContentEncoding(boolean acceptContentEncoding) {
+        dataAdhesives.setAcceptContentEncoding(acceptContentEncoding);
+    }
+
+    /**
+     * Sets the {@link ContentStore} from which content with the expected digest of the download is
+     * linked instead of downloaded. See {@link DataAdhesives#setContentStore(ContentStore)}.
+     */
+    public void setContentStore(@Nullable ContentStore contentStore) {
+        dataAdhesives.setContentStore(contentStore);
+    }
+
+    @Override
+    public void setWriteFrontier(WriteFrontier writeFrontier) {
+        dataAdhesives.setWriteFrontier(writeFrontier);
     }
 
     @Override
@@ -123,7 +177,7 @@ public final class ProgressiveDownloader implements Downloader {
     }
 
     @Override
-    public void success() {
+    public void success() throws IOException {
         dataAdhesives.onSuccess();
     }
 
@@ -137,4 +191,41 @@ public final class ProgressiveDownloader implements Downloader {
                 : ((bytesCached * 100f) / contentLength);
         progressListener.onProgress(contentLength, bytesCached, percentDownloaded, newBytesCached);
     }
+
+    /**
+     * 把传输状态写入{@link Download}，这些setter只对本包可见，避免外部修改与下载管理器持久化的进度
+     */
+    private static final class DownloadStateWriter implements DataAdhesives.StateListener {
+
+        private final Download download;
+
+        public DownloadStateWriter(Download download) {
+            this.download = download;
+        }
+
+        @Override
+        public void onRangeSupport(@Download.RangeSupport int rangeSupport) {
+            download.setRangeSupport(rangeSupport);
+        }
+
+        @Override
+        public void onValidators(@Nullable String etag, @Nullable String lastModified) {
+            download.setValidators(etag, lastModified);
+        }
+
+        @Override
+        public void onContentEncoding(@Nullable String contentEncoding) {
+            download.setContentEncoding(contentEncoding);
+        }
+
+        @Override
+        public void onDecodeProgress(long bytesDecoded, long checkpointPosition, long checkpointBytesDecoded) {
+            download.setDecodeProgress(bytesDecoded, checkpointPosition, checkpointBytesDecoded);
+        }
+
+        @Override
+        public void onDigestState(@Nullable byte[] digestState) {
+            download.setDigestState(digestState);
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package jm.droid.lib.download.offline;
+
+import jm.droid.lib.download.C;
+
+import java.io.IOException;
+
+/**
+ * Decides whether, and after how long, a download that failed with an {@link IOException} is
+ * retried by the {@link DownloadManager}.
+ */
+public interface RetryPolicy {
+
+  /**
+   * Returns the number of milliseconds to wait before the download is retried, or {@link
+   * C#TIME_UNSET} if the error is not recoverable and the download should fail immediately.
+   *
+   * <p>Called on the {@link DownloadManager}'s internal thread once an attempt has stopped. The
+   * download is re-queued and gives up its download slot until the returned delay has elapsed.
+   *
+   * @param error The error that caused the attempt to fail.
+   * @param errorCount The number of consecutive failed attempts without any progress being made,
+   *     including this one. Always greater than 0.
+   * @return The retry delay in milliseconds, or {@link C#TIME_UNSET}.
+   */
+  long getRetryDelayMsFor(IOException error, int errorCount);
+}
@@ -0,0 +1,418 @@
+package jm.droid.lib.download.offline;
+
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import jm.droid.lib.download.upstream.FileDataDestination;
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does the file system work of the {@link DownloadManager} on a background thread, so that the
+ * internal thread never waits for storage.
+ *
+ * <p>Work is batched. The files of removed downloads are deleted in batches, and the directories of
+ * completed downloads are synced once per batch, which makes the renames that completed them
+ * durable. Deletes that fail are retried by a batch that runs after {@link
+ * #DELETE_RETRY_DELAY_MS}, or with an earlier batch, up to {@link #MAX_DELETE_ATTEMPTS} times. A download that is added again to the same path {@link
+ * #claimPath claims} it, which drops its pending deletes.
+ *
+ * <p>The pending deletes are journaled in a file of the app, so that the deletes of a process that
+ * died before they ran are done at the next startup. Only journaled paths are deleted without a
+ * download, never files that merely look like the library's, since the download directories can
+ * be shared with the app.
+ *
+ * <p>At startup, {@link #reconcile(DownloadIndex, Listener)} checks the files against the index.
+ */
+/* package */ final class StorageJanitor {
+
+  /** Receives the results of {@link #reconcile}. Called on the janitor thread. */
+  public interface Listener {
+
+    /**
+     * Called with the IDs of completed downloads whose file is gone, which should be marked failed.
+     */
+    void onCompletedFilesMissing(List<String> ids);
+  }
+
+  private static final String TAG = "StorageJanitor";
+  private static final int MAX_DELETE_ATTEMPTS = 3;
+  private static final long DELETE_RETRY_DELAY_MS = 10_000;
+  private static final String JOURNAL_FILE_NAME = "download_pending_deletes";
+
+  private final ScheduledExecutorService executor;
+  private final Object lock;
+  // Paths to delete, with the number of attempts so far.
+  private final LinkedHashMap<String, Integer> pendingDeletes;
+  private final LinkedHashSet<File> pendingSyncs;
+  @Nullable private final File journalFile;
+  // Journaled paths of a previous process, which are deleted by reconcile unless a download owns
+  // them.
+  private final HashSet<String> journaledPaths;
+
+  private boolean isBatchScheduled;
+  private boolean isRetryBatchScheduled;
+  private boolean released;
+  // The path whose files are being deleted, which can't be claimed until the delete is done.
+  @Nullable private String deletingPath;
+
+  /**
+   * Creates an instance.
+   *
+   * @param journalDirectory A private directory of the app for the journal of pending deletes, or
+   *     null if pending deletes are lost when the process dies.
+   */
+  public StorageJanitor(@Nullable File journalDirectory) {
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable ->
+                new Thread(
+                    () -> {
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      runnable.run();
+                    },
+                    "download-janitor"));
+    lock = new Object();
+    pendingDeletes = new LinkedHashMap<>();
+    pendingSyncs = new LinkedHashSet<>();
+    journalFile = journalDirectory == null ? null : new File(journalDirectory, JOURNAL_FILE_NAME);
+    journaledPaths = new HashSet<>();
+    // Read before any batch rewrites the journal.
+    executor.execute(this::readJournal);
+  }
+
+  /** Deletes the files of downloads to {@code paths}, including the temporary files. */
+  public void deleteFiles(List<String> paths) {
+    synchronized (lock) {
+      for (int i = 0; i < paths.size(); i++) {
+        pendingDeletes.put(paths.get(i), 0);
+      }
+      scheduleBatch();
+    }
+  }
+
+  /**
+   * Drops the pending deletes of the files of the download to {@code path}, because a download is
+   * added to it again. If the files are being deleted, waits until they are, so that the new files
+   * aren't deleted.
+   */
+  public void claimPath(String path) {
+    synchronized (lock) {
+      boolean wasInterrupted = false;
+      while (path.equals(deletingPath)) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          wasInterrupted = true;
+        }
+      }
+      if (wasInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+      pendingDeletes.remove(path);
+      journaledPaths.remove(path);
+    }
+  }
+
+  /** Syncs the directory of the download to {@code path}, after it has been renamed into place. */
+  public void syncDirectory(String path) {
+    @Nullable File directory = new File(path).getAbsoluteFile().getParentFile();
+    if (directory == null) {
+      return;
+    }
+    synchronized (lock) {
+      pendingSyncs.add(directory);
+      scheduleBatch();
+    }
+  }
+
+  /**
+   * Checks the files of the downloads in {@code downloadIndex}, in the background:
+   *
+   * <ul>
+   *   <li>A completed download whose file is missing but whose temporary file exists was
+   *       interrupted while it was renamed, and the rename is done again.
+   *   <li>A completed download without either file is reported to {@code listener}.
+   *   <li>A temporary file left next to the file of a completed download is deleted.
+   *   <li>The files of paths whose delete was journaled by a previous process are deleted, unless a
+   *       download owns them again.
+   * </ul>
+   */
+  public void reconcile(DownloadIndex downloadIndex, Listener listener) {
+    executor.execute(() -> reconcileInternal(downloadIndex, listener));
+  }
+
+  /** Runs the pending work and stops the background thread. */
+  public void release() {
+    synchronized (lock) {
+      released = true;
+    }
+    executor.shutdown();
+  }
+
+  private void scheduleBatch() {
+    if (!isBatchScheduled) {
+      isBatchScheduled = true;
+      executor.execute(() -> runBatch(/* isRetry= */ false));
+    }
+  }
+
+  private void scheduleRetryBatch() {
+    if (!isRetryBatchScheduled && !released) {
+      isRetryBatchScheduled = true;
+      executor.schedule(
+          () -> runBatch(/* isRetry= */ true), DELETE_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void runBatch(boolean isRetry) {
+    List<String> paths;
+    Set<File> syncs;
+    synchronized (lock) {
+      if (isRetry) {
+        isRetryBatchScheduled = false;
+      } else {
+        isBatchScheduled = false;
+      }
+      paths = new ArrayList<>(pendingDeletes.keySet());
+      syncs = new LinkedHashSet<>(pendingSyncs);
+      pendingSyncs.clear();
+    }
+    if (!paths.isEmpty()) {
+      writeJournal();
+    }
+    int deletedCount = 0;
+    ArrayList<String> failedPaths = new ArrayList<>();
+    for (int i = 0; i < paths.size(); i++) {
+      String path = paths.get(i);
+      int attempts;
+      synchronized (lock) {
+        // The delete is taken off the pending ones only now, since the path may have been claimed
+        // since the batch started.
+        @Nullable Integer pendingAttempts = pendingDeletes.remove(path);
+        if (pendingAttempts == null) {
+          continue;
+        }
+        attempts = pendingAttempts;
+        deletingPath = path;
+      }
+      boolean deleted = deleteDownloadFiles(path);
+      synchronized (lock) {
+        deletingPath = null;
+        if (!deleted && attempts + 1 < MAX_DELETE_ATTEMPTS) {
+          pendingDeletes.put(path, attempts + 1);
+        }
+        lock.notifyAll();
+      }
+      if (deleted) {
+        deletedCount++;
+        @Nullable File directory = new File(path).getAbsoluteFile().getParentFile();
+        if (directory != null) {
+          syncs.add(directory);
+        }
+      } else if (attempts + 1 < MAX_DELETE_ATTEMPTS) {
+        failedPaths.add(path);
+      } else {
+        Log.e(TAG, "Failed to delete the files of " + path);
+      }
+    }
+    for (File directory : syncs) {
+      syncDirectoryInternal(directory);
+    }
+    Log.i(
+        TAG,
+        "deleted "
+            + deletedCount
+            + " downloads, synced "
+            + syncs.size()
+            + " directories");
+    if (!failedPaths.isEmpty()) {
+      Log.w(TAG, "retrying deletes in " + DELETE_RETRY_DELAY_MS + "ms: " + failedPaths);
+      synchronized (lock) {
+        scheduleRetryBatch();
+      }
+    }
+    if (!paths.isEmpty()) {
+      writeJournal();
+    }
+  }
+
+  private void reconcileInternal(DownloadIndex downloadIndex, Listener listener) {
+    HashSet<String> ownedPaths = new HashSet<>();
+    HashSet<File> directories = new HashSet<>();
+    ArrayList<String> missingIds = new ArrayList<>();
+    int recoveredCount = 0;
+    try (DownloadCursor cursor = downloadIndex.getDownloads()) {
+      while (cursor.moveToNext()) {
+        Download download = cursor.getDownload();
+        @Nullable String path = download.request.path;
+        if (path == null) {
+          continue;
+        }
+        ownedPaths.add(path);
+        File file = new File(path).getAbsoluteFile();
+        File tempFile = FileDataDestination.getTempFile(file.getPath());
+        @Nullable File directory = file.getParentFile();
+        if (directory != null) {
+          directories.add(directory);
+        }
+        if (download.state != Download.STATE_COMPLETED) {
+          continue;
+        }
+        if (file.exists()) {
+          if (tempFile.exists()) {
+            Util.recursiveDelete(tempFile);
+          }
+        } else if (tempFile.exists() && tempFile.renameTo(file)) {
+          recoveredCount++;
+        } else {
+          missingIds.add(download.request.id);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to load index.", e);
+      return;
+    }
+    for (File directory : directories) {
+      syncDirectoryInternal(directory);
+    }
+    int orphanCount = 0;
+    synchronized (lock) {
+      for (String path : journaledPaths) {
+        if (!ownedPaths.contains(path) && !pendingDeletes.containsKey(path)) {
+          pendingDeletes.put(path, 0);
+          orphanCount++;
+        }
+      }
+      journaledPaths.clear();
+      if (orphanCount > 0) {
+        scheduleBatch();
+      }
+    }
+    Log.i(
+        TAG,
+        "reconciled: "
+            + recoveredCount
+            + " renames redone, "
+            + missingIds.size()
+            + " completed files missing, "
+            + orphanCount
+            + " journaled deletes resumed");
+    if (!missingIds.isEmpty()) {
+      listener.onCompletedFilesMissing(missingIds);
+    }
+  }
+
+  private void readJournal() {
+    if (journalFile == null || !journalFile.exists()) {
+      return;
+    }
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+      ArrayList<String> paths = new ArrayList<>();
+      @Nullable String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          paths.add(line);
+        }
+      }
+      synchronized (lock) {
+        journaledPaths.addAll(paths);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + journalFile, e);
+    }
+  }
+
+  /**
+   * Replaces the journal with the pending deletes, including the journaled paths that haven't been
+   * reconciled yet.
+   */
+  private void writeJournal() {
+    if (journalFile == null) {
+      return;
+    }
+    ArrayList<String> paths;
+    synchronized (lock) {
+      paths = new ArrayList<>(pendingDeletes.keySet());
+      paths.addAll(journaledPaths);
+    }
+    if (paths.isEmpty()) {
+      if (journalFile.exists() && !journalFile.delete()) {
+        Log.w(TAG, "Failed to delete " + journalFile);
+      }
+      return;
+    }
+    File newJournalFile = new File(journalFile.getPath() + ".new");
+    try {
+      try (Writer writer =
+          new OutputStreamWriter(new FileOutputStream(newJournalFile), StandardCharsets.UTF_8)) {
+        for (int i = 0; i < paths.size(); i++) {
+          writer.write(paths.get(i));
+          writer.write('\n');
+        }
+      }
+      if (!newJournalFile.renameTo(journalFile)) {
+        throw new IOException("failed to rename " + newJournalFile + " to " + journalFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write " + journalFile, e);
+    }
+  }
+
+  private static boolean deleteDownloadFiles(String path) {
+    File file = new File(path);
+    File tempFile = FileDataDestination.getTempFile(path);
+    // The path of an extracted archive is a directory.
+    Util.recursiveDelete(file);
+    Util.recursiveDelete(tempFile);
+    return !file.exists() && !tempFile.exists();
+  }
+
+  private static void syncDirectoryInternal(File directory) {
+    if (Util.SDK_INT < 21) {
+      return;
+    }
+    try {
+      syncDirectoryV21(directory);
+    } catch (ErrnoException e) {
+      Log.w(TAG, "Failed to sync " + directory, e);
+    }
+  }
+
+  @RequiresApi(21)
+  private static void syncDirectoryV21(File directory) throws ErrnoException {
+    FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, /* mode= */ 0);
+    try {
+      Os.fsync(fd);
+    } finally {
+      Os.close(fd);
+    }
+  }
+}
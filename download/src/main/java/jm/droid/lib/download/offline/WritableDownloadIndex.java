@@ -18,6 +18,7 @@ package jm.droid.lib.download.offline;
 import androidx.annotation.WorkerThread;
 
 import java.io.IOException;
+import java.util.List;
 
 /** A writable index of {@link Download Downloads}. */
 @WorkerThread
@@ -44,6 +45,29 @@ public interface WritableDownloadIndex extends DownloadIndex {
    */
   void removeDownload(String id) throws IOException;
 
+  /**
+   * Removes the downloads with the given IDs in a single transaction. IDs of downloads that don't
+   * exist are ignored.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param ids The IDs of the downloads to remove.
+   * @throws IOException If an error occurs removing the states.
+   */
+  void removeDownloads(List<String> ids) throws IOException;
+
+  /**
+   * Sets the time at which the file of the download with the given ID was last accessed. Does
+   * nothing if a download with the given ID does not exist.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param id The ID of the download to update.
+   * @param lastAccessTimeMs The time of the access, in milliseconds since the epoch.
+   * @throws IOException If an error occurs updating the state.
+   */
+  void setLastAccessTime(String id, long lastAccessTimeMs) throws IOException;
+
   /**
    * Sets all {@link Download#STATE_DOWNLOADING} states to {@link Download#STATE_QUEUED}.
    *
@@ -0,0 +1,31 @@
+package jm.droid.lib.download.upstream;
+
+import jm.droid.lib.download.C;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link DataSource} backed by a file, whose data can be copied straight to a channel with {@link
+ * java.nio.channels.FileChannel#transferTo}, without passing through a buffer in the Java heap.
+ */
+public interface ChannelDataSource extends DataSource {
+
+  /**
+   * Returns whether the opened source supports {@link #transferTo}. Some sources, such as a pipe
+   * returned by a content provider, can only be {@link #read}.
+   */
+  boolean isTransferSupported();
+
+  /**
+   * Transfers up to {@code maxLength} bytes from the current read position to {@code target}, and
+   * advances the read position by the number of bytes transferred.
+   *
+   * @param target The channel to which the bytes are written, at its current position.
+   * @param maxLength The maximum number of bytes to transfer.
+   * @return The number of bytes transferred, or {@link C#RESULT_END_OF_INPUT} if no data is
+   *     available because the end of the opened range has been reached.
+   * @throws IOException If an error occurs reading from the source or writing to {@code target}.
+   */
+  long transferTo(WritableByteChannel target, long maxLength) throws IOException;
+}
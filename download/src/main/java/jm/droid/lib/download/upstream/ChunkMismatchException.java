@@ -0,0 +1,23 @@
+package jm.droid.lib.download.upstream;
+
+import jm.droid.lib.download.offline.ChunkManifest;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a chunk of a downloaded file doesn't match its digest in the {@link ChunkManifest} of
+ * the download. The chunk is downloaded again from {@link #position}.
+ */
+public final class ChunkMismatchException extends IOException {
+
+  /** The index of the chunk. */
+  public final int chunkIndex;
+  /** The position of the start of the chunk in the file. */
+  public final long position;
+
+  public ChunkMismatchException(int chunkIndex, long position, String expectedDigest, String actualDigest) {
+    super("chunk " + chunkIndex + " at " + position + " mismatch, expected " + expectedDigest + " but was " + actualDigest);
+    this.chunkIndex = chunkIndex;
+    this.position = position;
+  }
+}
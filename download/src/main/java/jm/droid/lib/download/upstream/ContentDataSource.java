@@ -0,0 +1,259 @@
+package jm.droid.lib.download.upstream;
+
+import static jm.droid.lib.download.util.Util.castNonNull;
+import static java.lang.Math.min;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.PlaybackException;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link DataSource} for reading from a content URI, for copying documents picked by the user or
+ * shared by another app.
+ *
+ * <p>Data backed by a file is transferred with {@link FileChannel#transferTo}. Data streamed through
+ * a pipe can only be {@link #read}, and can't be opened at a position without reading and
+ * discarding the data before it.
+ */
+public final class ContentDataSource extends BaseDataSource implements ChannelDataSource {
+
+  /** Thrown when an {@link IOException} is encountered reading from a content URI. */
+  public static class ContentDataSourceException extends DataSourceException {
+
+    public ContentDataSourceException(
+        @Nullable IOException cause, @PlaybackException.ErrorCode int errorCode) {
+      super(cause, errorCode);
+    }
+  }
+
+  /** {@link DataSource.Factory} for {@link ContentDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final Context context;
+
+    /**
+     * Creates an instance.
+     *
+     * @param context A context.
+     */
+    public Factory(Context context) {
+      this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public ContentDataSource createDataSource() {
+      return new ContentDataSource(context);
+    }
+  }
+
+  private final ContentResolver resolver;
+
+  @Nullable private Uri uri;
+  @Nullable private AssetFileDescriptor assetFileDescriptor;
+  @Nullable private FileInputStream inputStream;
+  @Nullable private FileChannel channel;
+  private boolean isTransferSupported;
+  private long bytesRemaining;
+  private boolean opened;
+
+  /**
+   * @param context A context.
+   */
+  public ContentDataSource(Context context) {
+    super(/* isNetwork= */ false);
+    this.resolver = context.getContentResolver();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws ContentDataSourceException {
+    try {
+      Uri uri = dataSpec.uri;
+      this.uri = uri;
+      transferInitializing(dataSpec);
+      AssetFileDescriptor assetFileDescriptor = resolver.openAssetFileDescriptor(uri, "r");
+      this.assetFileDescriptor = assetFileDescriptor;
+      if (assetFileDescriptor == null) {
+        // openAssetFileDescriptor returns null if the provider recently crashed.
+        throw new ContentDataSourceException(
+            new IOException("Could not open file descriptor for: " + uri),
+            PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+      }
+
+      long assetFileDescriptorLength = assetFileDescriptor.getLength();
+      FileInputStream inputStream = new FileInputStream(assetFileDescriptor.getFileDescriptor());
+      this.inputStream = inputStream;
+      FileChannel channel = inputStream.getChannel();
+      this.channel = channel;
+
+      // We can't rely only on the "skipped < dataSpec.position" check below to detect whether the
+      // position is beyond the end of the asset being read. This is because the file may contain
+      // multiple assets, and there's nothing to prevent InputStream.skip reading beyond the end of
+      // the asset.
+      if (assetFileDescriptorLength != AssetFileDescriptor.UNKNOWN_LENGTH
+          && dataSpec.position > assetFileDescriptorLength) {
+        throw new ContentDataSourceException(
+            /* cause= */ null, PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+      }
+      long assetStartOffset = assetFileDescriptor.getStartOffset();
+      long channelSize = channel.size();
+      // A pipe reports a size of 0 and doesn't support positioning.
+      isTransferSupported = channelSize != 0;
+      if (isTransferSupported) {
+        channel.position(assetStartOffset + dataSpec.position);
+      } else {
+        long skipped = inputStream.skip(assetStartOffset + dataSpec.position) - assetStartOffset;
+        if (skipped != dataSpec.position) {
+          // We expect the skip to be satisfied in full. If it isn't then we're probably trying to
+          // read beyond the end of the last resource in the file.
+          throw new ContentDataSourceException(
+              /* cause= */ null, PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+        }
+      }
+
+      if (assetFileDescriptorLength == AssetFileDescriptor.UNKNOWN_LENGTH) {
+        // The asset must extend to the end of the file.
+        if (!isTransferSupported) {
+          bytesRemaining = C.LENGTH_UNSET;
+        } else {
+          bytesRemaining = channelSize - channel.position();
+          if (bytesRemaining < 0) {
+            // The skip above was satisfied in full, but positioned beyond the end of the file.
+            throw new ContentDataSourceException(
+                /* cause= */ null, PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+          }
+        }
+      } else {
+        bytesRemaining = assetFileDescriptorLength - dataSpec.position;
+      }
+    } catch (ContentDataSourceException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new ContentDataSourceException(
+          e,
+          e instanceof FileNotFoundException
+              ? PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND
+              : PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    } catch (SecurityException e) {
+      throw new ContentDataSourceException(
+          new IOException(e), PlaybackException.ERROR_CODE_IO_NO_PERMISSION);
+    }
+
+    if (dataSpec.length != C.LENGTH_UNSET) {
+      bytesRemaining =
+          bytesRemaining == C.LENGTH_UNSET ? dataSpec.length : min(bytesRemaining, dataSpec.length);
+    }
+    opened = true;
+    transferStarted(dataSpec);
+    return dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws ContentDataSourceException {
+    if (length == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    int bytesRead;
+    try {
+      int bytesToRead =
+          bytesRemaining == C.LENGTH_UNSET ? length : (int) min(bytesRemaining, length);
+      bytesRead = castNonNull(inputStream).read(buffer, offset, bytesToRead);
+    } catch (IOException e) {
+      throw new ContentDataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+
+    if (bytesRead == -1) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    if (bytesRemaining != C.LENGTH_UNSET) {
+      bytesRemaining -= bytesRead;
+    }
+    bytesTransferred(bytesRead);
+    return bytesRead;
+  }
+
+  @Override
+  public boolean isTransferSupported() {
+    return isTransferSupported;
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target, long maxLength)
+      throws ContentDataSourceException {
+    if (!isTransferSupported) {
+      throw new IllegalStateException("Transfer not supported for " + uri);
+    }
+    if (maxLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    long bytesTransferred;
+    try {
+      FileChannel channel = castNonNull(this.channel);
+      long position = channel.position();
+      bytesTransferred = channel.transferTo(position, min(bytesRemaining, maxLength), target);
+      channel.position(position + bytesTransferred);
+    } catch (IOException e) {
+      throw new ContentDataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+    if (bytesTransferred == 0) {
+      // The end of the file was reached before the end of the asset.
+      bytesRemaining = 0;
+      return C.RESULT_END_OF_INPUT;
+    }
+    bytesRemaining -= bytesTransferred;
+    bytesTransferred((int) bytesTransferred);
+    return bytesTransferred;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return uri;
+  }
+
+  @SuppressWarnings("Finally")
+  @Override
+  public void close() throws ContentDataSourceException {
+    uri = null;
+    channel = null;
+    isTransferSupported = false;
+    try {
+      if (inputStream != null) {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      throw new ContentDataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    } finally {
+      inputStream = null;
+      try {
+        if (assetFileDescriptor != null) {
+          assetFileDescriptor.close();
+        }
+      } catch (IOException e) {
+        throw new ContentDataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+      } finally {
+        assetFileDescriptor = null;
+        if (opened) {
+          opened = false;
+          transferEnded();
+        }
+      }
+    }
+  }
+}
@@ -1,14 +1,36 @@
 package jm.droid.lib.download.upstream;
 
+import android.net.Uri;
+
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jm.droid.lib.download.C;
+import jm.droid.lib.download.offline.ChunkManifest;
+import jm.droid.lib.download.offline.ContentStore;
 import jm.droid.lib.download.offline.Download;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Clock;
 import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.RunnableFutureTask;
+import jm.droid.lib.download.util.StreamingDigest;
+import jm.droid.lib.download.util.Util;
 
 /**
  * 负责dataSource与dataWrite的粘合剂，负责数据源的open read及close的流程管理，
@@ -35,18 +57,117 @@ public class DataAdhesives {
         void onProgress(long requestLength, long bytesCached, long newBytesCached);
     }
 
+    /**
+     * 接收续传需要保存的传输状态，实现方负责写入{@link Download}。在调用{@link #process()}的线程回调
+     */
+    public interface StateListener {
+
+        /**
+         * Called when the response shows whether the server supports range requests.
+         *
+         * @param rangeSupport The {@link Download.RangeSupport}.
+         */
+        void onRangeSupport(@Download.RangeSupport int rangeSupport);
+
+        /**
+         * Called when the validators of the content are known.
+         *
+         * @param etag The {@code ETag} of the content, or null.
+         * @param lastModified The {@code Last-Modified} date of the content, or null.
+         */
+        void onValidators(@Nullable String etag, @Nullable String lastModified);
+
+        /**
+         * Called when decoding restarts from the start of the content, with the content coding of
+         * the transfer.
+         *
+         * @param contentEncoding The content coding, or null if the content is transferred as is.
+         */
+        void onContentEncoding(@Nullable String contentEncoding);
+
+        /**
+         * Called when decoding has made progress.
+         *
+         * @param bytesDecoded The number of decoded bytes written to the file.
+         * @param checkpointPosition The number of encoded bytes up to the last point from which
+         *     decoding can resume.
+         * @param checkpointBytesDecoded The number of decoded bytes at {@code checkpointPosition}.
+         */
+        void onDecodeProgress(long bytesDecoded, long checkpointPosition, long checkpointBytesDecoded);
+
+        /**
+         * Called when the saved state of the digest of the file changes.
+         *
+         * @param digestState The saved state, or null to hash the file from the start.
+         */
+        void onDigestState(@Nullable byte[] digestState);
+    }
+
     /**
      * Default buffer size to be used while caching.
      */
     public static final int DEFAULT_BUFFER_SIZE_BYTES = 128 * 1024;
 
+    /**
+     * 读取超时(数据停滞)后立即重连当前数据源的最大次数，期间有新数据写入时重新计数
+     */
+    private static final int MAX_STALL_RECONNECTS = 2;
+
+    /**
+     * 本地文件每次从源文件直接传输到临时文件的最大字节数
+     */
+    private static final long TRANSFER_CHUNK_SIZE_BYTES = 8 * DEFAULT_BUFFER_SIZE_BYTES;
+
+    /**
+     * 分块校验失败后重新下载同一个分块的最大次数
+     */
+    private static final int MAX_CHUNK_REFETCHES = 3;
+
+    private final Download download;
     private final DataSource dataSource;
     private final DataDestination dataDestination;
     private final DataSpec dataSpec;
     private final byte[] temporaryBuffer;
     @Nullable
     private final ProgressListener progressListener;
+    private final StateListener stateListener;
+    private final ProgressAggregator progressAggregator;
+    private final List<Uri> sourceUris;
+    private final MirrorPolicy mirrorPolicy;
+    @Nullable
+    private final DataSource.Factory dataSourceFactory;
+    @Nullable
+    private final DataDestination.Factory dataDestinationFactory;
+    @Nullable
+    private final Executor executor;
+    private final AtomicLong mirrorSegmentNewBytes;
+    private final DataWriter destinationWriter;
 
+    private int sourceIndex;
+    private int stallReconnectCount;
+    private long lastStallPosition = C.POSITION_UNSET;
+    private boolean acceptContentEncoding;
+    @Nullable
+    private GzipDecoder decoder;
+    @Nullable
+    private StreamingDigest contentDigest;
+    @Nullable
+    private ChunkManifest chunkManifest;
+    @Nullable
+    private ContentStore contentStore;
+    @Nullable
+    private WriteFrontier writeFrontier;
+    @Nullable
+    private StreamingDigest chunkDigest;
+    private int chunkIndex;
+    private int refetchChunkIndex = C.INDEX_UNSET;
+    private int chunkRefetchCount;
+    //当前请求的数据写入文件的位置，传输经过压缩时与请求的位置不同
+    private long outputPosition;
+    private long throughputWindowStartMs;
+    private long throughputWindowBytes;
+    @Nullable
+    private volatile MirrorSegment mirrorSegment;
     private long nextPosition;
     private long endPosition;
     private long bytesCached;
@@ -54,17 +175,55 @@ public class DataAdhesives {
 
     private volatile boolean isCanceled;
 
-    public DataAdhesives(ProgressListener listener, Download download, DataSource dataSource, DataDestination dataDestination) {
+    public DataAdhesives(ProgressListener listener, StateListener stateListener, Download download, DataSource dataSource, DataDestination dataDestination) {
+        this(listener, stateListener, download, dataSource, dataDestination, new ProgressAggregator());
+    }
+
+    /**
+     * @param progressAggregator 用于合并每次读取的进度回调，避免每个缓冲区都通知一次
+     */
+    public DataAdhesives(ProgressListener listener, StateListener stateListener, Download download, DataSource dataSource, DataDestination dataDestination, ProgressAggregator progressAggregator) {
+        this(listener, stateListener, download, dataSource, dataDestination, progressAggregator, MirrorPolicy.FAILOVER_ONLY, null, null, null);
+    }
+
+    /**
+     * 支持镜像地址的构造方法，当前数据源出错或者低于吞吐量下限时切换到下一个镜像，
+     * 剩余长度足够时还会从下一个镜像并行读取后半部分
+     *
+     * @param mirrorPolicy           决定如何使用 {@link jm.droid.lib.download.offline.DownloadRequest#mirrorUris}
+     * @param dataSourceFactory      用于创建并行读取镜像的数据源
+     * @param dataDestinationFactory 用于创建并行写入同一文件的数据目的
+     * @param executor               用于执行并行读取镜像的任务
+     */
+    public DataAdhesives(ProgressListener listener, StateListener stateListener, Download download, DataSource.Factory dataSourceFactory, DataDestination.Factory dataDestinationFactory, Executor executor, ProgressAggregator progressAggregator, MirrorPolicy mirrorPolicy) {
+        this(listener, stateListener, download, dataSourceFactory.createDataSource(), dataDestinationFactory.createDataDestination(), progressAggregator, mirrorPolicy, dataSourceFactory, dataDestinationFactory, executor);
+    }
+
+    private DataAdhesives(ProgressListener listener, StateListener stateListener, Download download, DataSource dataSource, DataDestination dataDestination, ProgressAggregator progressAggregator, MirrorPolicy mirrorPolicy, @Nullable DataSource.Factory dataSourceFactory, @Nullable DataDestination.Factory dataDestinationFactory, @Nullable Executor executor) {
         temporaryBuffer = new byte[DEFAULT_BUFFER_SIZE_BYTES];
         this.progressListener = listener;
+        this.stateListener = stateListener;
+        this.progressAggregator = progressAggregator;
+        this.download = download;
         this.dataSource = dataSource;
         this.dataDestination = dataDestination;
+        this.mirrorPolicy = mirrorPolicy;
+        this.dataSourceFactory = dataSourceFactory;
+        this.dataDestinationFactory = dataDestinationFactory;
+        this.executor = executor;
+        sourceUris = new ArrayList<>(download.request.mirrorUris.size() + 1);
+        sourceUris.add(download.request.uri);
+        sourceUris.addAll(download.request.mirrorUris);
+        mirrorSegmentNewBytes = new AtomicLong();
+        destinationWriter = this::writeToDestination;
+        throughputWindowStartMs = C.TIME_UNSET;
         dataSpec = new DataSpec.Builder()
             .setUri(download.request.uri)
             .setPath(download.request.path)
             .setPosition(download.getBytesDownloaded())
             .setLength(download.contentLength)
             .setHttpBody(download.request.data)
+            .setFlags(DataSpec.FLAG_ALLOW_RANGE_IGNORED)
             .build();
         bytesCached = download.getBytesDownloaded();
         contentLength = download.contentLength;
@@ -77,58 +236,141 @@ public class DataAdhesives {
     public void process() throws IOException {
         throwIfCanceled();
         Log.i(TAG, "start to save file to local storage pos: "+dataSpec.position+" len:"+dataSpec.length);
-        //这里不相等说明是重试后进入的，缓存的数据增加了导致bytesCache增加了，才会与新建任务的时候传入的pos不一样
-        if (bytesCached != dataSpec.position) {
-            DataSpec aa = dataSpec.buildUpon().setPosition(bytesCached).build();
-            dataDestination.open(aa);
-        } else {
-            dataDestination.open(dataSpec);
+        if (materializeFromStore()) {
+            return;
+        }
+        rewindToDecodeCheckpoint();
+        verifyResumePosition();
+        //服务器不支持Range请求时，直接从头开始覆盖写，避免服务器返回200后读取并丢弃已下载的部分
+        if (bytesCached > 0 && download.getRangeSupport() == Download.RANGE_SUPPORT_NO) {
+            Log.w(TAG, "range requests not supported, restart from 0 instead of skipping " + bytesCached);
+            bytesCached = 0;
+            outputPosition = 0;
         }
+        loadChunkManifest();
+        prepareVerification();
+        //outputPosition与新建任务的时候传入的pos不一样说明是重试后进入的，缓存的数据增加了导致bytesCache增加了
+        openDestination();
+        resetWriteFrontier();
         if (progressListener != null) {
             progressListener.onProgress(getLength(), bytesCached, /* newBytesCached= */ 0);
         }
 
         //endPosition构造方法中已经赋值了，这里不用动，目前只支持一个任务单线程下载，不支持并发
         Log.i(TAG, "cache bytes len:" + bytesCached + ", content len:" + contentLength);
-        long nextRequestLength = contentLength == C.LENGTH_UNSET ? C.LENGTH_UNSET : contentLength - bytesCached;
-        readBlockToCache(bytesCached, nextRequestLength);
+        while (true) {
+            try {
+                long nextRequestLength = contentLength == C.LENGTH_UNSET ? C.LENGTH_UNSET : contentLength - bytesCached;
+                if (shouldReadFromMirror(nextRequestLength)) {
+                    readBlockWithMirror(bytesCached, nextRequestLength);
+                } else {
+                    readBlockToCache(bytesCached, nextRequestLength, /* toEnd= */ true);
+                }
+                break;
+            } catch (IOException e) {
+                if (isCanceled) {
+                    throw e;
+                }
+                if (e instanceof ChunkMismatchException) {
+                    ChunkMismatchException mismatch = (ChunkMismatchException) e;
+                    rewindToChunk(mismatch.position);
+                    if (!canRefetchChunk(mismatch.chunkIndex)) {
+                        throw e;
+                    }
+                    //只重新下载出错的分块，之后的数据还没有下载
+                    Log.w(TAG, "refetch chunk " + mismatch.chunkIndex + " from " + sourceUris.get(sourceIndex), e);
+                } else if (isStalled(e) && canReconnectAfterStall()) {
+                    //读取超时说明连接停滞了，不等任务失败重试，直接重连当前数据源
+                    Log.w(TAG, "transfer stalled at " + bytesCached + ", reconnect to " + sourceUris.get(sourceIndex));
+                } else if (e instanceof InterruptedIOException || sourceIndex + 1 >= sourceUris.size()) {
+                    throw e;
+                } else {
+                    //出错后切换到下一个镜像，从已经连续写入的位置继续
+                    sourceIndex++;
+                    Log.w(TAG, "source failed at " + bytesCached + ", fail over to " + sourceUris.get(sourceIndex), e);
+                }
+                rewindToDecodeCheckpoint();
+                prepareVerification();
+                openDestination();
+                resetWriteFrontier();
+            }
+        }
         dataDestination.close();
+        verifyDigest();
         Log.i(TAG, "save to local storage end");
     }
 
+    /**
+     * 设置是否接受压缩传输。开启后请求gzip编码的响应，边下载边解压写入文件，
+     * 已下载的字节数与内容长度按压缩后的字节计算，写入文件的字节数见{@link Download#getBytesDecoded()}
+     */
+    public void setAcceptContentEncoding(boolean acceptContentEncoding) {
+        this.acceptContentEncoding = acceptContentEncoding;
+    }
+
+    /**
+     * 设置内容仓库。请求带有期望的摘要时，仓库中相同摘要的文件直接链接或者复制到下载路径，不需要下载，
+     * 下载完成的文件也会加入仓库
+     */
+    public void setContentStore(@Nullable ContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * 设置写入进度，边下载边读取时读取方等待数据写入到这里，见{@link WriteFrontier}。只有写入单个文件时才会更新
+     */
+    public void setWriteFrontier(@Nullable WriteFrontier writeFrontier) {
+        this.writeFrontier = writeFrontier;
+    }
+
     public void cancel() {
         isCanceled = true;
+        @Nullable MirrorSegment mirrorSegment = this.mirrorSegment;
+        if (mirrorSegment != null) {
+            mirrorSegment.cancel(/* interruptIfRunning= */ false);
+        }
     }
 
     public void onRemove() {
         Log.i(TAG,"remove data destination");
     }
 
-    public void onSuccess() {
+    public void onSuccess() throws IOException {
         dataDestination.done();
+        //下载完成时已经校验过摘要，加入内容仓库供相同内容的请求使用
+        @Nullable String expectedDigest = download.request.expectedDigest;
+        if (contentStore != null && expectedDigest != null && dataDestination instanceof FileDataDestination) {
+            contentStore.add(Assertions.checkNotNull(download.request.digestAlgorithm), expectedDigest, new File(dataSpec.path));
+        }
     }
     /**
      * Reads the specified block of data, writing it into the cache.
      *
      * @param position The starting position of the block.
      * @param length   The length of the block, or {@link C#LENGTH_UNSET} if unbounded.
+     * @param toEnd    Whether the block extends to the end of the content.
      * @return The number of bytes read.
      * @throws IOException If an error occurs reading the data or writing it to the cache.
      */
-    private long readBlockToCache(long position, long length) throws IOException {
-        boolean isLastBlock = position + length == endPosition || length == C.LENGTH_UNSET;
+    private long readBlockToCache(long position, long length, boolean toEnd) throws IOException {
+        boolean isLastBlock = toEnd && (position + length == endPosition || length == C.LENGTH_UNSET);
 
         Log.i(TAG, "readBlockToCache:" + position + ", len:" + length);
+        DataSpec requestDataSpec = buildRequestDataSpec(sourceIndex, position);
+        boolean sentIfRange = requestDataSpec.httpRequestHeaders.containsKey(HttpHeaders.IF_RANGE);
+        throughputWindowStartMs = C.TIME_UNSET;
         long resolvedLength = C.LENGTH_UNSET;
         boolean isDataSourceOpen = false;
         if (length != C.LENGTH_UNSET) {
             // If the length is specified, try to open the data source with a bounded request to avoid
             // the underlying network stack requesting more data than required.
             DataSpec boundedDataSpec =
-                dataSpec.buildUpon().setPosition(position).setLength(length).build();
+                requestDataSpec.buildUpon().setPosition(position).setLength(length).build();
             try {
                 resolvedLength = dataSource.open(boundedDataSpec);
-                contentLength = position + resolvedLength;
+                if (toEnd) {
+                    contentLength = position + resolvedLength;
+                }
                 isDataSourceOpen = true;
             } catch (IOException e) {
                 DataSourceUtil.closeQuietly(dataSource);
@@ -142,38 +384,92 @@ public class DataAdhesives {
             // DataSource with the specified length failed.
             throwIfCanceled();
             DataSpec unboundedDataSpec =
-                dataSpec.buildUpon().setPosition(position).setLength(C.LENGTH_UNSET).build();
+                requestDataSpec.buildUpon().setPosition(position).setLength(C.LENGTH_UNSET).build();
             try {
                 resolvedLength = dataSource.open(unboundedDataSpec);
-                contentLength = position + resolvedLength;
+                if (toEnd) {
+                    contentLength = position + resolvedLength;
+                }
             } catch (IOException e) {
                 DataSourceUtil.closeQuietly(dataSource);
                 DataSourceUtil.closeQuietly(dataDestination);
                 throw e;
             }
         }
-        int totalBytesRead = 0;
+        if (onDataSourceOpened(position, sentIfRange)) {
+            //服务器返回了完整文件(不支持Range或者文件已变化), 从0开始覆盖写，而不是丢弃前面的数据
+            Log.w(TAG, "full response to range request, overwrite from 0 instead of skipping " + position);
+            //并行读取的后半部分可能是旧文件的数据，先停止它再重写临时文件
+            stopMirrorSegment();
+            position = 0;
+            contentLength = resolvedLength;
+            bytesCached = 0;
+            outputPosition = 0;
+            try {
+                prepareVerification();
+                dataDestination.close();
+                dataDestination.open(dataSpec.buildUpon().setPosition(0).build());
+                resetWriteFrontier();
+            } catch (IOException e) {
+                DataSourceUtil.closeQuietly(dataSource);
+                DataSourceUtil.closeQuietly(dataDestination);
+                throw e;
+            }
+            if (progressListener != null) {
+                progressListener.onProgress(getLength(), bytesCached, /* newBytesCached= */ 0);
+            }
+        }
+        long totalBytesRead = 0;
         try {
+            onContentEncoding(position);
             if (isLastBlock && resolvedLength != C.LENGTH_UNSET) {
                 onRequestEndPosition(position + resolvedLength);
             }
-            int bytesRead = 0;
+            @Nullable ChannelDataSource transferSource = getTransferSource();
+            @Nullable WritableByteChannel transferTarget = transferSource == null ? null : ((FileDataDestination) dataDestination).getChannel();
+            long bytesRead = 0;
             while (bytesRead != C.RESULT_END_OF_INPUT) {
                 throwIfCanceled();
-                bytesRead = dataSource.read(temporaryBuffer, /* offset= */ 0, temporaryBuffer.length);
+                if (transferTarget != null) {
+                    //本地文件直接从源文件传输到临时文件，分段传输以便响应取消并更新进度
+                    bytesRead = transferSource.transferTo(transferTarget, TRANSFER_CHUNK_SIZE_BYTES);
+                } else {
+                    bytesRead = dataSource.read(temporaryBuffer, /* offset= */ 0, temporaryBuffer.length);
+                    if (bytesRead != C.RESULT_END_OF_INPUT) {
+                        if (decoder != null) {
+                            decoder.decode(temporaryBuffer, 0, (int) bytesRead, destinationWriter);
+                            stateListener.onDecodeProgress(decoder.getOutputPosition(), decoder.getCheckpointInputPosition(), decoder.getCheckpointOutputPosition());
+                        } else {
+                            destinationWriter.write(temporaryBuffer, 0, (int) bytesRead);
+                        }
+                    }
+                }
                 if (bytesRead != C.RESULT_END_OF_INPUT) {
                     onNewBytesCached(bytesRead);
                     totalBytesRead += bytesRead;
-                    dataDestination.write(temporaryBuffer, 0, bytesRead);
+                    maybeAdvanceWriteFrontier();
+                    checkThroughput(bytesRead);
                 }
             }
+            if (decoder != null) {
+                decoder.finish();
+            }
+            if (isLastBlock && chunkDigest != null && chunkDigest.getPosition() > 0) {
+                //最后一个分块可能比分块大小短
+                verifyChunk();
+            }
+            flushProgress();
             if (isLastBlock) {
                 onRequestEndPosition(position + totalBytesRead);
             }
         } catch (IOException e) {
+            // Report what was read before the failure, so that a retry resumes from the right place.
+            flushProgress();
             DataSourceUtil.closeQuietly(dataSource);
             DataSourceUtil.closeQuietly(dataDestination);
             throw e;
+        } finally {
+            releaseDecoder();
         }
 
         // Util.closeQuietly(dataSource) is not used here because it's important that an exception is
@@ -183,20 +479,662 @@ public class DataAdhesives {
         return totalBytesRead;
     }
 
+    /**
+     * Records the validators of the response to a request for data starting at {@code position},
+     * and whether the server supports range requests.
+     *
+     * @param sentIfRange Whether the request carried an {@code If-Range} validator.
+     * @return Whether the server answered with the whole resource, in which case the data starts at
+     * position 0.
+     */
+    private boolean onDataSourceOpened(long position, boolean sentIfRange) {
+        @Nullable HttpDataSource httpDataSource = DefaultDataSource.getHttpDataSource(dataSource);
+        if (httpDataSource == null) {
+            return false;
+        }
+        int responseCode = httpDataSource.getResponseCode();
+        if (responseCode != 200 && responseCode != 206) {
+            return false;
+        }
+        Map<String, List<String>> headers = httpDataSource.getResponseHeaders();
+        @Nullable String etag = HttpUtil.getHeaderValue(headers, HttpHeaders.ETAG);
+        @Nullable String lastModified = HttpUtil.getHeaderValue(headers, HttpHeaders.LAST_MODIFIED);
+        boolean isRangeIgnored =
+            HttpUtil.isRangeIgnored(httpDataSource, dataSpec.buildUpon().setPosition(position).build());
+        if (isRangeIgnored) {
+            if (sentIfRange && !matchesStoredValidators(etag, lastModified)) {
+                //文件已变化，服务器按If-Range返回了新文件，这并不说明服务器不支持Range
+                Log.w(TAG, "remote content changed, etag:" + etag + " last modified:" + lastModified);
+            } else {
+                stateListener.onRangeSupport(Download.RANGE_SUPPORT_NO);
+            }
+        } else if (responseCode == 206) {
+            stateListener.onRangeSupport(Download.RANGE_SUPPORT_YES);
+        } else if (download.getRangeSupport() == Download.RANGE_SUPPORT_UNKNOWN
+            && HttpUtil.isRangeUnsupported(HttpUtil.getHeaderValue(headers, HttpHeaders.ACCEPT_RANGES))) {
+            stateListener.onRangeSupport(Download.RANGE_SUPPORT_NO);
+        }
+        if (responseCode == 200 || (download.getEtag() == null && download.getLastModified() == null)) {
+            stateListener.onValidators(etag, lastModified);
+        }
+        return isRangeIgnored;
+    }
+
+    /**
+     * Returns the validator to send as {@code If-Range} when resuming, or null if there is none. Weak
+     * entity tags can't be used with {@code If-Range}, in which case {@code Last-Modified} is used.
+     */
+    @Nullable
+    private String getIfRangeValidator() {
+        @Nullable String etag = download.getEtag();
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return download.getLastModified();
+    }
+
+    private boolean matchesStoredValidators(@Nullable String etag, @Nullable String lastModified) {
+        @Nullable String storedEtag = download.getEtag();
+        if (storedEtag != null && etag != null) {
+            return storedEtag.equals(etag);
+        }
+        @Nullable String storedLastModified = download.getLastModified();
+        return storedLastModified != null && storedLastModified.equals(lastModified);
+    }
+
+    /**
+     * 根据响应的Content-Encoding决定是否需要解压。从中间续传时编码必须与之前一致，
+     * 否则已下载的压缩字节位置没有意义，只能从头开始
+     */
+    private void onContentEncoding(long position) throws IOException {
+        @Nullable String contentEncoding = null;
+        @Nullable HttpDataSource httpDataSource = DefaultDataSource.getHttpDataSource(dataSource);
+        if (acceptContentEncoding && httpDataSource != null) {
+            contentEncoding = HttpUtil.getHeaderValue(httpDataSource.getResponseHeaders(), HttpHeaders.CONTENT_ENCODING);
+            if (contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("identity")) {
+                contentEncoding = null;
+            }
+        }
+        if (contentEncoding != null && !GzipDecoder.isSupported(contentEncoding)) {
+            throw new IOException("unsupported content encoding: " + contentEncoding);
+        }
+        if (position == 0) {
+            stateListener.onContentEncoding(contentEncoding);
+        } else if (!Util.areEqual(contentEncoding, download.getContentEncoding())) {
+            Log.w(TAG, "content encoding changed from " + download.getContentEncoding() + " to " + contentEncoding + ", restart from 0");
+            stateListener.onContentEncoding(contentEncoding);
+            bytesCached = 0;
+            outputPosition = 0;
+            if (progressListener != null) {
+                progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
+            }
+            throw new IOException("content encoding changed at " + position);
+        }
+        if (contentEncoding != null) {
+            decoder = new GzipDecoder(position, outputPosition);
+        }
+    }
+
+    /**
+     * 数据源是本地文件且写入临时文件时返回可以直接传输的数据源，不经过temporaryBuffer。需要解压或者校验摘要时不能直接传输
+     */
+    @Nullable
+    private ChannelDataSource getTransferSource() {
+        if (decoder != null || contentDigest != null || chunkManifest != null || !(dataDestination instanceof FileDataDestination)) {
+            return null;
+        }
+        @Nullable ChannelDataSource channelDataSource = DefaultDataSource.getChannelDataSource(dataSource);
+        return channelDataSource != null && channelDataSource.isTransferSupported() ? channelDataSource : null;
+    }
+
+    private int writeToDestination(byte[] buffer, int offset, int length) throws IOException {
+        int result = dataDestination.write(buffer, offset, length);
+        if (chunkDigest == null) {
+            if (contentDigest != null) {
+                contentDigest.update(buffer, offset, length);
+            }
+            return result;
+        }
+        ChunkManifest chunkManifest = Assertions.checkNotNull(this.chunkManifest);
+        //按分块边界切分，每个分块写完时立即校验
+        while (length > 0) {
+            int chunkLength = (int) Math.min(length, chunkManifest.chunkSize - chunkDigest.getPosition());
+            chunkDigest.update(buffer, offset, chunkLength);
+            if (contentDigest != null) {
+                contentDigest.update(buffer, offset, chunkLength);
+            }
+            offset += chunkLength;
+            length -= chunkLength;
+            if (chunkDigest.getPosition() == chunkManifest.chunkSize) {
+                verifyChunk();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 校验当前分块，分块不一致时抛出{@link ChunkMismatchException}，从分块的起始位置重新下载
+     */
+    private void verifyChunk() throws ChunkMismatchException {
+        StreamingDigest chunkDigest = Assertions.checkNotNull(this.chunkDigest);
+        ChunkManifest chunkManifest = Assertions.checkNotNull(this.chunkManifest);
+        if (chunkIndex < chunkManifest.getChunkCount() && !chunkDigest.matches(chunkManifest.getChunkDigest(chunkIndex))) {
+            throw new ChunkMismatchException(chunkIndex, chunkIndex * chunkManifest.chunkSize, chunkManifest.getChunkDigest(chunkIndex), chunkDigest.digestHex());
+        }
+        chunkIndex++;
+        this.chunkDigest = StreamingDigest.create(chunkManifest.algorithm);
+    }
+
+    /**
+     * 获取分块摘要清单，请求中没有时从sidecar地址下载
+     */
+    private void loadChunkManifest() throws IOException {
+        if (chunkManifest != null) {
+            return;
+        }
+        chunkManifest = download.request.chunkManifest;
+        @Nullable Uri chunkManifestUri = download.request.chunkManifestUri;
+        if (chunkManifest != null || chunkManifestUri == null) {
+            return;
+        }
+        try {
+            dataSource.open(new DataSpec.Builder().setUri(chunkManifestUri).build());
+            chunkManifest = ChunkManifest.parse(Util.fromUtf8Bytes(DataSourceUtil.readToEnd(dataSource)));
+        } finally {
+            dataSource.close();
+        }
+        Log.i(TAG, "loaded " + chunkManifest.getChunkCount() + " chunk digests from " + chunkManifestUri);
+    }
+
+    /**
+     * 让摘要覆盖到outputPosition，也就是接下来写入文件的位置，见{@link #prepareDigest()}和{@link #prepareChunk()}
+     */
+    private void prepareVerification() throws IOException {
+        prepareDigest();
+        prepareChunk();
+    }
+
+    /**
+     * 请求带有期望的摘要时，让摘要覆盖到outputPosition。内存中或者保存的摘要状态不超过这个位置时接着使用，
+     * 不足的部分从临时文件读取补齐，这样续传不需要重新计算整个文件的摘要
+     */
+    private void prepareDigest() throws IOException {
+        @Nullable String algorithm = download.request.digestAlgorithm;
+        if (algorithm == null) {
+            return;
+        }
+        if (contentDigest == null || contentDigest.getPosition() > outputPosition) {
+            contentDigest = null;
+            @Nullable byte[] digestState = download.getDigestState();
+            if (digestState != null) {
+                contentDigest = StreamingDigest.restore(algorithm, digestState);
+            }
+            if (contentDigest == null || contentDigest.getPosition() > outputPosition) {
+                //保存的状态在续传位置之后(例如回退到了解压检查点)，只能从头计算
+                contentDigest = StreamingDigest.create(algorithm);
+            }
+        }
+        if (!hashWrittenData(contentDigest, outputPosition)) {
+            restartFromZero();
+            return;
+        }
+        saveDigestState();
+    }
+
+    /**
+     * 有分块摘要清单时，outputPosition所在分块已经写入的部分从临时文件读取，重新计算这个分块的摘要
+     */
+    private void prepareChunk() throws IOException {
+        if (chunkManifest == null) {
+            return;
+        }
+        chunkIndex = (int) (outputPosition / chunkManifest.chunkSize);
+        chunkDigest = StreamingDigest.create(chunkManifest.algorithm);
+        // The digest starts at the chunk, so its position is relative to the chunk.
+        long chunkStart = chunkIndex * chunkManifest.chunkSize;
+        if (!hashWrittenData(chunkDigest, chunkStart, outputPosition)) {
+            restartFromZero();
+        }
+    }
+
+    private boolean hashWrittenData(StreamingDigest digest, long endPosition) throws IOException {
+        return hashWrittenData(digest, /* startPosition= */ 0, endPosition);
+    }
+
+    /**
+     * 从临时文件读取已经写入的数据，补齐{@code digest}直到{@code endPosition}
+     *
+     * @param startPosition {@code digest}开始计算的位置
+     * @return 是否成功，不能读回已经写入的数据时返回false
+     */
+    private boolean hashWrittenData(StreamingDigest digest, long startPosition, long endPosition) throws IOException {
+        long position = startPosition + digest.getPosition();
+        if (position == endPosition) {
+            return true;
+        }
+        if (!(dataDestination instanceof FileDataDestination)) {
+            return false;
+        }
+        Log.i(TAG, "hash written data from " + position + " to " + endPosition);
+        try {
+            hashFile(digest, FileDataDestination.getTempFile(dataSpec.path), position, endPosition);
+        } catch (FileNotFoundException | EOFException e) {
+            //临时文件比记录的进度短，已下载的数据不可信
+            Log.w(TAG, "temp file is shorter than " + endPosition, e);
+            return false;
+        }
+        return true;
+    }
+
+    private void hashFile(StreamingDigest digest, File file, long position, long endPosition) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(position);
+            while (position < endPosition) {
+                throwIfCanceled();
+                int length = (int) Math.min(temporaryBuffer.length, endPosition - position);
+                input.readFully(temporaryBuffer, 0, length);
+                digest.update(temporaryBuffer, 0, length);
+                position += length;
+            }
+        }
+    }
+
+    /**
+     * 内容仓库中有期望摘要的文件时，链接或者复制到临时文件。仓库中的文件可能通过其他链接被修改过，
+     * 使用前先重新校验，不一致的从仓库删除
+     *
+     * @return 是否已经从仓库得到了完整的文件
+     */
+    private boolean materializeFromStore() throws IOException {
+        @Nullable ContentStore contentStore = this.contentStore;
+        @Nullable String algorithm = download.request.digestAlgorithm;
+        @Nullable String expectedDigest = download.request.expectedDigest;
+        if (contentStore == null || algorithm == null || expectedDigest == null || !(dataDestination instanceof FileDataDestination)) {
+            return false;
+        }
+        @Nullable File storedFile = contentStore.get(algorithm, expectedDigest);
+        if (storedFile == null) {
+            return false;
+        }
+        long length = storedFile.length();
+        StreamingDigest digest = StreamingDigest.create(algorithm);
+        try {
+            hashFile(digest, storedFile, /* position= */ 0, length);
+        } catch (FileNotFoundException | EOFException e) {
+            Log.w(TAG, "stored file changed while hashing: " + storedFile, e);
+            return false;
+        }
+        if (!digest.matches(expectedDigest)) {
+            Log.w(TAG, "stored file " + storedFile + " doesn't match " + expectedDigest + " anymore, remove it");
+            contentStore.remove(algorithm, expectedDigest);
+            return false;
+        }
+        File tempFile = FileDataDestination.getTempFile(dataSpec.path);
+        if (ContentStore.link(storedFile, tempFile)) {
+            Log.i(TAG, "linked " + storedFile + " to " + tempFile);
+            dataDestination.open(dataSpec.buildUpon().setPosition(length).build());
+            dataDestination.close();
+        } else {
+            Log.i(TAG, "copy " + storedFile + " to " + tempFile);
+            copyFile(storedFile, length);
+        }
+        contentLength = length;
+        bytesCached = length;
+        outputPosition = length;
+        onRequestEndPosition(length);
+        if (progressListener != null) {
+            progressListener.onProgress(getLength(), bytesCached, /* newBytesCached= */ 0);
+        }
+        return true;
+    }
+
+    private void copyFile(File file, long length) throws IOException {
+        dataDestination.open(dataSpec.buildUpon().setPosition(0).build());
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            WritableByteChannel target = Assertions.checkNotNull(((FileDataDestination) dataDestination).getChannel());
+            long position = 0;
+            while (position < length) {
+                throwIfCanceled();
+                long bytesTransferred = channel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE_BYTES, length - position), target);
+                if (bytesTransferred == 0) {
+                    throw new EOFException();
+                }
+                position += bytesTransferred;
+            }
+        } catch (IOException e) {
+            DataSourceUtil.closeQuietly(dataDestination);
+            throw e;
+        }
+        dataDestination.close();
+    }
+
+    /**
+     * 从outputPosition打开dataDestination。目标只能从更早的位置继续写入时(例如边下载边解压只能从条目边界继续)，
+     * 回退到它返回的位置重新下载中间的数据，解压传输无法对应到编码后的位置，只能从头开始
+     */
+    private void openDestination() throws IOException {
+        long position = dataDestination.open(dataSpec.buildUpon().setPosition(outputPosition).build());
+        while (position != outputPosition) {
+            Log.w(TAG, "destination resumes at " + position + " instead of " + outputPosition);
+            dataDestination.close();
+            if (position == C.LENGTH_UNSET || position > outputPosition || download.getContentEncoding() != null) {
+                restartFromZero();
+            } else {
+                bytesCached = position;
+                outputPosition = position;
+            }
+            prepareVerification();
+            position = dataDestination.open(dataSpec.buildUpon().setPosition(outputPosition).build());
+        }
+    }
+
+    private void restartFromZero() {
+        Log.w(TAG, "can't hash the data written before " + outputPosition + ", restart from 0");
+        bytesCached = 0;
+        outputPosition = 0;
+        stateListener.onContentEncoding(null);
+        @Nullable String algorithm = download.request.digestAlgorithm;
+        if (algorithm != null) {
+            contentDigest = StreamingDigest.create(algorithm);
+            saveDigestState();
+        }
+        if (chunkManifest != null) {
+            chunkIndex = 0;
+            chunkDigest = StreamingDigest.create(chunkManifest.algorithm);
+        }
+    }
+
+    /**
+     * 分块校验失败后回退到分块的起始位置。解压只能从检查点恢复，检查点在出错的分块之后时只能从头开始
+     */
+    private void rewindToChunk(long position) {
+        if (download.getContentEncoding() == null) {
+            bytesCached = Math.min(bytesCached, position);
+        } else if (download.getDecodeCheckpointBytesDecoded() > position) {
+            stateListener.onDecodeProgress(/* bytesDecoded= */ 0, /* checkpointPosition= */ 0, /* checkpointBytesDecoded= */ 0);
+        }
+        rewindToDecodeCheckpoint();
+        if (progressListener != null) {
+            progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
+        }
+    }
+
+    private boolean canRefetchChunk(int chunkIndex) {
+        if (chunkIndex != refetchChunkIndex) {
+            refetchChunkIndex = chunkIndex;
+            chunkRefetchCount = 0;
+        }
+        return chunkRefetchCount++ < MAX_CHUNK_REFETCHES;
+    }
+
+    /**
+     * 保存摘要的状态用于续传。有分块摘要清单时只在已经校验通过的分块末尾保存，摘要包含了校验失败的分块时不保存，
+     * 这样回退到出错的分块时保存的状态仍然可用，不需要从头重新计算
+     */
+    private void saveDigestState() {
+        if (contentDigest != null
+            && (chunkManifest == null || contentDigest.getPosition() == chunkIndex * chunkManifest.chunkSize)) {
+            stateListener.onDigestState(contentDigest.saveState());
+        }
+    }
+
+    /**
+     * 下载完成后检查摘要，不一致时丢弃已下载的数据，重试时从头下载
+     */
+    private void verifyDigest() throws IOException {
+        @Nullable String expectedDigest = download.request.expectedDigest;
+        if (contentDigest == null || expectedDigest == null || contentDigest.matches(expectedDigest)) {
+            return;
+        }
+        String actualDigest = contentDigest.digestHex();
+        Log.w(TAG, contentDigest.getAlgorithm() + " of " + contentDigest.getPosition() + " bytes is " + actualDigest + ", expected " + expectedDigest);
+        contentDigest = null;
+        stateListener.onDigestState(null);
+        stateListener.onContentEncoding(null);
+        bytesCached = 0;
+        outputPosition = 0;
+        if (progressListener != null) {
+            progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
+        }
+        throw new DigestMismatchException(Assertions.checkNotNull(download.request.digestAlgorithm), expectedDigest, actualDigest);
+    }
+
+    private void releaseDecoder() {
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
+    }
+
+    private boolean canReconnectAfterStall() {
+        if (bytesCached != lastStallPosition) {
+            lastStallPosition = bytesCached;
+            stallReconnectCount = 0;
+        }
+        return stallReconnectCount++ < MAX_STALL_RECONNECTS;
+    }
+
+    /**
+     * Returns whether {@code e} was caused by a read or connect timeout, as derived from the {@link
+     * HostLatencyTracker} of the source if it has one.
+     */
+    private static boolean isStalled(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 压缩传输只能从解压检查点续传，将请求与写入的位置回退到检查点
+     */
+    private void rewindToDecodeCheckpoint() {
+        if (download.getContentEncoding() != null) {
+            bytesCached = download.getDecodeCheckpointPosition();
+            outputPosition = download.getDecodeCheckpointBytesDecoded();
+        } else {
+            outputPosition = bytesCached;
+        }
+    }
+
+    /**
+     * 启动时不再逐个核对索引中的进度，任务开始时用临时文件的长度核对继续写入的位置。临时文件比记录的位置短时
+     * (例如进程被杀时最后写入的数据没有落盘)从文件末尾继续，避免在文件中留下空洞；解压写入只能从检查点恢复，只能从头开始
+     */
+    private void verifyResumePosition() {
+        if (outputPosition == 0 || !(dataDestination instanceof FileDataDestination)) {
+            return;
+        }
+        File tempFile = FileDataDestination.getTempFile(dataSpec.path);
+        long length = tempFile.isFile() ? tempFile.length() : 0;
+        if (length >= outputPosition) {
+            return;
+        }
+        Log.w(TAG, "temp file has " + length + " bytes, less than the resume position " + outputPosition);
+        if (download.getContentEncoding() != null) {
+            restartFromZero();
+        } else {
+            bytesCached = length;
+            outputPosition = length;
+        }
+    }
+
+    /**
+     * 从outputPosition开始写入时重置写入进度，之前的数据都已经在磁盘上
+     */
+    private void resetWriteFrontier() {
+        if (writeFrontier != null && dataDestination instanceof FileDataDestination) {
+            writeFrontier.reset(getVerifiedPosition(outputPosition));
+        }
+    }
+
+    /**
+     * 有读取方在等待已经写入但还没有同步的数据时，同步临时文件并推进写入进度。没有读取方时不同步，不影响下载速度
+     */
+    private void maybeAdvanceWriteFrontier() throws IOException {
+        if (writeFrontier == null || !(dataDestination instanceof FileDataDestination)) {
+            return;
+        }
+        long position = getVerifiedPosition(decoder != null ? decoder.getOutputPosition() : bytesCached);
+        if (writeFrontier.isReadPending(position)) {
+            ((FileDataDestination) dataDestination).sync();
+            writeFrontier.advance(position);
+        }
+    }
+
+    /**
+     * 有分块摘要清单时只公开已经校验过的分块，避免读取方读到校验失败后会重新下载的数据
+     */
+    private long getVerifiedPosition(long position) {
+        if (chunkManifest == null) {
+            return position;
+        }
+        return Math.min(position, chunkIndex * chunkManifest.chunkSize);
+    }
+
+    /**
+     * Returns whether a block of {@code length} bytes should be read from the current source and the
+     * next mirror in parallel. Never the case for content-coded transfers, whose encoded offsets
+     * can't be mapped to offsets in the file.
+     */
+    private boolean shouldReadFromMirror(long length) {
+        return executor != null
+            && !acceptContentEncoding
+            && download.request.digestAlgorithm == null
+            && chunkManifest == null
+            && dataDestination instanceof FileDataDestination
+            && mirrorPolicy.minRaceLength != C.LENGTH_UNSET
+            && length != C.LENGTH_UNSET
+            && length >= mirrorPolicy.minRaceLength
+            && sourceIndex + 1 < sourceUris.size()
+            && download.getRangeSupport() == Download.RANGE_SUPPORT_YES;
+    }
+
+    /**
+     * 当前数据源读取前半部分，下一个镜像并行读取后半部分。前半部分先完成时接管后半部分剩余的数据，
+     * 已下载的进度只记录连续写入的部分，这样中途失败也能从正确的位置续传
+     */
+    private void readBlockWithMirror(long position, long length) throws IOException {
+        long splitPosition = position + length / 2;
+        DataSpec segmentDataSpec = buildRequestDataSpec(sourceIndex + 1, splitPosition)
+            .buildUpon()
+            .setPosition(splitPosition)
+            .setLength(position + length - splitPosition)
+            .build();
+        MirrorSegment mirrorSegment = new MirrorSegment(segmentDataSpec);
+        this.mirrorSegment = mirrorSegment;
+        Log.i(TAG, "read " + splitPosition + "-" + (position + length) + " from " + segmentDataSpec.uri);
+        try {
+            mirrorSegment.execute();
+            readBlockToCache(position, splitPosition - position, /* toEnd= */ false);
+            long segmentBytesWritten = stopMirrorSegment();
+            if (bytesCached == splitPosition && segmentBytesWritten > 0) {
+                bytesCached += segmentBytesWritten;
+                if (progressListener != null) {
+                    progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush() + mirrorSegmentNewBytes.getAndSet(0));
+                }
+            }
+        } finally {
+            stopMirrorSegment();
+        }
+        if (bytesCached < contentLength) {
+            readBlockToCache(bytesCached, contentLength - bytesCached, /* toEnd= */ true);
+        } else {
+            onRequestEndPosition(contentLength);
+        }
+    }
+
+    /**
+     * Stops the parallel read from a mirror, if there is one, and waits for it to finish.
+     *
+     * @return The number of bytes it wrote contiguously from its start position.
+     */
+    private long stopMirrorSegment() {
+        @Nullable MirrorSegment mirrorSegment = this.mirrorSegment;
+        if (mirrorSegment == null) {
+            return 0;
+        }
+        this.mirrorSegment = null;
+        mirrorSegment.cancel(/* interruptIfRunning= */ false);
+        mirrorSegment.blockUntilFinished();
+        return mirrorSegment.bytesWritten;
+    }
+
+    /**
+     * Abandons a source that has been slower than {@link MirrorPolicy#minBytesPerSecond} for a whole
+     * {@link MirrorPolicy#throughputWindowMs}, if there is another mirror to fail over to.
+     */
+    private void checkThroughput(long newBytes) throws IOException {
+        if (mirrorPolicy.minBytesPerSecond == 0 || sourceIndex + 1 >= sourceUris.size()) {
+            return;
+        }
+        long nowMs = Clock.DEFAULT.elapsedRealtime();
+        if (throughputWindowStartMs == C.TIME_UNSET) {
+            throughputWindowStartMs = nowMs;
+            throughputWindowBytes = 0;
+            return;
+        }
+        throughputWindowBytes += newBytes;
+        long windowDurationMs = nowMs - throughputWindowStartMs;
+        if (windowDurationMs < mirrorPolicy.throughputWindowMs) {
+            return;
+        }
+        long bytesPerSecond = throughputWindowBytes * 1000 / windowDurationMs;
+        if (bytesPerSecond < mirrorPolicy.minBytesPerSecond) {
+            throw new IOException("source too slow: " + bytesPerSecond + " B/s from " + sourceUris.get(sourceIndex));
+        }
+        throughputWindowStartMs = nowMs;
+        throughputWindowBytes = 0;
+    }
+
+    /**
+     * Returns the request for data starting at {@code position} from the source at {@code
+     * sourceIndex}. When resuming, {@code If-Range} is set so that the server returns the whole new
+     * file if it changed since the download started.
+     */
+    private DataSpec buildRequestDataSpec(int sourceIndex, long position) {
+        DataSpec sourceDataSpec = sourceIndex == 0 ? dataSpec : dataSpec.buildUpon().setUri(sourceUris.get(sourceIndex)).build();
+        if (acceptContentEncoding) {
+            sourceDataSpec = sourceDataSpec.buildUpon().setFlags(sourceDataSpec.flags | DataSpec.FLAG_KEEP_CONTENT_ENCODING).build();
+        }
+        //续传时带上If-Range，文件在两次下载之间发生变化时服务器会返回完整的新文件
+        @Nullable String ifRange = position > 0 ? getIfRangeValidator() : null;
+        return ifRange == null ? sourceDataSpec : withHeader(sourceDataSpec, HttpHeaders.IF_RANGE, ifRange);
+    }
+
+    private static DataSpec withHeader(DataSpec dataSpec, String name, String value) {
+        Map<String, String> headers = new HashMap<>(dataSpec.httpRequestHeaders);
+        headers.put(name, value);
+        return dataSpec.buildUpon().setHttpRequestHeaders(headers).build();
+    }
+
     private void onRequestEndPosition(long endPosition) {
         if (this.endPosition == endPosition) {
             return;
         }
         this.endPosition = endPosition;
         if (progressListener != null) {
-            progressListener.onProgress(getLength(), bytesCached, /* newBytesCached= */ 0);
+            progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
         }
     }
 
     private void onNewBytesCached(long newBytesCached) {
         bytesCached += newBytesCached;
-        if (progressListener != null) {
-            progressListener.onProgress(getLength(), bytesCached, newBytesCached);
+        //并行读取的字节计入速度，但在合并之前不计入已下载的连续进度
+        newBytesCached += mirrorSegmentNewBytes.getAndSet(0);
+        if (progressListener != null && progressAggregator.add(newBytesCached)) {
+            saveDigestState();
+            progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
+        }
+    }
+
+    private void flushProgress() {
+        saveDigestState();
+        if (progressListener != null && progressAggregator.hasPendingBytes()) {
+            progressListener.onProgress(getLength(), bytesCached, progressAggregator.flush());
         }
     }
 
@@ -209,4 +1147,76 @@ public class DataAdhesives {
             throw new InterruptedIOException();
         }
     }
+
+    /**
+     * 从镜像读取一段数据，写入同一个临时文件的对应位置。出错时只记录日志，
+     * 未完成的部分由当前数据源接着读取
+     */
+    private final class MirrorSegment extends RunnableFutureTask<Void, IOException> {
+
+        private final DataSpec dataSpec;
+        private volatile boolean isCanceled;
+        private volatile long bytesWritten;
+
+        private MirrorSegment(DataSpec dataSpec) {
+            this.dataSpec = dataSpec;
+        }
+
+        public void execute() {
+            Assertions.checkNotNull(executor).execute(this);
+        }
+
+        @Override
+        protected Void doWork() {
+            DataSource segmentDataSource = Assertions.checkNotNull(dataSourceFactory).createDataSource();
+            @Nullable DataDestination segmentDataDestination = null;
+            long segmentBytesWritten = 0;
+            try {
+                long resolvedLength = segmentDataSource.open(dataSpec);
+                if (!isExpectedResponse(segmentDataSource, resolvedLength)) {
+                    Log.w(TAG, "mirror " + dataSpec.uri + " didn't return the requested range");
+                    return null;
+                }
+                segmentDataDestination = Assertions.checkNotNull(dataDestinationFactory).createDataDestination();
+                segmentDataDestination.open(dataSpec);
+                byte[] buffer = new byte[DEFAULT_BUFFER_SIZE_BYTES];
+                while (!isCanceled && segmentBytesWritten < dataSpec.length) {
+                    int bytesRead = segmentDataSource.read(buffer, 0, (int) Math.min(buffer.length, dataSpec.length - segmentBytesWritten));
+                    if (bytesRead == C.RESULT_END_OF_INPUT) {
+                        break;
+                    }
+                    segmentDataDestination.write(buffer, 0, bytesRead);
+                    segmentBytesWritten += bytesRead;
+                    mirrorSegmentNewBytes.addAndGet(bytesRead);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "mirror " + dataSpec.uri + " failed after " + segmentBytesWritten + " bytes", e);
+            } finally {
+                DataSourceUtil.closeQuietly(segmentDataSource);
+                if (segmentDataDestination != null) {
+                    try {
+                        segmentDataDestination.close();
+                        bytesWritten = segmentBytesWritten;
+                    } catch (IOException e) {
+                        //没能刷到磁盘的数据不可信，交给当前数据源重新读取
+                        Log.w(TAG, "failed to close mirror destination", e);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void cancelWork() {
+            isCanceled = true;
+        }
+
+        private boolean isExpectedResponse(DataSource segmentDataSource, long resolvedLength) {
+            if (resolvedLength != C.LENGTH_UNSET && resolvedLength != dataSpec.length) {
+                return false;
+            }
+            @Nullable HttpDataSource httpDataSource = DefaultDataSource.getHttpDataSource(segmentDataSource);
+            return httpDataSource == null || !HttpUtil.isRangeIgnored(httpDataSource, dataSpec);
+        }
+    }
 }
@@ -15,6 +15,7 @@ public interface DataDestination extends DataWriter {
      * 打开一个dataSpec 也即是将源数据保存的地方
      * @param dataSpec 描述目的文件的地址
      * @return 返回C.LENGTH_UNSET 表示重新写入，大于0的表示前面的数据已经写了文件，从后面的数据开始写入
+     *     只能从更早的位置继续写入时返回那个位置，之后写入的数据从这个位置开始
      */
     long open(DataSpec dataSpec) throws IOException;
 
@@ -25,7 +26,8 @@ public interface DataDestination extends DataWriter {
     void close() throws IOException;
 
     /**
-     * 成功下载成功的回调
+     * 成功下载成功的回调，将写入的数据移动到最终的位置
+     * @throws IOException 移动失败时抛出，下载不能算作完成
      */
-    void done();
+    void done() throws IOException;
 }
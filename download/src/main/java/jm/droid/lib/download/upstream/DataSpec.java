@@ -264,7 +264,9 @@ public final class DataSpec {
         FLAG_ALLOW_GZIP,
         FLAG_DONT_CACHE_IF_LENGTH_UNKNOWN,
         FLAG_ALLOW_CACHE_FRAGMENTATION,
-        FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED
+        FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED,
+        FLAG_ALLOW_RANGE_IGNORED,
+        FLAG_KEEP_CONTENT_ENCODING
       })
   public @interface Flags {}
   /**
@@ -293,6 +295,19 @@ public final class DataSpec {
    * full network speed (e.g. server throttling or unfinished live media chunks).
    */
   public static final int FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED = 1 << 3;
+  /**
+   * Allows an {@link HttpDataSource} to return the resource from its start if the server ignores
+   * the requested range, rather than reading and discarding the bytes before {@link #position}. The
+   * caller can detect this case with {@link HttpUtil#isRangeIgnored(HttpDataSource, DataSpec)}.
+   */
+  public static final int FLAG_ALLOW_RANGE_IGNORED = 1 << 4;
+  /**
+   * Asks an {@link HttpDataSource} to request a {@code gzip} content-coded response and to return
+   * it without decoding it, so that positions and lengths refer to the encoded bytes. The caller
+   * must check the {@code Content-Encoding} response header and decode the data itself, for example
+   * with a {@link GzipDecoder}.
+   */
+  public static final int FLAG_KEEP_CONTENT_ENCODING = 1 << 5;
 
   /**
    * HTTP methods supported by ExoPlayer {@link HttpDataSource}s. One of {@link #HTTP_METHOD_GET},
@@ -0,0 +1,212 @@
+package jm.droid.lib.download.upstream;
+
+import static jm.droid.lib.download.util.Assertions.checkNotNull;
+import static jm.droid.lib.download.util.Assertions.checkState;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link DataSource} that picks the source for each request from the scheme of its URI, so that
+ * local files can be sideloaded and copied through the same resumable pipeline as downloads:
+ *
+ * <ul>
+ *   <li>{@code file} URIs, and URIs without a scheme, are read with a {@link FileDataSource}.
+ *   <li>{@code content} URIs are read with a {@link ContentDataSource}.
+ *   <li>Any other URI, typically {@code http} or {@code https}, is read with a source created by the
+ *       network {@link DataSource.Factory}.
+ * </ul>
+ *
+ * <p>Use {@link #getHttpDataSource} and {@link #getChannelDataSource} to reach the capabilities of
+ * the source serving the current request.
+ */
+public final class DefaultDataSource implements DataSource {
+
+  /** {@link DataSource.Factory} for {@link DefaultDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final Context context;
+    private final DataSource.Factory networkDataSourceFactory;
+
+    /**
+     * Creates an instance that reads network URIs with a {@link DefaultHttpDataSource}.
+     *
+     * @param context A context.
+     */
+    public Factory(Context context) {
+      this(context, new DefaultHttpDataSource.Factory());
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param context A context.
+     * @param networkDataSourceFactory A {@link DataSource.Factory} for network URIs, whose
+     *     instances should implement {@link HttpDataSource} so that resumption can be validated.
+     */
+    public Factory(Context context, DataSource.Factory networkDataSourceFactory) {
+      this.context = context.getApplicationContext();
+      this.networkDataSourceFactory = networkDataSourceFactory;
+    }
+
+    @Override
+    public DefaultDataSource createDataSource() {
+      return new DefaultDataSource(context, networkDataSourceFactory);
+    }
+  }
+
+  private static final String SCHEME_FILE = "file";
+  private static final String SCHEME_CONTENT = ContentResolver.SCHEME_CONTENT;
+
+  private final Context context;
+  private final DataSource.Factory networkDataSourceFactory;
+  private final List<TransferListener> transferListeners;
+
+  @Nullable private DataSource fileDataSource;
+  @Nullable private DataSource contentDataSource;
+  @Nullable private DataSource networkDataSource;
+
+  @Nullable private DataSource dataSource;
+
+  /**
+   * Creates an instance.
+   *
+   * @param context A context.
+   * @param networkDataSourceFactory A {@link DataSource.Factory} for network URIs.
+   */
+  public DefaultDataSource(Context context, DataSource.Factory networkDataSourceFactory) {
+    this.context = context.getApplicationContext();
+    this.networkDataSourceFactory = checkNotNull(networkDataSourceFactory);
+    transferListeners = new ArrayList<>();
+  }
+
+  /** Returns whether {@code uri} is read from the local device rather than from the network. */
+  public static boolean isLocalUri(Uri uri) {
+    @Nullable String scheme = uri.getScheme();
+    return TextUtils.isEmpty(scheme)
+        || SCHEME_FILE.equals(scheme.toLowerCase(Locale.US))
+        || SCHEME_CONTENT.equals(scheme.toLowerCase(Locale.US));
+  }
+
+  /**
+   * Returns {@code dataSource} if it's an {@link HttpDataSource}, the {@link HttpDataSource}
+   * serving the current request if it's an opened {@link DefaultDataSource}, or null otherwise.
+   */
+  @Nullable
+  public static HttpDataSource getHttpDataSource(@Nullable DataSource dataSource) {
+    if (dataSource instanceof DefaultDataSource) {
+      dataSource = ((DefaultDataSource) dataSource).dataSource;
+    }
+    return dataSource instanceof HttpDataSource ? (HttpDataSource) dataSource : null;
+  }
+
+  /**
+   * Returns {@code dataSource} if it's a {@link ChannelDataSource}, the {@link ChannelDataSource}
+   * serving the current request if it's an opened {@link DefaultDataSource}, or null otherwise.
+   */
+  @Nullable
+  public static ChannelDataSource getChannelDataSource(@Nullable DataSource dataSource) {
+    if (dataSource instanceof DefaultDataSource) {
+      dataSource = ((DefaultDataSource) dataSource).dataSource;
+    }
+    return dataSource instanceof ChannelDataSource ? (ChannelDataSource) dataSource : null;
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    checkNotNull(transferListener);
+    transferListeners.add(transferListener);
+    maybeAddListenerToDataSource(fileDataSource, transferListener);
+    maybeAddListenerToDataSource(contentDataSource, transferListener);
+    maybeAddListenerToDataSource(networkDataSource, transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    checkState(dataSource == null);
+    @Nullable String scheme = dataSpec.uri.getScheme();
+    if (TextUtils.isEmpty(scheme) || SCHEME_FILE.equals(scheme.toLowerCase(Locale.US))) {
+      dataSource = getFileDataSource();
+    } else if (SCHEME_CONTENT.equals(scheme.toLowerCase(Locale.US))) {
+      dataSource = getContentDataSource();
+    } else {
+      dataSource = getNetworkDataSource();
+    }
+    return dataSource.open(dataSpec);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    return checkNotNull(dataSource).read(buffer, offset, length);
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return dataSource == null ? null : dataSource.getUri();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return dataSource == null ? Collections.emptyMap() : dataSource.getResponseHeaders();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (dataSource != null) {
+      try {
+        dataSource.close();
+      } finally {
+        dataSource = null;
+      }
+    }
+  }
+
+  private DataSource getFileDataSource() {
+    if (fileDataSource == null) {
+      fileDataSource = new FileDataSource();
+      addListenersToDataSource(fileDataSource);
+    }
+    return fileDataSource;
+  }
+
+  private DataSource getContentDataSource() {
+    if (contentDataSource == null) {
+      contentDataSource = new ContentDataSource(context);
+      addListenersToDataSource(contentDataSource);
+    }
+    return contentDataSource;
+  }
+
+  private DataSource getNetworkDataSource() {
+    if (networkDataSource == null) {
+      networkDataSource = networkDataSourceFactory.createDataSource();
+      addListenersToDataSource(networkDataSource);
+    }
+    return networkDataSource;
+  }
+
+  private void addListenersToDataSource(DataSource dataSource) {
+    for (int i = 0; i < transferListeners.size(); i++) {
+      dataSource.addTransferListener(transferListeners.get(i));
+    }
+  }
+
+  private void maybeAddListenerToDataSource(
+      @Nullable DataSource dataSource, TransferListener listener) {
+    if (dataSource != null) {
+      dataSource.addTransferListener(listener);
+    }
+  }
+}
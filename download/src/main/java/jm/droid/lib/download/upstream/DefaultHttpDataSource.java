@@ -67,6 +67,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
 
     @Nullable private TransferListener transferListener;
     @Nullable private String userAgent;
+    @Nullable private RedirectCache redirectCache;
+    @Nullable private HostLatencyTracker latencyTracker;
     private int connectTimeoutMs;
     private int readTimeoutMs;
     private boolean allowCrossProtocolRedirects;
@@ -77,6 +79,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
       defaultRequestProperties = new RequestProperties();
       connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MILLIS;
       readTimeoutMs = DEFAULT_READ_TIMEOUT_MILLIS;
+      redirectCache = new RedirectCache();
+      latencyTracker = new HostLatencyTracker();
     }
 
 
@@ -145,6 +149,37 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     }
 
 
+    /**
+     * Sets the {@link RedirectCache} shared by the sources created by this factory, so that requests
+     * for a URL that was already resolved skip its redirect chain.
+     *
+     * <p>The default is a {@link RedirectCache} with default settings. Passing {@code null} disables
+     * caching.
+     *
+     * @param redirectCache The redirect cache that will be used, or {@code null}.
+     * @return This factory.
+     */
+    public Factory setRedirectCache(@Nullable RedirectCache redirectCache) {
+      this.redirectCache = redirectCache;
+      return this;
+    }
+
+    /**
+     * Sets the {@link HostLatencyTracker} shared by the sources created by this factory. The sources
+     * report their transfers to it and take their connect and read timeouts from it, falling back
+     * to the timeouts set on this factory for hosts that haven't been measured yet.
+     *
+     * <p>The default is a {@link HostLatencyTracker} with default settings. Passing {@code null}
+     * always uses the timeouts set on this factory.
+     *
+     * @param latencyTracker The latency tracker that will be used, or {@code null}.
+     * @return This factory.
+     */
+    public Factory setLatencyTracker(@Nullable HostLatencyTracker latencyTracker) {
+      this.latencyTracker = latencyTracker;
+      return this;
+    }
+
     /**
      * Sets the {@link TransferListener} that will be used.
      *
@@ -180,10 +215,15 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
               readTimeoutMs,
               allowCrossProtocolRedirects,
               defaultRequestProperties,
-              keepPostFor302Redirects);
+              keepPostFor302Redirects,
+              redirectCache,
+              latencyTracker);
       if (transferListener != null) {
         dataSource.addTransferListener(transferListener);
       }
+      if (latencyTracker != null) {
+        dataSource.addTransferListener(latencyTracker);
+      }
       return dataSource;
     }
   }
@@ -206,6 +246,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
   @Nullable private final RequestProperties defaultRequestProperties;
   private final RequestProperties requestProperties;
   private final boolean keepPostFor302Redirects;
+  @Nullable private final RedirectCache redirectCache;
+  @Nullable private final HostLatencyTracker latencyTracker;
 
   @Nullable private DataSpec dataSpec;
   @Nullable private HttpURLConnection connection;
@@ -214,6 +256,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
   private int responseCode;
   private long bytesToRead;
   private long bytesRead;
+  private int requestConnectTimeoutMillis;
+  private int requestReadTimeoutMillis;
 
   /**
    * @deprecated Use {@link Factory} instead.
@@ -264,7 +308,9 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
         readTimeoutMillis,
         allowCrossProtocolRedirects,
         defaultRequestProperties,
-        /* keepPostFor302Redirects= */ false);
+        /* keepPostFor302Redirects= */ false,
+        /* redirectCache= */ null,
+        /* latencyTracker= */ null);
   }
 
   private DefaultHttpDataSource(
@@ -273,7 +319,9 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
       int readTimeoutMillis,
       boolean allowCrossProtocolRedirects,
       @Nullable RequestProperties defaultRequestProperties,
-      boolean keepPostFor302Redirects) {
+      boolean keepPostFor302Redirects,
+      @Nullable RedirectCache redirectCache,
+      @Nullable HostLatencyTracker latencyTracker) {
     super(/* isNetwork= */ true);
     this.userAgent = userAgent;
     this.connectTimeoutMillis = connectTimeoutMillis;
@@ -282,6 +330,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     this.defaultRequestProperties = defaultRequestProperties;
     this.requestProperties = new RequestProperties();
     this.keepPostFor302Redirects = keepPostFor302Redirects;
+    this.redirectCache = redirectCache;
+    this.latencyTracker = latencyTracker;
   }
 
   @Override
@@ -335,6 +385,13 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     this.dataSpec = dataSpec;
     bytesRead = 0;
     bytesToRead = 0;
+    requestConnectTimeoutMillis = connectTimeoutMillis;
+    requestReadTimeoutMillis = readTimeoutMillis;
+    if (latencyTracker != null) {
+      requestConnectTimeoutMillis =
+          latencyTracker.getConnectTimeoutMs(dataSpec.uri, connectTimeoutMillis);
+      requestReadTimeoutMillis = latencyTracker.getReadTimeoutMs(dataSpec.uri, readTimeoutMillis);
+    }
     transferInitializing(dataSpec);
 
     String responseMessage;
@@ -382,14 +439,19 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     }
 
     // If we requested a range starting from a non-zero position and received a 200 rather than a
-    // 206, then the server does not support partial requests. We'll need to manually skip to the
-    // requested position.
-    long bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+    // 206, then the server does not support partial requests. Unless the caller can take the data
+    // from the start of the resource, we'll need to manually skip to the requested position.
+    boolean readFromStart =
+        HttpUtil.isRangeIgnored(this, dataSpec)
+            && dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_RANGE_IGNORED);
+    long bytesToSkip =
+        responseCode == 200 && dataSpec.position != 0 && !readFromStart ? dataSpec.position : 0;
 
     // Determine the length of the data to be read, after skipping.
-    boolean isCompressed = isCompressed(connection);
+    boolean isCompressed =
+        isCompressed(connection) && !dataSpec.isFlagSet(DataSpec.FLAG_KEEP_CONTENT_ENCODING);
     if (!isCompressed) {
-      if (dataSpec.length != C.LENGTH_UNSET) {
+      if (dataSpec.length != C.LENGTH_UNSET && !readFromStart) {
         bytesToRead = dataSpec.length;
       } else {
         long contentLength =
@@ -403,7 +465,7 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
       // Gzip is enabled. If the server opts to use gzip then the content length in the response
       // will be that of the compressed data, which isn't what we want. Always use the dataSpec
       // length in this case.
-      bytesToRead = dataSpec.length;
+      bytesToRead = readFromStart ? C.LENGTH_UNSET : dataSpec.length;
     }
 
     try {
@@ -484,26 +546,43 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     URL url = new URL(dataSpec.uri.toString());
     @HttpMethod int httpMethod = dataSpec.httpMethod;
     @Nullable byte[] httpBody = dataSpec.httpBody;
-    long position = dataSpec.position;
-    long length = dataSpec.length;
-    boolean allowGzip = dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP);
+    // Built once, rather than for every redirect hop.
+    @Nullable String rangeHeader = buildRangeRequestHeader(dataSpec.position, dataSpec.length);
+    boolean allowGzip =
+        dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)
+            || dataSpec.isFlagSet(DataSpec.FLAG_KEEP_CONTENT_ENCODING);
 
-    if (!allowCrossProtocolRedirects && !keepPostFor302Redirects) {
+    if (!allowCrossProtocolRedirects && !keepPostFor302Redirects && redirectCache == null) {
       // HttpURLConnection disallows cross-protocol redirects, but otherwise performs redirection
       // automatically. This is the behavior we want, so use it.
       return makeConnection(
           url,
           httpMethod,
           httpBody,
-          position,
-          length,
+          rangeHeader,
           allowGzip,
           /* followRedirects= */ true,
           dataSpec.httpRequestHeaders);
     }
 
-    // We need to handle redirects ourselves to allow cross-protocol redirects or to keep the POST
-    // request method for 302.
+    // We need to handle redirects ourselves to allow cross-protocol redirects, to keep the POST
+    // request method for 302, or to see the hops that are cached.
+    boolean isRedirectCacheable =
+        redirectCache != null
+            && (httpMethod == DataSpec.HTTP_METHOD_GET || httpMethod == DataSpec.HTTP_METHOD_HEAD);
+    String originalUrl = url.toString();
+    boolean isCachedRedirect = false;
+    if (isRedirectCacheable) {
+      @Nullable String cachedLocation = castNonNull(redirectCache).get(httpMethod, originalUrl);
+      if (cachedLocation != null) {
+        url = new URL(cachedLocation);
+        isCachedRedirect = true;
+      }
+    }
+    // TIME_UNSET is less than any expiry time, so taking the minimum over the hops also propagates
+    // a hop that must not be cached.
+    long redirectExpiryTimeMs = Long.MAX_VALUE;
+    boolean followedRedirect = false;
     int redirectCount = 0;
     while (redirectCount++ <= MAX_REDIRECTS) {
       HttpURLConnection connection =
@@ -511,8 +590,7 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
               url,
               httpMethod,
               httpBody,
-              position,
-              length,
+              rangeHeader,
               allowGzip,
               /* followRedirects= */ false,
               dataSpec.httpRequestHeaders);
@@ -525,6 +603,17 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
               || responseCode == HttpURLConnection.HTTP_SEE_OTHER
               || responseCode == HTTP_STATUS_TEMPORARY_REDIRECT
               || responseCode == HTTP_STATUS_PERMANENT_REDIRECT)) {
+        if (isRedirectCacheable) {
+          redirectExpiryTimeMs =
+              min(
+                  redirectExpiryTimeMs,
+                  castNonNull(redirectCache)
+                      .getExpiryTimeMs(
+                          responseCode,
+                          connection.getHeaderField(HttpHeaders.CACHE_CONTROL),
+                          connection.getHeaderField(HttpHeaders.EXPIRES)));
+          followedRedirect = true;
+        }
         connection.disconnect();
         url = handleRedirect(url, location, dataSpec);
       } else if (httpMethod == DataSpec.HTTP_METHOD_POST
@@ -541,7 +630,26 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
           httpBody = null;
         }
         url = handleRedirect(url, location, dataSpec);
+      } else if (isCachedRedirect
+          && responseCode >= 400
+          && responseCode < 500
+          && responseCode != 416) {
+        // The cached location is stale, for example because a signed URL expired. Walk the chain
+        // again from the original URL.
+        castNonNull(redirectCache).invalidate(httpMethod, originalUrl);
+        connection.disconnect();
+        url = new URL(originalUrl);
+        isCachedRedirect = false;
+        redirectExpiryTimeMs = Long.MAX_VALUE;
+        followedRedirect = false;
       } else {
+        if (isRedirectCacheable
+            && responseCode >= 200
+            && responseCode < 300
+            && followedRedirect) {
+          castNonNull(redirectCache)
+              .put(httpMethod, originalUrl, url.toString(), redirectExpiryTimeMs);
+        }
         return connection;
       }
     }
@@ -560,8 +668,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
    * @param url The url to connect to.
    * @param httpMethod The http method.
    * @param httpBody The body data, or {@code null} if not required.
-   * @param position The byte offset of the requested data.
-   * @param length The length of the requested data, or {@link C#LENGTH_UNSET}.
+   * @param rangeHeader The {@link HttpHeaders#RANGE Range header}, or {@code null} if the whole
+   *     resource is requested.
    * @param allowGzip Whether to allow the use of gzip.
    * @param followRedirects Whether to follow redirects.
    * @param requestParameters parameters (HTTP headers) to include in request.
@@ -570,28 +678,21 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
       URL url,
       @HttpMethod int httpMethod,
       @Nullable byte[] httpBody,
-      long position,
-      long length,
+      @Nullable String rangeHeader,
       boolean allowGzip,
       boolean followRedirects,
       Map<String, String> requestParameters)
       throws IOException {
     HttpURLConnection connection = openConnection(url);
-    connection.setConnectTimeout(connectTimeoutMillis);
-    connection.setReadTimeout(readTimeoutMillis);
+    connection.setConnectTimeout(requestConnectTimeoutMillis);
+    connection.setReadTimeout(requestReadTimeoutMillis);
 
-    Map<String, String> requestHeaders = new HashMap<>();
-    if (defaultRequestProperties != null) {
-      requestHeaders.putAll(defaultRequestProperties.getSnapshot());
-    }
-    requestHeaders.putAll(requestProperties.getSnapshot());
-    requestHeaders.putAll(requestParameters);
+    setRequestHeaders(
+        connection,
+        defaultRequestProperties != null ? defaultRequestProperties.getSnapshot() : null,
+        requestProperties.getSnapshot(),
+        requestParameters);
 
-    for (Map.Entry<String, String> property : requestHeaders.entrySet()) {
-      connection.setRequestProperty(property.getKey(), property.getValue());
-    }
-
-    @Nullable String rangeHeader = buildRangeRequestHeader(position, length);
     if (rangeHeader != null) {
       connection.setRequestProperty(HttpHeaders.RANGE, rangeHeader);
     }
@@ -615,6 +716,36 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     return connection;
   }
 
+  /**
+   * Sets request headers on a connection, in increasing order of priority.
+   *
+   * <p>{@link HttpURLConnection#setRequestProperty} replaces any previous value, so applying the
+   * cached, immutable snapshots one after the other gives the same result as merging them, without
+   * allocating a merged map for every connection and redirect hop. Empty maps are skipped.
+   */
+  @VisibleForTesting
+  /* package */ static void setRequestHeaders(
+      HttpURLConnection connection,
+      @Nullable Map<String, String> defaultRequestProperties,
+      Map<String, String> requestProperties,
+      Map<String, String> dataSpecRequestHeaders) {
+    if (defaultRequestProperties != null) {
+      setRequestHeaders(connection, defaultRequestProperties);
+    }
+    setRequestHeaders(connection, requestProperties);
+    setRequestHeaders(connection, dataSpecRequestHeaders);
+  }
+
+  private static void setRequestHeaders(
+      HttpURLConnection connection, Map<String, String> requestHeaders) {
+    if (requestHeaders.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, String> property : requestHeaders.entrySet()) {
+      connection.setRequestProperty(property.getKey(), property.getValue());
+    }
+  }
+
   /** Creates an {@link HttpURLConnection} that is connected with the {@code url}. */
   @VisibleForTesting
   /* package */ HttpURLConnection openConnection(URL url) throws IOException {
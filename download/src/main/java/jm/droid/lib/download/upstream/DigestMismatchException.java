@@ -0,0 +1,26 @@
+package jm.droid.lib.download.upstream;
+
+import jm.droid.lib.download.offline.DownloadRequest;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the digest of a downloaded file doesn't match {@link DownloadRequest#expectedDigest}.
+ * The partial file is discarded, so a retry downloads the content again from the start.
+ */
+public final class DigestMismatchException extends IOException {
+
+  /** The algorithm of the digests. */
+  public final String algorithm;
+  /** The expected digest, as hex. */
+  public final String expectedDigest;
+  /** The digest of the downloaded file, as lower case hex. */
+  public final String actualDigest;
+
+  public DigestMismatchException(String algorithm, String expectedDigest, String actualDigest) {
+    super(algorithm + " mismatch, expected " + expectedDigest + " but was " + actualDigest);
+    this.algorithm = algorithm;
+    this.expectedDigest = expectedDigest;
+    this.actualDigest = actualDigest;
+  }
+}
@@ -1,13 +1,17 @@
 package jm.droid.lib.download.upstream;
 
+import androidx.annotation.Nullable;
+
 import jm.droid.lib.download.C;
 import jm.droid.lib.download.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 
 public class FileDataDestination implements DataDestination {
-    private final static String SUFFIX = ".tmp";
+    /** 临时文件的后缀，下载完成后去掉 */
+    public final static String SUFFIX = ".tmp";
     private FileOutputStream outputStream;
     private final static String TAG = "FileDataDestination";
 
@@ -20,12 +24,23 @@ public class FileDataDestination implements DataDestination {
         }
     }
 
+    /**
+     * 返回下载到{@code path}时写入的临时文件，下载完成后才会重命名为{@code path}
+     */
+    public static File getTempFile(String path) {
+        return new File(path + SUFFIX);
+    }
+
     @Override
     public long open(DataSpec dataSpec) throws IOException {
         originalFilePath = dataSpec.path;
         String temp = dataSpec.path + SUFFIX;
-        File tempFile = new File(temp);
+        File tempFile = getTempFile(dataSpec.path);
         Log.i(TAG, "byteCached:"+dataSpec.position+" , data spec pos:"+dataSpec.position);
+        //从头开始写时删除旧的临时文件，避免重新下载的内容比旧文件短时残留旧数据
+        if (dataSpec.position == 0 && tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, "failed to delete " + temp);
+        }
         outputStream = new FileRandomAccessFile(tempFile);
         if (dataSpec.position > 0) {
             outputStream.seek(dataSpec.position);
@@ -38,6 +53,24 @@ public class FileDataDestination implements DataDestination {
         outputStream.write(buffer, offset, length);
         return 0;
     }
+    /**
+     * 返回可以直接写入临时文件的channel，用于本地文件不经过Java堆的复制，不支持时返回null
+     */
+    @Nullable
+    public WritableByteChannel getChannel() throws IOException {
+        if (outputStream instanceof FileRandomAccessFile) {
+            return ((FileRandomAccessFile) outputStream).getChannel();
+        }
+        return null;
+    }
+
+    /**
+     * 把已经写入的数据同步到磁盘，边下载边读取时读取方只读取同步过的数据
+     */
+    public void sync() throws IOException {
+        outputStream.flushAndSync();
+    }
+
     @Override
     public void close() throws IOException {
         outputStream.flushAndSync();
@@ -45,8 +78,13 @@ public class FileDataDestination implements DataDestination {
     }
 
     @Override
-    public void done() {
-        boolean success = new File(originalFilePath+SUFFIX).renameTo(new File(originalFilePath));
-        Log.i(TAG,"rename :"+success);
+    public void done() throws IOException {
+        File tempFile = getTempFile(originalFilePath);
+        File file = new File(originalFilePath);
+        //重命名失败时抛出异常，不能让索引记录为已完成而文件还是临时文件
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("failed to rename " + tempFile + " to " + file);
+        }
+        Log.i(TAG, "renamed to " + file);
     }
 }
@@ -0,0 +1,225 @@
+package jm.droid.lib.download.upstream;
+
+import static jm.droid.lib.download.util.Util.castNonNull;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.PlaybackException;
+import jm.droid.lib.download.util.Util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** A {@link DataSource} for reading local files, for sideloading and copying them. */
+public final class FileDataSource extends BaseDataSource implements ChannelDataSource {
+
+  /** Thrown when a {@link FileDataSource} encounters an error reading a file. */
+  public static class FileDataSourceException extends DataSourceException {
+
+    public FileDataSourceException(
+        @Nullable String message,
+        @Nullable Throwable cause,
+        @PlaybackException.ErrorCode int errorCode) {
+      super(message, cause, errorCode);
+    }
+  }
+
+  /** {@link DataSource.Factory} for {@link FileDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    @Nullable private TransferListener listener;
+
+    /**
+     * Sets a {@link TransferListener} for {@link FileDataSource} instances created by this factory.
+     *
+     * @param listener The {@link TransferListener}.
+     * @return This factory.
+     */
+    public Factory setListener(@Nullable TransferListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    @Override
+    public FileDataSource createDataSource() {
+      FileDataSource dataSource = new FileDataSource();
+      if (listener != null) {
+        dataSource.addTransferListener(listener);
+      }
+      return dataSource;
+    }
+  }
+
+  @Nullable private RandomAccessFile file;
+  @Nullable private FileChannel channel;
+  @Nullable private Uri uri;
+  private long position;
+  private long bytesRemaining;
+  private boolean opened;
+
+  public FileDataSource() {
+    super(/* isNetwork= */ false);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    Uri uri = dataSpec.uri;
+    this.uri = uri;
+    transferInitializing(dataSpec);
+    this.file = openLocalFile(uri);
+    try {
+      channel = file.getChannel();
+      position = dataSpec.position;
+      long fileLength = channel.size();
+      if (position > fileLength) {
+        throw new FileDataSourceException(
+            /* message= */ null,
+            /* cause= */ null,
+            PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+      }
+      bytesRemaining =
+          dataSpec.length == C.LENGTH_UNSET
+              ? fileLength - position
+              : min(dataSpec.length, fileLength - position);
+    } catch (FileDataSourceException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new FileDataSourceException(
+          /* message= */ null, e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+    opened = true;
+    transferStarted(dataSpec);
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws FileDataSourceException {
+    if (length == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesRead;
+    try {
+      ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) min(bytesRemaining, length));
+      bytesRead = castNonNull(channel).read(target, position);
+    } catch (IOException e) {
+      throw new FileDataSourceException(
+          /* message= */ null, e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+    if (bytesRead == C.RESULT_END_OF_INPUT) {
+      // The file was truncated while it was being read.
+      bytesRemaining = 0;
+      return C.RESULT_END_OF_INPUT;
+    }
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    bytesTransferred(bytesRead);
+    return bytesRead;
+  }
+
+  @Override
+  public boolean isTransferSupported() {
+    return true;
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target, long maxLength)
+      throws FileDataSourceException {
+    if (maxLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    long bytesTransferred;
+    try {
+      bytesTransferred =
+          castNonNull(channel).transferTo(position, min(bytesRemaining, maxLength), target);
+    } catch (IOException e) {
+      throw new FileDataSourceException(
+          /* message= */ null, e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+    if (bytesTransferred == 0) {
+      // transferTo doesn't report the end of the file, which is only reached early if the file was
+      // truncated while it was being read.
+      bytesRemaining = 0;
+      return C.RESULT_END_OF_INPUT;
+    }
+    position += bytesTransferred;
+    bytesRemaining -= bytesTransferred;
+    bytesTransferred((int) bytesTransferred);
+    return bytesTransferred;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws FileDataSourceException {
+    uri = null;
+    channel = null;
+    try {
+      if (file != null) {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(
+          /* message= */ null, e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    } finally {
+      file = null;
+      if (opened) {
+        opened = false;
+        transferEnded();
+      }
+    }
+  }
+
+  private static RandomAccessFile openLocalFile(Uri uri) throws FileDataSourceException {
+    try {
+      return new RandomAccessFile(uri.getPath(), "r");
+    } catch (FileNotFoundException e) {
+      if (!TextUtils.isEmpty(uri.getQuery()) || !TextUtils.isEmpty(uri.getFragment())) {
+        throw new FileDataSourceException(
+            String.format(
+                "uri has query and/or fragment, which are not supported. Did you call Uri.parse()"
+                    + " on a string containing '?' or '#'? Use Uri.fromFile(new File(path)) to"
+                    + " avoid this. path=%s,query=%s,fragment=%s",
+                uri.getPath(), uri.getQuery(), uri.getFragment()),
+            e,
+            PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND);
+      }
+      throw new FileDataSourceException(
+          e.getMessage(),
+          e,
+          Util.SDK_INT >= 21 && isPermissionError(e.getCause())
+              ? PlaybackException.ERROR_CODE_IO_NO_PERMISSION
+              : PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND);
+    } catch (SecurityException e) {
+      throw new FileDataSourceException(
+          e.getMessage(), e, PlaybackException.ERROR_CODE_IO_NO_PERMISSION);
+    } catch (RuntimeException e) {
+      throw new FileDataSourceException(
+          e.getMessage(), e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    }
+  }
+
+  @RequiresApi(21)
+  private static boolean isPermissionError(@Nullable Throwable e) {
+    return e instanceof ErrnoException && ((ErrnoException) e).errno == OsConstants.EACCES;
+  }
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
  * The FileOutputStream implemented using {@link RandomAccessFile}.
@@ -54,6 +55,15 @@ public class FileRandomAccessFile implements FileOutputStream {
         randomAccess.close();
     }
 
+    /**
+     * 先把缓冲区的数据写入文件再返回文件的channel，channel的位置就是下一次写入的位置，
+     * 通过channel写入后再调用write会接着channel写到的位置继续
+     */
+    public FileChannel getChannel() throws IOException {
+        out.flush();
+        return randomAccess.getChannel();
+    }
+
     @Override
     public void seek(long offset) throws IOException {
         randomAccess.seek(offset);
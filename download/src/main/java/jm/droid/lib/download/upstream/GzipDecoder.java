@@ -0,0 +1,280 @@
+package jm.droid.lib.download.upstream;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a {@code gzip} content-coded stream as it is read from the network, writing the decoded
+ * bytes to a {@link DataWriter}.
+ *
+ * <p>Tracks the offset in the encoded stream as received ({@link #getInputPosition()}) separately
+ * from the offset in the decoded output ({@link #getOutputPosition()}). The state of an {@link
+ * Inflater} can't be saved, so decoding can only be resumed where no state is carried over: at the
+ * start of a gzip member. The offsets of the last such point are available from {@link
+ * #getCheckpointInputPosition()} and {@link #getCheckpointOutputPosition()}. Concatenated members
+ * are decoded one after the other, so content encoded as many members can be resumed close to where
+ * it stopped.
+ *
+ * <p>Not thread safe.
+ */
+public final class GzipDecoder {
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static final int FIXED_HEADER_LENGTH = 10;
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final int STATE_HEADER = 0;
+  private static final int STATE_EXTRA_LENGTH = 1;
+  private static final int STATE_EXTRA = 2;
+  private static final int STATE_NAME = 3;
+  private static final int STATE_COMMENT = 4;
+  private static final int STATE_HEADER_CRC = 5;
+  private static final int STATE_BODY = 6;
+  private static final int STATE_TRAILER = 7;
+
+  private final Inflater inflater;
+  private final CRC32 crc;
+  private final byte[] scratch;
+  private final byte[] outputBuffer;
+
+  private int state;
+  private int flags;
+  private int scratchLength;
+  private int bytesToSkip;
+  private long memberOutputLength;
+  private long inputPosition;
+  private long outputPosition;
+  private long checkpointInputPosition;
+  private long checkpointOutputPosition;
+
+  /**
+   * Creates an instance that decodes a stream starting at a gzip member boundary.
+   *
+   * @param inputPosition The offset of the start of the stream in the encoded content.
+   * @param outputPosition The offset of the start of the stream in the decoded content.
+   */
+  public GzipDecoder(long inputPosition, long outputPosition) {
+    inflater = new Inflater(/* nowrap= */ true);
+    crc = new CRC32();
+    scratch = new byte[FIXED_HEADER_LENGTH];
+    outputBuffer = new byte[DataAdhesives.DEFAULT_BUFFER_SIZE_BYTES];
+    this.inputPosition = inputPosition;
+    this.outputPosition = outputPosition;
+    checkpointInputPosition = inputPosition;
+    checkpointOutputPosition = outputPosition;
+  }
+
+  /**
+   * Returns whether {@code contentEncoding} is decoded by this class.
+   *
+   * @param contentEncoding The value of a {@code Content-Encoding} header, or null.
+   */
+  public static boolean isSupported(@Nullable String contentEncoding) {
+    if (contentEncoding == null) {
+      return false;
+    }
+    String coding = contentEncoding.trim().toLowerCase(Locale.US);
+    return coding.equals("gzip") || coding.equals("x-gzip");
+  }
+
+  /**
+   * Decodes encoded bytes.
+   *
+   * @param buffer The buffer containing the encoded bytes.
+   * @param offset The offset of the first encoded byte in {@code buffer}.
+   * @param length The number of encoded bytes.
+   * @param output The {@link DataWriter} to which decoded bytes are written.
+   * @throws IOException If the encoded bytes are malformed, or writing to {@code output} failed.
+   */
+  public void decode(byte[] buffer, int offset, int length, DataWriter output) throws IOException {
+    int end = offset + length;
+    while (offset < end) {
+      int consumed;
+      if (state == STATE_BODY) {
+        consumed = inflate(buffer, offset, end - offset, output);
+      } else {
+        consumed = parseFraming(buffer, offset, end - offset);
+      }
+      offset += consumed;
+      inputPosition += consumed;
+    }
+  }
+
+  /**
+   * Checks that the encoded stream ended at a gzip member boundary.
+   *
+   * @throws IOException If the stream is truncated.
+   */
+  public void finish() throws IOException {
+    if (state != STATE_HEADER || scratchLength != 0) {
+      throw new IOException("Truncated gzip stream at " + inputPosition);
+    }
+  }
+
+  /** Releases the resources of the decoder. */
+  public void release() {
+    inflater.end();
+  }
+
+  /** Returns the offset in the encoded content up to which bytes have been decoded. */
+  public long getInputPosition() {
+    return inputPosition;
+  }
+
+  /** Returns the offset in the decoded content up to which bytes have been written. */
+  public long getOutputPosition() {
+    return outputPosition;
+  }
+
+  /** Returns the offset in the encoded content of the last point from which decoding can resume. */
+  public long getCheckpointInputPosition() {
+    return checkpointInputPosition;
+  }
+
+  /** Returns the offset in the decoded content of the last point from which decoding can resume. */
+  public long getCheckpointOutputPosition() {
+    return checkpointOutputPosition;
+  }
+
+  private int inflate(byte[] buffer, int offset, int length, DataWriter output)
+      throws IOException {
+    inflater.setInput(buffer, offset, length);
+    try {
+      while (!inflater.finished() && !inflater.needsInput()) {
+        int outputLength = inflater.inflate(outputBuffer);
+        if (outputLength > 0) {
+          crc.update(outputBuffer, 0, outputLength);
+          output.write(outputBuffer, 0, outputLength);
+          memberOutputLength += outputLength;
+          outputPosition += outputLength;
+        } else if (inflater.needsDictionary()) {
+          throw new IOException("Unexpected preset dictionary in gzip stream");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Malformed gzip stream at " + inputPosition, e);
+    }
+    int remaining = inflater.getRemaining();
+    if (inflater.finished()) {
+      state = STATE_TRAILER;
+      scratchLength = 0;
+    }
+    return length - remaining;
+  }
+
+  /** Parses header and trailer bytes, returning the number of bytes consumed. */
+  private int parseFraming(byte[] buffer, int offset, int length) throws IOException {
+    switch (state) {
+      case STATE_HEADER:
+        {
+          int consumed = fillScratch(buffer, offset, length, FIXED_HEADER_LENGTH);
+          if (scratchLength == FIXED_HEADER_LENGTH) {
+            if ((scratch[0] & 0xFF) != 0x1F || (scratch[1] & 0xFF) != 0x8B || scratch[2] != 8) {
+              throw new IOException("Not a gzip stream at " + (inputPosition + consumed));
+            }
+            flags = scratch[3];
+            scratchLength = 0;
+            advanceHeader(STATE_HEADER);
+          }
+          return consumed;
+        }
+      case STATE_EXTRA_LENGTH:
+        {
+          int consumed = fillScratch(buffer, offset, length, 2);
+          if (scratchLength == 2) {
+            bytesToSkip = (scratch[0] & 0xFF) | ((scratch[1] & 0xFF) << 8);
+            scratchLength = 0;
+            state = STATE_EXTRA;
+            if (bytesToSkip == 0) {
+              advanceHeader(STATE_EXTRA);
+            }
+          }
+          return consumed;
+        }
+      case STATE_EXTRA:
+      case STATE_HEADER_CRC:
+        {
+          int consumed = Math.min(length, bytesToSkip);
+          bytesToSkip -= consumed;
+          if (bytesToSkip == 0) {
+            advanceHeader(state);
+          }
+          return consumed;
+        }
+      case STATE_NAME:
+      case STATE_COMMENT:
+        {
+          for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] == 0) {
+              advanceHeader(state);
+              return i + 1;
+            }
+          }
+          return length;
+        }
+      case STATE_TRAILER:
+        {
+          int consumed = fillScratch(buffer, offset, length, TRAILER_LENGTH);
+          if (scratchLength == TRAILER_LENGTH) {
+            if (readLittleEndianInt(0) != crc.getValue()
+                || readLittleEndianInt(4) != (memberOutputLength & 0xFFFFFFFFL)) {
+              throw new IOException("Corrupt gzip member ending at " + (inputPosition + consumed));
+            }
+            onMemberEnded(inputPosition + consumed);
+          }
+          return consumed;
+        }
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /** Moves to the next optional header field present after {@code currentState}. */
+  private void advanceHeader(int currentState) {
+    if (currentState < STATE_EXTRA_LENGTH && (flags & FEXTRA) != 0) {
+      state = STATE_EXTRA_LENGTH;
+    } else if (currentState < STATE_NAME && (flags & FNAME) != 0) {
+      state = STATE_NAME;
+    } else if (currentState < STATE_COMMENT && (flags & FCOMMENT) != 0) {
+      state = STATE_COMMENT;
+    } else if (currentState < STATE_HEADER_CRC && (flags & FHCRC) != 0) {
+      state = STATE_HEADER_CRC;
+      bytesToSkip = 2;
+    } else {
+      state = STATE_BODY;
+    }
+  }
+
+  private void onMemberEnded(long memberEndInputPosition) {
+    inflater.reset();
+    crc.reset();
+    memberOutputLength = 0;
+    scratchLength = 0;
+    state = STATE_HEADER;
+    checkpointInputPosition = memberEndInputPosition;
+    checkpointOutputPosition = outputPosition;
+  }
+
+  private int fillScratch(byte[] buffer, int offset, int length, int targetLength) {
+    int consumed = Math.min(length, targetLength - scratchLength);
+    System.arraycopy(buffer, offset, scratch, scratchLength, consumed);
+    scratchLength += consumed;
+    return consumed;
+  }
+
+  private long readLittleEndianInt(int offset) {
+    return (scratch[offset] & 0xFFL)
+        | ((scratch[offset + 1] & 0xFFL) << 8)
+        | ((scratch[offset + 2] & 0xFFL) << 16)
+        | ((scratch[offset + 3] & 0xFFL) << 24);
+  }
+}
@@ -0,0 +1,235 @@
+package jm.droid.lib.download.upstream;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Clock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link TransferListener} that measures the latency and the pace of network transfers per host,
+ * so that connect and read timeouts can follow the network instead of being fixed.
+ *
+ * <p>Two quantities are tracked for each host:
+ *
+ * <ul>
+ *   <li>The response time, from {@link #onTransferInitializing} to {@link #onTransferStart}, which
+ *       covers connecting, the TLS handshake and waiting for the response headers. It's smoothed
+ *       like a TCP round trip time (RFC 6298), giving a retransmission-style timeout {@code srtt + 4
+ *       * rttvar}.
+ *   <li>The interval between successive {@link #onBytesTransferred} calls of a transfer, as an
+ *       exponentially weighted moving average.
+ * </ul>
+ *
+ * <p>The connect timeout is twice the response timeout. The read timeout, which is also how long a
+ * transfer may go without receiving any byte before it's treated as stalled, is the larger of the
+ * response timeout and {@link #stallMultiplier} times the expected interval between reads. Both are
+ * clamped to [{@link #minTimeoutMs}, {@link #maxTimeoutMs}]. Hosts without samples use the
+ * caller's default timeouts.
+ *
+ * <p>Thread safe, so one instance can be shared by all data sources created by a factory.
+ */
+public final class HostLatencyTracker implements TransferListener {
+
+  /** The default lower bound of derived timeouts, in milliseconds. */
+  public static final int DEFAULT_MIN_TIMEOUT_MS = 2_000;
+  /** The default upper bound of derived timeouts, in milliseconds. */
+  public static final int DEFAULT_MAX_TIMEOUT_MS = 30_000;
+  /** The default number of expected read intervals without data after which a read times out. */
+  public static final int DEFAULT_STALL_MULTIPLIER = 4;
+
+  private static final int MAX_HOSTS = 32;
+  private static final double RTT_ALPHA = 1 / 8d;
+  private static final double RTT_BETA = 1 / 4d;
+  private static final double READ_INTERVAL_WEIGHT = 1 / 8d;
+
+  private final int minTimeoutMs;
+  private final int maxTimeoutMs;
+  private final int stallMultiplier;
+  private final Clock clock;
+  private final LinkedHashMap<String, HostStats> hostStats;
+  private final HashMap<DataSource, Transfer> transfers;
+
+  /**
+   * Creates an instance using {@link #DEFAULT_MIN_TIMEOUT_MS}, {@link #DEFAULT_MAX_TIMEOUT_MS} and
+   * {@link #DEFAULT_STALL_MULTIPLIER}.
+   */
+  public HostLatencyTracker() {
+    this(DEFAULT_MIN_TIMEOUT_MS, DEFAULT_MAX_TIMEOUT_MS, DEFAULT_STALL_MULTIPLIER);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param minTimeoutMs The lower bound of derived timeouts, in milliseconds.
+   * @param maxTimeoutMs The upper bound of derived timeouts, in milliseconds.
+   * @param stallMultiplier The number of expected read intervals without data after which a read
+   *     times out.
+   */
+  public HostLatencyTracker(int minTimeoutMs, int maxTimeoutMs, int stallMultiplier) {
+    this(minTimeoutMs, maxTimeoutMs, stallMultiplier, Clock.DEFAULT);
+  }
+
+  /* package */ HostLatencyTracker(
+      int minTimeoutMs, int maxTimeoutMs, int stallMultiplier, Clock clock) {
+    Assertions.checkArgument(0 < minTimeoutMs && minTimeoutMs <= maxTimeoutMs);
+    Assertions.checkArgument(stallMultiplier > 0);
+    this.minTimeoutMs = minTimeoutMs;
+    this.maxTimeoutMs = maxTimeoutMs;
+    this.stallMultiplier = stallMultiplier;
+    this.clock = clock;
+    hostStats =
+        new LinkedHashMap<String, HostStats>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, HostStats> eldest) {
+            return size() > MAX_HOSTS;
+          }
+        };
+    transfers = new HashMap<>();
+  }
+
+  /**
+   * Returns the connect timeout to use for {@code uri}, in milliseconds.
+   *
+   * @param uri The URI being requested.
+   * @param defaultTimeoutMs The timeout to use if nothing has been measured for the host yet.
+   */
+  public synchronized int getConnectTimeoutMs(Uri uri, int defaultTimeoutMs) {
+    @Nullable HostStats stats = getHostStats(uri);
+    if (stats == null || !stats.hasResponseTime) {
+      return defaultTimeoutMs;
+    }
+    return clamp(2 * stats.getResponseTimeoutMs());
+  }
+
+  /**
+   * Returns the read timeout to use for {@code uri}, in milliseconds. A read that receives no byte
+   * for this long indicates a stalled transfer.
+   *
+   * @param uri The URI being requested.
+   * @param defaultTimeoutMs The timeout to use if nothing has been measured for the host yet.
+   */
+  public synchronized int getReadTimeoutMs(Uri uri, int defaultTimeoutMs) {
+    @Nullable HostStats stats = getHostStats(uri);
+    if (stats == null || !stats.hasResponseTime) {
+      return defaultTimeoutMs;
+    }
+    double timeoutMs = stats.getResponseTimeoutMs();
+    if (stats.hasReadInterval) {
+      timeoutMs = Math.max(timeoutMs, stallMultiplier * stats.readIntervalMs);
+    }
+    return clamp(timeoutMs);
+  }
+
+  @Override
+  public synchronized void onTransferInitializing(
+      DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    @Nullable String host = dataSpec.uri.getHost();
+    if (!isNetwork || host == null) {
+      return;
+    }
+    transfers.put(source, new Transfer(host, clock.elapsedRealtime()));
+  }
+
+  @Override
+  public synchronized void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    @Nullable Transfer transfer = transfers.get(source);
+    if (transfer == null || transfer.lastBytesTimeMs != C.TIME_UNSET) {
+      return;
+    }
+    long nowMs = clock.elapsedRealtime();
+    getOrCreateHostStats(transfer.host).addResponseTime(nowMs - transfer.initializingTimeMs);
+    transfer.lastBytesTimeMs = nowMs;
+  }
+
+  @Override
+  public synchronized void onBytesTransferred(
+      DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+    @Nullable Transfer transfer = transfers.get(source);
+    if (transfer == null || transfer.lastBytesTimeMs == C.TIME_UNSET) {
+      return;
+    }
+    long nowMs = clock.elapsedRealtime();
+    getOrCreateHostStats(transfer.host).addReadInterval(nowMs - transfer.lastBytesTimeMs);
+    transfer.lastBytesTimeMs = nowMs;
+  }
+
+  @Override
+  public synchronized void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    transfers.remove(source);
+  }
+
+  @Nullable
+  private HostStats getHostStats(Uri uri) {
+    @Nullable String host = uri.getHost();
+    return host == null ? null : hostStats.get(host);
+  }
+
+  private HostStats getOrCreateHostStats(String host) {
+    @Nullable HostStats stats = hostStats.get(host);
+    if (stats == null) {
+      stats = new HostStats();
+      hostStats.put(host, stats);
+    }
+    return stats;
+  }
+
+  private int clamp(double timeoutMs) {
+    return (int) Math.max(minTimeoutMs, Math.min(maxTimeoutMs, Math.round(timeoutMs)));
+  }
+
+  private static final class Transfer {
+
+    public final String host;
+    public final long initializingTimeMs;
+    public long lastBytesTimeMs;
+
+    public Transfer(String host, long initializingTimeMs) {
+      this.host = host;
+      this.initializingTimeMs = initializingTimeMs;
+      lastBytesTimeMs = C.TIME_UNSET;
+    }
+  }
+
+  private static final class HostStats {
+
+    public boolean hasResponseTime;
+    public double smoothedResponseTimeMs;
+    public double responseTimeVariationMs;
+    public boolean hasReadInterval;
+    public double readIntervalMs;
+
+    public void addResponseTime(long sampleMs) {
+      if (hasResponseTime) {
+        responseTimeVariationMs =
+            (1 - RTT_BETA) * responseTimeVariationMs
+                + RTT_BETA * Math.abs(smoothedResponseTimeMs - sampleMs);
+        smoothedResponseTimeMs = (1 - RTT_ALPHA) * smoothedResponseTimeMs + RTT_ALPHA * sampleMs;
+      } else {
+        smoothedResponseTimeMs = sampleMs;
+        responseTimeVariationMs = sampleMs / 2d;
+        hasResponseTime = true;
+      }
+    }
+
+    public void addReadInterval(long sampleMs) {
+      if (hasReadInterval) {
+        readIntervalMs += READ_INTERVAL_WEIGHT * (sampleMs - readIntervalMs);
+      } else {
+        readIntervalMs = sampleMs;
+        hasReadInterval = true;
+      }
+    }
+
+    public double getResponseTimeoutMs() {
+      return smoothedResponseTimeMs + 4 * responseTimeVariationMs;
+    }
+  }
+}
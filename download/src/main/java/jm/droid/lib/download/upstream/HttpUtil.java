@@ -25,6 +25,13 @@ import androidx.annotation.Nullable;
 import jm.droid.lib.download.C;
 import jm.droid.lib.download.util.Log;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,6 +44,9 @@ public final class HttpUtil {
   private static final Pattern CONTENT_RANGE_WITH_SIZE =
       Pattern.compile("bytes (?:(?:\\d+-\\d+)|\\*)/(\\d+)");
 
+  private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+  private static final String RANGE_UNIT_PREFIX = "bytes=";
+
   /** Class only contains static methods. */
   private HttpUtil() {}
 
@@ -53,16 +63,32 @@ public final class HttpUtil {
     if (position == 0 && length == C.LENGTH_UNSET) {
       return null;
     }
-    StringBuilder rangeValue = new StringBuilder();
-    rangeValue.append("bytes=");
+    long endPosition = length != C.LENGTH_UNSET ? position + length - 1 : C.POSITION_UNSET;
+    // Sized exactly, so that the only allocations are the builder's array and the result.
+    int capacity =
+        RANGE_UNIT_PREFIX.length()
+            + countDigits(position)
+            + 1
+            + (endPosition != C.POSITION_UNSET ? countDigits(endPosition) : 0);
+    StringBuilder rangeValue = new StringBuilder(capacity);
+    rangeValue.append(RANGE_UNIT_PREFIX);
     rangeValue.append(position);
-    rangeValue.append("-");
-    if (length != C.LENGTH_UNSET) {
-      rangeValue.append(position + length - 1);
+    rangeValue.append('-');
+    if (endPosition != C.POSITION_UNSET) {
+      rangeValue.append(endPosition);
     }
     return rangeValue.toString();
   }
 
+  private static int countDigits(long value) {
+    int digits = 1;
+    while (value >= 10) {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+
   /**
    * Attempts to parse the document size from a {@link HttpHeaders#CONTENT_RANGE Content-Range
    * header}.
@@ -128,4 +154,90 @@ public final class HttpUtil {
     }
     return contentLength;
   }
+
+  /**
+   * Returns the first value of a response header, looked up case-insensitively.
+   *
+   * @param headers The response headers.
+   * @param name The name of the header.
+   * @return The first value of the header, or {@code null} if it's not present.
+   */
+  @Nullable
+  public static String getHeaderValue(Map<String, List<String>> headers, String name) {
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey())) {
+        List<String> values = header.getValue();
+        return values == null || values.isEmpty() ? null : values.get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Attempts to parse an HTTP-date (RFC 7231 IMF-fixdate), as used by {@link HttpHeaders#DATE},
+   * {@link HttpHeaders#EXPIRES} and {@link HttpHeaders#RETRY_AFTER}.
+   *
+   * @param httpDate The date string, or {@code null}.
+   * @return The date in milliseconds since the epoch, or {@link C#TIME_UNSET} if it could not be
+   *     parsed.
+   */
+  public static long parseHttpDate(@Nullable String httpDate) {
+    if (httpDate == null || httpDate.isEmpty()) {
+      return C.TIME_UNSET;
+    }
+    SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      Date date = format.parse(httpDate);
+      return date == null ? C.TIME_UNSET : date.getTime();
+    } catch (ParseException e) {
+      return C.TIME_UNSET;
+    }
+  }
+
+  /**
+   * Attempts to parse a {@link HttpHeaders#RETRY_AFTER Retry-After header}, which is either a
+   * number of seconds or an HTTP-date.
+   *
+   * @param retryAfterHeader The {@link HttpHeaders#RETRY_AFTER Retry-After header}, or {@code
+   *     null} if not set.
+   * @param nowMs The current time in milliseconds since the epoch.
+   * @return The delay in milliseconds, or {@link C#TIME_UNSET} if it could not be determined.
+   */
+  public static long getRetryAfterMs(@Nullable String retryAfterHeader, long nowMs) {
+    if (retryAfterHeader == null || retryAfterHeader.isEmpty()) {
+      return C.TIME_UNSET;
+    }
+    String value = retryAfterHeader.trim();
+    try {
+      return max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      // Not delta-seconds, try an HTTP-date instead.
+    }
+    long retryAtMs = parseHttpDate(value);
+    return retryAtMs == C.TIME_UNSET ? C.TIME_UNSET : max(0, retryAtMs - nowMs);
+  }
+
+  /**
+   * Returns whether the server ignored the range of an opened request and answered with the whole
+   * resource. With {@link DataSpec#FLAG_ALLOW_RANGE_IGNORED} set, the data is then read from the
+   * start of the resource instead of from {@link DataSpec#position}.
+   *
+   * @param dataSource The opened {@link HttpDataSource}.
+   * @param dataSpec The {@link DataSpec} it was opened with.
+   */
+  public static boolean isRangeIgnored(HttpDataSource dataSource, DataSpec dataSpec) {
+    return dataSpec.position != 0 && dataSource.getResponseCode() == 200;
+  }
+
+  /**
+   * Returns whether an {@link HttpHeaders#ACCEPT_RANGES Accept-Ranges header} states that the
+   * server doesn't support range requests.
+   *
+   * @param acceptRangesHeader The {@link HttpHeaders#ACCEPT_RANGES Accept-Ranges header}, or {@code
+   *     null} if not set.
+   */
+  public static boolean isRangeUnsupported(@Nullable String acceptRangesHeader) {
+    return acceptRangesHeader != null && "none".equalsIgnoreCase(acceptRangesHeader.trim());
+  }
 }
@@ -0,0 +1,61 @@
+package jm.droid.lib.download.upstream;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.offline.DownloadRequest;
+import jm.droid.lib.download.util.Assertions;
+
+/**
+ * Decides how a {@link DataAdhesives} uses the {@link DownloadRequest#mirrorUris} of a download.
+ *
+ * <p>A download always fails over to the next mirror when its current source fails. In addition:
+ *
+ * <ul>
+ *   <li>If {@link #minBytesPerSecond} is positive, a source that stays slower than it for {@link
+ *       #throughputWindowMs} is abandoned for the next mirror.
+ *   <li>If {@link #minRaceLength} is set, a download whose remaining length is at least that long
+ *       reads its second half from the next mirror in parallel, provided the server supports range
+ *       requests. If the first half finishes first, it takes over the rest of the second one.
+ * </ul>
+ */
+public final class MirrorPolicy {
+
+  /** The default minimum remaining length of a download read from two sources, in bytes. */
+  public static final long DEFAULT_MIN_RACE_LENGTH = 8 * 1024 * 1024;
+  /** The default duration over which throughput is compared to the floor, in milliseconds. */
+  public static final long DEFAULT_THROUGHPUT_WINDOW_MS = 10_000;
+
+  /** Fails over on errors and races long downloads, without a throughput floor. */
+  public static final MirrorPolicy DEFAULT =
+      new MirrorPolicy(
+          /* minBytesPerSecond= */ 0, DEFAULT_THROUGHPUT_WINDOW_MS, DEFAULT_MIN_RACE_LENGTH);
+
+  /** Only fails over on errors. */
+  public static final MirrorPolicy FAILOVER_ONLY =
+      new MirrorPolicy(
+          /* minBytesPerSecond= */ 0, DEFAULT_THROUGHPUT_WINDOW_MS, C.LENGTH_UNSET);
+
+  /** The throughput below which a source is abandoned, in bytes per second, or 0 for no floor. */
+  public final long minBytesPerSecond;
+  /** The duration over which throughput is compared to {@link #minBytesPerSecond}, in ms. */
+  public final long throughputWindowMs;
+  /**
+   * The minimum remaining length of a download read from two sources in parallel, in bytes, or
+   * {@link C#LENGTH_UNSET} to never read from two sources.
+   */
+  public final long minRaceLength;
+
+  /**
+   * Creates an instance.
+   *
+   * @param minBytesPerSecond See {@link #minBytesPerSecond}.
+   * @param throughputWindowMs See {@link #throughputWindowMs}.
+   * @param minRaceLength See {@link #minRaceLength}.
+   */
+  public MirrorPolicy(long minBytesPerSecond, long throughputWindowMs, long minRaceLength) {
+    Assertions.checkArgument(minBytesPerSecond >= 0 && throughputWindowMs > 0);
+    Assertions.checkArgument(minRaceLength == C.LENGTH_UNSET || minRaceLength > 0);
+    this.minBytesPerSecond = minBytesPerSecond;
+    this.throughputWindowMs = throughputWindowMs;
+    this.minRaceLength = minRaceLength;
+  }
+}
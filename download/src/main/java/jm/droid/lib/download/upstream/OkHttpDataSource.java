@@ -0,0 +1,628 @@
+package jm.droid.lib.download.upstream;
+
+import static jm.droid.lib.download.util.Assertions.checkNotNull;
+import static jm.droid.lib.download.util.Util.castNonNull;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.PlaybackException;
+import jm.droid.lib.download.upstream.DataSpec.HttpMethod;
+import jm.droid.lib.download.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * An {@link HttpDataSource} that delegates to OkHttp's {@link Call.Factory}.
+ *
+ * <p>Data sources created by the same {@link Factory} share one client, and with it one connection
+ * pool. Downloads from the same host therefore reuse warm connections instead of each paying for a
+ * new TCP and TLS handshake, redirects are followed without dropping the connection, and requests to
+ * HTTP/2 servers are multiplexed over a single connection.
+ *
+ * <p>OkHttp is not a dependency of this library. Apps that use this class must depend on it
+ * themselves, and can then swap it in by passing an {@link OkHttpDataSource.Factory} to {@link
+ * jm.droid.lib.download.offline.DefaultDownloaderFactory}.
+ *
+ * <p>Note: HTTP request headers will be set using all parameters passed via (in order of decreasing
+ * priority) the {@code dataSpec}, {@link #setRequestProperty} and the default properties that can
+ * be passed to {@link HttpDataSource.Factory#setDefaultRequestProperties(Map)}.
+ */
+public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
+
+  /** {@link DataSource.Factory} for {@link OkHttpDataSource} instances. */
+  public static final class Factory implements HttpDataSource.Factory {
+
+    private final RequestProperties defaultRequestProperties;
+    private final Call.Factory callFactory;
+
+    @Nullable private String userAgent;
+    @Nullable private TransferListener transferListener;
+    @Nullable private CacheControl cacheControl;
+    @Nullable private RedirectCache redirectCache;
+    @Nullable private HostLatencyTracker latencyTracker;
+
+    /**
+     * Creates an instance that uses a client shared by all factories created with this constructor,
+     * configured with {@link DefaultHttpDataSource#DEFAULT_CONNECT_TIMEOUT_MILLIS} and {@link
+     * DefaultHttpDataSource#DEFAULT_READ_TIMEOUT_MILLIS}.
+     */
+    public Factory() {
+      this(getDefaultClient());
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param callFactory A {@link Call.Factory} (typically an {@link OkHttpClient}) for use by the
+     *     sources created by the factory. Share one client across factories to share its connection
+     *     pool.
+     */
+    public Factory(Call.Factory callFactory) {
+      checkNotNull(callFactory);
+      // Derived once, so that the timeouts of the latency tracker are applied per request instead of
+      // per client. The derived client shares the connection pool and dispatcher of the original.
+      this.callFactory =
+          callFactory instanceof OkHttpClient
+              ? ((OkHttpClient) callFactory)
+                  .newBuilder()
+                  .addInterceptor(new RequestTimeoutsInterceptor())
+                  .build()
+              : callFactory;
+      defaultRequestProperties = new RequestProperties();
+      redirectCache = new RedirectCache();
+      latencyTracker = new HostLatencyTracker();
+    }
+
+    @Override
+    public final Factory setDefaultRequestProperties(Map<String, String> defaultRequestProperties) {
+      this.defaultRequestProperties.clearAndSet(defaultRequestProperties);
+      return this;
+    }
+
+    /**
+     * Sets the user agent that will be used.
+     *
+     * <p>The default is {@code null}, which causes the default user agent of the underlying {@link
+     * OkHttpClient} to be used.
+     *
+     * @param userAgent The user agent that will be used, or {@code null} to use the default user
+     *     agent of the underlying {@link OkHttpClient}.
+     * @return This factory.
+     */
+    public Factory setUserAgent(@Nullable String userAgent) {
+      this.userAgent = userAgent;
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheControl} that will be used.
+     *
+     * <p>The default is {@code null}.
+     *
+     * @param cacheControl The cache control that will be used.
+     * @return This factory.
+     */
+    public Factory setCacheControl(@Nullable CacheControl cacheControl) {
+      this.cacheControl = cacheControl;
+      return this;
+    }
+
+    /**
+     * Sets the {@link RedirectCache} shared by the sources created by this factory, so that requests
+     * for a URL that was already resolved skip its redirect chain.
+     *
+     * <p>The default is a {@link RedirectCache} with default settings. Passing {@code null} disables
+     * caching.
+     *
+     * @param redirectCache The redirect cache that will be used, or {@code null}.
+     * @return This factory.
+     */
+    public Factory setRedirectCache(@Nullable RedirectCache redirectCache) {
+      this.redirectCache = redirectCache;
+      return this;
+    }
+
+    /**
+     * Sets the {@link HostLatencyTracker} shared by the sources created by this factory. The sources
+     * report their transfers to it and, if the {@link Call.Factory} is an {@link OkHttpClient}, take
+     * their connect and read timeouts from it, falling back to the client's timeouts for hosts that
+     * haven't been measured yet.
+     *
+     * <p>The default is a {@link HostLatencyTracker} with default settings. Passing {@code null}
+     * always uses the client's timeouts.
+     *
+     * @param latencyTracker The latency tracker that will be used, or {@code null}.
+     * @return This factory.
+     */
+    public Factory setLatencyTracker(@Nullable HostLatencyTracker latencyTracker) {
+      this.latencyTracker = latencyTracker;
+      return this;
+    }
+
+    /**
+     * Sets the {@link TransferListener} that will be used.
+     *
+     * <p>The default is {@code null}.
+     *
+     * <p>See {@link DataSource#addTransferListener(TransferListener)}.
+     *
+     * @param transferListener The listener that will be used.
+     * @return This factory.
+     */
+    public Factory setTransferListener(@Nullable TransferListener transferListener) {
+      this.transferListener = transferListener;
+      return this;
+    }
+
+    @Override
+    public OkHttpDataSource createDataSource() {
+      OkHttpDataSource dataSource =
+          new OkHttpDataSource(
+              callFactory,
+              userAgent,
+              cacheControl,
+              defaultRequestProperties,
+              redirectCache,
+              latencyTracker);
+      if (transferListener != null) {
+        dataSource.addTransferListener(transferListener);
+      }
+      if (latencyTracker != null) {
+        dataSource.addTransferListener(latencyTracker);
+      }
+      return dataSource;
+    }
+  }
+
+  @Nullable private static OkHttpClient defaultClient;
+
+  private final Call.Factory callFactory;
+  private final RequestProperties requestProperties;
+  @Nullable private final String userAgent;
+  @Nullable private final CacheControl cacheControl;
+  @Nullable private final RequestProperties defaultRequestProperties;
+  @Nullable private final RedirectCache redirectCache;
+  @Nullable private final HostLatencyTracker latencyTracker;
+
+  @Nullable private DataSpec dataSpec;
+  @Nullable private Response response;
+  @Nullable private InputStream responseByteStream;
+  private boolean opened;
+  private long bytesToRead;
+  private long bytesRead;
+
+  private OkHttpDataSource(
+      Call.Factory callFactory,
+      @Nullable String userAgent,
+      @Nullable CacheControl cacheControl,
+      @Nullable RequestProperties defaultRequestProperties,
+      @Nullable RedirectCache redirectCache,
+      @Nullable HostLatencyTracker latencyTracker) {
+    super(/* isNetwork= */ true);
+    this.callFactory = checkNotNull(callFactory);
+    this.userAgent = userAgent;
+    this.cacheControl = cacheControl;
+    this.defaultRequestProperties = defaultRequestProperties;
+    this.requestProperties = new RequestProperties();
+    this.redirectCache = redirectCache;
+    this.latencyTracker = latencyTracker;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return response == null ? null : Uri.parse(response.request().url().toString());
+  }
+
+  @Override
+  public int getResponseCode() {
+    return response == null ? -1 : response.code();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return response == null ? new HashMap<>() : response.headers().toMultimap();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    checkNotNull(name);
+    checkNotNull(value);
+    requestProperties.set(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    checkNotNull(name);
+    requestProperties.remove(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    requestProperties.clear();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    bytesRead = 0;
+    bytesToRead = 0;
+    transferInitializing(dataSpec);
+
+    Response response;
+    ResponseBody responseBody;
+    try {
+      this.response = execute(dataSpec);
+      response = this.response;
+      responseBody = checkNotNull(response.body());
+      responseByteStream = responseBody.byteStream();
+    } catch (HttpDataSourceException e) {
+      closeConnectionQuietly();
+      throw e;
+    } catch (IOException e) {
+      closeConnectionQuietly();
+      throw HttpDataSourceException.createForIOException(
+          e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+
+    int responseCode = response.code();
+
+    // Check for a valid response code.
+    if (!response.isSuccessful()) {
+      if (responseCode == 416) {
+        long documentSize =
+            HttpUtil.getDocumentSize(response.headers().get(HttpHeaders.CONTENT_RANGE));
+        if (dataSpec.position == documentSize) {
+          opened = true;
+          transferStarted(dataSpec);
+          return dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : 0;
+        }
+      }
+
+      byte[] errorResponseBody;
+      try {
+        errorResponseBody = Util.toByteArray(checkNotNull(responseByteStream));
+      } catch (IOException e) {
+        errorResponseBody = Util.EMPTY_BYTE_ARRAY;
+      }
+      Map<String, List<String>> headers = response.headers().toMultimap();
+      closeConnectionQuietly();
+      @Nullable
+      IOException cause =
+          responseCode == 416
+              ? new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE)
+              : null;
+      throw new InvalidResponseCodeException(
+          responseCode, response.message(), cause, headers, dataSpec, errorResponseBody);
+    }
+
+    // If we requested a range starting from a non-zero position and received a 200 rather than a
+    // 206, then the server does not support partial requests. Unless the caller can take the data
+    // from the start of the resource, we'll need to manually skip to the requested position.
+    boolean readFromStart =
+        HttpUtil.isRangeIgnored(this, dataSpec)
+            && dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_RANGE_IGNORED);
+    long bytesToSkip =
+        responseCode == 200 && dataSpec.position != 0 && !readFromStart ? dataSpec.position : 0;
+
+    // Determine the length of the data to be read, after skipping. If OkHttp decompressed a gzip
+    // response transparently, the body length is unknown and only the dataSpec length can be used.
+    if (dataSpec.length != C.LENGTH_UNSET && !readFromStart) {
+      bytesToRead = dataSpec.length;
+    } else {
+      long contentLength = responseBody.contentLength();
+      bytesToRead = contentLength != -1 ? (contentLength - bytesToSkip) : C.LENGTH_UNSET;
+    }
+
+    opened = true;
+    transferStarted(dataSpec);
+
+    try {
+      skipFully(bytesToSkip, dataSpec);
+    } catch (HttpDataSourceException e) {
+      closeConnectionQuietly();
+      throw e;
+    }
+
+    return bytesToRead;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws HttpDataSourceException {
+    try {
+      return readInternal(buffer, offset, length);
+    } catch (IOException e) {
+      throw HttpDataSourceException.createForIOException(
+          e, castNonNull(dataSpec), HttpDataSourceException.TYPE_READ);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (opened) {
+      opened = false;
+      transferEnded();
+    }
+    closeConnectionQuietly();
+  }
+
+  /**
+   * Executes the request for {@code dataSpec}, starting from the cached location of its redirect
+   * chain if there is one.
+   */
+  private Response execute(DataSpec dataSpec) throws IOException {
+    String url = dataSpec.uri.toString();
+    @HttpMethod int httpMethod = dataSpec.httpMethod;
+    if (redirectCache == null
+        || (httpMethod != DataSpec.HTTP_METHOD_GET && httpMethod != DataSpec.HTTP_METHOD_HEAD)) {
+      return callFactory.newCall(makeRequest(dataSpec, url)).execute();
+    }
+
+    @Nullable String cachedLocation = redirectCache.get(httpMethod, url);
+    if (cachedLocation != null) {
+      Response response = callFactory.newCall(makeRequest(dataSpec, cachedLocation)).execute();
+      int responseCode = response.code();
+      if (responseCode < 400 || responseCode >= 500 || responseCode == 416) {
+        return response;
+      }
+      // The cached location is stale, for example because a signed URL expired. Walk the chain
+      // again from the original URL.
+      redirectCache.invalidate(httpMethod, url);
+      response.close();
+    }
+
+    Response response = callFactory.newCall(makeRequest(dataSpec, url)).execute();
+    if (response.isSuccessful() && response.priorResponse() != null) {
+      // TIME_UNSET is less than any expiry time, so taking the minimum over the hops also
+      // propagates a hop that must not be cached.
+      long expiryTimeMs = Long.MAX_VALUE;
+      for (Response hop = response.priorResponse(); hop != null; hop = hop.priorResponse()) {
+        expiryTimeMs =
+            min(
+                expiryTimeMs,
+                redirectCache.getExpiryTimeMs(
+                    hop.code(),
+                    hop.header(HttpHeaders.CACHE_CONTROL),
+                    hop.header(HttpHeaders.EXPIRES)));
+      }
+      redirectCache.put(httpMethod, url, response.request().url().toString(), expiryTimeMs);
+    }
+    return response;
+  }
+
+  /** Builds the request for {@code dataSpec}, addressed to {@code uri}. */
+  private Request makeRequest(DataSpec dataSpec, String uri) throws HttpDataSourceException {
+    @Nullable HttpUrl url = HttpUrl.parse(uri);
+    if (url == null) {
+      throw new HttpDataSourceException(
+          "Malformed URL",
+          dataSpec,
+          PlaybackException.ERROR_CODE_FAILED_RUNTIME_CHECK,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+
+    Request.Builder builder = new Request.Builder().url(url);
+    if (cacheControl != null) {
+      builder.cacheControl(cacheControl);
+    }
+    @Nullable RequestTimeouts timeouts = getRequestTimeouts(dataSpec);
+    if (timeouts != null) {
+      builder.tag(RequestTimeouts.class, timeouts);
+    }
+
+    // Request.Builder.header replaces any previous value, so applying the properties in increasing
+    // order of priority avoids merging them into an intermediate map.
+    if (defaultRequestProperties != null) {
+      setHeaders(builder, defaultRequestProperties.getSnapshot());
+    }
+    setHeaders(builder, requestProperties.getSnapshot());
+    setHeaders(builder, dataSpec.httpRequestHeaders);
+
+    @Nullable
+    String rangeHeader = HttpUtil.buildRangeRequestHeader(dataSpec.position, dataSpec.length);
+    if (rangeHeader != null) {
+      builder.header(HttpHeaders.RANGE, rangeHeader);
+    }
+    if (userAgent != null) {
+      builder.header(HttpHeaders.USER_AGENT, userAgent);
+    }
+    if (dataSpec.isFlagSet(DataSpec.FLAG_KEEP_CONTENT_ENCODING)) {
+      // Requesting gzip explicitly stops OkHttp from decompressing the response.
+      builder.header(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    } else if (!dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)) {
+      // Otherwise OkHttp requests gzip and decompresses the response transparently.
+      builder.header(HttpHeaders.ACCEPT_ENCODING, "identity");
+    }
+
+    @Nullable byte[] httpBody = dataSpec.httpBody;
+    @Nullable RequestBody requestBody = null;
+    if (httpBody != null) {
+      requestBody = RequestBody.create(httpBody);
+    } else if (dataSpec.httpMethod == DataSpec.HTTP_METHOD_POST) {
+      // OkHttp requires a non-null body for POST requests.
+      requestBody = RequestBody.create(Util.EMPTY_BYTE_ARRAY);
+    }
+    builder.method(dataSpec.getHttpMethodString(), requestBody);
+    return builder.build();
+  }
+
+  /**
+   * Returns the timeouts of the {@link HostLatencyTracker} for {@code dataSpec}, or null if the
+   * client's timeouts apply. Timeouts can only be set if the factory is an {@link OkHttpClient}.
+   */
+  @Nullable
+  private RequestTimeouts getRequestTimeouts(DataSpec dataSpec) {
+    if (latencyTracker == null || !(callFactory instanceof OkHttpClient)) {
+      return null;
+    }
+    OkHttpClient client = (OkHttpClient) callFactory;
+    int connectTimeoutMs =
+        latencyTracker.getConnectTimeoutMs(dataSpec.uri, client.connectTimeoutMillis());
+    int readTimeoutMs = latencyTracker.getReadTimeoutMs(dataSpec.uri, client.readTimeoutMillis());
+    if (connectTimeoutMs == client.connectTimeoutMillis()
+        && readTimeoutMs == client.readTimeoutMillis()) {
+      return null;
+    }
+    return new RequestTimeouts(connectTimeoutMs, readTimeoutMs);
+  }
+
+  private static void setHeaders(Request.Builder builder, Map<String, String> headers) {
+    if (headers.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.header(header.getKey(), header.getValue());
+    }
+  }
+
+  /**
+   * Attempts to skip the specified number of bytes in full.
+   *
+   * @param bytesToSkip The number of bytes to skip.
+   * @param dataSpec The {@link DataSpec}.
+   * @throws HttpDataSourceException If the thread is interrupted during the operation, or an error
+   *     occurs while reading from the source, or if the data ended before skipping the specified
+   *     number of bytes.
+   */
+  private void skipFully(long bytesToSkip, DataSpec dataSpec) throws HttpDataSourceException {
+    if (bytesToSkip == 0) {
+      return;
+    }
+    byte[] skipBuffer = new byte[4096];
+    try {
+      while (bytesToSkip > 0) {
+        int readLength = (int) min(bytesToSkip, skipBuffer.length);
+        int read = castNonNull(responseByteStream).read(skipBuffer, 0, readLength);
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException();
+        }
+        if (read == -1) {
+          throw new HttpDataSourceException(
+              dataSpec,
+              PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE,
+              HttpDataSourceException.TYPE_OPEN);
+        }
+        bytesToSkip -= read;
+        bytesTransferred(read);
+      }
+    } catch (IOException e) {
+      if (e instanceof HttpDataSourceException) {
+        throw (HttpDataSourceException) e;
+      }
+      throw new HttpDataSourceException(
+          e,
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_UNSPECIFIED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+  }
+
+  /**
+   * Reads up to {@code length} bytes of data and stores them into {@code buffer}, starting at index
+   * {@code offset}.
+   *
+   * <p>This method blocks until at least one byte of data can be read, the end of the opened range
+   * is detected, or an exception is thrown.
+   *
+   * @param buffer The buffer into which the read data should be stored.
+   * @param offset The start offset into {@code buffer} at which data should be written.
+   * @param readLength The maximum number of bytes to read.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the end of the opened
+   *     range is reached.
+   * @throws IOException If an error occurs reading from the source.
+   */
+  private int readInternal(byte[] buffer, int offset, int readLength) throws IOException {
+    if (readLength == 0) {
+      return 0;
+    }
+    if (bytesToRead != C.LENGTH_UNSET) {
+      long bytesRemaining = bytesToRead - bytesRead;
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      readLength = (int) min(readLength, bytesRemaining);
+    }
+
+    int read = castNonNull(responseByteStream).read(buffer, offset, readLength);
+    if (read == -1) {
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    bytesRead += read;
+    bytesTransferred(read);
+    return read;
+  }
+
+  /**
+   * Closes the current response body, if there is one. A fully read body returns its connection to
+   * the pool.
+   */
+  private void closeConnectionQuietly() {
+    if (response != null) {
+      checkNotNull(response.body()).close();
+      response = null;
+    }
+    responseByteStream = null;
+  }
+
+  private static synchronized OkHttpClient getDefaultClient() {
+    if (defaultClient == null) {
+      defaultClient =
+          new OkHttpClient.Builder()
+              .connectTimeout(
+                  DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+              .readTimeout(DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+              .build();
+    }
+    return defaultClient;
+  }
+
+  /** The connect and read timeouts of a request, attached to it as a tag. */
+  private static final class RequestTimeouts {
+
+    public final int connectTimeoutMs;
+    public final int readTimeoutMs;
+
+    public RequestTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+      this.connectTimeoutMs = connectTimeoutMs;
+      this.readTimeoutMs = readTimeoutMs;
+    }
+  }
+
+  /** Applies the {@link RequestTimeouts} tag of a request, if it has one. */
+  private static final class RequestTimeoutsInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      Request request = chain.request();
+      @Nullable RequestTimeouts timeouts = request.tag(RequestTimeouts.class);
+      if (timeouts == null) {
+        return chain.proceed(request);
+      }
+      return chain
+          .withConnectTimeout(timeouts.connectTimeoutMs, TimeUnit.MILLISECONDS)
+          .withReadTimeout(timeouts.readTimeoutMs, TimeUnit.MILLISECONDS)
+          .proceed(request);
+    }
+  }
+}
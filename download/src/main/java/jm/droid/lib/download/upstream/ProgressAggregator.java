@@ -0,0 +1,77 @@
+package jm.droid.lib.download.upstream;
+
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Clock;
+
+/**
+ * Coalesces the per-buffer progress of a {@link DataAdhesives} into fewer {@link
+ * DataAdhesives.ProgressListener} callbacks. An update becomes due once either {@link
+ * #minIntervalMs} has elapsed or {@link #minBytes} have accumulated since the last one.
+ *
+ * <p>Accumulation only updates primitive fields, so nothing is allocated per buffer. Not thread
+ * safe; an instance must only be used by the thread that is reading the data.
+ */
+public final class ProgressAggregator {
+
+  /** The default minimum interval between progress updates, in milliseconds. */
+  public static final long DEFAULT_MIN_INTERVAL_MS = 200;
+  /** The default number of bytes after which a progress update is due regardless of time. */
+  public static final long DEFAULT_MIN_BYTES = 4 * 1024 * 1024;
+
+  private final long minIntervalMs;
+  private final long minBytes;
+  private final Clock clock;
+
+  private long pendingBytes;
+  private long lastUpdateTimeMs;
+
+  /** Creates an instance using {@link #DEFAULT_MIN_INTERVAL_MS} and {@link #DEFAULT_MIN_BYTES}. */
+  public ProgressAggregator() {
+    this(DEFAULT_MIN_INTERVAL_MS, DEFAULT_MIN_BYTES);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param minIntervalMs The minimum interval between progress updates, in milliseconds.
+   * @param minBytes The number of bytes after which a progress update is due even if {@code
+   *     minIntervalMs} hasn't elapsed.
+   */
+  public ProgressAggregator(long minIntervalMs, long minBytes) {
+    this(minIntervalMs, minBytes, Clock.DEFAULT);
+  }
+
+  /* package */ ProgressAggregator(long minIntervalMs, long minBytes, Clock clock) {
+    Assertions.checkArgument(minIntervalMs >= 0 && minBytes > 0);
+    this.minIntervalMs = minIntervalMs;
+    this.minBytes = minBytes;
+    this.clock = clock;
+    // The first buffer is reported straight away, so that listeners learn that data is flowing.
+    lastUpdateTimeMs = -minIntervalMs;
+  }
+
+  /**
+   * Accumulates newly read bytes.
+   *
+   * @param newBytes The number of bytes read since the last call.
+   * @return Whether a progress update is due, in which case the caller should report the result of
+   *     {@link #flush()}.
+   */
+  public boolean add(long newBytes) {
+    pendingBytes += newBytes;
+    return pendingBytes >= minBytes || clock.elapsedRealtime() - lastUpdateTimeMs >= minIntervalMs;
+  }
+
+  /** Returns whether there are accumulated bytes that haven't been reported yet. */
+  public boolean hasPendingBytes() {
+    return pendingBytes > 0;
+  }
+
+  /** Returns the bytes accumulated since the last update, and starts a new update interval. */
+  public long flush() {
+    long bytes = pendingBytes;
+    pendingBytes = 0;
+    lastUpdateTimeMs = clock.elapsedRealtime();
+    return bytes;
+  }
+}
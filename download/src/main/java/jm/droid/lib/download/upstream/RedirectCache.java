@@ -0,0 +1,191 @@
+package jm.droid.lib.download.upstream;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.DataSpec.HttpMethod;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Clock;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded cache of resolved redirect chains, so that retries, resumes and follow-up range requests
+ * for the same URL go straight to the final location instead of walking every hop again.
+ *
+ * <p>Entries are keyed by HTTP method and original URL, and evicted least recently used first once
+ * {@link #maxEntries} is reached. A chain expires with its shortest lived hop:
+ *
+ * <ul>
+ *   <li>{@code Cache-Control: no-store} or {@code no-cache} on any hop prevents caching.
+ *   <li>Otherwise {@code Cache-Control: max-age} or {@code Expires} is honored when present.
+ *   <li>Otherwise permanent redirects (301, 308) don't expire, and other redirects expire after
+ *       {@link #temporaryRedirectTtlMs}.
+ * </ul>
+ *
+ * <p>Data sources must {@link #invalidate} an entry when the final location answers with a client
+ * error, for example because a signed CDN URL has expired, and then resolve the chain again.
+ *
+ * <p>Thread safe, so one instance can be shared by all data sources created by a factory.
+ */
+public final class RedirectCache {
+
+  /** The default maximum number of cached chains. */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+  /** The default time to live of a temporary redirect without expiry hints, in milliseconds. */
+  public static final long DEFAULT_TEMPORARY_REDIRECT_TTL_MS = 5 * 60 * 1000;
+
+  private static final String MAX_AGE = "max-age=";
+
+  private final int maxEntries;
+  private final long temporaryRedirectTtlMs;
+  private final Clock clock;
+  private final LinkedHashMap<String, Entry> entries;
+
+  /**
+   * Creates an instance using {@link #DEFAULT_MAX_ENTRIES} and {@link
+   * #DEFAULT_TEMPORARY_REDIRECT_TTL_MS}.
+   */
+  public RedirectCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_TEMPORARY_REDIRECT_TTL_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxEntries The maximum number of cached chains.
+   * @param temporaryRedirectTtlMs The time to live of a temporary redirect without expiry hints, in
+   *     milliseconds.
+   */
+  public RedirectCache(int maxEntries, long temporaryRedirectTtlMs) {
+    this(maxEntries, temporaryRedirectTtlMs, Clock.DEFAULT);
+  }
+
+  /* package */ RedirectCache(int maxEntries, long temporaryRedirectTtlMs, Clock clock) {
+    Assertions.checkArgument(maxEntries > 0 && temporaryRedirectTtlMs >= 0);
+    this.maxEntries = maxEntries;
+    this.temporaryRedirectTtlMs = temporaryRedirectTtlMs;
+    this.clock = clock;
+    entries =
+        new LinkedHashMap<String, Entry>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > RedirectCache.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Returns the cached final location for {@code url}, or {@code null} if there is no unexpired
+   * entry.
+   *
+   * @param httpMethod The {@link HttpMethod} of the request.
+   * @param url The URL that was requested.
+   */
+  @Nullable
+  public synchronized String get(@HttpMethod int httpMethod, String url) {
+    String key = buildKey(httpMethod, url);
+    @Nullable Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (clock.currentTimeMillis() >= entry.expiryTimeMs) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.location;
+  }
+
+  /**
+   * Caches the final location of a redirect chain.
+   *
+   * @param httpMethod The {@link HttpMethod} of the request.
+   * @param url The URL that was requested.
+   * @param location The URL at the end of the chain.
+   * @param expiryTimeMs The time at which the entry expires, as returned by {@link
+   *     #getExpiryTimeMs}. Nothing is cached if it's {@link C#TIME_UNSET}.
+   */
+  public synchronized void put(
+      @HttpMethod int httpMethod, String url, String location, long expiryTimeMs) {
+    if (expiryTimeMs == C.TIME_UNSET || url.equals(location)) {
+      return;
+    }
+    entries.put(buildKey(httpMethod, url), new Entry(location, expiryTimeMs));
+  }
+
+  /** Removes the entry for {@code url}, if there is one. */
+  public synchronized void invalidate(@HttpMethod int httpMethod, String url) {
+    entries.remove(buildKey(httpMethod, url));
+  }
+
+  /** Removes all entries. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the time at which a redirect expires, in milliseconds since the epoch, or {@link
+   * C#TIME_UNSET} if it must not be cached.
+   *
+   * @param responseCode The response code of the redirect.
+   * @param cacheControl The {@code Cache-Control} header of the redirect, or {@code null}.
+   * @param expires The {@code Expires} header of the redirect, or {@code null}.
+   */
+  public long getExpiryTimeMs(
+      int responseCode, @Nullable String cacheControl, @Nullable String expires) {
+    long nowMs = clock.currentTimeMillis();
+    if (cacheControl != null) {
+      String directives = cacheControl.toLowerCase(Locale.US);
+      if (directives.contains("no-store") || directives.contains("no-cache")) {
+        return C.TIME_UNSET;
+      }
+      int maxAgeIndex = directives.indexOf(MAX_AGE);
+      if (maxAgeIndex != -1) {
+        long maxAgeSeconds = parseDeltaSeconds(directives, maxAgeIndex + MAX_AGE.length());
+        if (maxAgeSeconds == 0) {
+          return C.TIME_UNSET;
+        } else if (maxAgeSeconds > 0) {
+          return nowMs + maxAgeSeconds * 1000;
+        }
+      }
+    }
+    if (expires != null) {
+      long expiresMs = HttpUtil.parseHttpDate(expires);
+      if (expiresMs != C.TIME_UNSET) {
+        return expiresMs > nowMs ? expiresMs : C.TIME_UNSET;
+      }
+    }
+    if (responseCode == 301 || responseCode == 308) {
+      return Long.MAX_VALUE;
+    }
+    return nowMs + temporaryRedirectTtlMs;
+  }
+
+  private static long parseDeltaSeconds(String directives, int start) {
+    long value = 0;
+    int i = start;
+    while (i < directives.length() && Character.isDigit(directives.charAt(i))) {
+      value = value * 10 + (directives.charAt(i) - '0');
+      i++;
+    }
+    return i == start ? -1 : value;
+  }
+
+  private static String buildKey(@HttpMethod int httpMethod, String url) {
+    return httpMethod + " " + url;
+  }
+
+  private static final class Entry {
+
+    public final String location;
+    public final long expiryTimeMs;
+
+    public Entry(String location, long expiryTimeMs) {
+      this.location = location;
+      this.expiryTimeMs = expiryTimeMs;
+    }
+  }
+}
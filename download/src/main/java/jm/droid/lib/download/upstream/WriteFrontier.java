@@ -0,0 +1,172 @@
+package jm.droid.lib.download.upstream;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.util.Assertions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * The end of the data that a download has durably written to its file, so that the file can be
+ * read while it's downloaded.
+ *
+ * <p>The writer {@link #advance advances} the frontier after syncing the file. It syncs only when a
+ * reader {@link #await waits} for data that it has written but not synced, so that a download
+ * without readers isn't slowed down. When the writer has to write data before the frontier again,
+ * for example because the content changed on the server, it {@link #reset resets} the frontier,
+ * and readers that have read beyond the new frontier fail.
+ *
+ * <p>Thread safe.
+ */
+public final class WriteFrontier {
+
+  private final ArrayList<Long> rewindPositions;
+  // The positions that readers are waiting for.
+  private final ArrayList<Long> waitingPositions;
+
+  private long position;
+  private int wakeUpCount;
+  private boolean ended;
+  @Nullable private IOException error;
+
+  /**
+   * Creates an instance.
+   *
+   * @param position The end of the data that has been durably written already.
+   */
+  public WriteFrontier(long position) {
+    Assertions.checkArgument(position >= 0);
+    this.position = position;
+    rewindPositions = new ArrayList<>();
+    waitingPositions = new ArrayList<>();
+  }
+
+  /** Returns an instance for a file that has been written completely. */
+  public static WriteFrontier createEnded() {
+    WriteFrontier writeFrontier = new WriteFrontier(/* position= */ 0);
+    writeFrontier.ended = true;
+    return writeFrontier;
+  }
+
+  /** Returns the end of the data that has been durably written. */
+  public synchronized long getPosition() {
+    return position;
+  }
+
+  /**
+   * Returns whether a reader is waiting for data before {@code writtenPosition}, in which case the
+   * writer should sync the file and {@link #advance} the frontier.
+   */
+  public synchronized boolean isReadPending(long writtenPosition) {
+    for (int i = 0; i < waitingPositions.size(); i++) {
+      if (waitingPositions.get(i) < writtenPosition) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Moves the frontier forward to {@code position}, after the data before it has been synced. */
+  public synchronized void advance(long position) {
+    if (position > this.position) {
+      this.position = position;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Sets the frontier to {@code position} when the writer starts writing there, which may be before
+   * the current frontier.
+   */
+  public synchronized void reset(long position) {
+    if (position < this.position) {
+      rewindPositions.add(position);
+      this.position = position;
+    }
+    advance(position);
+  }
+
+  /** Marks the file as written completely. */
+  public synchronized void end() {
+    ended = true;
+    notifyAll();
+  }
+
+  /** Makes the reads fail with {@code error}, for example because the download failed. */
+  public synchronized void fail(IOException error) {
+    if (!ended) {
+      this.error = error;
+      notifyAll();
+    }
+  }
+
+  /** Returns the number of times the frontier has been moved backwards. */
+  public synchronized int getRewindCount() {
+    return rewindPositions.size();
+  }
+
+  /**
+   * Returns the lowest position that the frontier has been moved back to since it had been moved
+   * back {@code rewindCount} times, or {@link Long#MAX_VALUE} if it hasn't been moved back since.
+   */
+  public synchronized long getLowestRewindPosition(int rewindCount) {
+    long lowestPosition = Long.MAX_VALUE;
+    for (int i = rewindCount; i < rewindPositions.size(); i++) {
+      lowestPosition = Math.min(lowestPosition, rewindPositions.get(i));
+    }
+    return lowestPosition;
+  }
+
+  /** Makes the blocked {@link #await} calls return, for example because a reader was closed. */
+  public synchronized void wakeUp() {
+    wakeUpCount++;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until the data at {@code position} has been durably written, or the file has been
+   * written completely.
+   *
+   * @param position The position of the data to read.
+   * @return The end of the data that can be read, which is at or before {@code position} if {@link
+   *     #wakeUp()} was called, or {@link C#LENGTH_UNSET} if the file has been written completely and
+   *     can be read to its end.
+   * @throws IOException If the writer failed.
+   * @throws InterruptedIOException If the thread was interrupted while waiting.
+   */
+  public synchronized long await(long position) throws IOException {
+    if (position >= this.position && !ended && error == null) {
+      Long waitingPosition = position;
+      waitingPositions.add(waitingPosition);
+      int wakeUpCount = this.wakeUpCount;
+      try {
+        while (position >= this.position
+            && !ended
+            && error == null
+            && wakeUpCount == this.wakeUpCount) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } finally {
+        waitingPositions.remove(waitingPosition);
+      }
+    }
+    if (ended) {
+      return C.LENGTH_UNSET;
+    }
+    if (error != null) {
+      throw error;
+    }
+    return this.position;
+  }
+
+  /** Returns whether the data at {@code position} can be read without blocking. */
+  public synchronized boolean isReadable(long position) {
+    return ended || error != null || position < this.position;
+  }
+}
@@ -0,0 +1,530 @@
+package jm.droid.lib.download.upstream;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.util.Assertions;
+import jm.droid.lib.download.util.Log;
+import jm.droid.lib.download.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A {@link DataDestination} that extracts a zip archive while it's downloaded, so that the archive
+ * itself is never written to disk.
+ *
+ * <p>Entries are extracted into a staging directory next to the download path, see {@link
+ * FileDataDestination#getTempFile(String)}. Each entry is written to a {@code .part} file that is
+ * renamed once the entry is complete and its CRC has been checked, and the staging directory is
+ * renamed to the download path in {@link #done()}. Only {@code STORED} and {@code DEFLATED} entries
+ * are supported. Extraction stops at the central directory, so it isn't read.
+ *
+ * <p>The state of an {@link Inflater} can't be saved, so extraction can only resume at the start of
+ * an entry. The archive offset of the last completed entry is saved in the staging directory, and
+ * {@link #open(DataSpec)} returns it when it's before the requested position, so that the rest of
+ * the entry is downloaded again.
+ *
+ * <p>Not thread safe.
+ */
+public final class ZipExtractingDataDestination implements DataDestination {
+
+  /** Receives the progress of the extraction. */
+  public interface Listener {
+
+    /**
+     * Called on the download thread when an entry has been extracted.
+     *
+     * @param file The extracted file, in the staging directory until the download completes.
+     * @param entriesExtracted The number of entries extracted so far, including directories.
+     * @param archivePosition The offset in the archive after the entry.
+     */
+    void onEntryExtracted(File file, int entriesExtracted, long archivePosition);
+  }
+
+  /** {@link DataDestination.Factory} for {@link ZipExtractingDataDestination} instances. */
+  public static final class Factory implements DataDestination.Factory {
+
+    @Nullable private Listener listener;
+
+    /**
+     * Sets a {@link Listener} for the extraction progress of the destinations created by this
+     * factory.
+     *
+     * @param listener The {@link Listener}.
+     * @return This factory.
+     */
+    public Factory setListener(@Nullable Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    @Override
+    public ZipExtractingDataDestination createDataDestination() {
+      return new ZipExtractingDataDestination(listener);
+    }
+  }
+
+  private static final String TAG = "ZipExtracting";
+  private static final String CHECKPOINT_FILE_NAME = ".extract_checkpoint";
+  private static final String PART_SUFFIX = ".part";
+
+  private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int LOCAL_FILE_HEADER_LENGTH = 30;
+  private static final int FLAG_DATA_DESCRIPTOR = 8;
+  private static final int FLAG_UTF8 = 0x800;
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+  private static final int ZIP64_EXTRA_FIELD_ID = 1;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private static final int STATE_HEADER = 0;
+  private static final int STATE_NAME_AND_EXTRA = 1;
+  private static final int STATE_DATA = 2;
+  private static final int STATE_DATA_DESCRIPTOR = 3;
+  private static final int STATE_END = 4;
+
+  @Nullable private final Listener listener;
+  private final CRC32 crc;
+  private final byte[] outputBuffer;
+
+  @Nullable private String path;
+  @Nullable private File stagingDirectory;
+  @Nullable private Inflater inflater;
+  @Nullable private RandomAccessFile entryOutput;
+  @Nullable private File entryFile;
+
+  private int state;
+  private byte[] scratch;
+  private int scratchLength;
+  private int bytesNeeded;
+  private long bytesToSkip;
+  private long archivePosition;
+  private int entriesExtracted;
+
+  private int flags;
+  private int method;
+  private long expectedCrc;
+  private long compressedSize;
+  private long uncompressedSize;
+  private int nameLength;
+  private boolean isZip64Entry;
+  private boolean isDirectoryEntry;
+  private long entryBytesRemaining;
+
+  public ZipExtractingDataDestination() {
+    this(/* listener= */ null);
+  }
+
+  public ZipExtractingDataDestination(@Nullable Listener listener) {
+    this.listener = listener;
+    crc = new CRC32();
+    outputBuffer = new byte[DataAdhesives.DEFAULT_BUFFER_SIZE_BYTES];
+    scratch = new byte[LOCAL_FILE_HEADER_LENGTH];
+  }
+
+  /** Returns the number of entries extracted so far, including directories. */
+  public int getEntriesExtracted() {
+    return entriesExtracted;
+  }
+
+  /**
+   * Opens the destination to continue extracting at {@code dataSpec.position}.
+   *
+   * @return The archive offset from which data must be written, which is the start of the first
+   *     entry that hasn't been extracted completely if that's before {@code dataSpec.position}.
+   */
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    // Release the state of a previous open that wasn't closed after an error.
+    close();
+    String path = Assertions.checkNotNull(dataSpec.path);
+    this.path = path;
+    File stagingDirectory = FileDataDestination.getTempFile(path);
+    this.stagingDirectory = stagingDirectory;
+    long checkpointPosition = 0;
+    entriesExtracted = 0;
+    if (dataSpec.position > 0) {
+      readCheckpoint(stagingDirectory);
+      checkpointPosition = archivePosition;
+    }
+    if (checkpointPosition == 0) {
+      Util.recursiveDelete(stagingDirectory);
+      archivePosition = 0;
+      entriesExtracted = 0;
+    }
+    if (!stagingDirectory.isDirectory() && !stagingDirectory.mkdirs()) {
+      throw new IOException("failed to create " + stagingDirectory);
+    }
+    inflater = new Inflater(/* nowrap= */ true);
+    startHeader();
+    // The saved checkpoint can be ahead of the progress of the download, which is saved less often.
+    bytesToSkip = Math.max(0, checkpointPosition - dataSpec.position);
+    Log.i(TAG, "open at " + dataSpec.position + ", extraction resumes at " + checkpointPosition);
+    return Math.min(dataSpec.position, checkpointPosition);
+  }
+
+  @Override
+  public int write(byte[] buffer, int offset, int length) throws IOException {
+    int end = offset + length;
+    if (bytesToSkip > 0) {
+      int skipLength = (int) Math.min(bytesToSkip, length);
+      bytesToSkip -= skipLength;
+      offset += skipLength;
+    }
+    while (offset < end && state != STATE_END) {
+      int consumed;
+      if (state == STATE_DATA) {
+        consumed = writeEntryData(buffer, offset, end - offset);
+      } else {
+        consumed = Math.min(bytesNeeded - scratchLength, end - offset);
+        System.arraycopy(buffer, offset, scratch, scratchLength, consumed);
+        scratchLength += consumed;
+        archivePosition += consumed;
+        if (scratchLength == bytesNeeded) {
+          onScratchFull();
+        }
+      }
+      offset += consumed;
+    }
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    @Nullable Inflater inflater = this.inflater;
+    if (inflater != null) {
+      inflater.end();
+      this.inflater = null;
+    }
+    closeEntryOutput();
+  }
+
+  @Override
+  public void done() throws IOException {
+    String path = Assertions.checkNotNull(this.path);
+    File stagingDirectory = Assertions.checkNotNull(this.stagingDirectory);
+    // An archive may end without a central directory, but only between entries.
+    boolean isAtEntryBoundary = state == STATE_HEADER && scratchLength == 0 && bytesNeeded == 4;
+    if (state != STATE_END && !isAtEntryBoundary) {
+      throw new ZipException("archive ended inside an entry at " + archivePosition);
+    }
+    File checkpointFile = new File(stagingDirectory, CHECKPOINT_FILE_NAME);
+    if (checkpointFile.exists() && !checkpointFile.delete()) {
+      Log.w(TAG, "failed to delete " + checkpointFile);
+    }
+    File directory = new File(path);
+    Util.recursiveDelete(directory);
+    if (!stagingDirectory.renameTo(directory)) {
+      throw new IOException("failed to rename " + stagingDirectory + " to " + directory);
+    }
+    Log.i(TAG, "extracted " + entriesExtracted + " entries to " + directory);
+  }
+
+  private void startHeader() {
+    state = STATE_HEADER;
+    scratchLength = 0;
+    // Read the signature first, an archive without entries is shorter than a local file header.
+    bytesNeeded = 4;
+  }
+
+  private void onScratchFull() throws IOException {
+    switch (state) {
+      case STATE_HEADER:
+        onHeader();
+        break;
+      case STATE_NAME_AND_EXTRA:
+        onNameAndExtra();
+        break;
+      case STATE_DATA_DESCRIPTOR:
+        onDataDescriptor();
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void onHeader() throws IOException {
+    if (bytesNeeded == 4) {
+      int signature = readInt(scratch, 0);
+      if (signature == CENTRAL_DIRECTORY_SIGNATURE
+          || signature == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        state = STATE_END;
+      } else if (signature == LOCAL_FILE_HEADER_SIGNATURE) {
+        bytesNeeded = LOCAL_FILE_HEADER_LENGTH;
+      } else {
+        throw new ZipException("unexpected signature " + Integer.toHexString(signature));
+      }
+      return;
+    }
+    flags = readShort(scratch, 6);
+    method = readShort(scratch, 8);
+    expectedCrc = readUnsignedInt(scratch, 14);
+    compressedSize = readUnsignedInt(scratch, 18);
+    uncompressedSize = readUnsignedInt(scratch, 22);
+    nameLength = readShort(scratch, 26);
+    int extraLength = readShort(scratch, 28);
+    if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+      throw new ZipException("unsupported compression method " + method);
+    }
+    state = STATE_NAME_AND_EXTRA;
+    scratchLength = 0;
+    bytesNeeded = nameLength + extraLength;
+    ensureScratchCapacity(bytesNeeded);
+    if (bytesNeeded == 0) {
+      onNameAndExtra();
+    }
+  }
+
+  private void onNameAndExtra() throws IOException {
+    String name =
+        new String(
+            scratch,
+            0,
+            nameLength,
+            (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    readZip64ExtraField(nameLength, bytesNeeded);
+    boolean hasDataDescriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+    if (hasDataDescriptor && method == METHOD_STORED) {
+      throw new ZipException("stored entry without a size: " + name);
+    }
+    File file = getEntryFile(name);
+    entryFile = file;
+    // Directory entries can have data too, usually an empty deflate stream, which is discarded.
+    isDirectoryEntry = name.endsWith("/");
+    @Nullable File directory = isDirectoryEntry ? file : file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("failed to create " + directory);
+    }
+    if (!isDirectoryEntry) {
+      RandomAccessFile entryOutput =
+          new RandomAccessFile(new File(file.getPath() + PART_SUFFIX), "rw");
+      entryOutput.setLength(0);
+      this.entryOutput = entryOutput;
+    }
+    crc.reset();
+    Assertions.checkNotNull(inflater).reset();
+    entryBytesRemaining = hasDataDescriptor ? C.LENGTH_UNSET : compressedSize;
+    state = STATE_DATA;
+    if (entryBytesRemaining == 0) {
+      onEntryDataEnd();
+    }
+  }
+
+  /** Replaces sizes marked as stored in the zip64 extra field with the values from the field. */
+  private void readZip64ExtraField(int offset, int end) {
+    isZip64Entry = false;
+    while (offset + 4 <= end) {
+      int id = readShort(scratch, offset);
+      int size = readShort(scratch, offset + 2);
+      int dataOffset = offset + 4;
+      offset = dataOffset + size;
+      if (id != ZIP64_EXTRA_FIELD_ID || offset > end) {
+        continue;
+      }
+      isZip64Entry = true;
+      if (uncompressedSize == ZIP64_MAGIC && dataOffset + 8 <= offset) {
+        uncompressedSize = readLong(scratch, dataOffset);
+        dataOffset += 8;
+      }
+      if (compressedSize == ZIP64_MAGIC && dataOffset + 8 <= offset) {
+        compressedSize = readLong(scratch, dataOffset);
+      }
+    }
+  }
+
+  private int writeEntryData(byte[] buffer, int offset, int length) throws IOException {
+    if (entryBytesRemaining != C.LENGTH_UNSET) {
+      length = (int) Math.min(length, entryBytesRemaining);
+    }
+    int consumed;
+    if (method == METHOD_STORED) {
+      writeEntryOutput(buffer, offset, length);
+      consumed = length;
+    } else {
+      consumed = inflate(buffer, offset, length);
+    }
+    archivePosition += consumed;
+    if (entryBytesRemaining != C.LENGTH_UNSET) {
+      entryBytesRemaining -= consumed;
+    }
+    if (entryBytesRemaining == 0
+        || (method == METHOD_DEFLATED && Assertions.checkNotNull(inflater).finished())) {
+      onEntryDataEnd();
+    }
+    return consumed;
+  }
+
+  private int inflate(byte[] buffer, int offset, int length) throws IOException {
+    Inflater inflater = Assertions.checkNotNull(this.inflater);
+    inflater.setInput(buffer, offset, length);
+    try {
+      while (!inflater.finished()) {
+        int outputLength = inflater.inflate(outputBuffer);
+        if (outputLength > 0) {
+          writeEntryOutput(outputBuffer, 0, outputLength);
+        } else if (inflater.needsInput()) {
+          break;
+        } else if (inflater.needsDictionary()) {
+          throw new ZipException("deflate stream needs a preset dictionary");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException("invalid deflate stream in " + entryFile + ": " + e.getMessage());
+    }
+    // Bytes after the end of the deflate stream belong to the data descriptor or the next entry.
+    return length - inflater.getRemaining();
+  }
+
+  private void writeEntryOutput(byte[] buffer, int offset, int length) throws IOException {
+    if (entryOutput != null) {
+      entryOutput.write(buffer, offset, length);
+    }
+    crc.update(buffer, offset, length);
+  }
+
+  private void onEntryDataEnd() throws IOException {
+    if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+      state = STATE_DATA_DESCRIPTOR;
+      scratchLength = 0;
+      // The signature is optional, so read the shortest descriptor first.
+      bytesNeeded = 12;
+      return;
+    }
+    finishEntryFile();
+  }
+
+  private void onDataDescriptor() throws IOException {
+    if (bytesNeeded == 12 && readInt(scratch, 0) == DATA_DESCRIPTOR_SIGNATURE) {
+      bytesNeeded = isZip64Entry ? 24 : 16;
+      return;
+    }
+    if (bytesNeeded == 12 && isZip64Entry) {
+      bytesNeeded = 20;
+      return;
+    }
+    int offset = bytesNeeded == 12 || bytesNeeded == 20 ? 0 : 4;
+    expectedCrc = readUnsignedInt(scratch, offset);
+    finishEntryFile();
+  }
+
+  private void finishEntryFile() throws IOException {
+    File file = Assertions.checkNotNull(entryFile);
+    if (crc.getValue() != expectedCrc) {
+      throw new ZipException(
+          "CRC mismatch in "
+              + file
+              + ", expected "
+              + Long.toHexString(expectedCrc)
+              + " but was "
+              + Long.toHexString(crc.getValue()));
+    }
+    // The checkpoint records the entry as extracted, so its data has to be durable first.
+    @Nullable RandomAccessFile entryOutput = this.entryOutput;
+    if (entryOutput != null) {
+      entryOutput.getFD().sync();
+    }
+    closeEntryOutput();
+    if (isDirectoryEntry) {
+      onEntryEnd();
+      return;
+    }
+    File partFile = new File(file.getPath() + PART_SUFFIX);
+    if ((file.exists() && !file.delete()) || !partFile.renameTo(file)) {
+      throw new IOException("failed to rename " + partFile);
+    }
+    onEntryEnd();
+  }
+
+  private void onEntryEnd() throws IOException {
+    entriesExtracted++;
+    startHeader();
+    writeCheckpoint(archivePosition);
+    if (listener != null) {
+      listener.onEntryExtracted(
+          Assertions.checkNotNull(entryFile), entriesExtracted, archivePosition);
+    }
+  }
+
+  private File getEntryFile(String name) throws IOException {
+    File stagingDirectory = Assertions.checkNotNull(this.stagingDirectory);
+    File file = new File(stagingDirectory, name);
+    // Reject entries that would be written outside the staging directory.
+    String directoryPath = stagingDirectory.getCanonicalPath() + File.separator;
+    if (!file.getCanonicalPath().startsWith(directoryPath) || name.endsWith(PART_SUFFIX)) {
+      throw new ZipException("invalid entry name " + name);
+    }
+    return file;
+  }
+
+  private void closeEntryOutput() throws IOException {
+    @Nullable RandomAccessFile entryOutput = this.entryOutput;
+    if (entryOutput != null) {
+      this.entryOutput = null;
+      entryOutput.close();
+    }
+  }
+
+  private void readCheckpoint(File stagingDirectory) {
+    archivePosition = 0;
+    File checkpointFile = new File(stagingDirectory, CHECKPOINT_FILE_NAME);
+    if (!checkpointFile.isFile()) {
+      return;
+    }
+    try (RandomAccessFile input = new RandomAccessFile(checkpointFile, "r")) {
+      long position = input.readLong();
+      int entries = input.readInt();
+      archivePosition = position;
+      entriesExtracted = entries;
+    } catch (IOException e) {
+      Log.w(TAG, "failed to read " + checkpointFile, e);
+    }
+  }
+
+  /** Saves the checkpoint to a new file that replaces the previous one, so it's never partial. */
+  private void writeCheckpoint(long position) throws IOException {
+    File stagingDirectory = Assertions.checkNotNull(this.stagingDirectory);
+    File checkpointFile = new File(stagingDirectory, CHECKPOINT_FILE_NAME);
+    File newCheckpointFile = new File(stagingDirectory, CHECKPOINT_FILE_NAME + PART_SUFFIX);
+    try (RandomAccessFile output = new RandomAccessFile(newCheckpointFile, "rw")) {
+      output.setLength(0);
+      output.writeLong(position);
+      output.writeInt(entriesExtracted);
+      output.getFD().sync();
+    }
+    if (!newCheckpointFile.renameTo(checkpointFile)) {
+      throw new IOException("failed to rename " + newCheckpointFile);
+    }
+  }
+
+  private void ensureScratchCapacity(int capacity) {
+    if (scratch.length < capacity) {
+      scratch = new byte[capacity];
+    }
+  }
+
+  private static int readShort(byte[] data, int offset) {
+    return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return readShort(data, offset) | readShort(data, offset + 2) << 16;
+  }
+
+  private static long readUnsignedInt(byte[] data, int offset) {
+    return readInt(data, offset) & 0xFFFFFFFFL;
+  }
+
+  private static long readLong(byte[] data, int offset) {
+    return readUnsignedInt(data, offset) | (long) readInt(data, offset + 4) << 32;
+  }
+}
@@ -0,0 +1,108 @@
+package jm.droid.lib.download.util;
+
+import jm.droid.lib.download.C;
+
+/**
+ * Estimates a transfer rate as an exponentially weighted moving average of the rates observed over
+ * successive sample windows.
+ *
+ * <p>Bytes are accumulated until at least {@link #minSampleDurationMs} has elapsed, so that short
+ * bursts don't produce spikes. Each completed window is then folded into the estimate with a weight
+ * that depends on its duration, such that a window lasting {@link #halfLifeMs} contributes half of
+ * the new estimate. The first window initializes the estimate directly.
+ *
+ * <p>Only primitive fields are updated, so nothing is allocated per sample. Not thread safe.
+ */
+public final class RateEstimator {
+
+  /** The default half-life of a sample's contribution to the estimate, in milliseconds. */
+  public static final long DEFAULT_HALF_LIFE_MS = 2000;
+  /** The default minimum duration of a sample window, in milliseconds. */
+  public static final long DEFAULT_MIN_SAMPLE_DURATION_MS = 200;
+
+  private final long halfLifeMs;
+  private final long minSampleDurationMs;
+
+  private long sampleStartTimeMs;
+  private long sampleBytes;
+  private double bytesPerSecond;
+  private boolean hasEstimate;
+
+  /**
+   * Creates an instance using {@link #DEFAULT_HALF_LIFE_MS} and {@link
+   * #DEFAULT_MIN_SAMPLE_DURATION_MS}.
+   */
+  public RateEstimator() {
+    this(DEFAULT_HALF_LIFE_MS, DEFAULT_MIN_SAMPLE_DURATION_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param halfLifeMs The duration after which a sample contributes half of the estimate, in
+   *     milliseconds. Smaller values react faster, larger values are smoother.
+   * @param minSampleDurationMs The minimum duration of a sample window, in milliseconds.
+   */
+  public RateEstimator(long halfLifeMs, long minSampleDurationMs) {
+    Assertions.checkArgument(halfLifeMs > 0 && minSampleDurationMs > 0);
+    this.halfLifeMs = halfLifeMs;
+    this.minSampleDurationMs = minSampleDurationMs;
+    sampleStartTimeMs = C.TIME_UNSET;
+  }
+
+  /**
+   * Adds transferred bytes.
+   *
+   * <p>The first call only starts the first sample window, so its bytes are not counted.
+   *
+   * @param bytes The number of bytes transferred since the last call.
+   * @param nowMs The current time, in milliseconds, from a monotonic clock.
+   * @return Whether the estimate was updated.
+   */
+  public boolean addBytes(long bytes, long nowMs) {
+    if (sampleStartTimeMs == C.TIME_UNSET) {
+      sampleStartTimeMs = nowMs;
+      return false;
+    }
+    sampleBytes += bytes;
+    long sampleDurationMs = nowMs - sampleStartTimeMs;
+    if (sampleDurationMs < minSampleDurationMs) {
+      return false;
+    }
+    double sampleBytesPerSecond = sampleBytes * 1000d / sampleDurationMs;
+    if (hasEstimate) {
+      double weight = 1 - Math.pow(0.5, (double) sampleDurationMs / halfLifeMs);
+      bytesPerSecond += weight * (sampleBytesPerSecond - bytesPerSecond);
+    } else {
+      bytesPerSecond = sampleBytesPerSecond;
+      hasEstimate = true;
+    }
+    sampleStartTimeMs = nowMs;
+    sampleBytes = 0;
+    return true;
+  }
+
+  /** Returns the estimated rate in bytes per second, or 0 if there is no estimate yet. */
+  public float getBytesPerSecond() {
+    return (float) bytesPerSecond;
+  }
+
+  /**
+   * Returns the estimated time to transfer {@code remainingBytes}, in milliseconds, or {@link
+   * C#TIME_UNSET} if {@code remainingBytes} is unknown or there is no estimate yet.
+   */
+  public long getEtaMs(long remainingBytes) {
+    if (remainingBytes < 0 || !hasEstimate || bytesPerSecond <= 0) {
+      return C.TIME_UNSET;
+    }
+    return (long) (remainingBytes * 1000d / bytesPerSecond);
+  }
+
+  /** Discards the estimate and any partial sample. */
+  public void reset() {
+    sampleStartTimeMs = C.TIME_UNSET;
+    sampleBytes = 0;
+    bytesPerSecond = 0;
+    hasEstimate = false;
+  }
+}
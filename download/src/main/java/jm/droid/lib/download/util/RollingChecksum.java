@@ -0,0 +1,76 @@
+package jm.droid.lib.download.util;
+
+/**
+ * The weak checksum of rsync, which can be rolled over a file one byte at a time to find blocks at
+ * any offset.
+ *
+ * <p>For a block of bytes x<sub>0</sub> to x<sub>n-1</sub>, {@code a} is the sum of the bytes and
+ * {@code b} is the sum of (n - i) * x<sub>i</sub>, both modulo 2<sup>16</sup>. The checksum is
+ * {@code a | b << 16}.
+ *
+ * <p>Not thread safe.
+ */
+public final class RollingChecksum {
+
+  private final int blockSize;
+
+  private int a;
+  private int b;
+
+  /**
+   * Creates an instance.
+   *
+   * @param blockSize The size of the blocks that are checksummed.
+   */
+  public RollingChecksum(int blockSize) {
+    Assertions.checkArgument(blockSize > 0);
+    this.blockSize = blockSize;
+  }
+
+  /** Returns the checksum of {@code length} bytes of {@code buffer} starting at {@code offset}. */
+  public static int compute(byte[] buffer, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      int value = buffer[offset + i] & 0xFF;
+      a += value;
+      b += (length - i) * value;
+    }
+    return (a & 0xFFFF) | (b << 16);
+  }
+
+  /**
+   * Starts a new block, the {@code blockSize} bytes of {@code buffer} starting at {@code offset}.
+   *
+   * @return The checksum of the block.
+   */
+  public int reset(byte[] buffer, int offset) {
+    a = 0;
+    b = 0;
+    for (int i = 0; i < blockSize; i++) {
+      int value = buffer[offset + i] & 0xFF;
+      a += value;
+      b += (blockSize - i) * value;
+    }
+    return getValue();
+  }
+
+  /**
+   * Moves the block forward by one byte.
+   *
+   * @param removed The first byte of the current block.
+   * @param added The byte after the current block.
+   * @return The checksum of the new block.
+   */
+  public int roll(byte removed, byte added) {
+    int removedValue = removed & 0xFF;
+    a += (added & 0xFF) - removedValue;
+    b += a - blockSize * removedValue;
+    return getValue();
+  }
+
+  /** Returns the checksum of the current block. */
+  public int getValue() {
+    return (a & 0xFFFF) | (b << 16);
+  }
+}
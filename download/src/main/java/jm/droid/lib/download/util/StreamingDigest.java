@@ -0,0 +1,553 @@
+package jm.droid.lib.download.util;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * An incremental message digest whose state can be saved and restored, so that hashing a download
+ * can resume where it stopped instead of rehashing the data already on disk.
+ *
+ * <p>{@link java.security.MessageDigest} can't export its state, so the supported algorithms are
+ * implemented here: {@link #MD5}, {@link #SHA_1}, {@link #SHA_256} and {@link #CRC32C}.
+ *
+ * <p>Not thread safe.
+ */
+public abstract class StreamingDigest {
+
+  /** MD5, RFC 1321. */
+  public static final String MD5 = "MD5";
+  /** SHA-1, FIPS 180-4. */
+  public static final String SHA_1 = "SHA-1";
+  /** SHA-256, FIPS 180-4. */
+  public static final String SHA_256 = "SHA-256";
+  /** CRC-32C (Castagnoli), RFC 3720. The digest is the CRC as 4 big-endian bytes. */
+  public static final String CRC32C = "CRC32C";
+
+  private static final int STATE_VERSION = 1;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final String algorithm;
+
+  /** The number of bytes hashed. */
+  protected long position;
+
+  private StreamingDigest(String algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /** Returns whether {@code algorithm} is supported, ignoring case. */
+  public static boolean isSupported(@Nullable String algorithm) {
+    return normalizeAlgorithm(algorithm) != null;
+  }
+
+  /**
+   * Creates an instance that hasn't hashed anything yet.
+   *
+   * @param algorithm One of the supported algorithms, ignoring case.
+   * @throws IllegalArgumentException If the algorithm isn't supported.
+   */
+  public static StreamingDigest create(String algorithm) {
+    @Nullable String normalizedAlgorithm = normalizeAlgorithm(algorithm);
+    if (normalizedAlgorithm == null) {
+      throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+    }
+    switch (normalizedAlgorithm) {
+      case MD5:
+        return new Md5();
+      case SHA_1:
+        return new Sha1();
+      case SHA_256:
+        return new Sha256();
+      default:
+        return new Crc32c();
+    }
+  }
+
+  /**
+   * Creates an instance from a state returned by {@link #saveState()}.
+   *
+   * @param algorithm The algorithm of the digest whose state was saved, ignoring case.
+   * @param state The saved state.
+   * @return The restored digest, or null if {@code state} isn't a valid state of {@code algorithm}.
+   * @throws IllegalArgumentException If the algorithm isn't supported.
+   */
+  @Nullable
+  public static StreamingDigest restore(String algorithm, byte[] state) {
+    StreamingDigest digest = create(algorithm);
+    ByteBuffer buffer = ByteBuffer.wrap(state);
+    if (state.length < 9 || buffer.get() != STATE_VERSION) {
+      return null;
+    }
+    digest.position = buffer.getLong();
+    if (digest.position < 0 || !digest.restoreState(buffer) || buffer.hasRemaining()) {
+      return null;
+    }
+    return digest;
+  }
+
+  /** Returns the algorithm, as one of the constants of this class. */
+  public final String getAlgorithm() {
+    return algorithm;
+  }
+
+  /** Returns the number of bytes hashed. */
+  public final long getPosition() {
+    return position;
+  }
+
+  /** Hashes {@code length} bytes of {@code buffer} starting at {@code offset}. */
+  public abstract void update(byte[] buffer, int offset, int length);
+
+  /** Returns the digest of the bytes hashed so far, without resetting the state. */
+  public abstract byte[] digest();
+
+  /** Returns the digest of the bytes hashed so far as lower case hex, see {@link #digest()}. */
+  public final String digestHex() {
+    byte[] digest = digest();
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  /** Returns a copy of the state, from which {@link #restore} creates an equivalent digest. */
+  public final byte[] saveState() {
+    ByteBuffer buffer = ByteBuffer.allocate(9 + getStateLength());
+    buffer.put((byte) STATE_VERSION);
+    buffer.putLong(position);
+    saveState(buffer);
+    return buffer.array();
+  }
+
+  /** Returns whether {@code expectedDigestHex} matches {@link #digestHex()}, ignoring case. */
+  public final boolean matches(String expectedDigestHex) {
+    return digestHex().equalsIgnoreCase(expectedDigestHex.trim());
+  }
+
+  /** Returns the length of the state written by {@link #saveState(ByteBuffer)}. */
+  protected abstract int getStateLength();
+
+  /** Writes the algorithm specific state to {@code buffer}. */
+  protected abstract void saveState(ByteBuffer buffer);
+
+  /** Reads the algorithm specific state from {@code buffer}, returning whether it's valid. */
+  protected abstract boolean restoreState(ByteBuffer buffer);
+
+  @Nullable
+  private static String normalizeAlgorithm(@Nullable String algorithm) {
+    if (algorithm == null) {
+      return null;
+    }
+    switch (algorithm.trim().toUpperCase(Locale.US)) {
+      case "MD5":
+        return MD5;
+      case "SHA-1":
+      case "SHA1":
+        return SHA_1;
+      case "SHA-256":
+      case "SHA256":
+        return SHA_256;
+      case "CRC32C":
+      case "CRC-32C":
+        return CRC32C;
+      default:
+        return null;
+    }
+  }
+
+  /** A Merkle–Damgård digest with 64 byte blocks. */
+  private abstract static class BlockDigest extends StreamingDigest {
+
+    private static final int BLOCK_LENGTH = 64;
+
+    protected final int[] h;
+    private final byte[] block;
+    private final boolean isLittleEndian;
+
+    protected BlockDigest(String algorithm, int[] initialState, boolean isLittleEndian) {
+      super(algorithm);
+      this.h = initialState;
+      this.isLittleEndian = isLittleEndian;
+      block = new byte[BLOCK_LENGTH];
+    }
+
+    @Override
+    public final void update(byte[] buffer, int offset, int length) {
+      int blockLength = (int) (position % BLOCK_LENGTH);
+      position += length;
+      if (blockLength > 0) {
+        int toCopy = Math.min(length, BLOCK_LENGTH - blockLength);
+        System.arraycopy(buffer, offset, block, blockLength, toCopy);
+        offset += toCopy;
+        length -= toCopy;
+        if (blockLength + toCopy < BLOCK_LENGTH) {
+          return;
+        }
+        processBlock(h, block, 0);
+      }
+      while (length >= BLOCK_LENGTH) {
+        processBlock(h, buffer, offset);
+        offset += BLOCK_LENGTH;
+        length -= BLOCK_LENGTH;
+      }
+      System.arraycopy(buffer, offset, block, 0, length);
+    }
+
+    @Override
+    public final byte[] digest() {
+      int[] state = h.clone();
+      int blockLength = (int) (position % BLOCK_LENGTH);
+      byte[] tail = new byte[blockLength < BLOCK_LENGTH - 8 ? BLOCK_LENGTH : 2 * BLOCK_LENGTH];
+      System.arraycopy(block, 0, tail, 0, blockLength);
+      tail[blockLength] = (byte) 0x80;
+      long bitLength = position << 3;
+      for (int i = 0; i < 8; i++) {
+        int shift = isLittleEndian ? 8 * i : 8 * (7 - i);
+        tail[tail.length - 8 + i] = (byte) (bitLength >>> shift);
+      }
+      for (int offset = 0; offset < tail.length; offset += BLOCK_LENGTH) {
+        processBlock(state, tail, offset);
+      }
+      byte[] digest = new byte[4 * state.length];
+      for (int i = 0; i < state.length; i++) {
+        for (int j = 0; j < 4; j++) {
+          int shift = isLittleEndian ? 8 * j : 8 * (3 - j);
+          digest[4 * i + j] = (byte) (state[i] >>> shift);
+        }
+      }
+      return digest;
+    }
+
+    @Override
+    protected final int getStateLength() {
+      return 4 * h.length + (int) (position % BLOCK_LENGTH);
+    }
+
+    @Override
+    protected final void saveState(ByteBuffer buffer) {
+      for (int word : h) {
+        buffer.putInt(word);
+      }
+      buffer.put(block, 0, (int) (position % BLOCK_LENGTH));
+    }
+
+    @Override
+    protected final boolean restoreState(ByteBuffer buffer) {
+      int blockLength = (int) (position % BLOCK_LENGTH);
+      if (buffer.remaining() != 4 * h.length + blockLength) {
+        return false;
+      }
+      for (int i = 0; i < h.length; i++) {
+        h[i] = buffer.getInt();
+      }
+      buffer.get(block, 0, blockLength);
+      return true;
+    }
+
+    /** Updates {@code state} with the 64 byte block of {@code buffer} starting at {@code offset}. */
+    protected abstract void processBlock(int[] state, byte[] buffer, int offset);
+
+    protected static int readBigEndianInt(byte[] buffer, int offset) {
+      return (buffer[offset] << 24)
+          | ((buffer[offset + 1] & 0xFF) << 16)
+          | ((buffer[offset + 2] & 0xFF) << 8)
+          | (buffer[offset + 3] & 0xFF);
+    }
+  }
+
+  private static final class Md5 extends BlockDigest {
+
+    private static final int[] S = {
+      7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+    };
+    private static final int[] K = new int[64];
+
+    static {
+      for (int i = 0; i < 64; i++) {
+        K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296d);
+      }
+    }
+
+    private final int[] x;
+
+    public Md5() {
+      super(MD5, new int[] {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476}, true);
+      x = new int[16];
+    }
+
+    @Override
+    protected void processBlock(int[] state, byte[] buffer, int offset) {
+      for (int i = 0; i < 16; i++) {
+        int j = offset + 4 * i;
+        x[i] =
+            (buffer[j] & 0xFF)
+                | ((buffer[j + 1] & 0xFF) << 8)
+                | ((buffer[j + 2] & 0xFF) << 16)
+                | (buffer[j + 3] << 24);
+      }
+      int a = state[0];
+      int b = state[1];
+      int c = state[2];
+      int d = state[3];
+      for (int i = 0; i < 16; i++) {
+        int f = a + ((b & c) | (~b & d)) + K[i] + x[i];
+        a = d;
+        d = c;
+        c = b;
+        b += Integer.rotateLeft(f, S[i & 3]);
+      }
+      for (int i = 16; i < 32; i++) {
+        int f = a + ((d & b) | (~d & c)) + K[i] + x[(5 * i + 1) & 15];
+        a = d;
+        d = c;
+        c = b;
+        b += Integer.rotateLeft(f, S[4 | (i & 3)]);
+      }
+      for (int i = 32; i < 48; i++) {
+        int f = a + (b ^ c ^ d) + K[i] + x[(3 * i + 5) & 15];
+        a = d;
+        d = c;
+        c = b;
+        b += Integer.rotateLeft(f, S[8 | (i & 3)]);
+      }
+      for (int i = 48; i < 64; i++) {
+        int f = a + (c ^ (b | ~d)) + K[i] + x[(7 * i) & 15];
+        a = d;
+        d = c;
+        c = b;
+        b += Integer.rotateLeft(f, S[12 | (i & 3)]);
+      }
+      state[0] += a;
+      state[1] += b;
+      state[2] += c;
+      state[3] += d;
+    }
+  }
+
+  private static final class Sha1 extends BlockDigest {
+
+    private final int[] w;
+
+    public Sha1() {
+      super(
+          SHA_1,
+          new int[] {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0},
+          false);
+      w = new int[80];
+    }
+
+    @Override
+    protected void processBlock(int[] state, byte[] buffer, int offset) {
+      for (int i = 0; i < 16; i++) {
+        w[i] = readBigEndianInt(buffer, offset + 4 * i);
+      }
+      for (int i = 16; i < 80; i++) {
+        w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+      }
+      int a = state[0];
+      int b = state[1];
+      int c = state[2];
+      int d = state[3];
+      int e = state[4];
+      for (int i = 0; i < 80; i++) {
+        int f;
+        int k;
+        if (i < 20) {
+          f = (b & c) | (~b & d);
+          k = 0x5A827999;
+        } else if (i < 40) {
+          f = b ^ c ^ d;
+          k = 0x6ED9EBA1;
+        } else if (i < 60) {
+          f = (b & c) | (b & d) | (c & d);
+          k = 0x8F1BBCDC;
+        } else {
+          f = b ^ c ^ d;
+          k = 0xCA62C1D6;
+        }
+        int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+        e = d;
+        d = c;
+        c = Integer.rotateLeft(b, 30);
+        b = a;
+        a = temp;
+      }
+      state[0] += a;
+      state[1] += b;
+      state[2] += c;
+      state[3] += d;
+      state[4] += e;
+    }
+  }
+
+  private static final class Sha256 extends BlockDigest {
+
+    private static final int[] K = {
+      0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+      0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+      0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+      0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+      0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+      0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+      0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+      0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+      0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+      0xc67178f2
+    };
+
+    private final int[] w;
+
+    public Sha256() {
+      super(
+          SHA_256,
+          new int[] {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+            0x5be0cd19
+          },
+          false);
+      w = new int[64];
+    }
+
+    @Override
+    protected void processBlock(int[] state, byte[] buffer, int offset) {
+      for (int i = 0; i < 16; i++) {
+        w[i] = readBigEndianInt(buffer, offset + 4 * i);
+      }
+      for (int i = 16; i < 64; i++) {
+        int s0 =
+            Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+        int s1 =
+            Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+        w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+      }
+      int a = state[0];
+      int b = state[1];
+      int c = state[2];
+      int d = state[3];
+      int e = state[4];
+      int f = state[5];
+      int g = state[6];
+      int h = state[7];
+      for (int i = 0; i < 64; i++) {
+        int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+        int ch = (e & f) ^ (~e & g);
+        int temp1 = h + s1 + ch + K[i] + w[i];
+        int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+        int maj = (a & b) ^ (a & c) ^ (b & c);
+        int temp2 = s0 + maj;
+        h = g;
+        g = f;
+        f = e;
+        e = d + temp1;
+        d = c;
+        c = b;
+        b = a;
+        a = temp1 + temp2;
+      }
+      state[0] += a;
+      state[1] += b;
+      state[2] += c;
+      state[3] += d;
+      state[4] += e;
+      state[5] += f;
+      state[6] += g;
+      state[7] += h;
+    }
+  }
+
+  /** CRC-32C, computed with slicing-by-8 tables. */
+  private static final class Crc32c extends StreamingDigest {
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+      for (int i = 0; i < 256; i++) {
+        int crc = i;
+        for (int j = 0; j < 8; j++) {
+          crc = (crc >>> 1) ^ (0x82F63B78 & -(crc & 1));
+        }
+        TABLES[0][i] = crc;
+      }
+      for (int i = 0; i < 256; i++) {
+        for (int t = 1; t < 8; t++) {
+          TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+        }
+      }
+    }
+
+    private int crc;
+
+    public Crc32c() {
+      super(CRC32C);
+      crc = 0xFFFFFFFF;
+    }
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+      position += length;
+      int crc = this.crc;
+      int[] t0 = TABLES[0];
+      int[] t1 = TABLES[1];
+      int[] t2 = TABLES[2];
+      int[] t3 = TABLES[3];
+      int[] t4 = TABLES[4];
+      int[] t5 = TABLES[5];
+      int[] t6 = TABLES[6];
+      int[] t7 = TABLES[7];
+      int end = offset + length;
+      while (end - offset >= 8) {
+        int low =
+            crc
+                ^ ((buffer[offset] & 0xFF)
+                    | ((buffer[offset + 1] & 0xFF) << 8)
+                    | ((buffer[offset + 2] & 0xFF) << 16)
+                    | (buffer[offset + 3] << 24));
+        crc =
+            t7[low & 0xFF]
+                ^ t6[(low >>> 8) & 0xFF]
+                ^ t5[(low >>> 16) & 0xFF]
+                ^ t4[low >>> 24]
+                ^ t3[buffer[offset + 4] & 0xFF]
+                ^ t2[buffer[offset + 5] & 0xFF]
+                ^ t1[buffer[offset + 6] & 0xFF]
+                ^ t0[buffer[offset + 7] & 0xFF];
+        offset += 8;
+      }
+      while (offset < end) {
+        crc = (crc >>> 8) ^ t0[(crc ^ buffer[offset++]) & 0xFF];
+      }
+      this.crc = crc;
+    }
+
+    @Override
+    public byte[] digest() {
+      int value = ~crc;
+      return new byte[] {
+        (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+      };
+    }
+
+    @Override
+    protected int getStateLength() {
+      return 4;
+    }
+
+    @Override
+    protected void saveState(ByteBuffer buffer) {
+      buffer.putInt(crc);
+    }
+
+    @Override
+    protected boolean restoreState(ByteBuffer buffer) {
+      if (buffer.remaining() != 4) {
+        return false;
+      }
+      crc = buffer.getInt();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package jm.droid.lib.download.offline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/** Tests {@link ChunkManifest}. */
+public class ChunkManifestTest {
+
+  private static final String DIGEST_1 =
+      "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+  private static final String DIGEST_2 =
+      "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+
+  @Test
+  public void parse_readsHeaderAndDigests() throws IOException {
+    ChunkManifest manifest = ChunkManifest.parse("SHA-256 4194304\n" + DIGEST_1 + "\n" + DIGEST_2);
+
+    assertEquals("SHA-256", manifest.algorithm);
+    assertEquals(4194304, manifest.chunkSize);
+    assertEquals(2, manifest.getChunkCount());
+    assertEquals(DIGEST_1, manifest.getChunkDigest(0));
+    assertEquals(DIGEST_2, manifest.getChunkDigest(1));
+  }
+
+  @Test
+  public void parse_skipsCommentsAndBlankLinesAndNormalizesDigests() throws IOException {
+    ChunkManifest manifest =
+        ChunkManifest.parse(
+            "# chunks of example.bin\r\n\r\n  SHA-256   1024  \r\n"
+                + DIGEST_1.toUpperCase()
+                + "\r\n# trailing comment\r\n");
+
+    assertEquals(1024, manifest.chunkSize);
+    assertEquals(1, manifest.getChunkCount());
+    assertEquals(DIGEST_1, manifest.getChunkDigest(0));
+  }
+
+  @Test
+  public void parse_withoutDigests_hasNoChunks() throws IOException {
+    ChunkManifest manifest = ChunkManifest.parse("CRC32C 65536\n");
+
+    assertEquals(0, manifest.getChunkCount());
+  }
+
+  @Test
+  public void encode_isParsedBack() throws IOException {
+    ChunkManifest manifest =
+        new ChunkManifest("SHA-256", /* chunkSize= */ 1 << 20, Arrays.asList(DIGEST_1, DIGEST_2));
+
+    ChunkManifest parsed = ChunkManifest.parse(manifest.encode());
+
+    assertEquals(manifest, parsed);
+    assertEquals(manifest.hashCode(), parsed.hashCode());
+  }
+
+  @Test
+  public void parse_malformed_throws() {
+    assertThrows(IOException.class, () -> ChunkManifest.parse(""));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("# only a comment\n"));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-256\n" + DIGEST_1));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-256 1024 extra\n" + DIGEST_1));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-512 1024\n" + DIGEST_1));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-256 big\n" + DIGEST_1));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-256 0\n" + DIGEST_1));
+    assertThrows(IOException.class, () -> ChunkManifest.parse("SHA-256 -1\n" + DIGEST_1));
+  }
+}
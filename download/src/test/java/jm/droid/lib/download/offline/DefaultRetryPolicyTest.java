@@ -0,0 +1,148 @@
+package jm.droid.lib.download.offline;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.Uri;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.upstream.DataSpec;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidContentTypeException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidResponseCodeException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests {@link DefaultRetryPolicy}. */
+public class DefaultRetryPolicyTest {
+
+  private static final long BASE_DELAY_MS = 1000;
+  private static final long MAX_DELAY_MS = 10_000;
+  private static final long MAX_RETRY_AFTER_MS = 60_000;
+  private static final DataSpec DATA_SPEC = new DataSpec(Uri.EMPTY, "path");
+
+  private final FakeRandom random = new FakeRandom();
+  private final DefaultRetryPolicy retryPolicy =
+      new DefaultRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, MAX_RETRY_AFTER_MS, random);
+
+  @Test
+  public void getRetryDelayMsFor_fatalErrors_returnsTimeUnset() {
+    assertEquals(C.TIME_UNSET, retryPolicy.getRetryDelayMsFor(responseCodeError(404), 1));
+    assertEquals(C.TIME_UNSET, retryPolicy.getRetryDelayMsFor(responseCodeError(416), 1));
+    assertEquals(
+        C.TIME_UNSET,
+        retryPolicy.getRetryDelayMsFor(new InvalidContentTypeException("text/html", DATA_SPEC), 1));
+    assertEquals(C.TIME_UNSET, retryPolicy.getRetryDelayMsFor(new FileNotFoundException(), 1));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_wrappedFatalError_returnsTimeUnset() {
+    IOException error = new IOException(new FileNotFoundException());
+
+    assertEquals(C.TIME_UNSET, retryPolicy.getRetryDelayMsFor(error, 1));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_transientErrors_areRetried() {
+    random.value = 0.5;
+
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(new SocketTimeoutException(), 1));
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(new UnknownHostException(), 1));
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(new IOException("reset"), 1));
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(responseCodeError(503), 1));
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(responseCodeError(408), 1));
+    assertEquals(500, retryPolicy.getRetryDelayMsFor(responseCodeError(429), 1));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_backoffDoublesUpToMaxDelay() {
+    random.value = 0.9999999;
+    IOException error = new SocketTimeoutException();
+
+    assertEquals(BASE_DELAY_MS, retryPolicy.getRetryDelayMsFor(error, 1));
+    assertEquals(2 * BASE_DELAY_MS, retryPolicy.getRetryDelayMsFor(error, 2));
+    assertEquals(8 * BASE_DELAY_MS, retryPolicy.getRetryDelayMsFor(error, 4));
+    assertEquals(MAX_DELAY_MS, retryPolicy.getRetryDelayMsFor(error, 5));
+    assertEquals(MAX_DELAY_MS, retryPolicy.getRetryDelayMsFor(error, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_fullJitter_canRetryImmediately() {
+    random.value = 0;
+
+    assertEquals(0, retryPolicy.getRetryDelayMsFor(new SocketTimeoutException(), 3));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_retryAfterSeconds_overridesBackoff() {
+    assertEquals(
+        7000, retryPolicy.getRetryDelayMsFor(responseCodeError(503, "Retry-After", " 7 "), 1));
+    assertEquals(
+        7000, retryPolicy.getRetryDelayMsFor(responseCodeError(429, "retry-after", "7"), 5));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_retryAfter_isCappedAtMaxRetryAfter() {
+    assertEquals(
+        MAX_RETRY_AFTER_MS,
+        retryPolicy.getRetryDelayMsFor(responseCodeError(503, "Retry-After", "3600"), 1));
+    assertEquals(
+        MAX_RETRY_AFTER_MS,
+        retryPolicy.getRetryDelayMsFor(
+            responseCodeError(503, "Retry-After", "Fri, 31 Dec 9999 23:59:59 GMT"), 1));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_retryAfterDateInPast_retriesImmediately() {
+    assertEquals(
+        0,
+        retryPolicy.getRetryDelayMsFor(
+            responseCodeError(503, "Retry-After", "Sun, 06 Nov 1994 08:49:37 GMT"), 1));
+  }
+
+  @Test
+  public void getRetryDelayMsFor_malformedRetryAfter_usesBackoff() {
+    random.value = 0.5;
+
+    assertEquals(
+        500, retryPolicy.getRetryDelayMsFor(responseCodeError(503, "Retry-After", "later"), 1));
+  }
+
+  private static InvalidResponseCodeException responseCodeError(int responseCode) {
+    return responseCodeError(responseCode, Collections.emptyMap());
+  }
+
+  private static InvalidResponseCodeException responseCodeError(
+      int responseCode, String headerName, String headerValue) {
+    return responseCodeError(
+        responseCode, Collections.singletonMap(headerName, Collections.singletonList(headerValue)));
+  }
+
+  private static InvalidResponseCodeException responseCodeError(
+      int responseCode, Map<String, List<String>> headers) {
+    return new InvalidResponseCodeException(
+        responseCode,
+        /* responseMessage= */ null,
+        /* cause= */ null,
+        headers,
+        DATA_SPEC,
+        /* responseBody= */ new byte[0]);
+  }
+
+  private static final class FakeRandom extends Random {
+
+    public double value;
+
+    @Override
+    public double nextDouble() {
+      return value;
+    }
+  }
+}
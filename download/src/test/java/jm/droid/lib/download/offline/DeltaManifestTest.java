@@ -0,0 +1,102 @@
+package jm.droid.lib.download.offline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import jm.droid.lib.download.util.RollingChecksum;
+import jm.droid.lib.download.util.StreamingDigest;
+
+import org.junit.Test;
+
+/** Tests {@link DeltaManifest}. */
+public class DeltaManifestTest {
+
+  private static final String DIGEST_1 = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+  private static final String DIGEST_2 = "62cdb7020ff920e5aa642c3d4066950dd1f01f4d";
+
+  @Test
+  public void create_checksumsEachBlock() throws IOException {
+    byte[] data = new byte[2500];
+    new Random(/* seed= */ 1).nextBytes(data);
+
+    DeltaManifest manifest =
+        DeltaManifest.create(new ByteArrayInputStream(data), "SHA-1", /* blockSize= */ 1000);
+
+    assertEquals(data.length, manifest.length);
+    assertEquals(3, manifest.getBlockCount());
+    assertEquals(2000, manifest.getBlockPosition(2));
+    assertEquals(1000, manifest.getBlockLength(1));
+    assertEquals(500, manifest.getBlockLength(2));
+    for (int i = 0; i < manifest.getBlockCount(); i++) {
+      int position = (int) manifest.getBlockPosition(i);
+      int length = manifest.getBlockLength(i);
+      StreamingDigest digest = StreamingDigest.create("SHA-1");
+      digest.update(data, position, length);
+      assertEquals(RollingChecksum.compute(data, position, length), manifest.getBlockChecksum(i));
+      assertEquals(digest.digestHex(), manifest.getBlockDigest(i));
+    }
+  }
+
+  @Test
+  public void create_emptyInput_hasNoBlocks() throws IOException {
+    DeltaManifest manifest =
+        DeltaManifest.create(new ByteArrayInputStream(new byte[0]), "SHA-1", /* blockSize= */ 1000);
+
+    assertEquals(0, manifest.length);
+    assertEquals(0, manifest.getBlockCount());
+    assertEquals(manifest, DeltaManifest.parse(manifest.encode()));
+  }
+
+  @Test
+  public void parse_readsHeaderAndBlocks() throws IOException {
+    DeltaManifest manifest =
+        DeltaManifest.parse(
+            "# delta of example.bin\r\n\r\nSHA-1 65536 131072\r\n"
+                + "3c1d8a2f "
+                + DIGEST_1.toUpperCase()
+                + "\r\n  fb7e0c44   "
+                + DIGEST_2
+                + "\n");
+
+    assertEquals("SHA-1", manifest.algorithm);
+    assertEquals(65536, manifest.blockSize);
+    assertEquals(131072, manifest.length);
+    assertEquals(2, manifest.getBlockCount());
+    assertEquals(0x3c1d8a2f, manifest.getBlockChecksum(0));
+    assertEquals(0xfb7e0c44, manifest.getBlockChecksum(1));
+    assertEquals(DIGEST_1, manifest.getBlockDigest(0));
+    assertEquals(DIGEST_2, manifest.getBlockDigest(1));
+  }
+
+  @Test
+  public void encode_roundTripsThroughParse() throws IOException {
+    byte[] data = new byte[10_000];
+    new Random(/* seed= */ 2).nextBytes(data);
+    DeltaManifest manifest =
+        DeltaManifest.create(new ByteArrayInputStream(data), "SHA-256", /* blockSize= */ 4096);
+
+    DeltaManifest parsed = DeltaManifest.parse(manifest.encode());
+
+    assertEquals(manifest, parsed);
+    assertEquals(manifest.hashCode(), parsed.hashCode());
+  }
+
+  @Test
+  public void parse_malformedManifest_throws() {
+    assertThrows(IOException.class, () -> DeltaManifest.parse(""));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("# only a comment"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("CRC-7 1024 0"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("SHA-1 0 0"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("SHA-1 1024 -1"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("SHA-1 1024"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("SHA-1 1024 2048\n3c1d8a2f"));
+    assertThrows(IOException.class, () -> DeltaManifest.parse("SHA-1 1024 2048\nxyz " + DIGEST_1));
+    // One block for a length that needs two.
+    assertThrows(
+        IOException.class, () -> DeltaManifest.parse("SHA-1 1024 2048\n3c1d8a2f " + DIGEST_1));
+  }
+}
@@ -0,0 +1,182 @@
+package jm.droid.lib.download.offline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.PlaybackException;
+import jm.droid.lib.download.upstream.DataSpec;
+import jm.droid.lib.download.upstream.HttpDataSource.HttpDataSourceException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidContentTypeException;
+import jm.droid.lib.download.upstream.HttpDataSource.InvalidResponseCodeException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+/** Tests {@link HostCircuitBreaker}. */
+public class HostCircuitBreakerTest {
+
+  private static final String HOST = "example.com";
+  private static final String OTHER_HOST = "cdn.example.com";
+  private static final Set<String> HOSTS = Collections.singleton(HOST);
+  private static final DataSpec DATA_SPEC = new DataSpec(Uri.EMPTY, "path");
+
+  private final HostCircuitBreaker circuitBreaker =
+      new HostCircuitBreaker(
+          /* failureThreshold= */ 3, /* openDurationMs= */ 1000, /* maxOpenDurationMs= */ 3000);
+
+  @Test
+  public void onFailure_opensAfterThreshold() {
+    assertFalse(circuitBreaker.onFailure(HOST, 0));
+    assertFalse(circuitBreaker.onFailure(HOST, 0));
+    assertTrue(circuitBreaker.allowRequest(HOST, 0));
+
+    assertTrue(circuitBreaker.onFailure(HOST, 100));
+
+    assertTrue(circuitBreaker.isOpen(HOST));
+    assertFalse(circuitBreaker.allowRequest(HOST, 100));
+    assertTrue(circuitBreaker.allowRequest(OTHER_HOST, 100));
+    assertEquals(1100, circuitBreaker.getNextProbeTimeMs(100, HOSTS));
+  }
+
+  @Test
+  public void onSuccess_resetsConsecutiveFailures() {
+    circuitBreaker.onFailure(HOST, 0);
+    circuitBreaker.onFailure(HOST, 0);
+
+    assertFalse(circuitBreaker.onSuccess(HOST));
+    assertFalse(circuitBreaker.onFailure(HOST, 0));
+    assertFalse(circuitBreaker.onFailure(HOST, 0));
+    assertFalse(circuitBreaker.isOpen(HOST));
+  }
+
+  @Test
+  public void allowRequest_afterOpenPeriod_allowsSingleProbe() {
+    open(/* nowMs= */ 0);
+
+    assertFalse(circuitBreaker.allowRequest(HOST, 999));
+    assertTrue(circuitBreaker.allowRequest(HOST, 1000));
+
+    assertFalse(circuitBreaker.isOpen(HOST));
+    assertFalse(circuitBreaker.allowRequest(HOST, 1000));
+    assertEquals(C.TIME_UNSET, circuitBreaker.getNextProbeTimeMs(1000, HOSTS));
+  }
+
+  @Test
+  public void onSuccess_ofProbe_closesCircuit() {
+    open(/* nowMs= */ 0);
+    circuitBreaker.allowRequest(HOST, 1000);
+
+    assertTrue(circuitBreaker.onSuccess(HOST));
+
+    assertTrue(circuitBreaker.allowRequest(HOST, 1000));
+    assertTrue(circuitBreaker.allowRequest(HOST, 1000));
+  }
+
+  @Test
+  public void onFailure_ofProbe_reopensForLongerUpToMax() {
+    open(/* nowMs= */ 0);
+    circuitBreaker.allowRequest(HOST, 1000);
+
+    assertTrue(circuitBreaker.onFailure(HOST, 1000));
+    assertEquals(3000, circuitBreaker.getNextProbeTimeMs(1000, HOSTS));
+
+    circuitBreaker.allowRequest(HOST, 3000);
+    assertTrue(circuitBreaker.onFailure(HOST, 3000));
+    assertEquals(6000, circuitBreaker.getNextProbeTimeMs(3000, HOSTS));
+  }
+
+  @Test
+  public void onFailure_whileOpen_isIgnored() {
+    open(/* nowMs= */ 0);
+
+    assertFalse(circuitBreaker.onFailure(HOST, 500));
+    assertEquals(1000, circuitBreaker.getNextProbeTimeMs(500, HOSTS));
+  }
+
+  @Test
+  public void onCanceled_ofProbe_allowsAnotherProbeImmediately() {
+    open(/* nowMs= */ 0);
+    circuitBreaker.allowRequest(HOST, 1000);
+
+    circuitBreaker.onCanceled(HOST);
+
+    assertTrue(circuitBreaker.isOpen(HOST));
+    // The probe is due already, so there's nothing to wait for.
+    assertEquals(C.TIME_UNSET, circuitBreaker.getNextProbeTimeMs(2000, HOSTS));
+    assertTrue(circuitBreaker.allowRequest(HOST, 2000));
+  }
+
+  @Test
+  public void getNextProbeTimeMs_ignoresHostsNotWaiting() {
+    open(/* nowMs= */ 0);
+
+    assertEquals(C.TIME_UNSET, circuitBreaker.getNextProbeTimeMs(0, Collections.emptySet()));
+  }
+
+  @Test
+  public void retainHosts_forgetsOtherHosts() {
+    open(/* nowMs= */ 0);
+
+    circuitBreaker.retainHosts(Collections.singleton(OTHER_HOST));
+
+    assertFalse(circuitBreaker.isOpen(HOST));
+    assertTrue(circuitBreaker.allowRequest(HOST, 0));
+  }
+
+  @Test
+  public void nullHost_isNeverBlocked() {
+    for (int i = 0; i < 5; i++) {
+      assertFalse(circuitBreaker.onFailure(null, 0));
+    }
+    assertTrue(circuitBreaker.allowRequest(null, 0));
+    assertFalse(circuitBreaker.isOpen(null));
+  }
+
+  @Test
+  public void isHostFailure_classifiesErrors() {
+    assertTrue(HostCircuitBreaker.isHostFailure(new SocketTimeoutException()));
+    assertTrue(HostCircuitBreaker.isHostFailure(new UnknownHostException()));
+    assertTrue(HostCircuitBreaker.isHostFailure(new IOException(new ConnectException())));
+    assertTrue(
+        HostCircuitBreaker.isHostFailure(
+            new HttpDataSourceException(
+                DATA_SPEC,
+                PlaybackException.ERROR_CODE_IO_UNSPECIFIED,
+                HttpDataSourceException.TYPE_READ)));
+    assertTrue(HostCircuitBreaker.isHostFailure(responseCodeError(500)));
+    assertTrue(HostCircuitBreaker.isHostFailure(responseCodeError(408)));
+    assertTrue(HostCircuitBreaker.isHostFailure(responseCodeError(429)));
+    assertFalse(HostCircuitBreaker.isHostFailure(responseCodeError(404)));
+    assertFalse(
+        HostCircuitBreaker.isHostFailure(new InvalidContentTypeException("text/html", DATA_SPEC)));
+    assertFalse(HostCircuitBreaker.isHostFailure(new FileNotFoundException()));
+    assertFalse(HostCircuitBreaker.isHostFailure(new IOException("digest mismatch")));
+  }
+
+  private void open(long nowMs) {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.onFailure(HOST, nowMs);
+    }
+  }
+
+  private static InvalidResponseCodeException responseCodeError(int responseCode) {
+    return new InvalidResponseCodeException(
+        responseCode,
+        /* responseMessage= */ null,
+        /* cause= */ null,
+        Collections.emptyMap(),
+        DATA_SPEC,
+        /* responseBody= */ new byte[0]);
+  }
+}
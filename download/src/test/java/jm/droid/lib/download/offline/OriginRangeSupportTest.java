@@ -0,0 +1,58 @@
+package jm.droid.lib.download.offline;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Tests {@link OriginRangeSupport}. */
+public class OriginRangeSupportTest {
+
+  private static final String ORIGIN = "https://example.com";
+  private static final String OTHER_ORIGIN = "https://cdn.example.com";
+
+  private final OriginRangeSupport originRangeSupport =
+      new OriginRangeSupport(/* maxEntries= */ 2);
+
+  @Test
+  public void get_unknownOrigin_returnsUnknown() {
+    assertEquals(Download.RANGE_SUPPORT_UNKNOWN, originRangeSupport.get(ORIGIN));
+    assertEquals(Download.RANGE_SUPPORT_UNKNOWN, originRangeSupport.get(null));
+  }
+
+  @Test
+  public void put_knownRangeSupport_isReturnedForOriginOnly() {
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_NO);
+
+    assertEquals(Download.RANGE_SUPPORT_NO, originRangeSupport.get(ORIGIN));
+    assertEquals(Download.RANGE_SUPPORT_UNKNOWN, originRangeSupport.get(OTHER_ORIGIN));
+  }
+
+  @Test
+  public void put_laterRangeSupport_replacesEarlier() {
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_NO);
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_YES);
+
+    assertEquals(Download.RANGE_SUPPORT_YES, originRangeSupport.get(ORIGIN));
+  }
+
+  @Test
+  public void put_unknownRangeSupport_keepsKnown() {
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_NO);
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_UNKNOWN);
+    originRangeSupport.put(/* origin= */ null, Download.RANGE_SUPPORT_YES);
+
+    assertEquals(Download.RANGE_SUPPORT_NO, originRangeSupport.get(ORIGIN));
+  }
+
+  @Test
+  public void put_beyondMaxEntries_evictsLeastRecentlyUsed() {
+    originRangeSupport.put(ORIGIN, Download.RANGE_SUPPORT_NO);
+    originRangeSupport.put(OTHER_ORIGIN, Download.RANGE_SUPPORT_YES);
+    // Accessing ORIGIN makes OTHER_ORIGIN the least recently used.
+    originRangeSupport.get(ORIGIN);
+    originRangeSupport.put("https://third.example.com", Download.RANGE_SUPPORT_YES);
+
+    assertEquals(Download.RANGE_SUPPORT_NO, originRangeSupport.get(ORIGIN));
+    assertEquals(Download.RANGE_SUPPORT_UNKNOWN, originRangeSupport.get(OTHER_ORIGIN));
+  }
+}
@@ -0,0 +1,217 @@
+package jm.droid.lib.download.upstream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests {@link GzipDecoder}. */
+public class GzipDecoderTest {
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private final DataWriter writer =
+      (buffer, offset, length) -> {
+        output.write(buffer, offset, length);
+        return length;
+      };
+  private GzipDecoder decoder = new GzipDecoder(/* inputPosition= */ 0, /* outputPosition= */ 0);
+
+  @After
+  public void tearDown() {
+    decoder.release();
+  }
+
+  @Test
+  public void isSupported_acceptsGzipCodings() {
+    assertTrue(GzipDecoder.isSupported("gzip"));
+    assertTrue(GzipDecoder.isSupported(" X-GZIP "));
+    assertFalse(GzipDecoder.isSupported("deflate"));
+    assertFalse(GzipDecoder.isSupported(null));
+  }
+
+  @Test
+  public void decode_singleMember_writesContent() throws IOException {
+    byte[] content = compressibleData(100_000);
+    byte[] encoded = gzip(content);
+
+    decoder.decode(encoded, 0, encoded.length, writer);
+    decoder.finish();
+
+    assertArrayEquals(content, output.toByteArray());
+    assertEquals(encoded.length, decoder.getInputPosition());
+    assertEquals(content.length, decoder.getOutputPosition());
+    assertEquals(encoded.length, decoder.getCheckpointInputPosition());
+    assertEquals(content.length, decoder.getCheckpointOutputPosition());
+  }
+
+  @Test
+  public void decode_oneByteAtATime_writesContent() throws IOException {
+    byte[] content = compressibleData(5_000);
+    byte[] encoded = concat(gzip(content), gzipWithOptionalFields(content));
+
+    for (int i = 0; i < encoded.length; i++) {
+      decoder.decode(encoded, i, 1, writer);
+    }
+    decoder.finish();
+
+    assertArrayEquals(concat(content, content), output.toByteArray());
+  }
+
+  @Test
+  public void decode_withOptionalHeaderFields_skipsThem() throws IOException {
+    byte[] content = compressibleData(10_000);
+    byte[] encoded = gzipWithOptionalFields(content);
+
+    decoder.decode(encoded, 0, encoded.length, writer);
+    decoder.finish();
+
+    assertArrayEquals(content, output.toByteArray());
+  }
+
+  @Test
+  public void decode_concatenatedMembers_checkpointsAtMemberEnds() throws IOException {
+    byte[] first = compressibleData(20_000);
+    byte[] second = compressibleData(30_000);
+    byte[] firstEncoded = gzip(first);
+    byte[] secondEncoded = gzip(second);
+    byte[] encoded = concat(firstEncoded, secondEncoded);
+
+    // Stop in the middle of the second member.
+    int stopPosition = firstEncoded.length + secondEncoded.length / 2;
+    decoder.decode(encoded, 0, stopPosition, writer);
+
+    assertEquals(stopPosition, decoder.getInputPosition());
+    assertEquals(firstEncoded.length, decoder.getCheckpointInputPosition());
+    assertEquals(first.length, decoder.getCheckpointOutputPosition());
+    assertTrue(decoder.getOutputPosition() > first.length);
+  }
+
+  @Test
+  public void decode_resumedFromCheckpoint_writesRest() throws IOException {
+    byte[] first = compressibleData(20_000);
+    byte[] second = compressibleData(30_000);
+    byte[] firstEncoded = gzip(first);
+    byte[] encoded = concat(firstEncoded, gzip(second));
+    decoder.decode(encoded, 0, encoded.length - 10, writer);
+    long checkpointInputPosition = decoder.getCheckpointInputPosition();
+    long checkpointOutputPosition = decoder.getCheckpointOutputPosition();
+    decoder.release();
+    output.reset();
+
+    decoder = new GzipDecoder(checkpointInputPosition, checkpointOutputPosition);
+    decoder.decode(
+        encoded,
+        (int) checkpointInputPosition,
+        encoded.length - (int) checkpointInputPosition,
+        writer);
+    decoder.finish();
+
+    assertArrayEquals(second, output.toByteArray());
+    assertEquals(encoded.length, decoder.getInputPosition());
+    assertEquals(first.length + second.length, decoder.getOutputPosition());
+  }
+
+  @Test
+  public void finish_insideMember_throws() throws IOException {
+    byte[] encoded = gzip(compressibleData(10_000));
+    decoder.decode(encoded, 0, encoded.length - 1, writer);
+
+    assertThrows(IOException.class, () -> decoder.finish());
+  }
+
+  @Test
+  public void decode_withCorruptTrailer_throws() {
+    byte[] encoded = gzip(compressibleData(10_000));
+    // Flip a bit of the CRC in the trailer.
+    encoded[encoded.length - 8] ^= 1;
+
+    assertThrows(IOException.class, () -> decoder.decode(encoded, 0, encoded.length, writer));
+  }
+
+  @Test
+  public void decode_notGzip_throws() {
+    byte[] encoded = new byte[20];
+    Arrays.fill(encoded, (byte) 'x');
+
+    assertThrows(IOException.class, () -> decoder.decode(encoded, 0, encoded.length, writer));
+  }
+
+  private static byte[] gzip(byte[] content) {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOutput = new GZIPOutputStream(encoded)) {
+      gzipOutput.write(content);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return encoded.toByteArray();
+  }
+
+  /** Returns a gzip member with an extra field, a name, a comment and a header CRC. */
+  private static byte[] gzipWithOptionalFields(byte[] content) {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    encoded.write(0x1F);
+    encoded.write(0x8B);
+    encoded.write(8);
+    encoded.write(FEXTRA | FNAME | FCOMMENT | FHCRC);
+    encoded.write(new byte[6], 0, 6);
+    encoded.write(3);
+    encoded.write(0);
+    encoded.write(new byte[] {1, 2, 3}, 0, 3);
+    encoded.write(new byte[] {'a', '.', 'b', 'i', 'n', 0}, 0, 6);
+    encoded.write(new byte[] {'h', 'i', 0}, 0, 3);
+    encoded.write(0x12);
+    encoded.write(0x34);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+    deflater.setInput(content);
+    deflater.finish();
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      int length = deflater.deflate(buffer);
+      encoded.write(buffer, 0, length);
+    }
+    deflater.end();
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    writeLittleEndianInt(encoded, crc.getValue());
+    writeLittleEndianInt(encoded, content.length);
+    return encoded.toByteArray();
+  }
+
+  private static void writeLittleEndianInt(ByteArrayOutputStream output, long value) {
+    for (int i = 0; i < 4; i++) {
+      output.write((int) (value >>> (8 * i)));
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static byte[] compressibleData(int length) {
+    Random random = new Random(/* seed= */ length);
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return data;
+  }
+}
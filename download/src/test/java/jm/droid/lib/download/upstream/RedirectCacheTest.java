@@ -0,0 +1,143 @@
+package jm.droid.lib.download.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.util.Clock;
+import jm.droid.lib.download.util.HandlerWrapper;
+
+import org.junit.Test;
+
+/** Tests {@link RedirectCache}. */
+public class RedirectCacheTest {
+
+  private static final String URL = "https://example.com/file.bin";
+  private static final String LOCATION = "https://cdn.example.com/signed/file.bin";
+  private static final long TEMPORARY_REDIRECT_TTL_MS = 1000;
+
+  private final FakeClock clock = new FakeClock(/* timeMs= */ 10_000);
+  private final RedirectCache cache =
+      new RedirectCache(/* maxEntries= */ 2, TEMPORARY_REDIRECT_TTL_MS, clock);
+
+  @Test
+  public void getExpiryTimeMs_permanentRedirect_neverExpires() {
+    assertEquals(Long.MAX_VALUE, cache.getExpiryTimeMs(301, null, null));
+    assertEquals(Long.MAX_VALUE, cache.getExpiryTimeMs(308, null, null));
+  }
+
+  @Test
+  public void getExpiryTimeMs_temporaryRedirect_usesTemporaryTtl() {
+    assertEquals(11_000, cache.getExpiryTimeMs(302, null, null));
+    assertEquals(11_000, cache.getExpiryTimeMs(307, "public", null));
+  }
+
+  @Test
+  public void getExpiryTimeMs_maxAge_overridesResponseCode() {
+    assertEquals(15_000, cache.getExpiryTimeMs(301, "public, Max-Age=5", null));
+    assertEquals(70_000, cache.getExpiryTimeMs(302, "max-age=60", null));
+    assertEquals(C.TIME_UNSET, cache.getExpiryTimeMs(301, "max-age=0", null));
+  }
+
+  @Test
+  public void getExpiryTimeMs_malformedMaxAge_isIgnored() {
+    assertEquals(11_000, cache.getExpiryTimeMs(302, "max-age=soon", null));
+  }
+
+  @Test
+  public void getExpiryTimeMs_noStoreOrNoCache_preventsCaching() {
+    assertEquals(C.TIME_UNSET, cache.getExpiryTimeMs(301, "no-store", null));
+    assertEquals(C.TIME_UNSET, cache.getExpiryTimeMs(308, "max-age=60, No-Cache", null));
+  }
+
+  @Test
+  public void get_beforeAndAfterExpiry() {
+    cache.put(DataSpec.HTTP_METHOD_GET, URL, LOCATION, cache.getExpiryTimeMs(302, null, null));
+
+    assertEquals(LOCATION, cache.get(DataSpec.HTTP_METHOD_GET, URL));
+    clock.timeMs += TEMPORARY_REDIRECT_TTL_MS - 1;
+    assertEquals(LOCATION, cache.get(DataSpec.HTTP_METHOD_GET, URL));
+    clock.timeMs++;
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, URL));
+  }
+
+  @Test
+  public void get_isKeyedByMethod() {
+    cache.put(DataSpec.HTTP_METHOD_GET, URL, LOCATION, Long.MAX_VALUE);
+
+    assertNull(cache.get(DataSpec.HTTP_METHOD_HEAD, URL));
+    assertEquals(LOCATION, cache.get(DataSpec.HTTP_METHOD_GET, URL));
+  }
+
+  @Test
+  public void put_uncacheableOrSelfRedirect_isIgnored() {
+    cache.put(DataSpec.HTTP_METHOD_GET, URL, LOCATION, C.TIME_UNSET);
+    cache.put(DataSpec.HTTP_METHOD_GET, LOCATION, LOCATION, Long.MAX_VALUE);
+
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, URL));
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, LOCATION));
+  }
+
+  @Test
+  public void put_beyondMaxEntries_evictsLeastRecentlyUsed() {
+    cache.put(DataSpec.HTTP_METHOD_GET, "a", "a2", Long.MAX_VALUE);
+    cache.put(DataSpec.HTTP_METHOD_GET, "b", "b2", Long.MAX_VALUE);
+    // Accessing a makes b the least recently used entry.
+    cache.get(DataSpec.HTTP_METHOD_GET, "a");
+    cache.put(DataSpec.HTTP_METHOD_GET, "c", "c2", Long.MAX_VALUE);
+
+    assertEquals("a2", cache.get(DataSpec.HTTP_METHOD_GET, "a"));
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, "b"));
+    assertEquals("c2", cache.get(DataSpec.HTTP_METHOD_GET, "c"));
+  }
+
+  @Test
+  public void invalidateAndClear_removeEntries() {
+    cache.put(DataSpec.HTTP_METHOD_GET, "a", "a2", Long.MAX_VALUE);
+    cache.put(DataSpec.HTTP_METHOD_GET, "b", "b2", Long.MAX_VALUE);
+
+    cache.invalidate(DataSpec.HTTP_METHOD_GET, "a");
+
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, "a"));
+    assertEquals("b2", cache.get(DataSpec.HTTP_METHOD_GET, "b"));
+    cache.clear();
+    assertNull(cache.get(DataSpec.HTTP_METHOD_GET, "b"));
+  }
+
+  private static final class FakeClock implements Clock {
+
+    public long timeMs;
+
+    public FakeClock(long timeMs) {
+      this.timeMs = timeMs;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return timeMs;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+      return timeMs;
+    }
+
+    @Override
+    public long uptimeMillis() {
+      return timeMs;
+    }
+
+    @Override
+    public HandlerWrapper createHandler(Looper looper, @Nullable Handler.Callback callback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onThreadBlocked() {}
+  }
+}
@@ -0,0 +1,110 @@
+package jm.droid.lib.download.upstream;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated to set the request headers of one connection, before and after
+ * applying the header snapshots in order instead of merging them into a new map.
+ *
+ * <p>The numbers depend on the JIT, so this is a benchmark to run manually rather than a test. It
+ * needs a HotSpot based JVM.
+ */
+@Ignore("Benchmark, run manually")
+public class RequestHeaderAllocationBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 20_000;
+  private static final int ITERATIONS = 100_000;
+
+  private static final Map<String, String> DEFAULT_REQUEST_PROPERTIES =
+      Collections.unmodifiableMap(new HashMap<>(Collections.singletonMap("X-Client", "download")));
+  private static final Map<String, String> REQUEST_PROPERTIES = Collections.emptyMap();
+  private static final Map<String, String> DATA_SPEC_HEADERS =
+      Collections.singletonMap(HttpHeaders.IF_RANGE, "\"5d8c72a5edda8\"");
+
+  @Test
+  public void measureBytesAllocatedPerOpen() throws Exception {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+    HttpURLConnection connection = new FakeHttpURLConnection();
+
+    long mergedBytesPerOpen = measure(allocationBean, () -> mergeIntoMap(connection, 1L << 20));
+    long inOrderBytesPerOpen = measure(allocationBean, () -> setInOrder(connection, 1L << 20));
+
+    System.out.println(
+        "Bytes allocated per open: merged map "
+            + mergedBytesPerOpen
+            + ", in order "
+            + inOrderBytesPerOpen);
+  }
+
+  private static long measure(com.sun.management.ThreadMXBean allocationBean, Runnable open) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      open.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      open.run();
+    }
+    return (allocationBean.getThreadAllocatedBytes(threadId) - startBytes) / ITERATIONS;
+  }
+
+  /** The previous implementation of setting request headers. */
+  private static void mergeIntoMap(HttpURLConnection connection, long position) {
+    Map<String, String> requestHeaders = new HashMap<>();
+    requestHeaders.putAll(DEFAULT_REQUEST_PROPERTIES);
+    requestHeaders.putAll(REQUEST_PROPERTIES);
+    requestHeaders.putAll(DATA_SPEC_HEADERS);
+    for (Map.Entry<String, String> property : requestHeaders.entrySet()) {
+      connection.setRequestProperty(property.getKey(), property.getValue());
+    }
+    StringBuilder rangeValue = new StringBuilder();
+    rangeValue.append("bytes=");
+    rangeValue.append(position);
+    rangeValue.append("-");
+    connection.setRequestProperty(HttpHeaders.RANGE, rangeValue.toString());
+  }
+
+  private static void setInOrder(HttpURLConnection connection, long position) {
+    DefaultHttpDataSource.setRequestHeaders(
+        connection, DEFAULT_REQUEST_PROPERTIES, REQUEST_PROPERTIES, DATA_SPEC_HEADERS);
+    connection.setRequestProperty(
+        HttpHeaders.RANGE, HttpUtil.buildRangeRequestHeader(position, /* length= */ -1));
+  }
+
+  /** A connection that discards its request properties, so that only the caller's work counts. */
+  private static final class FakeHttpURLConnection extends HttpURLConnection {
+
+    private FakeHttpURLConnection() throws Exception {
+      super(new URL("http://example.com/"));
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {}
+
+    @Override
+    public void disconnect() {}
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public void connect() {}
+  }
+}
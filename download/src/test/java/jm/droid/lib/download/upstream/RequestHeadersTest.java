@@ -0,0 +1,85 @@
+package jm.droid.lib.download.upstream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/** Tests the request headers set by {@link DefaultHttpDataSource} and {@link HttpUtil}. */
+public class RequestHeadersTest {
+
+  @Test
+  public void buildRangeRequestHeader_formatsRange() {
+    assertEquals(null, HttpUtil.buildRangeRequestHeader(0, -1));
+    assertEquals("bytes=0-0", HttpUtil.buildRangeRequestHeader(0, 1));
+    assertEquals("bytes=9-", HttpUtil.buildRangeRequestHeader(9, -1));
+    assertEquals(
+        "bytes=1073741824-2147483647", HttpUtil.buildRangeRequestHeader(1L << 30, 1L << 30));
+  }
+
+  @Test
+  public void setRequestHeaders_dataSpecOverridesSourceOverridesDefault() throws Exception {
+    Map<String, String> defaultRequestProperties = new HashMap<>();
+    defaultRequestProperties.put("X-Default", "default");
+    defaultRequestProperties.put("X-Source", "default");
+    defaultRequestProperties.put("X-Data-Spec", "default");
+    Map<String, String> requestProperties = new HashMap<>();
+    requestProperties.put("X-Source", "source");
+    requestProperties.put("X-Data-Spec", "source");
+    Map<String, String> dataSpecRequestHeaders = Collections.singletonMap("X-Data-Spec", "dataSpec");
+    FakeHttpURLConnection connection = new FakeHttpURLConnection();
+
+    DefaultHttpDataSource.setRequestHeaders(
+        connection, defaultRequestProperties, requestProperties, dataSpecRequestHeaders);
+
+    assertEquals(3, connection.requestProperties.size());
+    assertEquals("default", connection.requestProperties.get("X-Default"));
+    assertEquals("source", connection.requestProperties.get("X-Source"));
+    assertEquals("dataSpec", connection.requestProperties.get("X-Data-Spec"));
+  }
+
+  @Test
+  public void setRequestHeaders_withoutDefaultRequestProperties_setsOthers() throws Exception {
+    FakeHttpURLConnection connection = new FakeHttpURLConnection();
+
+    DefaultHttpDataSource.setRequestHeaders(
+        connection,
+        /* defaultRequestProperties= */ null,
+        Collections.singletonMap("X-Source", "source"),
+        Collections.emptyMap());
+
+    assertEquals(Collections.singletonMap("X-Source", "source"), connection.requestProperties);
+  }
+
+  /** A connection that records its request properties, replacing earlier values like a real one. */
+  private static final class FakeHttpURLConnection extends HttpURLConnection {
+
+    private final Map<String, String> requestProperties;
+
+    private FakeHttpURLConnection() throws Exception {
+      super(new URL("http://example.com/"));
+      requestProperties = new HashMap<>();
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+      requestProperties.put(key, value);
+    }
+
+    @Override
+    public void disconnect() {}
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public void connect() {}
+  }
+}
@@ -0,0 +1,214 @@
+package jm.droid.lib.download.upstream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import jm.droid.lib.download.C;
+import jm.droid.lib.download.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests {@link ZipExtractingDataDestination}. */
+public class ZipExtractingDataDestinationTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Map<String, byte[]> entries = new LinkedHashMap<>();
+  private int logLevel;
+  private File output;
+  private byte[] archive;
+
+  @Before
+  public void setUp() throws IOException {
+    logLevel = Log.getLogLevel();
+    Log.setLogLevel(Log.LOG_LEVEL_OFF);
+    output = new File(temporaryFolder.getRoot(), "output");
+    Random random = new Random(/* seed= */ 5);
+    byte[] text = new byte[200_000];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + random.nextInt(4));
+    }
+    byte[] binary = new byte[300_000];
+    random.nextBytes(binary);
+    byte[] stored = new byte[70_000];
+    random.nextBytes(stored);
+    entries.put("dir/", null);
+    entries.put("dir/a.txt", text);
+    entries.put("big.bin", binary);
+    entries.put("stored.bin", stored);
+    entries.put("empty", new byte[0]);
+    entries.put("dir/sub/b.txt", "hello".getBytes());
+    archive = zip(entries, /* storedEntryName= */ "stored.bin");
+  }
+
+  @After
+  public void tearDown() {
+    Log.setLogLevel(logLevel);
+  }
+
+  @Test
+  public void write_wholeArchive_extractsAllEntries() throws IOException {
+    List<Long> archivePositions = new ArrayList<>();
+    ZipExtractingDataDestination destination =
+        new ZipExtractingDataDestination(
+            (file, entriesExtracted, archivePosition) -> archivePositions.add(archivePosition));
+
+    assertEquals(0, destination.open(dataSpec(/* position= */ 0)));
+    destination.write(archive, 0, archive.length);
+    destination.close();
+    destination.done();
+
+    assertExtracted();
+    assertEquals(entries.size(), destination.getEntriesExtracted());
+    assertEquals(entries.size(), archivePositions.size());
+    for (int i = 1; i < archivePositions.size(); i++) {
+      assertTrue(archivePositions.get(i) > archivePositions.get(i - 1));
+    }
+  }
+
+  @Test
+  public void write_byteAtATime_extractsAllEntries() throws IOException {
+    ZipExtractingDataDestination destination = new ZipExtractingDataDestination();
+
+    destination.open(dataSpec(/* position= */ 0));
+    for (int i = 0; i < archive.length; i++) {
+      destination.write(archive, i, 1);
+    }
+    destination.close();
+    destination.done();
+
+    assertExtracted();
+    assertEquals(entries.size(), destination.getEntriesExtracted());
+  }
+
+  @Test
+  public void open_afterInterruptedEntry_resumesAtEntryStart() throws IOException {
+    ZipExtractingDataDestination destination = new ZipExtractingDataDestination();
+    // Stop in the middle of big.bin.
+    int interruptedPosition = 350_000;
+    destination.open(dataSpec(/* position= */ 0));
+    destination.write(archive, 0, interruptedPosition);
+    destination.close();
+    int entriesBeforeInterruption = destination.getEntriesExtracted();
+
+    destination = new ZipExtractingDataDestination();
+    long resumePosition = destination.open(dataSpec(interruptedPosition));
+    destination.write(archive, (int) resumePosition, archive.length - (int) resumePosition);
+    destination.close();
+    destination.done();
+
+    assertTrue(resumePosition > 0);
+    assertTrue(resumePosition < interruptedPosition);
+    assertEquals(2, entriesBeforeInterruption);
+    assertExtracted();
+    assertEquals(entries.size(), destination.getEntriesExtracted());
+  }
+
+  @Test
+  public void open_withProgressBehindCheckpoint_skipsExtractedData() throws IOException {
+    ZipExtractingDataDestination destination = new ZipExtractingDataDestination();
+    destination.open(dataSpec(/* position= */ 0));
+    destination.write(archive, 0, archive.length - 200);
+    destination.close();
+
+    destination = new ZipExtractingDataDestination();
+    int progressPosition = 1000;
+    assertEquals(progressPosition, destination.open(dataSpec(progressPosition)));
+    destination.write(archive, progressPosition, archive.length - progressPosition);
+    destination.close();
+    destination.done();
+
+    assertExtracted();
+  }
+
+  @Test
+  public void done_archiveEndsInsideEntry_throwsAndKeepsOutputAbsent() throws IOException {
+    ZipExtractingDataDestination destination = new ZipExtractingDataDestination();
+
+    destination.open(dataSpec(/* position= */ 0));
+    destination.write(archive, 0, 250_000);
+    destination.close();
+
+    assertThrows(ZipException.class, destination::done);
+    assertFalse(output.exists());
+  }
+
+  @Test
+  public void write_entryOutsideOutputDirectory_throws() throws IOException {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("../evil", new byte[] {1});
+    byte[] archive = zip(entries, /* storedEntryName= */ null);
+    ZipExtractingDataDestination destination = new ZipExtractingDataDestination();
+
+    destination.open(dataSpec(/* position= */ 0));
+
+    assertThrows(ZipException.class, () -> destination.write(archive, 0, archive.length));
+    destination.close();
+    assertFalse(new File(temporaryFolder.getRoot(), "evil").exists());
+  }
+
+  private DataSpec dataSpec(long position) {
+    return new DataSpec(Uri.EMPTY, output.getPath(), position, C.LENGTH_UNSET);
+  }
+
+  private void assertExtracted() throws IOException {
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      File file = new File(output, entry.getKey());
+      if (entry.getValue() == null) {
+        assertTrue(file.isDirectory());
+      } else {
+        assertArrayEquals(entry.getKey(), entry.getValue(), Files.readAllBytes(file.toPath()));
+      }
+    }
+    assertFalse(FileDataDestination.getTempFile(output.getPath()).exists());
+    assertFalse(Arrays.asList(output.list()).contains(".extract_checkpoint"));
+  }
+
+  private static byte[] zip(Map<String, byte[]> entries, String storedEntryName)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        ZipEntry zipEntry = new ZipEntry(entry.getKey());
+        byte[] data = entry.getValue();
+        if (entry.getKey().equals(storedEntryName)) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          zipEntry.setMethod(ZipEntry.STORED);
+          zipEntry.setSize(data.length);
+          zipEntry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(zipEntry);
+        if (data != null) {
+          zip.write(data);
+        }
+        zip.closeEntry();
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
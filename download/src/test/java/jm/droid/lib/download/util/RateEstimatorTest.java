@@ -0,0 +1,96 @@
+package jm.droid.lib.download.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import jm.droid.lib.download.C;
+
+import org.junit.Test;
+
+/** Tests {@link RateEstimator}. */
+public class RateEstimatorTest {
+
+  private final RateEstimator rateEstimator =
+      new RateEstimator(/* halfLifeMs= */ 1000, /* minSampleDurationMs= */ 100);
+
+  @Test
+  public void addBytes_firstCall_onlyStartsWindow() {
+    assertFalse(rateEstimator.addBytes(1_000_000, 0));
+
+    assertEquals(0, rateEstimator.getBytesPerSecond(), 0);
+    assertEquals(C.TIME_UNSET, rateEstimator.getEtaMs(1000));
+  }
+
+  @Test
+  public void addBytes_accumulatesUntilMinSampleDuration() {
+    rateEstimator.addBytes(0, 0);
+
+    assertFalse(rateEstimator.addBytes(500, 50));
+    assertTrue(rateEstimator.addBytes(500, 100));
+
+    assertEquals(10_000, rateEstimator.getBytesPerSecond(), 0.001);
+  }
+
+  @Test
+  public void addBytes_windowOfHalfLife_contributesHalf() {
+    rateEstimator.addBytes(0, 0);
+    rateEstimator.addBytes(1000, 1000);
+
+    rateEstimator.addBytes(3000, 2000);
+
+    assertEquals(2000, rateEstimator.getBytesPerSecond(), 0.001);
+  }
+
+  @Test
+  public void addBytes_steadyRate_convergesToRate() {
+    rateEstimator.addBytes(0, 0);
+    rateEstimator.addBytes(100, 100);
+
+    for (long timeMs = 200; timeMs <= 20_000; timeMs += 100) {
+      rateEstimator.addBytes(5000, timeMs);
+    }
+
+    assertEquals(50_000, rateEstimator.getBytesPerSecond(), 1);
+  }
+
+  @Test
+  public void getEtaMs_usesEstimate() {
+    rateEstimator.addBytes(0, 0);
+    rateEstimator.addBytes(2000, 1000);
+
+    assertEquals(5000, rateEstimator.getEtaMs(10_000));
+    assertEquals(0, rateEstimator.getEtaMs(0));
+    assertEquals(C.TIME_UNSET, rateEstimator.getEtaMs(C.LENGTH_UNSET));
+  }
+
+  @Test
+  public void getEtaMs_zeroRate_isUnset() {
+    rateEstimator.addBytes(0, 0);
+    rateEstimator.addBytes(0, 1000);
+
+    assertEquals(C.TIME_UNSET, rateEstimator.getEtaMs(10_000));
+  }
+
+  @Test
+  public void reset_discardsEstimateAndPartialSample() {
+    rateEstimator.addBytes(0, 0);
+    rateEstimator.addBytes(2000, 1000);
+    rateEstimator.addBytes(1_000_000, 1050);
+
+    rateEstimator.reset();
+
+    assertEquals(0, rateEstimator.getBytesPerSecond(), 0);
+    assertEquals(C.TIME_UNSET, rateEstimator.getEtaMs(10_000));
+    assertFalse(rateEstimator.addBytes(1000, 2000));
+    assertTrue(rateEstimator.addBytes(1000, 3000));
+    assertEquals(1000, rateEstimator.getBytesPerSecond(), 0.001);
+  }
+
+  @Test
+  public void constructor_rejectsNonPositiveDurations() {
+    assertThrows(IllegalArgumentException.class, () -> new RateEstimator(0, 100));
+    assertThrows(IllegalArgumentException.class, () -> new RateEstimator(1000, 0));
+  }
+}
@@ -0,0 +1,61 @@
+package jm.droid.lib.download.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests {@link RollingChecksum}. */
+public class RollingChecksumTest {
+
+  @Test
+  public void compute_matchesRsyncDefinition() {
+    byte[] data = "abcd".getBytes();
+
+    // a = 97 + 98 + 99 + 100, b = 4 * 97 + 3 * 98 + 2 * 99 + 100.
+    assertEquals(394 | 980 << 16, RollingChecksum.compute(data, 0, data.length));
+  }
+
+  @Test
+  public void compute_treatsBytesAsUnsigned() {
+    byte[] data = {(byte) 0xFF, (byte) 0x80};
+
+    assertEquals(383 | 638 << 16, RollingChecksum.compute(data, 0, data.length));
+  }
+
+  @Test
+  public void reset_matchesCompute() {
+    byte[] data = randomData(/* length= */ 100);
+    RollingChecksum checksum = new RollingChecksum(/* blockSize= */ 16);
+
+    assertEquals(RollingChecksum.compute(data, 10, 16), checksum.reset(data, 10));
+    assertEquals(RollingChecksum.compute(data, 10, 16), checksum.getValue());
+  }
+
+  @Test
+  public void roll_matchesComputeAtEveryOffset() {
+    // Long enough for b to overflow 16 bits many times.
+    int blockSize = 4096;
+    byte[] data = randomData(/* length= */ 3 * blockSize);
+    RollingChecksum checksum = new RollingChecksum(blockSize);
+    checksum.reset(data, 0);
+
+    for (int offset = 1; offset + blockSize <= data.length; offset++) {
+      int rolled = checksum.roll(data[offset - 1], data[offset + blockSize - 1]);
+      assertEquals(RollingChecksum.compute(data, offset, blockSize), rolled);
+    }
+  }
+
+  @Test
+  public void constructor_rejectsEmptyBlocks() {
+    assertThrows(IllegalArgumentException.class, () -> new RollingChecksum(/* blockSize= */ 0));
+  }
+
+  private static byte[] randomData(int length) {
+    byte[] data = new byte[length];
+    new Random(/* seed= */ 1).nextBytes(data);
+    return data;
+  }
+}
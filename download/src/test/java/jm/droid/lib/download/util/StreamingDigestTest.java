@@ -0,0 +1,222 @@
+package jm.droid.lib.download.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests {@link StreamingDigest}. */
+public class StreamingDigestTest {
+
+  private static final String[] ALGORITHMS = {
+    StreamingDigest.MD5, StreamingDigest.SHA_1, StreamingDigest.SHA_256, StreamingDigest.CRC32C
+  };
+
+  // RFC 1321, appendix A.5.
+  @Test
+  public void md5_rfc1321Vectors() {
+    assertDigest(StreamingDigest.MD5, "", "d41d8cd98f00b204e9800998ecf8427e");
+    assertDigest(StreamingDigest.MD5, "a", "0cc175b9c0f1b6a831c399e269772661");
+    assertDigest(StreamingDigest.MD5, "abc", "900150983cd24fb0d6963f7d28e17f72");
+    assertDigest(StreamingDigest.MD5, "message digest", "f96b697d7cb7938d525a2f31aaf161d0");
+    assertDigest(
+        StreamingDigest.MD5,
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+        "d174ab98d277d9f5a5611c2c9f419d9f");
+    assertDigest(
+        StreamingDigest.MD5,
+        "12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+        "57edf4a22be3c955ac49da2e2107b67a");
+  }
+
+  // FIPS 180-2, appendix A.
+  @Test
+  public void sha1_fips180Vectors() {
+    assertDigest(StreamingDigest.SHA_1, "", "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+    assertDigest(StreamingDigest.SHA_1, "abc", "a9993e364706816aba3e25717850c26c9cd0d89d");
+    assertDigest(
+        StreamingDigest.SHA_1,
+        "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq",
+        "84983e441c3bd26ebaae4aa1f95129e5e54670f1");
+    assertDigest(
+        StreamingDigest.SHA_1, repeat('a', 1_000_000), "34aa973cd4c4daa4f61eeb2bdbad27316534016f");
+  }
+
+  // FIPS 180-2, appendix B.
+  @Test
+  public void sha256_fips180Vectors() {
+    assertDigest(
+        StreamingDigest.SHA_256,
+        "",
+        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+    assertDigest(
+        StreamingDigest.SHA_256,
+        "abc",
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+    assertDigest(
+        StreamingDigest.SHA_256,
+        "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq",
+        "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1");
+    assertDigest(
+        StreamingDigest.SHA_256,
+        repeat('a', 1_000_000),
+        "cdc76e5c9914fb9281a1c7e284d73e67f1809a48a497200e046d39ccc7112cd0");
+  }
+
+  // The check value of CRC-32C, and RFC 3720, appendix B.4.
+  @Test
+  public void crc32c_knownVectors() {
+    assertDigest(StreamingDigest.CRC32C, "", "00000000");
+    assertDigest(StreamingDigest.CRC32C, "123456789", "e3069283");
+    byte[] zeros = new byte[32];
+    assertEquals("8a9136aa", digestHex(StreamingDigest.CRC32C, zeros));
+    byte[] ones = new byte[32];
+    Arrays.fill(ones, (byte) 0xFF);
+    assertEquals("62a8ab43", digestHex(StreamingDigest.CRC32C, ones));
+    byte[] ascending = new byte[32];
+    for (int i = 0; i < ascending.length; i++) {
+      ascending[i] = (byte) i;
+    }
+    assertEquals("46dd794e", digestHex(StreamingDigest.CRC32C, ascending));
+  }
+
+  @Test
+  public void update_inOddChunks_matchesSingleUpdate() {
+    byte[] data = randomData(1000);
+    for (String algorithm : ALGORITHMS) {
+      String expected = digestHex(algorithm, data);
+      for (int chunkLength : new int[] {1, 3, 7, 55, 56, 63, 64, 65, 129}) {
+        StreamingDigest digest = StreamingDigest.create(algorithm);
+        for (int offset = 0; offset < data.length; offset += chunkLength) {
+          digest.update(data, offset, Math.min(chunkLength, data.length - offset));
+        }
+        assertEquals(algorithm + " in chunks of " + chunkLength, expected, digest.digestHex());
+        assertEquals(data.length, digest.getPosition());
+      }
+    }
+  }
+
+  @Test
+  public void digest_doesNotResetState() {
+    byte[] data = randomData(200);
+    for (String algorithm : ALGORITHMS) {
+      StreamingDigest digest = StreamingDigest.create(algorithm);
+      digest.update(data, 0, 100);
+      byte[] intermediate = digest.digest();
+      assertArrayEquals(intermediate, digest.digest());
+      digest.update(data, 100, 100);
+      assertEquals(digestHex(algorithm, data), digest.digestHex());
+    }
+  }
+
+  @Test
+  public void saveStateAndRestore_continuesDigest() {
+    byte[] data = randomData(300);
+    for (String algorithm : ALGORITHMS) {
+      String expected = digestHex(algorithm, data);
+      for (int split : new int[] {0, 1, 63, 64, 65, 150}) {
+        StreamingDigest digest = StreamingDigest.create(algorithm);
+        digest.update(data, 0, split);
+
+        StreamingDigest restored = StreamingDigest.restore(algorithm, digest.saveState());
+
+        assertNotNull(restored);
+        assertEquals(split, restored.getPosition());
+        assertEquals(algorithm, restored.getAlgorithm());
+        restored.update(data, split, data.length - split);
+        assertEquals(algorithm + " split at " + split, expected, restored.digestHex());
+      }
+    }
+  }
+
+  @Test
+  public void restore_withTruncatedState_returnsNull() {
+    byte[] data = randomData(100);
+    for (String algorithm : ALGORITHMS) {
+      StreamingDigest digest = StreamingDigest.create(algorithm);
+      digest.update(data, 0, data.length);
+      byte[] state = digest.saveState();
+      for (int length = 0; length < state.length; length++) {
+        assertNull(
+            algorithm + " truncated to " + length,
+            StreamingDigest.restore(algorithm, Arrays.copyOf(state, length)));
+      }
+    }
+  }
+
+  @Test
+  public void restore_withTrailingBytes_returnsNull() {
+    for (String algorithm : ALGORITHMS) {
+      byte[] state = StreamingDigest.create(algorithm).saveState();
+      assertNull(StreamingDigest.restore(algorithm, Arrays.copyOf(state, state.length + 1)));
+    }
+  }
+
+  @Test
+  public void restore_withOtherVersion_returnsNull() {
+    for (String algorithm : ALGORITHMS) {
+      byte[] state = StreamingDigest.create(algorithm).saveState();
+      state[0]++;
+      assertNull(StreamingDigest.restore(algorithm, state));
+    }
+  }
+
+  @Test
+  public void restore_withStateOfOtherAlgorithm_returnsNull() {
+    byte[] state = StreamingDigest.create(StreamingDigest.SHA_256).saveState();
+    assertNull(StreamingDigest.restore(StreamingDigest.SHA_1, state));
+    assertNull(StreamingDigest.restore(StreamingDigest.CRC32C, state));
+  }
+
+  @Test
+  public void create_normalizesAlgorithmNames() {
+    assertEquals(StreamingDigest.SHA_256, StreamingDigest.create("sha256").getAlgorithm());
+    assertEquals(StreamingDigest.SHA_1, StreamingDigest.create(" SHA1 ").getAlgorithm());
+    assertEquals(StreamingDigest.CRC32C, StreamingDigest.create("crc-32c").getAlgorithm());
+    assertTrue(StreamingDigest.isSupported("md5"));
+    assertFalse(StreamingDigest.isSupported("SHA-512"));
+    assertFalse(StreamingDigest.isSupported(null));
+    assertThrows(IllegalArgumentException.class, () -> StreamingDigest.create("SHA-512"));
+  }
+
+  @Test
+  public void matches_ignoresCaseAndWhitespace() {
+    StreamingDigest digest = StreamingDigest.create(StreamingDigest.MD5);
+    assertTrue(digest.matches(" D41D8CD98F00B204E9800998ECF8427E\n"));
+    assertFalse(digest.matches("900150983cd24fb0d6963f7d28e17f72"));
+  }
+
+  private static void assertDigest(String algorithm, String input, String expectedHex) {
+    assertEquals(
+        algorithm + " of \"" + input + "\"",
+        expectedHex,
+        digestHex(algorithm, input.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  private static String digestHex(String algorithm, byte[] data) {
+    StreamingDigest digest = StreamingDigest.create(algorithm);
+    digest.update(data, 0, data.length);
+    return digest.digestHex();
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static byte[] randomData(int length) {
+    byte[] data = new byte[length];
+    new Random(/* seed= */ length).nextBytes(data);
+    return data;
+  }
+}